@@ -42,7 +42,117 @@ public class ExternalProperties {
       DISABLE_SCHEMA_CACHING("custom.mondrian.rolap.schema.disableSchemaCaching",
                "Option to disable mondrian caching on schema meta data",
                "boolean",
-                true);
+                true),
+
+      COMPACT_RESPONSE("custom.mondrian.xmla.compactResponse",
+               "Option to write XML/A responses as compact UTF-8, without indentation",
+               "boolean",
+                false),
+
+      RESPONSE_SEGMENT_SIZE("custom.mondrian.xmla.responseBuffer.segmentSize",
+               "Size in bytes of the pooled direct buffers XML/A responses are written to",
+               "int",
+                64 * 1024),
+
+      RESPONSE_POOLED_SEGMENTS("custom.mondrian.xmla.responseBuffer.maxPooledSegments",
+               "Maximum number of free response buffer segments kept for reuse",
+               "int",
+                256),
+
+      RESPONSE_MAX_IN_MEMORY("custom.mondrian.xmla.responseBuffer.maxInMemory",
+               "Bytes of a single response kept in memory before it spills to a temp file",
+               "int",
+                64 * 1024 * 1024),
+
+      DISCOVER_CACHE_ENABLED("custom.mondrian.xmla.discoverCache.enabled",
+               "Option to keep serialized Discover responses of metadata rowsets and answer repeated requests from them",
+               "boolean",
+                true),
+
+      DISCOVER_CACHE_MAX_ENTRIES("custom.mondrian.xmla.discoverCache.maxEntries",
+               "Maximum number of Discover responses kept in the cache",
+               "int",
+                2000),
+
+      DISCOVER_CACHE_MAX_BYTES("custom.mondrian.xmla.discoverCache.maxBytes",
+               "Maximum total size in bytes of the Discover responses kept in the cache",
+               "int",
+                32 * 1024 * 1024),
+
+      PARALLEL_SERIALIZATION_THRESHOLD("custom.mondrian.xmla.parallelSerialization.threshold",
+               "Number of cells from which MDDataSet results are encoded on several cores; 0 to never do it",
+               "int",
+                100000),
+
+      PARALLEL_SERIALIZATION_CHUNK_SIZE("custom.mondrian.xmla.parallelSerialization.chunkSize",
+               "Number of cells, rows or tuples encoded as one parallel task",
+               "int",
+                8192),
+
+      PARALLEL_SERIALIZATION_PARALLELISM("custom.mondrian.xmla.parallelSerialization.parallelism",
+               "Number of threads encoding results; 0 for the number of processors",
+               "int",
+                0),
+
+      MEMBER_CACHE_MAX_ENTRIES("custom.mondrian.xmla.memberCache.maxEntries",
+               "Maximum number of rendered axis members kept in the cache; 0 to disable it",
+               "int",
+                50000),
+
+      MEMBER_CACHE_MAX_BYTES("custom.mondrian.xmla.memberCache.maxBytes",
+               "Maximum total size in bytes of the rendered axis members kept in the cache",
+               "int",
+                16 * 1024 * 1024),
+
+      OLAP_INFO_CACHE_MAX_ENTRIES("custom.mondrian.xmla.olapInfoCache.maxEntries",
+               "Maximum number of query shapes whose OlapInfo is kept in the cache; 0 to disable it",
+               "int",
+                1000),
+
+      DRILLTHROUGH_FETCH_SIZE("custom.mondrian.xmla.drillThrough.fetchSize",
+               "Number of drill through rows fetched at a time, and read before the total count row is written",
+               "int",
+                1000),
+
+      DRILLTHROUGH_FETCH_ALL("custom.mondrian.xmla.drillThrough.fetchAll",
+               "Option to read all drill through rows before writing the response, releasing the connection early",
+               "boolean",
+                false),
+
+      DRILLTHROUGH_MAX_IN_MEMORY("custom.mondrian.xmla.drillThrough.maxInMemory",
+               "Bytes of fetched drill through rows kept on the heap before they spill to a temp file",
+               "int",
+                64 * 1024 * 1024),
+
+      SESSION_IDLE_TIMEOUT("custom.mondrian.xmla.session.idleTimeout",
+               "Seconds after its last request an XML/A session expires",
+               "int",
+                1800),
+
+      SESSION_MAX_AGE("custom.mondrian.xmla.session.maxAge",
+               "Seconds after it began an XML/A session expires, however busy it is; 0 for no limit",
+               "int",
+                12 * 60 * 60),
+
+      SESSION_PIN_CONNECTIONS("custom.mondrian.xmla.session.pinConnections",
+               "Option to keep a connection open for each XML/A session, reused by its next requests",
+               "boolean",
+                false),
+
+      SCHEMA_VERSION_CHECK_INTERVAL("custom.mondrian.xmla.schemaVersion.checkInterval",
+               "Seconds between two checks of the schema files and the version query for changes",
+               "int",
+                30),
+
+      SCHEMA_VERSION_CHECK_IN_BACKGROUND("custom.mondrian.xmla.schemaVersion.checkInBackground",
+               "Option to check for schema changes on a background thread, instead of in the request that comes due",
+               "boolean",
+                false),
+
+      WATERMARK_POLL_INTERVAL("custom.mondrian.xmla.watermark.pollInterval",
+               "Seconds between two runs of the watermark queries of olap.xml, which tell when the fact data of a cube was loaded",
+               "int",
+                60);
      //Define more ADS-specific mondrian properties here.
       
       String name;
@@ -75,14 +185,15 @@ public class ExternalProperties {
 
    private  static ExternalProperties instance;
    
-   Properties adsProps = new Properties();
+   /** Replaced as a whole on reload */
+   volatile Properties adsProps = new Properties();
 
    private ExternalProperties() {
 
    }
    
    
-   public static ExternalProperties  getInstance() {
+   public static synchronized ExternalProperties  getInstance() {
       if (instance == null){
          instance = new ExternalProperties();
          try {
@@ -125,6 +236,25 @@ public class ExternalProperties {
    }
    
    
+   /**
+    * Reads mondrian.properties and custom.mondrian.properties again. Getters
+    * return the new values from then on; what was sized from a property at
+    * startup, like the caches, keeps its size until a restart.
+    * @throws IOException 
+    */
+   public synchronized void reload() throws IOException {
+      Properties props = new Properties();
+      try (FileInputStream input = new FileInputStream(new File(MondrianProperties))) {
+         props.load(input);
+      }
+      if (new File(CustomMondrianProperties).exists()) {
+         try (FileInputStream input = new FileInputStream(new File(CustomMondrianProperties))) {
+            props.load(input);
+         }
+      }
+      adsProps = props;
+   }
+
    public boolean isDisableMeasuresCashing(){
       if(adsProps.containsKey(PropName.DISABLE_MEASURES_CACHING.name)){
          return  Boolean.valueOf(adsProps.get(PropName.DISABLE_MEASURES_CACHING.name).toString());
@@ -140,6 +270,119 @@ public class ExternalProperties {
      LOGGER.warn("Property '"+PropName.DISABLE_SCHEMA_CACHING+"' is not defined in custom.mondirna.properties"); 
      throw new NoSuchElementException("Property '"+PropName.DISABLE_SCHEMA_CACHING+"' is not defined in mondirna.properties");    
    }
+
+   public boolean isCompactResponse(){
+      return getBoolean(PropName.COMPACT_RESPONSE);
+   }
+
+   public int getResponseSegmentSize(){
+      return getInt(PropName.RESPONSE_SEGMENT_SIZE);
+   }
+
+   public int getResponsePooledSegments(){
+      return getInt(PropName.RESPONSE_POOLED_SEGMENTS);
+   }
+
+   public int getResponseMaxInMemory(){
+      return getInt(PropName.RESPONSE_MAX_IN_MEMORY);
+   }
+
+   public boolean isDiscoverCacheEnabled(){
+      return getBoolean(PropName.DISCOVER_CACHE_ENABLED);
+   }
+
+   public int getDiscoverCacheMaxEntries(){
+      return getInt(PropName.DISCOVER_CACHE_MAX_ENTRIES);
+   }
+
+   public int getDiscoverCacheMaxBytes(){
+      return getInt(PropName.DISCOVER_CACHE_MAX_BYTES);
+   }
+
+   public int getParallelSerializationThreshold(){
+      return getInt(PropName.PARALLEL_SERIALIZATION_THRESHOLD);
+   }
+
+   public int getParallelSerializationChunkSize(){
+      return getInt(PropName.PARALLEL_SERIALIZATION_CHUNK_SIZE);
+   }
+
+   public int getParallelSerializationParallelism(){
+      return getInt(PropName.PARALLEL_SERIALIZATION_PARALLELISM);
+   }
+
+   public int getMemberCacheMaxEntries(){
+      return getInt(PropName.MEMBER_CACHE_MAX_ENTRIES);
+   }
+
+   public int getMemberCacheMaxBytes(){
+      return getInt(PropName.MEMBER_CACHE_MAX_BYTES);
+   }
+
+   public int getOlapInfoCacheMaxEntries(){
+      return getInt(PropName.OLAP_INFO_CACHE_MAX_ENTRIES);
+   }
+
+   public int getDrillThroughFetchSize(){
+      return getInt(PropName.DRILLTHROUGH_FETCH_SIZE);
+   }
+
+   public boolean isDrillThroughFetchAll(){
+      return getBoolean(PropName.DRILLTHROUGH_FETCH_ALL);
+   }
+
+   public int getDrillThroughMaxInMemory(){
+      return getInt(PropName.DRILLTHROUGH_MAX_IN_MEMORY);
+   }
+
+   public int getSessionIdleTimeout(){
+      return getInt(PropName.SESSION_IDLE_TIMEOUT);
+   }
+
+   public int getSessionMaxAge(){
+      return getInt(PropName.SESSION_MAX_AGE);
+   }
+
+   public boolean isSessionPinConnections(){
+      return getBoolean(PropName.SESSION_PIN_CONNECTIONS);
+   }
+
+   public int getSchemaVersionCheckInterval(){
+      return getInt(PropName.SCHEMA_VERSION_CHECK_INTERVAL);
+   }
+
+   public boolean isSchemaVersionCheckInBackground(){
+      return getBoolean(PropName.SCHEMA_VERSION_CHECK_IN_BACKGROUND);
+   }
+
+   public int getWatermarkPollInterval(){
+      return getInt(PropName.WATERMARK_POLL_INTERVAL);
+   }
+
+   /**
+    * Integer property that falls back to its default value when it's not set
+    * or not a number.
+    */
+   private int getInt(PropName prop){
+      if(adsProps.containsKey(prop.name)){
+         try {
+            return Integer.parseInt(adsProps.get(prop.name).toString().trim());
+         } catch (NumberFormatException e) {
+            LOGGER.warn("Property '"+prop.name+"' is not a number, using "+prop.getValue());
+         }
+      }
+      return (Integer) prop.getValue();
+   }
+
+   /**
+    * Boolean property that falls back to its default value when it's not set.
+    */
+   private boolean getBoolean(PropName prop){
+      if(adsProps.containsKey(prop.name)){
+         return Boolean.valueOf(adsProps.get(prop.name).toString().trim());
+      }
+      return (Boolean) prop.getValue();
+   }
    
 
 }
@@ -4,12 +4,16 @@
 
 package custom.mondrian.xmla.dataSource;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -19,11 +23,16 @@ import mondrian.xmla.XmlaException;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 /**
  * Processor generate valid datasource.xml with configurations in olap.xml
+ * 
+ * <p>
+ * It parses olap.xml into an {@link OlapConfig}; the data sources are made
+ * from that snapshot, without reading the files again.
  */
 
 public class DataSourceProcessor {
@@ -42,51 +51,48 @@ public class DataSourceProcessor {
             + "<AuthenticationMode>Unauthenticated</AuthenticationMode> \n" +  CATALOGS_IDENTIFIER + "\n</DataSource></DataSources>";
 
    /** Serialized olap.xml file */
-   private String olapConfig;
-
-   
-   /** The full path to catalog folder*/
-   private String catalogRoot;
-   
-   /* e.g.:  user:[user];password:[password] */
-   private String credential;
-   private DataSource dataSource;
-
-   private static DataSourceProcessor instance;
-   
-   public DataSourceProcessor(){
-      
-   }
-   private DataSourceProcessor(String olapConfig) {
+   private final String olapConfig;
+
+   public DataSourceProcessor(String olapConfig) {
       this.olapConfig = olapConfig;
    }
-   
+
    /**
-    * 
-    * @param olapConfig
-    * @param dsConfig
-    * @return
+    * @return olap.xml in the ads_olap_root folder
     */
-   public static DataSourceProcessor instance(String olapConfig){
-      if (instance == null)
-            instance = new DataSourceProcessor(olapConfig);
-      return instance;
+   public static File getOlapFile() {
+      return new File(System.getProperty("ads_olap_root") + "/olap.xml");
    }
 
-   public String process() {
-
-      this.dataSource = unMarshalDataSourceXml();      
-      return marshalDataSourceXml(this.dataSource);
+   /**
+    * Reads olap.xml and the schemas folder.
+    * 
+    * @return configuration
+    */
+   public static OlapConfig load() {
+      File olapFile = getOlapFile();
+      if (!olapFile.exists() || !olapFile.isFile()) {
+         throw new XmlaException("0", "0", "Can not find olap configuration file: olap.xml", null);
+      }
+      StringBuilder olapXmlStr = new StringBuilder();
+      try (BufferedReader br = new BufferedReader(new FileReader(olapFile))) {
+         String line;
+         while ((line = br.readLine()) != null) {
+            olapXmlStr.append(line);
+         }
+      } catch (IOException e) {
+         throw new XmlaException("0", "0", "Fail to read olap configuration file: " + olapFile, e);
+      }
+      return new DataSourceProcessor(olapXmlStr.toString()).unMarshalOlapConfig();
    }
 
    /**
-    * Unmarshal the serialized DSINFO with olap.xml to entitiy objects: Catalogs, Catalog,
-    * DatasourceInfo
+    * Unmarshal olap.xml, and list the catalogs of its schemas folder
     * 
-    * @return data source
+    * @return configuration
     * 
     */
-   public DataSource unMarshalDataSourceXml() throws custom.mondrian.xmla.exception.XmlaException {
+   public OlapConfig unMarshalOlapConfig() throws custom.mondrian.xmla.exception.XmlaException {
       try {
          DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
          InputSource is = new InputSource();
@@ -102,30 +108,29 @@ public class DataSourceProcessor {
 
          String uri = "http://" + host + ":" + port + context;
          String relativeCatalogPath = olapElement.getElementsByTagName("schemas-folder").item(0).getTextContent();
-         catalogRoot = System.getProperty("ads_olap_root") + "/xmla" + relativeCatalogPath; 
+         String catalogRoot = System.getProperty("ads_olap_root") + "/xmla" + relativeCatalogPath;
          Element jdbcElement = (Element) olapElement.getElementsByTagName("jdbc").item(0);
          String jdbcUri = jdbcElement.getElementsByTagName("uri").item(0).getTextContent();
-         
-         //insert login credential to jdbcUri
-         if(credential != null)
-            jdbcUri = jdbcUri +"?" + credential;
-         
          String jdbcDriver = jdbcElement.getElementsByTagName("driver").item(0).getTextContent();
 
-         Catalogs catalogs = new Catalogs();
-         for (String catalogName : getCatalogs(catalogRoot)) {
-            DataSourceInfo ds = new DataSourceInfo(jdbcUri, jdbcDriver);
-            Catalog catalog = new Catalog(catalogName, relativeCatalogPath, ds);
-            catalogs.addCatalog(catalog);
+         // optional query of a version that changes with the schemas
+         String versionQuery = null;
+         if (jdbcElement.getElementsByTagName("version-query").getLength() > 0)
+            versionQuery = jdbcElement.getElementsByTagName("version-query").item(0).getTextContent().trim();
+
+         // optional watermark queries of the cubes
+         Map<String, Watermark> watermarks = new HashMap<String, Watermark>();
+         NodeList watermarkElements = olapElement.getElementsByTagName("watermark");
+         for (int i = 0; i < watermarkElements.getLength(); i++) {
+            Element watermarkElement = (Element) watermarkElements.item(i);
+            String cube = watermarkElement.getAttribute("cube");
+            watermarks.put(cube, new Watermark(cube, watermarkElement.getTextContent().trim(), Boolean.parseBoolean(watermarkElement.getAttribute("partitioned"))));
          }
 
-         // populate DataSource
-         DataSource dataSource = new DataSource(catalogs, uri);
-         return dataSource;
+         return new OlapConfig(uri, relativeCatalogPath, catalogRoot, jdbcUri, jdbcDriver, versionQuery, watermarks, getCatalogs(catalogRoot));
 
       } catch (ParserConfigurationException | SAXException | IOException e) {
-         // TODO Auto-generated catch block
-         throw new XmlaException("0", "0", "Fail the unmarshal datasource xml string ", null);
+         throw new XmlaException("0", "0", "Fail to unmarshal olap configuration file: " + getOlapFile(), e);
       }
 
    }
@@ -137,7 +142,7 @@ public class DataSourceProcessor {
     * @param ds
     * @return
     */
-   public String marshalDataSourceXml(DataSource ds) {
+   public static String marshalDataSourceXml(DataSource ds) {
 
       String dsXml = DSINFO;
       // validate the input datasource.xml in valid format.
@@ -159,7 +164,7 @@ public class DataSourceProcessor {
     * @return List<String> catalog files
     * @throws FileNotFoundException
     */
-   public List<String> getCatalogs(String catalogDir) throws FileNotFoundException {
+   public static List<String> getCatalogs(String catalogDir) throws FileNotFoundException {
 
       List<String> result = new ArrayList<String>();
       if (catalogDir == null || catalogDir == "")
@@ -182,14 +187,4 @@ public class DataSourceProcessor {
 
       return result;
    }
-   public String getCredential() {
-      return credential;
-   }
-   public void setCredential(String credential) {
-      this.credential = credential;
-   }
-
-   
-   
-
 }
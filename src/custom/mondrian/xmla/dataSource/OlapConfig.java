@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.dataSource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What olap.xml and the schemas folder configure, read once: the server URI,
+ * the JDBC connection and the catalog files. A snapshot never changes; when
+ * the files do, {@link OlapConfigWatcher} loads a new one.
+ */
+
+public final class OlapConfig {
+
+   private final String uri;
+   private final String relativeCatalogPath;
+   private final String catalogRoot;
+   private final String jdbcUri;
+   private final String jdbcDriver;
+   private final String versionQuery;
+   private final Map<String, Watermark> watermarks;
+   private final List<String> catalogFiles;
+   private final String initialCatalog;
+
+   /**
+    * @param uri
+    *           URI of the OLAP server
+    * @param relativeCatalogPath
+    *           Schemas folder, relative to the web application
+    * @param catalogRoot
+    *           Full path of the schemas folder
+    * @param versionQuery
+    *           SQL query of a version that changes with the schemas, or null
+    * @param watermarks
+    *           Watermark queries, by cube name
+    * @param catalogFiles
+    *           Names of the schema files, not empty
+    */
+   OlapConfig(String uri, String relativeCatalogPath, String catalogRoot, String jdbcUri, String jdbcDriver, String versionQuery, Map<String, Watermark> watermarks,
+            List<String> catalogFiles) {
+      this.uri = uri;
+      this.relativeCatalogPath = relativeCatalogPath;
+      this.catalogRoot = catalogRoot;
+      this.jdbcUri = jdbcUri;
+      this.jdbcDriver = jdbcDriver;
+      this.versionQuery = versionQuery == null || versionQuery.length() == 0 ? null : versionQuery;
+      this.watermarks = Collections.unmodifiableMap(new HashMap<String, Watermark>(watermarks));
+      this.catalogFiles = Collections.unmodifiableList(new ArrayList<String>(catalogFiles));
+      this.initialCatalog = getDataSource().getInitialCatalog().getName();
+   }
+
+   /**
+    * Builds the data source. Its JDBC URI carries no credentials; connections
+    * are given those of their request as connect properties.
+    */
+   public DataSource getDataSource() {
+      Catalogs catalogs = new Catalogs();
+      for (String catalogFile : catalogFiles) {
+         catalogs.addCatalog(new Catalog(catalogFile, relativeCatalogPath, new DataSourceInfo(jdbcUri, jdbcDriver)));
+      }
+      return new DataSource(catalogs, this.uri);
+   }
+
+   /**
+    * @return content of datasources.xml
+    */
+   public String getContent() {
+      return DataSourceProcessor.marshalDataSourceXml(getDataSource());
+   }
+
+   /**
+    * @return name of the catalog of requests that name none: the first schema
+    */
+   public String getInitialCatalog() {
+      return initialCatalog;
+   }
+
+   /**
+    * @return full path of the schemas folder
+    */
+   public String getCatalogRoot() {
+      return catalogRoot;
+   }
+
+   public List<String> getCatalogFiles() {
+      return catalogFiles;
+   }
+
+   /**
+    * @return SQL query of a version that changes with the schemas, from
+    *         &lt;version-query&gt; in &lt;jdbc&gt;, or null
+    */
+   public String getVersionQuery() {
+      return versionQuery;
+   }
+
+   /**
+    * @return watermark of a cube, from &lt;watermarks&gt;, or null
+    */
+   public Watermark getWatermark(String cube) {
+      return watermarks.get(cube);
+   }
+}
+
+// End OlapConfig.java
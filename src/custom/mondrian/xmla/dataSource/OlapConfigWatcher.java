@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.dataSource;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+import custom.mondrian.properties.ExternalProperties;
+
+/**
+ * Holds the current {@link OlapConfig}. It is loaded on first use, and
+ * loaded again only when a watch service sees olap.xml,
+ * custom.mondrian.properties or a file of the schemas folder change, so
+ * requests don't read the configuration from disk.
+ *
+ * <p>
+ * Changes are picked up once the files have been quiet for a moment, since
+ * editors and deployments write a file in several steps. If the new
+ * configuration can't be read, the previous one is kept. Listeners are told
+ * after a reload, to drop what they built from the old one.
+ */
+
+public final class OlapConfigWatcher {
+
+   private static final Logger LOGGER = Logger.getLogger(OlapConfigWatcher.class);
+
+   /** Files of the ads_olap_root folder that are watched */
+   private static final Set<String> WATCHED_FILES = new HashSet<String>(Arrays.asList("olap.xml", "custom.mondrian.properties"));
+
+   /** Milliseconds without changes before a reload */
+   private static final long QUIET_PERIOD = 500;
+
+   /**
+    * Told when the configuration was reloaded.
+    */
+   public interface Listener {
+      void reloaded(OlapConfig config);
+   }
+
+   private static final AtomicReference<OlapConfig> current = new AtomicReference<OlapConfig>();
+   private static final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+   private static final Object LOCK = new Object();
+   /** Guarded by LOCK */
+   private static Thread watchThread;
+
+   private OlapConfigWatcher() {
+   }
+
+   /**
+    * @return current configuration, loaded on first use
+    */
+   public static OlapConfig get() {
+      OlapConfig config = current.get();
+      if (config == null) {
+         synchronized (LOCK) {
+            config = current.get();
+            if (config == null) {
+               config = DataSourceProcessor.load();
+               current.set(config);
+               start();
+            }
+         }
+      }
+      return config;
+   }
+
+   public static void addListener(Listener listener) {
+      listeners.add(listener);
+   }
+
+   public static void removeListener(Listener listener) {
+      listeners.remove(listener);
+   }
+
+   /**
+    * Stops watching the files, when the servlet is destroyed.
+    */
+   public static void stop() {
+      synchronized (LOCK) {
+         if (watchThread != null) {
+            watchThread.interrupt();
+            watchThread = null;
+         }
+      }
+   }
+
+   private static void start() {
+      if (watchThread != null) {
+         return;
+      }
+      watchThread = new Thread(new Watch(), "olap-config-watcher");
+      watchThread.setDaemon(true);
+      watchThread.start();
+   }
+
+   /**
+    * Loads the configuration again, and tells the listeners.
+    */
+   static void reload() {
+      final OlapConfig config;
+      try {
+         config = DataSourceProcessor.load();
+      } catch (RuntimeException e) {
+         LOGGER.error("Failed to reload olap.xml, keeping the previous configuration", e);
+         return;
+      }
+      try {
+         ExternalProperties.getInstance().reload();
+      } catch (IOException e) {
+         LOGGER.error("Failed to reload custom.mondrian.properties, keeping the previous properties", e);
+      }
+      current.set(config);
+      LOGGER.info("Reloaded olap configuration: " + config.getCatalogFiles().size() + " catalogs in " + config.getCatalogRoot());
+      for (Listener listener : listeners) {
+         try {
+            listener.reloaded(config);
+         } catch (RuntimeException e) {
+            LOGGER.error("Olap configuration listener failed", e);
+         }
+      }
+   }
+
+   /**
+    * Watches the ads_olap_root folder and the schemas folder.
+    */
+   private static final class Watch implements Runnable {
+      private WatchKey schemasKey;
+      private String schemasFolder;
+
+      public void run() {
+         final Path root = DataSourceProcessor.getOlapFile().getParentFile().toPath();
+         try (WatchService watchService = root.getFileSystem().newWatchService()) {
+            final WatchKey rootKey = root.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            watchSchemas(watchService, current.get());
+            while (!Thread.currentThread().isInterrupted()) {
+               if (!isChange(watchService.take(), rootKey)) {
+                  continue;
+               }
+               // wait for the files to be quiet, taking in the changes
+               // that are part of the same update
+               WatchKey key;
+               while ((key = watchService.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS)) != null) {
+                  isChange(key, rootKey);
+               }
+               reload();
+               watchSchemas(watchService, current.get());
+            }
+         } catch (InterruptedException e) {
+            // stopped
+         } catch (ClosedWatchServiceException e) {
+            // stopped
+         } catch (IOException e) {
+            LOGGER.error("Can not watch the olap configuration files, changes need a restart", e);
+         }
+      }
+
+      /**
+       * Watches the schemas folder of a configuration, if it is not
+       * watched yet.
+       */
+      private void watchSchemas(WatchService watchService, OlapConfig config) {
+         if (config.getCatalogRoot().equals(schemasFolder)) {
+            return;
+         }
+         if (schemasKey != null) {
+            schemasKey.cancel();
+            schemasKey = null;
+         }
+         schemasFolder = config.getCatalogRoot();
+         try {
+            schemasKey = Paths.get(schemasFolder).register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+         } catch (IOException e) {
+            LOGGER.error("Can not watch the schemas folder " + schemasFolder, e);
+         }
+      }
+
+      /**
+       * Takes the events of a key, and resets it.
+       *
+       * @return whether one of them is about a watched file
+       */
+      private static boolean isChange(WatchKey key, WatchKey rootKey) {
+         boolean change = false;
+         for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || key != rootKey || WATCHED_FILES.contains(String.valueOf(event.context()))) {
+               change = true;
+            }
+         }
+         key.reset();
+         return change;
+      }
+   }
+}
+
+// End OlapConfigWatcher.java
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.dataSource;
+
+/**
+ * Entity class for element &lt;watermark&gt; of olap.xml: a SQL query whose
+ * result changes when the fact data of a cube is loaded.
+ * 
+ * <p>
+ * The query returns one row, the watermark (e.g. max(load_id)). A
+ * partitioned cube's query returns a row per partition instead: the unique
+ * name of its member (e.g. [Time].[2014].[Q1]), then its watermark. Either
+ * may end with a load time column, reported as the cube's LastDataUpdate.
+ * 
+ * <pre>
+ * &lt;watermarks&gt;
+ *    &lt;watermark cube="Sales"&gt;SELECT max(load_id), max(load_time) FROM load_log&lt;/watermark&gt;
+ *    &lt;watermark cube="Trades" partitioned="true"&gt;SELECT period_member, max(load_id), max(load_time) FROM trade_loads GROUP BY period_member&lt;/watermark&gt;
+ * &lt;/watermarks&gt;
+ * </pre>
+ */
+
+public final class Watermark {
+
+   private final String cube;
+   private final String query;
+   private final boolean partitioned;
+
+   public Watermark(String cube, String query, boolean partitioned) {
+      this.cube = cube;
+      this.query = query;
+      this.partitioned = partitioned;
+   }
+
+   public String getCube() {
+      return cube;
+   }
+
+   public String getQuery() {
+      return query;
+   }
+
+   /**
+    * @return whether the rows of the query are partitions, each starting
+    *         with the unique name of its member
+    */
+   public boolean isPartitioned() {
+      return partitioned;
+   }
+}
+
+// End Watermark.java
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.handler;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.olap4j.metadata.Property.StandardCellProperty;
+
+/**
+ * The properties written in each &lt;Cell&gt; of an MDDataSet, worked out
+ * once per query from its CELL PROPERTIES clause. A plan is immutable and
+ * belongs to one data set, so concurrent queries don't see each other's.
+ *
+ * <p>
+ * The elements are those clients of this bridge have always received:
+ * <ul>
+ * <li>with CELL_ORDINAL in the clause, only an empty FormatString;</li>
+ * <li>otherwise Value, FormatString and Language for VALUE, FORMAT_STRING
+ * and LANGUAGE in the clause, FormatString carrying the cell value, as it
+ * always has;</li>
+ * <li>without a clause, Value, FormatString, Language and CellOrdinal.</li>
+ * </ul>
+ */
+
+final class CellPropertyPlan {
+
+   private static final CellPropertyPlan DEFAULT = new CellPropertyPlan(new String[] { "Value", "FormatString", "Language", "CellOrdinal" },
+            new StandardCellProperty[] { StandardCellProperty.VALUE, StandardCellProperty.FORMAT_STRING, StandardCellProperty.LANGUAGE,
+                     StandardCellProperty.CELL_ORDINAL });
+
+   /** Element names */
+   final String[] names;
+   /** Property each element is written from */
+   final StandardCellProperty[] sources;
+   /** Whether an element is written from the value, which needs DATATYPE */
+   final boolean needsValue;
+   final boolean needsFormatString;
+
+   private CellPropertyPlan(String[] names, StandardCellProperty[] sources) {
+      this.names = names;
+      this.sources = sources;
+      boolean needsValue = false;
+      boolean needsFormatString = false;
+      for (StandardCellProperty source : sources) {
+         needsValue |= source == StandardCellProperty.VALUE;
+         needsFormatString |= source == StandardCellProperty.FORMAT_STRING;
+      }
+      this.needsValue = needsValue;
+      this.needsFormatString = needsFormatString;
+   }
+
+   /**
+    * Returns the plan of a query.
+    *
+    * @param mdx
+    *           MDX statement
+    */
+   static CellPropertyPlan of(String mdx) {
+      final Set<String> requested = parseCellProperties(mdx);
+      if (requested == null) {
+         return DEFAULT;
+      }
+      if (requested.contains(StandardCellProperty.CELL_ORDINAL.name())) {
+         return new CellPropertyPlan(new String[] { "FormatString" }, new StandardCellProperty[] { StandardCellProperty.CELL_ORDINAL });
+      }
+      final List<String> names = new ArrayList<String>(3);
+      final List<StandardCellProperty> sources = new ArrayList<StandardCellProperty>(3);
+      if (requested.contains(StandardCellProperty.VALUE.name())) {
+         names.add("Value");
+         sources.add(StandardCellProperty.VALUE);
+      }
+      if (requested.contains(StandardCellProperty.FORMAT_STRING.name())) {
+         names.add("FormatString");
+         sources.add(StandardCellProperty.VALUE);
+      }
+      if (requested.contains(StandardCellProperty.LANGUAGE.name())) {
+         names.add("Language");
+         sources.add(StandardCellProperty.LANGUAGE);
+      }
+      return new CellPropertyPlan(names.toArray(new String[names.size()]), sources.toArray(new StandardCellProperty[sources.size()]));
+   }
+
+   /**
+    * Returns the upper-case names in the CELL PROPERTIES clause of a
+    * statement, or null if it has none. Bracketed identifiers, string
+    * literals and comments are skipped while looking for the clause, so
+    * a member named [VALUE] is not taken for a property.
+    */
+   static Set<String> parseCellProperties(String mdx) {
+      final List<String> words = new ArrayList<String>();
+      int clause = -1;
+      final int n = mdx.length();
+      int i = 0;
+      while (i < n) {
+         final char c = mdx.charAt(i);
+         if (c == '[') {
+            final int end = closingBracket(mdx, i);
+            words.add(mdx.substring(i + 1, Math.max(i + 1, end - 1)).toUpperCase());
+            i = end;
+         } else if (c == '"' || c == '\'') {
+            final int end = mdx.indexOf(c, i + 1);
+            words.add("");
+            i = end < 0 ? n : end + 1;
+         } else if (c == '/' && i + 1 < n && mdx.charAt(i + 1) == '*') {
+            final int end = mdx.indexOf("*/", i + 2);
+            i = end < 0 ? n : end + 2;
+         } else if ((c == '-' || c == '/') && i + 1 < n && mdx.charAt(i + 1) == c) {
+            final int end = mdx.indexOf('\n', i + 2);
+            i = end < 0 ? n : end + 1;
+         } else if (Character.isLetterOrDigit(c) || c == '_') {
+            int end = i + 1;
+            while (end < n && (Character.isLetterOrDigit(mdx.charAt(end)) || mdx.charAt(end) == '_')) {
+               end++;
+            }
+            final String word = mdx.substring(i, end).toUpperCase();
+            if (word.equals("PROPERTIES") && !words.isEmpty() && words.get(words.size() - 1).equals("CELL")) {
+               clause = words.size() + 1;
+            }
+            words.add(word);
+            i = end;
+         } else if (c == ',' || Character.isWhitespace(c)) {
+            i++;
+         } else {
+            // any other token ends a property list
+            words.add(String.valueOf(c));
+            i++;
+         }
+      }
+      if (clause < 0) {
+         return null;
+      }
+      return new HashSet<String>(words.subList(clause, words.size()));
+   }
+
+   /**
+    * Returns the index after the bracket closing an identifier, "]]" being
+    * an escaped bracket.
+    */
+   static int closingBracket(String mdx, int start) {
+      int i = start + 1;
+      while (i < mdx.length()) {
+         if (mdx.charAt(i) == ']') {
+            if (i + 1 < mdx.length() && mdx.charAt(i + 1) == ']') {
+               i += 2;
+               continue;
+            }
+            return i + 1;
+         }
+         i++;
+      }
+      return mdx.length();
+   }
+}
+
+// End CellPropertyPlan.java
@@ -19,19 +19,20 @@ import custom.mondrian.properties.ExternalProperties;
 import custom.mondrian.xmla.exception.XmlaException;
 import custom.mondrian.xmla.handler.Enumeration.ResponseMimeType;
 import custom.mondrian.xmla.request.XmlaRequest;
+import custom.mondrian.xmla.request.XmlaRequestContext;
+import custom.mondrian.xmla.request.XmlaSession;
+import custom.mondrian.xmla.request.XmlaSessionRegistry;
 import custom.mondrian.xmla.request.impl.DefaultXmlaRequest;
 import custom.mondrian.xmla.response.XmlaResponse;
 import custom.mondrian.xmla.response.impl.DefaultXmlaResponse;
-import custom.mondrian.xmla.writer.DefaultSaxWriter;
 import custom.mondrian.xmla.writer.SaxWriter;
+import custom.mondrian.xmla.writer.XmlFragment;
 import org.apache.log4j.Logger;
 import org.olap4j.*;
 import org.olap4j.impl.Olap4jUtil;
 import org.olap4j.metadata.*;
-import org.olap4j.metadata.Property.StandardCellProperty;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.math.BigDecimal;
@@ -42,6 +43,7 @@ import java.util.Date;
 import java.util.regex.Pattern;
 
 import mondrian.rolap.RolapConnection;
+import mondrian.rolap.RolapConnectionProperties;
 import mondrian.server.Statement;
 import static custom.mondrian.xmla.handler.XmlaConstants.*;
 import static org.olap4j.metadata.XmlaConstants.*;
@@ -54,7 +56,7 @@ import static org.olap4j.metadata.XmlaConstants.*;
  */
 public class CustomXmlaHandler extends mondrian.xmla.XmlaHandler {
 
-   private CacheControl factCacheControl;
+   private volatile CacheControl factCacheControl;
    private static final Logger LOGGER = Logger.getLogger(CustomXmlaHandler.class);
 
    /**
@@ -66,7 +68,7 @@ public class CustomXmlaHandler extends mondrian.xmla.XmlaHandler {
     */
    static final String JDBC_PASSWORD = "password";
    
-   static final String MD_DATA_SET_XML_SCHEMA = computeXsd(SetType.MD_DATA_SET);
+   static final XmlFragment MD_DATA_SET_XML_SCHEMA = computeXsd(SetType.MD_DATA_SET);
 
    static final String NS_XML_SQL = "urn:schemas-microsoft-com:xml-sql";
 
@@ -109,13 +111,18 @@ public class CustomXmlaHandler extends mondrian.xmla.XmlaHandler {
      */
    public static final String JDBC_LOCALE = "locale";
    
-   static String lastMdx = "";
-   static String currentCube = "";
-
    public final ConnectionFactory connectionFactory;
    
 
 
+   /**
+    * @return session of a request, or null if it is not in one
+    */
+   static XmlaSession getSession(XmlaRequest request) {
+      XmlaRequestContext context = request.getContext();
+      return context == null ? null : context.getSession();
+   }
+
    public static XmlaExtra getExtra(OlapConnection connection) {
       try {
          final XmlaExtra extra = connection.unwrap(XmlaExtra.class);
@@ -157,7 +164,8 @@ public class CustomXmlaHandler extends mondrian.xmla.XmlaHandler {
    /**
     * Returns a new OlapConnection opened with the credentials specified in the
     * XMLA request or an existing connection if one can be found associated with
-    * the request session id.
+    * the request session id. The credentials are given as the JDBC user and
+    * password of the connection, since the data sources carry none.
     * 
     * @param request
     *           Request
@@ -179,13 +187,24 @@ public class CustomXmlaHandler extends mondrian.xmla.XmlaHandler {
       }
       if (request.getUsername() != null) {
          props.put(JDBC_USER, request.getUsername());
+         props.put(RolapConnectionProperties.JdbcUser.name(), request.getUsername());
       }
       if (request.getPassword() != null) {
          props.put(JDBC_PASSWORD, request.getPassword());
+         props.put(RolapConnectionProperties.JdbcPassword.name(), request.getPassword());
       }
 
       final String databaseName = (String) request.getProperties().get(PropertyDefinition.DataSourceInfo.name());
 
+      return getConnection(databaseName, getCatalogName(request), request.getRoleName(), props);
+   }
+
+   /**
+    * @return catalog a request connects to: its Catalog property, or the
+    *         CATALOG_NAME restriction of a Discover
+    */
+   @SuppressWarnings("unchecked")
+   private static String getCatalogName(XmlaRequest request) {
       String catalogName = (String) request.getProperties().get(PropertyDefinition.Catalog.name());
 
       if (catalogName == null && request.getMethod() == Method.DISCOVER && request.getRestrictions().containsKey(Property.StandardMemberProperty.CATALOG_NAME.name())) {
@@ -198,8 +217,43 @@ public class CustomXmlaHandler extends mondrian.xmla.XmlaHandler {
             throw Util.newInternal("unexpected restriction type: " + restriction.getClass());
          }
       }
+      return catalogName;
+   }
 
-      return getConnection(databaseName, catalogName, request.getRoleName(), props);
+   /**
+    * Returns a connection for a request, which must be given back with
+    * {@link #releaseConnection}. A request in a session takes the connection
+    * pinned to its session, if the session has one opened with the same data
+    * source, catalog, role, user and properties.
+    */
+   OlapConnection getSessionConnection(XmlaRequest request, Map<String, String> propMap) {
+      final XmlaSession session = getSession(request);
+      final XmlaSessionRegistry registry = XmlaSessionRegistry.getInstance();
+      if (session == null || !registry.isPinConnections()) {
+         return getConnection(request, propMap);
+      }
+      StringBuilder key = new StringBuilder();
+      key.append(request.getProperties().get(PropertyDefinition.DataSourceInfo.name()));
+      key.append('\u0000').append(getCatalogName(request));
+      key.append('\u0000').append(request.getRoleName());
+      key.append('\u0000').append(request.getUsername());
+      key.append('\u0000').append(new TreeMap<String, String>(propMap));
+
+      OlapConnection connection = registry.takeConnection(session, key.toString());
+      if (connection == null) {
+         final long generation = registry.getGeneration();
+         connection = getConnection(request, propMap);
+         registry.lendConnection(session, key.toString(), generation, connection);
+      }
+      return connection;
+   }
+
+   /**
+    * Gives back a connection from {@link #getSessionConnection}: it stays
+    * pinned to the session of the request, or is closed.
+    */
+   void releaseConnection(XmlaRequest request, OlapConnection connection) {
+      XmlaSessionRegistry.getInstance().releaseConnection(getSession(request), connection);
    }
 
    private enum SetType {
@@ -574,12 +628,12 @@ public class CustomXmlaHandler extends mondrian.xmla.XmlaHandler {
       }
    }
 
-   private static String computeXsd(SetType setType) {
-      final StringWriter sw = new StringWriter();
-      SaxWriter writer = (SaxWriter) new DefaultSaxWriter(new PrintWriter(sw), 3);
-      writeDatasetXmlSchema(writer, setType);
-      writer.flush();
-      return sw.toString();
+   private static XmlFragment computeXsd(final SetType setType) {
+      return XmlFragment.render(new XmlFragment.Source() {
+         public void write(SaxWriter writer) {
+            writeDatasetXmlSchema(writer, setType);
+         }
+      });
    }
 
    /**
@@ -605,6 +659,66 @@ public class CustomXmlaHandler extends mondrian.xmla.XmlaHandler {
       }
    }
 
+   /**
+    * Flushes the schema of a catalog, and what was built from it.
+    */
+   private void flushSchema(mondrian.olap.Schema schema, String catalog) {
+      LOGGER.info("Flushing the schema of catalog " + catalog);
+      factCacheControl.flushSchema(schema);
+      DiscoverResponseCache.getInstance().invalidate(catalog);
+      MetadataSnapshot.invalidateAll();
+      MemberFragmentCache.getInstance().invalidateAll();
+      OlapInfoCache.getInstance().invalidateAll();
+      XmlaSessionRegistry.getInstance().invalidateConnections();
+   }
+
+   /**
+    * Flushes the cached cells of a cube that changed: all of them, or the
+    * crossjoin of the measures with the members of the changed partitions.
+    * If a partition can not be resolved, all cells are flushed.
+    */
+   private void flushCells(mondrian.olap.Cube cube, DataFreshnessTracker.Changes changes) {
+      final CellRegion measuresRegion = factCacheControl.createMeasuresRegion(cube);
+      if (!changes.isAll()) {
+         try {
+            final mondrian.olap.SchemaReader schemaReader = cube.getSchemaReader(null).withLocus();
+            final List<CellRegion> memberRegions = new ArrayList<CellRegion>();
+            for (String partition : changes.getPartitions()) {
+               final mondrian.olap.Member member = schemaReader.getMemberByUniqueName(Util.parseIdentifier(partition), false);
+               if (member == null) {
+                  throw Util.newError("Partition member " + partition + " not found in cube " + cube.getName());
+               }
+               memberRegions.add(factCacheControl.createMemberRegion(member, true));
+            }
+            final CellRegion partitionsRegion = memberRegions.size() == 1 ? memberRegions.get(0) : factCacheControl.createUnionRegion(memberRegions
+                     .toArray(new CellRegion[memberRegions.size()]));
+            factCacheControl.flush(factCacheControl.createCrossjoinRegion(measuresRegion, partitionsRegion));
+            return;
+         } catch (RuntimeException e) {
+            LOGGER.warn("Failed to flush the changed partitions of cube " + cube.getName() + ", flushing all its cells", e);
+         }
+      }
+      factCacheControl.flush(measuresRegion);
+   }
+
+   /**
+    * Flushes the schemas, and everything built from them: cached Discover
+    * responses, metadata, members, OlapInfo and pinned connections. The
+    * servlet calls it when the olap configuration was reloaded, since the
+    * schema files or the data sources may have changed.
+    */
+   public void flushSchemas() {
+      final CacheControl cacheControl = factCacheControl;
+      if (cacheControl != null) {
+         cacheControl.flushSchemaCache();
+      }
+      DiscoverResponseCache.getInstance().invalidateAll();
+      MetadataSnapshot.invalidateAll();
+      MemberFragmentCache.getInstance().invalidateAll();
+      OlapInfoCache.getInstance().invalidateAll();
+      XmlaSessionRegistry.getInstance().invalidateConnections();
+   }
+
    /**
     * Processes a request.
     * 
@@ -717,7 +831,8 @@ public class CustomXmlaHandler extends mondrian.xmla.XmlaHandler {
          switch (content) {
          case Schema:
          case SchemaData:
-            if (result != null) {
+            // an XSD schema has no meaning in a JSON response
+            if (result != null && responseMimeType != Enumeration.ResponseMimeType.JSON) {
                result.metadata(writer);
             } else {
                /* default message for empty result */
@@ -1112,8 +1227,9 @@ public class CustomXmlaHandler extends mondrian.xmla.XmlaHandler {
     */
    
    
-   private  String preProcessMdx(String mdx) {
+   private  String preProcessMdx(String mdx, XmlaSession session) {
 	      // Get the current cube if the cube name exist
+	      String currentCube = session == null ? null : session.getCurrentCube();
 	      String mdxStr = mdx.replaceAll("\\s+", "");
 	      if (mdxStr.contains("FROM[") || mdxStr.contains("from[")) {
 	         int start = Math.max(mdxStr.indexOf("FROM["), mdxStr.indexOf("from["));
@@ -1121,8 +1237,14 @@ public class CustomXmlaHandler extends mondrian.xmla.XmlaHandler {
 	         int end = subMdxStr.indexOf("]") + start + 1;
 
 	         currentCube = mdxStr.substring(start + 5, end - 1);
+	         if (session != null) {
+	            session.setCurrentCube(currentCube);
+	         }
 
 	      }
+	      if (currentCube == null) {
+	         currentCube = "";
+	      }
 
 	      // Replace FROM CELL with FROM [Current_Cube] CELL
 	      mdx = mdx.replaceFirst("FROME\\s+CELL", "FROM " + currentCube + " CELL");
@@ -1150,53 +1272,12 @@ public class CustomXmlaHandler extends mondrian.xmla.XmlaHandler {
    
    
 private QueryResult executeQuery(XmlaRequest request) throws XmlaException {
-      String mdx = preProcessMdx(request.getStatement());
+      final XmlaSession session = getSession(request);
+      String mdx = preProcessMdx(request.getStatement(), session);
       //String mdx= request.getStatement();
-      //if mdx statement contains CELL_ORDINAL properties, change the MDDataSet.cellPropLongs, and MDDataSet.cellPropLongs accordingly
       
       if(mdx == null || mdx.length() < 1)
          return null;
-      String props = mdx.split("PROPERTIES")[1];
-      
-      
-      if(mdx.contains("CELL_ORDINAL")){
-         MDDataSet.cellProps = Arrays.asList(MDDataSet.rename(StandardCellProperty.FORMAT_STRING, "FormatString")) ;
-         MDDataSet.cellPropLongs = Arrays.asList(StandardCellProperty.CELL_ORDINAL) ;
-      }
-      
-      else if(props != null && props.length()>1){
-         MDDataSet.cellProps = new ArrayList<Property>();
-         MDDataSet.cellPropLongs = new ArrayList<StandardCellProperty>();
-         
-         
-         if(mdx.contains("VALUE")){
-            MDDataSet.cellProps.add(MDDataSet.rename(StandardCellProperty.VALUE, "Value"));
-            MDDataSet.cellPropLongs.add(StandardCellProperty.VALUE);
-         }
-         if(mdx.contains("FORMAT_STRING")){
-            MDDataSet.cellProps.add(MDDataSet.rename(StandardCellProperty.FORMAT_STRING, "FormatString"));
-            MDDataSet.cellPropLongs.add(StandardCellProperty.VALUE);
-         }
-         
-         if(mdx.contains("LANGUAGE")) {
-            MDDataSet.cellProps.add(MDDataSet.rename(StandardCellProperty.LANGUAGE, "Language"));
-            MDDataSet.cellPropLongs.add(StandardCellProperty.LANGUAGE);
-         }
-         
-         
-      }
-      else if (mdx.contains("VALUE") && mdx.contains("FORMAT_STRING") && mdx.contains("LANGUAGE")){
-         MDDataSet.cellProps = Arrays.asList(MDDataSet.rename(StandardCellProperty.VALUE, "Value"), 
-                  MDDataSet.rename(StandardCellProperty.FORMAT_STRING, "FormatString"),
-                  MDDataSet.rename(StandardCellProperty.LANGUAGE, "Language"));
-         MDDataSet.cellPropLongs = Arrays
-                  .asList(StandardCellProperty.VALUE, StandardCellProperty.FORMAT_STRING, StandardCellProperty.LANGUAGE);
-      }
-      else {
-         MDDataSet.cellProps = Arrays.asList(MDDataSet.rename(StandardCellProperty.VALUE, "Value"));
-         MDDataSet.cellPropLongs = Arrays
-                  .asList(StandardCellProperty.VALUE);
-      }
       if (LOGGER.isDebugEnabled()) {
          
          LOGGER.debug("mdx: \"" + mdx + "\"");
@@ -1214,13 +1295,20 @@ private QueryResult executeQuery(XmlaRequest request) throws XmlaException {
       try {
          
          
-         connection = getConnection(request, Collections.<String, String> emptyMap());
+         connection = getSessionConnection(request, Collections.<String, String> emptyMap());
          getExtra(connection).setPreferList(connection);
          try {
-            if(mdx.startsWith("REFRESH"))
-               mdx = lastMdx;
+            if (mdx.startsWith("REFRESH")) {
+               // re-runs the last statement of the session
+               if (session == null || session.getLastMdx() == null) {
+                  throw Util.newError("REFRESH needs a session with a previous statement");
+               }
+               mdx = session.getLastMdx();
+            }
             statement = connection.prepareOlapStatement(mdx);
-            lastMdx = mdx;
+            if (session != null) {
+               session.setLastMdx(mdx);
+            }
 
          } catch (XmlaException ex) {
             throw ex;
@@ -1234,20 +1322,38 @@ private QueryResult executeQuery(XmlaRequest request) throws XmlaException {
                factCacheControl = initializeFactCacheControl(rolapConn);
             }
 
+            /**
+             * Instead of caching no schema at all, flush the schema of the catalog when it changed. The statement was
+             * prepared on the old schema, so prepare it again on a new connection.
+             */
+            if (ExternalProperties.getInstance().isDisableSchemaCaching()
+                     && SchemaVersionTracker.getInstance().takeChange(connection.getCatalog(), rolapConn.getDataSource())) {
+               flushSchema(rolapConn.getSchema(), connection.getCatalog());
+               statement.close();
+               statement = null;
+               releaseConnection(request, connection);
+               connection = null;
+               connection = getSessionConnection(request, Collections.<String, String> emptyMap());
+               getExtra(connection).setPreferList(connection);
+               statement = connection.prepareOlapStatement(mdx);
+               rolapConn = ((Statement) statement).getMondrianConnection();
+            }
+
             /**
              * We should only cache Dimension data in Mondrian Olap. But Mondrian cache both Dimension caches and Fact caches by default, 
-             * here we need to flush fact table measures for every mdx query. Otherwise Mondrian only returns cached results. 
+             * here we need to flush fact table measures once the data was loaded. Otherwise Mondrian only returns cached results. 
+             * Cubes with a watermark in olap.xml are flushed when it changes, others before every mdx query.
              */
             if (ExternalProperties.getInstance().isDisableMeasuresCashing()) {
                // If client choose to disable caching for fact cache measures
                mondrian.olap.Cube cube = ((Statement) statement).getQuery().getCube();
-               currentCube = cube.getName();
-               CellRegion currentCubeRegion = factCacheControl.createMeasuresRegion(cube);
-               this.factCacheControl.flush(currentCubeRegion);
-            }
-            if (ExternalProperties.getInstance().isDisableSchemaCaching()) {
-
-               this.factCacheControl.flushSchemaCache();
+               if (session != null) {
+                  session.setCurrentCube(cube.getName());
+               }
+               DataFreshnessTracker.Changes changes = DataFreshnessTracker.getInstance().takeChanges(cube.getName(), rolapConn.getDataSource());
+               if (changes != null) {
+                  flushCells(cube, changes);
+               }
             }
             
             /*Log time: MDX Request start
@@ -1289,9 +1395,9 @@ private QueryResult executeQuery(XmlaRequest request) throws XmlaException {
             final MDDataSet dataSet;
 
             if (format == Format.Multidimensional) {
-               dataSet = new MDDataSet_Multidimensional(cellSet, content != Content.DataIncludeDefaultSlicer, responseMimeType == Enumeration.ResponseMimeType.JSON);
+               dataSet = new MDDataSet_Multidimensional(cellSet, session, CellPropertyPlan.of(mdx), content != Content.DataIncludeDefaultSlicer, responseMimeType == Enumeration.ResponseMimeType.JSON);
             } else {
-               dataSet = new MDDataSet_Tabular(cellSet);
+               dataSet = new MDDataSet_Tabular(cellSet, session);
             }
             success = true;
             return dataSet;
@@ -1316,13 +1422,7 @@ private QueryResult executeQuery(XmlaRequest request) throws XmlaException {
                   // ignore
                }
             }
-            if (connection != null) {
-               try {
-                  connection.close();
-               } catch (SQLException e) {
-                  // ignore
-               }
-            }
+            releaseConnection(request, connection);
          }
       }
    }
@@ -1338,16 +1438,27 @@ private QueryResult executeQuery(XmlaRequest request) throws XmlaException {
       final String advancedFlag = properties.get(PropertyDefinition.AdvancedFlag.name());
       final boolean advanced = Boolean.parseBoolean(advancedFlag);
       final boolean enableRowCount = MondrianProperties.instance().EnableTotalCount.booleanValue();
-      final int[] rowCountSlot = enableRowCount ? new int[] { 0 } : null;
+      final String mdx = DrillThroughRowSet.limit(DrillThroughRowSet.project(request.getStatement(), tabFields), getMaxRows(request));
+      final int maxRows = DrillThroughRowSet.getMaxRows(mdx);
       OlapConnection connection = null;
       OlapStatement statement = null;
       ResultSet resultSet = null;
+      DrillThroughRowSet.TotalCount totalCount = null;
+      boolean success = false;
       try {
          connection = getConnection(request, Collections.<String, String> emptyMap());
+         if (enableRowCount) {
+            // counted on another connection while the rows are fetched
+            totalCount = DrillThroughRowSet.count(getConnection(request, Collections.<String, String> emptyMap()), mdx, advanced, tabFields);
+         }
          statement = connection.createStatement();
-         resultSet = getExtra(connection).executeDrillthrough(statement, request.getStatement(), advanced, tabFields, rowCountSlot);
-         int rowCount = enableRowCount ? rowCountSlot[0] : -1;
-         return new TabularRowSet(resultSet, rowCount);
+         resultSet = getExtra(connection).executeDrillthrough(statement, mdx, advanced, tabFields, null);
+         final DrillThroughRowSet result = new DrillThroughRowSet(connection, statement, resultSet, maxRows, totalCount);
+         if (ExternalProperties.getInstance().isDrillThroughFetchAll()) {
+            result.fetch();
+         }
+         success = true;
+         return result;
       } catch (XmlaException xex) {
          throw xex;
       } catch (SQLException sqle) {
@@ -1356,30 +1467,57 @@ private QueryResult executeQuery(XmlaRequest request) throws XmlaException {
          // NOTE: One important error is "cannot drill through on the cell"
          throw new XmlaException(SERVER_FAULT_FC, HSB_DRILL_THROUGH_SQL_CODE, HSB_DRILL_THROUGH_SQL_FAULT_FS, e);
       } finally {
-         if (resultSet != null) {
-            try {
-               resultSet.close();
-            } catch (SQLException e) {
-               // ignore
+         if (!success) {
+            if (totalCount != null) {
+               totalCount.cancel();
             }
-         }
-         if (statement != null) {
-            try {
-               statement.close();
-            } catch (SQLException e) {
-               // ignore
+            if (resultSet != null) {
+               try {
+                  resultSet.close();
+               } catch (SQLException e) {
+                  // ignore
+               }
             }
-         }
-         if (connection != null) {
-            try {
-               connection.close();
-            } catch (SQLException e) {
-               // ignore
+            if (statement != null) {
+               try {
+                  statement.close();
+               } catch (SQLException e) {
+                  // ignore
+               }
+            }
+            if (connection != null) {
+               try {
+                  connection.close();
+               } catch (SQLException e) {
+                  // ignore
+               }
             }
          }
       }
    }
 
+   /**
+    * Returns the MaxRows property of a request.
+    *
+    * @return maximum number of rows, or -1 for all
+    */
+   private static int getMaxRows(XmlaRequest request) throws XmlaException {
+      final String value = request.getProperties().get(PropertyDefinition.MaxRows.name());
+      if (value == null || value.length() == 0) {
+         return -1;
+      }
+      try {
+         final int maxRows = Integer.parseInt(value.trim());
+         if (maxRows >= -1) {
+            return maxRows;
+         }
+      } catch (NumberFormatException e) {
+         // fall through
+      }
+      throw new XmlaException(CLIENT_FAULT_FC, HSB_BAD_PROPERTIES_CODE, HSB_BAD_PROPERTIES_FAULT_FS, Util.newError("Property 'MaxRows' must be -1 or more (value is '"
+               + value + "')"));
+   }
+
    private static Format getFormat(XmlaRequest request, Format defaultValue) {
       final String formatName = (String) request.getProperties().get(PropertyDefinition.Format.name());
       return Util.lookup(Format.class, formatName, defaultValue);
@@ -1407,8 +1545,6 @@ private QueryResult executeQuery(XmlaRequest request) throws XmlaException {
          this.encodedName = XmlaUtil.ElementNameEncoder.INSTANCE.encode(name);
       }
 
-      abstract void write(SaxWriter writer, Cell cell, Member[] members) throws OlapException;
-
       abstract void metadata(SaxWriter writer);
    }
 
@@ -1426,28 +1562,6 @@ private QueryResult executeQuery(XmlaRequest request) throws XmlaException {
       public void metadata(SaxWriter writer) {
          writer.element("xs:element", "minOccurs", 0, "name", encodedName, "sql:field", name);
       }
-
-      public void write(SaxWriter writer, Cell cell, Member[] members) {
-         if (cell.isNull()) {
-            return;
-         }
-         Object value = cell.getValue();
-         final String dataType = (String) cell.getPropertyValue(StandardCellProperty.DATATYPE);
-
-         final ValueInfo vi = new ValueInfo(dataType, value);
-         final String valueType = vi.valueType;
-         value = vi.value;
-         boolean isDecimal = vi.isDecimal;
-
-         String valueString = value.toString();
-
-         writer.startElement(encodedName, "xsi:type", valueType);
-         if (isDecimal) {
-            valueString = XmlaUtil.normalizeNumericString(valueString, true, 3);
-         }
-         writer.characters(valueString);
-         writer.endElement();
-      }
    }
 
    /**
@@ -1456,9 +1570,9 @@ private QueryResult executeQuery(XmlaRequest request) throws XmlaException {
     * flattened dataset.
     */
    static class MemberColumnHandler extends ColumnHandler {
-      private final Property property;
-      private final Level level;
-      private final int memberOrdinal;
+      final Property property;
+      final Level level;
+      final int memberOrdinal;
 
       public MemberColumnHandler(Property property, Level level, int memberOrdinal) {
          super(level.getUniqueName() + "." + Util.quoteMdxIdentifier(property.getName()));
@@ -1470,27 +1584,6 @@ private QueryResult executeQuery(XmlaRequest request) throws XmlaException {
       public void metadata(SaxWriter writer) {
          writer.element("xs:element", "minOccurs", 0, "name", encodedName, "sql:field", name, "type", XSD_STRING);
       }
-
-      public void write(SaxWriter writer, Cell cell, Member[] members) throws OlapException {
-         Member member = members[memberOrdinal];
-         final int depth = level.getDepth();
-         if (member.getDepth() < depth) {
-            // This column deals with a level below the current member.
-            // There is no value to write.
-            return;
-         }
-         while (member.getDepth() > depth) {
-            member = member.getParentMember();
-         }
-         final Object propertyValue = member.getPropertyValue(property);
-         if (propertyValue == null) {
-            return;
-         }
-
-         writer.startElement(encodedName);
-         writer.characters(propertyValue.toString());
-         writer.endElement();
-      }
    }
 
    
@@ -1504,10 +1597,12 @@ private QueryResult executeQuery(XmlaRequest request) throws XmlaException {
       final RowsetDefinition rowsetDefinition = RowsetDefinition.valueOf(request.getRequestType());
       ((DefaultXmlaRequest)request).setRequestItemName(rowsetDefinition.name());
       
-      Rowset rowset = rowsetDefinition.getRowset(request, this);
+      final Rowset rowset = rowsetDefinition.getRowset(request, this);
       
       // put the current cube name to the header of XMLA response. Then we're able to trace the name of current cube.
-      if(rowsetDefinition == RowsetDefinition.MDSCHEMA_HIERARCHIES && !rowset.getRestrictions().containsKey("CUBE_NAME")){
+      final XmlaSession session = getSession(request);
+      final String currentCube = session == null ? null : session.getCurrentCube();
+      if(rowsetDefinition == RowsetDefinition.MDSCHEMA_HIERARCHIES && currentCube != null && !rowset.getRestrictions().containsKey("CUBE_NAME")){
        ((DefaultXmlaRequest)request).setCurrentCube(currentCube);
        ((DefaultXmlaRequest)request).putRestriction("CUBE_NAME", currentCube);
       }
@@ -1521,8 +1616,38 @@ private QueryResult executeQuery(XmlaRequest request) throws XmlaException {
          throw new XmlaException(CLIENT_FAULT_FC, HSB_DISCOVER_FORMAT_CODE, HSB_DISCOVER_FORMAT_FAULT_FS, new UnsupportedOperationException(
                   "<Format>: only 'Tabular' allowed in Discover method " + "type"));
       }
-      final Content content = getContent(request);
+      // Default value is SchemaData, or Data for JSON responses.
+      final boolean json = getResponseMimeType(request) == Enumeration.ResponseMimeType.JSON;
+      final Content content = Util.lookup(Content.class, request.getProperties().get(PropertyDefinition.Content.name()), json ? Content.Data : Content.DEFAULT);
+
+      // Metadata responses are served from the cache when possible; JSON
+      // responses are not cached, the cache holds XML.
+      final DiscoverResponseCache cache = DiscoverResponseCache.getInstance();
+      final String key = json ? null : cache.getKey(rowsetDefinition, request, content);
+      if (key == null) {
+         writeDiscoverResponse(response, rowset, content, json);
+         return;
+      }
+      XmlFragment cached = cache.get(key);
+      if (cached == null) {
+         final long generation = cache.getGeneration();
+         cached = XmlFragment.render(new XmlFragment.Source() {
+            public void write(SaxWriter writer) {
+               writeDiscoverResponse(new DefaultXmlaResponse(writer), rowset, content, false);
+            }
+         });
+         cache.put(key, DiscoverResponseCache.getCatalog(request), cached, generation);
+      }
+      SaxWriter writer = response.getWriter();
+      writer.startDocument();
+      writer.verbatim(cached);
+      writer.endDocument();
+   }
 
+   /**
+    * Writes the DiscoverResponse element for a rowset.
+    */
+   private void writeDiscoverResponse(XmlaResponse response, Rowset rowset, Content content, boolean json) throws XmlaException {
       SaxWriter writer = response.getWriter();
 
       writer.startDocument();
@@ -1536,7 +1661,9 @@ private QueryResult executeQuery(XmlaRequest request) throws XmlaException {
       switch (content) {
       case Schema:
       case SchemaData:
-         rowset.rowsetDefinition.writeRowsetXmlSchema(writer);
+         if (!json) {
+            rowset.rowsetDefinition.writeRowsetXmlSchema(writer);
+         }
          break;
       }
 
@@ -1626,22 +1753,6 @@ private QueryResult executeQuery(XmlaRequest request) throws XmlaException {
       }
    }
 
-      static class IntList extends AbstractList<Integer> {
-      private final int[] ints;
-
-      IntList(int[] ints) {
-         this.ints = ints;
-      }
-
-      public Integer get(int index) {
-         return ints[index];
-      }
-
-      public int size() {
-         return ints.length;
-      }
-   }
-
    /**
     * Default implementation of {@link mondrian.xmla.XmlaHandler.XmlaExtra}.
     * Connections based on mondrian's olap4j driver can do better.
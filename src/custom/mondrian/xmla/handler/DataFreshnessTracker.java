@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.handler;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+
+import custom.mondrian.properties.ExternalProperties;
+import custom.mondrian.xmla.dataSource.OlapConfig;
+import custom.mondrian.xmla.dataSource.OlapConfigWatcher;
+import custom.mondrian.xmla.dataSource.Watermark;
+
+/**
+ * Tells which cached cells of a cube are stale, from the watermark queries
+ * of olap.xml, so that the fact cache is flushed when data was loaded
+ * rather than before every query.
+ *
+ * <p>
+ * A cube is watched from its first query on, when its watermark is taken as
+ * the baseline. The watermarks are then polled on a thread of their own;
+ * a change is kept until the next query on the cube takes it and flushes
+ * the cells: all of them, or those of the partitions whose watermark
+ * changed. A cube whose baseline could not be taken, or that has no
+ * watermark, is reported changed on every query, as before.
+ *
+ * <p>
+ * The load time a watermark query may return is the cube's LastDataUpdate;
+ * without one, it is the time a change was seen.
+ *
+ * <p>
+ * A poll interval of 0 or less disables the polling, and every cube is
+ * reported changed on every query. The tracker is made again when the olap
+ * configuration is reloaded, with the poll interval of the reloaded
+ * custom.mondrian.properties.
+ */
+
+final class DataFreshnessTracker {
+
+   private static final Logger LOGGER = Logger.getLogger(DataFreshnessTracker.class);
+
+   /** Key of the watermark of a cube that has no partitions */
+   private static final String WHOLE_CUBE = "";
+
+   private static DataFreshnessTracker instance;
+
+   static {
+      // the watermark queries and the poll interval may have changed, and a
+      // reload flushes all schemas; cubes are watched afresh
+      OlapConfigWatcher.addListener(new OlapConfigWatcher.Listener() {
+         public void reloaded(OlapConfig config) {
+            reset();
+         }
+      });
+   }
+
+   private final ConcurrentMap<String, CubeState> cubes = new ConcurrentHashMap<String, CubeState>();
+
+   /** Runs the polls, null if polling is disabled */
+   private final ScheduledExecutorService executor;
+
+   /**
+    * @param interval
+    *           Milliseconds between two polls of the watermarks; 0 or less
+    *           disables the polling
+    */
+   DataFreshnessTracker(long interval) {
+      if (interval <= 0) {
+         LOGGER.warn("custom.mondrian.xmla.watermark.pollInterval is not positive, watermark polling is disabled; cubes are flushed before every query");
+         executor = null;
+         return;
+      }
+      executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "custom.mondrian.xmla.watermark");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      executor.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            for (CubeState state : cubes.values()) {
+               poll(state);
+            }
+         }
+      }, interval, interval, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * @return tracker configured by custom.mondrian.properties
+    */
+   static synchronized DataFreshnessTracker getInstance() {
+      if (instance == null) {
+         instance = new DataFreshnessTracker(ExternalProperties.getInstance().getWatermarkPollInterval() * 1000L);
+      }
+      return instance;
+   }
+
+   /**
+    * Stops the polls of the current tracker; the next one is made from the
+    * current properties.
+    */
+   private static synchronized void reset() {
+      if (instance != null) {
+         if (instance.executor != null) {
+            instance.executor.shutdownNow();
+         }
+         instance = null;
+      }
+   }
+
+   /**
+    * Returns the cells of a cube to flush before a query, watching the cube
+    * if it is not watched yet. A change is reported once.
+    *
+    * @param cube
+    *           Name of the cube of the query
+    * @param dataSource
+    *           Data source of the query, to run the watermark query on
+    * @return changes, or null if the cached cells are fresh
+    */
+   Changes takeChanges(String cube, DataSource dataSource) {
+      final Watermark watermark = OlapConfigWatcher.get().getWatermark(cube);
+      if (watermark == null || executor == null) {
+         return Changes.ALL;
+      }
+      CubeState state = cubes.get(cube);
+      if (state == null) {
+         final CubeState added = new CubeState(watermark, dataSource);
+         state = cubes.putIfAbsent(cube, added);
+         if (state == null) {
+            state = added;
+            poll(state);
+         }
+      }
+      state.dataSource = dataSource;
+      return state.takeChanges();
+   }
+
+   /**
+    * @return time the data of a cube was last loaded, or null if it is not
+    *         known
+    */
+   Date getLastDataUpdate(String cube) {
+      final CubeState state = cubes.get(cube);
+      final long time = state == null ? 0 : state.lastDataUpdate;
+      return time == 0 ? null : new Date(time);
+   }
+
+   /**
+    * Runs the watermark query of a cube, and compares its result with the
+    * last one.
+    */
+   private static void poll(CubeState state) {
+      final Watermark watermark = state.watermark;
+      final Map<String, String> values = new HashMap<String, String>();
+      long loadTime = 0;
+      try (Connection connection = state.dataSource.getConnection();
+               Statement statement = connection.createStatement();
+               ResultSet resultSet = statement.executeQuery(watermark.getQuery())) {
+         final int loadTimeColumn = watermark.isPartitioned() ? 3 : 2;
+         final boolean hasLoadTime = resultSet.getMetaData().getColumnCount() >= loadTimeColumn;
+         while (resultSet.next()) {
+            if (watermark.isPartitioned()) {
+               values.put(resultSet.getString(1), String.valueOf(resultSet.getObject(2)));
+            } else {
+               values.put(WHOLE_CUBE, String.valueOf(resultSet.getObject(1)));
+            }
+            final Timestamp timestamp = hasLoadTime ? resultSet.getTimestamp(loadTimeColumn) : null;
+            if (timestamp != null && timestamp.getTime() > loadTime) {
+               loadTime = timestamp.getTime();
+            }
+            if (!watermark.isPartitioned()) {
+               break;
+            }
+         }
+      } catch (SQLException | RuntimeException e) {
+         LOGGER.warn("Failed to poll the watermark of cube " + watermark.getCube(), e);
+         return;
+      }
+      state.update(values, loadTime);
+   }
+
+   /**
+    * Cells of a cube to flush: all of them, or those of some partitions.
+    */
+   static final class Changes {
+      static final Changes ALL = new Changes(null);
+
+      private final Set<String> partitions;
+
+      private Changes(Set<String> partitions) {
+         this.partitions = partitions;
+      }
+
+      boolean isAll() {
+         return partitions == null;
+      }
+
+      /**
+       * @return unique names of the members of the changed partitions, or
+       *         null if all cells changed
+       */
+      Set<String> getPartitions() {
+         return partitions;
+      }
+   }
+
+   /**
+    * Watermarks of a cube, and the changes not taken yet.
+    */
+   private static final class CubeState {
+      final Watermark watermark;
+      volatile DataSource dataSource;
+      volatile long lastDataUpdate;
+
+      /** Watermarks by partition, null until the first poll; guarded by this */
+      private Map<String, String> baseline;
+      /** Guarded by this */
+      private boolean allChanged;
+      /** Guarded by this */
+      private final Set<String> changedPartitions = new HashSet<String>();
+
+      CubeState(Watermark watermark, DataSource dataSource) {
+         this.watermark = watermark;
+         this.dataSource = dataSource;
+      }
+
+      synchronized void update(Map<String, String> values, long loadTime) {
+         if (baseline != null) {
+            final Set<String> changed = new HashSet<String>();
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+               if (!entry.getValue().equals(baseline.get(entry.getKey()))) {
+                  changed.add(entry.getKey());
+               }
+            }
+            // partitions that were deleted
+            for (String partition : baseline.keySet()) {
+               if (!values.containsKey(partition)) {
+                  changed.add(partition);
+               }
+            }
+            if (!changed.isEmpty()) {
+               LOGGER.info("Data of cube " + watermark.getCube() + " changed" + (watermark.isPartitioned() ? ": " + changed : ""));
+               if (watermark.isPartitioned()) {
+                  changedPartitions.addAll(changed);
+               } else {
+                  allChanged = true;
+               }
+               if (loadTime == 0) {
+                  loadTime = System.currentTimeMillis();
+               }
+            }
+         }
+         baseline = values;
+         if (loadTime > lastDataUpdate) {
+            lastDataUpdate = loadTime;
+         }
+      }
+
+      synchronized Changes takeChanges() {
+         if (baseline == null || allChanged) {
+            allChanged = false;
+            changedPartitions.clear();
+            return Changes.ALL;
+         }
+         if (changedPartitions.isEmpty()) {
+            return null;
+         }
+         final Changes changes = new Changes(Collections.unmodifiableSet(new HashSet<String>(changedPartitions)));
+         changedPartitions.clear();
+         return changes;
+      }
+   }
+}
+
+// End DataFreshnessTracker.java
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.handler;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+import org.olap4j.metadata.XmlaConstants.Content;
+
+import custom.mondrian.properties.ExternalProperties;
+import custom.mondrian.xmla.request.XmlaRequest;
+import custom.mondrian.xmla.writer.XmlFragment;
+
+/**
+ * Cache of serialized Discover responses. Clients send the same metadata
+ * Discovers over and over (every Excel or Tableau connection walks cubes,
+ * dimensions, hierarchies, levels, measures and properties), so a repeated
+ * request is answered from the bytes of an earlier response, without a
+ * connection and without walking the olap4j metadata.
+ *
+ * <p>
+ * The key is a canonical form of the rowset, Content, role, user, the
+ * request properties (except those that don't change the result, like
+ * Timeout or the request id) and the restrictions, all sorted by name. A
+ * response is only replayed to the user it was made for, whose credentials
+ * its connection was opened with. Only metadata
+ * rowsets are cached; MDSCHEMA_MEMBERS depends on dimension data and can be
+ * very large.
+ *
+ * <p>
+ * Entries are evicted least recently used first, once there are more than
+ * maxEntries or they take more than maxBytes. Everything is dropped when
+ * schemas are flushed. A response rendered while the cache was being
+ * invalidated is not stored.
+ */
+
+public final class DiscoverResponseCache {
+
+   private static final Logger LOGGER = Logger.getLogger(DiscoverResponseCache.class);
+
+   private static final char SEPARATOR = '\u0000';
+   private static final char VALUE_SEPARATOR = '\u0001';
+
+   /** Properties that don't change the content of a Discover response */
+   private static final Set<String> IGNORED_PROPERTIES = new HashSet<String>(Arrays.asList(PropertyDefinition.Timeout.name(), PropertyDefinition.UserName.name(),
+            PropertyDefinition.Password.name(), PropertyDefinition.DbpropMsmdActivityID.name(), PropertyDefinition.DbpropMsmdRequestID.name()));
+
+   private static DiscoverResponseCache instance;
+
+   private final boolean enabled;
+   private final int maxEntries;
+   private final long maxBytes;
+
+   private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+   private long bytes;
+   private long generation;
+
+   private long hitCount;
+   private long missCount;
+   private long evictionCount;
+
+   public DiscoverResponseCache(boolean enabled, int maxEntries, long maxBytes) {
+      this.enabled = enabled;
+      this.maxEntries = maxEntries;
+      this.maxBytes = maxBytes;
+   }
+
+   /**
+    * @return cache configured by custom.mondrian.properties
+    */
+   public static synchronized DiscoverResponseCache getInstance() {
+      if (instance == null) {
+         ExternalProperties props = ExternalProperties.getInstance();
+         instance = new DiscoverResponseCache(props.isDiscoverCacheEnabled(), props.getDiscoverCacheMaxEntries(), props.getDiscoverCacheMaxBytes());
+      }
+      return instance;
+   }
+
+   /**
+    * Returns the key of a Discover request, or null if its response must not
+    * be cached.
+    */
+   String getKey(RowsetDefinition rowsetDefinition, XmlaRequest request, Content content) {
+      if (!enabled || !isCacheable(rowsetDefinition)) {
+         return null;
+      }
+      StringBuilder buf = new StringBuilder(128);
+      buf.append(rowsetDefinition.name());
+      buf.append(SEPARATOR).append(content.name());
+      buf.append(SEPARATOR).append(request.getRoleName());
+      buf.append(SEPARATOR).append(request.getUsername());
+
+      for (Map.Entry<String, String> property : new TreeMap<String, String>(request.getProperties()).entrySet()) {
+         if (!IGNORED_PROPERTIES.contains(property.getKey())) {
+            buf.append(SEPARATOR).append(property.getKey()).append('=').append(property.getValue());
+         }
+      }
+      buf.append(SEPARATOR);
+      for (Map.Entry<String, Object> restriction : new TreeMap<String, Object>(request.getRestrictions()).entrySet()) {
+         buf.append(SEPARATOR).append(restriction.getKey()).append('=');
+         Object value = restriction.getValue();
+         if (value instanceof List) {
+            for (Object v : (List<?>) value) {
+               buf.append(v).append(VALUE_SEPARATOR);
+            }
+         } else {
+            buf.append(value);
+         }
+      }
+      return buf.toString();
+   }
+
+   private static boolean isCacheable(RowsetDefinition rowsetDefinition) {
+      switch (rowsetDefinition) {
+      case MDSCHEMA_MEMBERS:
+         return false;
+      case DISCOVER_DATASOURCES:
+      case DISCOVER_SCHEMA_ROWSETS:
+      case DISCOVER_ENUMERATORS:
+      case DISCOVER_KEYWORDS:
+      case DISCOVER_LITERALS:
+      case DISCOVER_XML_METADATA:
+         return true;
+      default:
+         return rowsetDefinition.name().startsWith("MDSCHEMA_") || rowsetDefinition.name().startsWith("DBSCHEMA_");
+      }
+   }
+
+   /**
+    * Returns the catalog a request is about, used to invalidate by catalog.
+    */
+   @SuppressWarnings("unchecked")
+   static String getCatalog(XmlaRequest request) {
+      String catalog = request.getProperties().get(PropertyDefinition.Catalog.name());
+      if (catalog == null) {
+         Object restriction = request.getRestrictions().get("CATALOG_NAME");
+         if (restriction instanceof List && !((List<Object>) restriction).isEmpty()) {
+            catalog = String.valueOf(((List<Object>) restriction).get(0));
+         }
+      }
+      return catalog;
+   }
+
+   /**
+    * @return cached response, or null
+    */
+   public synchronized XmlFragment get(String key) {
+      Entry entry = entries.get(key);
+      if (entry == null) {
+         missCount++;
+         return null;
+      }
+      hitCount++;
+      return entry.response;
+   }
+
+   /**
+    * Current generation; it changes whenever the cache is invalidated. Take
+    * it before rendering a response and pass it to {@link #put}.
+    */
+   public synchronized long getGeneration() {
+      return generation;
+   }
+
+   /**
+    * Stores a response, unless the cache was invalidated since
+    * <code>generation</code> was taken or the response is too large.
+    */
+   public synchronized void put(String key, String catalog, XmlFragment response, long generation) {
+      if (generation != this.generation || response.size() > maxBytes / 4) {
+         return;
+      }
+      Entry old = entries.put(key, new Entry(catalog, response));
+      if (old != null) {
+         bytes -= old.response.size();
+      }
+      bytes += response.size();
+
+      Iterator<Entry> it = entries.values().iterator();
+      while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+         Entry eldest = it.next();
+         it.remove();
+         bytes -= eldest.response.size();
+         evictionCount++;
+      }
+   }
+
+   /**
+    * Drops the responses about a catalog, and those that name no catalog
+    * (they may be about the default one).
+    */
+   public synchronized void invalidate(String catalog) {
+      generation++;
+      Iterator<Entry> it = entries.values().iterator();
+      while (it.hasNext()) {
+         Entry entry = it.next();
+         if (entry.catalog == null || entry.catalog.equals(catalog)) {
+            it.remove();
+            bytes -= entry.response.size();
+         }
+      }
+      if (LOGGER.isDebugEnabled()) {
+         LOGGER.debug("Discover cache invalidated for catalog " + catalog + ": " + this);
+      }
+   }
+
+   /**
+    * Drops all responses.
+    */
+   public synchronized void invalidateAll() {
+      generation++;
+      entries.clear();
+      bytes = 0;
+      if (LOGGER.isDebugEnabled()) {
+         LOGGER.debug("Discover cache invalidated: " + this);
+      }
+   }
+
+   public synchronized long getHitCount() {
+      return hitCount;
+   }
+
+   public synchronized long getMissCount() {
+      return missCount;
+   }
+
+   public synchronized long getEvictionCount() {
+      return evictionCount;
+   }
+
+   public synchronized int size() {
+      return entries.size();
+   }
+
+   public synchronized long getByteSize() {
+      return bytes;
+   }
+
+   public synchronized String toString() {
+      return "DiscoverResponseCache{entries=" + entries.size() + ", bytes=" + bytes + ", hits=" + hitCount + ", misses=" + missCount + ", evictions="
+               + evictionCount + "}";
+   }
+
+   private static final class Entry {
+      final String catalog;
+      final XmlFragment response;
+
+      Entry(String catalog, XmlFragment response) {
+         this.catalog = catalog;
+         this.response = response;
+      }
+   }
+}
+
+// End DiscoverResponseCache.java
@@ -0,0 +1,483 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import mondrian.olap.Util;
+
+import org.apache.log4j.Logger;
+
+import custom.mondrian.xmla.handler.CustomXmlaHandler.Column;
+import custom.mondrian.xmla.writer.SaxWriter;
+
+/**
+ * Drill through rows held after their result set is closed, column by
+ * column in chunks of rows. The values of a column in a chunk are kept in a
+ * primitive array while they are all Integer, Long, Float or Double;
+ * otherwise as codes into a dictionary of their strings, which is all a
+ * drill through writes of them. Nulls are kept in a bitmap.
+ *
+ * <p>
+ * Once the chunks take more than maxInMemory bytes, further chunks are
+ * written to a temp file and read back in, one at a time, when the rows
+ * are written. {@link #close()} deletes the file.
+ */
+
+final class DrillThroughBuffer {
+
+   private static final Logger LOGGER = Logger.getLogger(DrillThroughBuffer.class);
+
+   /** Rows per chunk */
+   private static final int CHUNK_ROWS = 4096;
+
+   private static final byte NONE = 0;
+   private static final byte INT = 1;
+   private static final byte LONG = 2;
+   private static final byte FLOAT = 3;
+   private static final byte DOUBLE = 4;
+   private static final byte STRING = 5;
+
+   private final int columnCount;
+   private final long maxInMemory;
+
+   /** Chunks in row order; null for those in the spill file */
+   private final List<Chunk> chunks = new ArrayList<Chunk>();
+   /** Offset and length in the spill file of each chunk */
+   private final List<long[]> spilled = new ArrayList<long[]>();
+   private Chunk current;
+   private long bytesInMemory;
+   private int size;
+
+   private File spillFile;
+   private FileChannel spillChannel;
+
+   /**
+    * @param columnCount
+    *           Number of columns
+    * @param maxInMemory
+    *           Bytes of chunks kept on the heap
+    */
+   DrillThroughBuffer(int columnCount, long maxInMemory) {
+      this.columnCount = columnCount;
+      this.maxInMemory = maxInMemory;
+   }
+
+   /**
+    * @return number of rows
+    */
+   int size() {
+      return size;
+   }
+
+   /**
+    * Adds the current row of a result set.
+    */
+   void add(ResultSet resultSet) throws SQLException {
+      if (current == null) {
+         current = new Chunk(columnCount, CHUNK_ROWS);
+      }
+      final int row = current.rows;
+      for (int i = 0; i < columnCount; i++) {
+         current.vectors[i].set(row, resultSet.getObject(i + 1));
+      }
+      current.rows++;
+      size++;
+      if (current.rows == CHUNK_ROWS) {
+         seal();
+      }
+   }
+
+   /**
+    * Keeps the current chunk in memory, or writes it to the spill file if
+    * the chunks already take too much.
+    */
+   private void seal() {
+      final Chunk chunk = current;
+      current = null;
+      final long bytes = chunk.bytes();
+      if (spillChannel == null && bytesInMemory + bytes <= maxInMemory) {
+         chunk.trim();
+         bytesInMemory += bytes;
+         chunks.add(chunk);
+         spilled.add(null);
+         return;
+      }
+      try {
+         if (spillChannel == null) {
+            spillFile = File.createTempFile("xmla-drillthrough", ".tmp");
+            spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+            if (LOGGER.isDebugEnabled()) {
+               LOGGER.debug("Drill through exceeds " + maxInMemory + " bytes, spilling to " + spillFile);
+            }
+         }
+         final ByteBuffer buffer = ByteBuffer.allocate((int) chunk.encodedSize());
+         chunk.encode(buffer);
+         buffer.flip();
+         final long offset = spillChannel.size();
+         long position = offset;
+         while (buffer.hasRemaining()) {
+            position += spillChannel.write(buffer, position);
+         }
+         chunks.add(null);
+         spilled.add(new long[] { offset, position - offset });
+      } catch (IOException e) {
+         throw Util.newError(e, "Cannot spill drill through rows to " + spillFile);
+      }
+   }
+
+   /**
+    * Writes the rows, as tabular rowset rows.
+    */
+   void write(SaxWriter writer, List<Column> columns) {
+      if (current != null && current.rows > 0) {
+         seal();
+      }
+      for (int c = 0; c < chunks.size(); c++) {
+         Chunk chunk = chunks.get(c);
+         if (chunk == null) {
+            chunk = load(spilled.get(c));
+         }
+         for (int row = 0; row < chunk.rows; row++) {
+            writer.startElement("row");
+            for (int i = 0; i < columnCount; i++) {
+               final Column column = columns.get(i);
+               writer.startElement(column.encodedName, "xsi:type", column.xsdType);
+               writer.characters(chunk.vectors[i].get(row));
+               writer.endElement();
+            }
+            writer.endElement(); // row
+         }
+      }
+   }
+
+   private Chunk load(long[] extent) {
+      try {
+         final ByteBuffer buffer = ByteBuffer.allocate((int) extent[1]);
+         long position = extent[0];
+         while (buffer.hasRemaining()) {
+            final int read = spillChannel.read(buffer, position);
+            if (read < 0) {
+               throw new IOException("Unexpected end of " + spillFile);
+            }
+            position += read;
+         }
+         buffer.flip();
+         return Chunk.decode(buffer, columnCount);
+      } catch (IOException e) {
+         throw Util.newError(e, "Cannot read drill through rows from " + spillFile);
+      }
+   }
+
+   /**
+    * Drops the rows and deletes the spill file.
+    */
+   void close() {
+      chunks.clear();
+      spilled.clear();
+      current = null;
+      if (spillChannel != null) {
+         try {
+            spillChannel.close();
+         } catch (IOException e) {
+            LOGGER.warn("Failed to close " + spillFile, e);
+         }
+         if (!spillFile.delete()) {
+            LOGGER.warn("Failed to delete " + spillFile);
+         }
+         spillChannel = null;
+      }
+   }
+
+   private static final class Chunk {
+      private final Vector[] vectors;
+      private int rows;
+
+      Chunk(int columnCount, int capacity) {
+         vectors = new Vector[columnCount];
+         for (int i = 0; i < columnCount; i++) {
+            vectors[i] = new Vector(capacity);
+         }
+      }
+
+      long bytes() {
+         long bytes = 0;
+         for (Vector vector : vectors) {
+            bytes += vector.bytes();
+         }
+         return bytes;
+      }
+
+      /**
+       * Drops what is only needed while the chunk is filled.
+       */
+      void trim() {
+         for (Vector vector : vectors) {
+            vector.codes = null;
+         }
+      }
+
+      long encodedSize() {
+         long size = 4;
+         for (Vector vector : vectors) {
+            size += vector.encodedSize(rows);
+         }
+         return size;
+      }
+
+      void encode(ByteBuffer buffer) {
+         buffer.putInt(rows);
+         for (Vector vector : vectors) {
+            vector.encode(buffer, rows);
+         }
+      }
+
+      static Chunk decode(ByteBuffer buffer, int columnCount) {
+         final int rows = buffer.getInt();
+         final Chunk chunk = new Chunk(columnCount, 0);
+         chunk.rows = rows;
+         for (int i = 0; i < columnCount; i++) {
+            chunk.vectors[i].decode(buffer, rows);
+         }
+         return chunk;
+      }
+   }
+
+   /**
+    * Values of a column in a chunk.
+    */
+   private static final class Vector {
+      private int capacity;
+      private byte kind = NONE;
+      private long[] nulls;
+      /** INT values, FLOAT bits or STRING codes */
+      private int[] ints;
+      /** LONG values or DOUBLE bits */
+      private long[] longs;
+      private List<String> dictionary;
+      private Map<String, Integer> codes;
+      private long dictionaryBytes;
+
+      Vector(int capacity) {
+         this.capacity = capacity;
+         this.nulls = new long[(capacity + 63) >> 6];
+      }
+
+      void set(int row, Object value) {
+         if (value == null) {
+            nulls[row >> 6] |= 1L << row;
+            return;
+         }
+         if (kind == NONE) {
+            init(kindOf(value));
+         } else if (kind != STRING && kind != kindOf(value)) {
+            toStrings(row);
+         }
+         switch (kind) {
+         case INT:
+            ints[row] = (Integer) value;
+            break;
+         case FLOAT:
+            ints[row] = Float.floatToRawIntBits((Float) value);
+            break;
+         case LONG:
+            longs[row] = (Long) value;
+            break;
+         case DOUBLE:
+            longs[row] = Double.doubleToRawLongBits((Double) value);
+            break;
+         default:
+            ints[row] = code(value.toString());
+         }
+      }
+
+      private static byte kindOf(Object value) {
+         final Class<?> clazz = value.getClass();
+         if (clazz == Integer.class) {
+            return INT;
+         } else if (clazz == Long.class) {
+            return LONG;
+         } else if (clazz == Float.class) {
+            return FLOAT;
+         } else if (clazz == Double.class) {
+            return DOUBLE;
+         }
+         return STRING;
+      }
+
+      private void init(byte kind) {
+         this.kind = kind;
+         if (kind == LONG || kind == DOUBLE) {
+            longs = new long[capacity];
+         } else {
+            ints = new int[capacity];
+         }
+         if (kind == STRING) {
+            dictionary = new ArrayList<String>();
+            codes = new HashMap<String, Integer>();
+         }
+      }
+
+      /**
+       * Turns the values before a row into strings, when a value does not
+       * fit the column's primitive array.
+       */
+      private void toStrings(int rows) {
+         final String[] values = new String[rows];
+         for (int row = 0; row < rows; row++) {
+            if (!isNull(row)) {
+               values[row] = get(row);
+            }
+         }
+         longs = null;
+         ints = null;
+         init(STRING);
+         for (int row = 0; row < rows; row++) {
+            if (values[row] != null) {
+               ints[row] = code(values[row]);
+            }
+         }
+      }
+
+      private int code(String value) {
+         Integer code = codes.get(value);
+         if (code == null) {
+            code = dictionary.size();
+            dictionary.add(value);
+            codes.put(value, code);
+            dictionaryBytes += 64 + 2 * value.length();
+         }
+         return code;
+      }
+
+      private boolean isNull(int row) {
+         return (nulls[row >> 6] & (1L << row)) != 0;
+      }
+
+      /**
+       * Text of a value, nulls being written as 0 since Excel couldn't
+       * handle null value.
+       */
+      String get(int row) {
+         if (isNull(row)) {
+            return "0";
+         }
+         switch (kind) {
+         case INT:
+            return Integer.toString(ints[row]);
+         case FLOAT:
+            return Float.toString(Float.intBitsToFloat(ints[row]));
+         case LONG:
+            return Long.toString(longs[row]);
+         case DOUBLE:
+            return Double.toString(Double.longBitsToDouble(longs[row]));
+         default:
+            return dictionary.get(ints[row]);
+         }
+      }
+
+      long bytes() {
+         return 8L * nulls.length + (ints == null ? 0 : 4L * ints.length) + (longs == null ? 0 : 8L * longs.length) + dictionaryBytes;
+      }
+
+      long encodedSize(int rows) {
+         long size = 1 + 8L * ((rows + 63) >> 6);
+         switch (kind) {
+         case INT:
+         case FLOAT:
+            return size + 4L * rows;
+         case LONG:
+         case DOUBLE:
+            return size + 8L * rows;
+         case STRING:
+            size += 4 + 4L * rows;
+            for (String value : dictionary) {
+               size += 4 + 2L * value.length();
+            }
+            return size;
+         default:
+            return size;
+         }
+      }
+
+      void encode(ByteBuffer buffer, int rows) {
+         buffer.put(kind);
+         final int words = (rows + 63) >> 6;
+         buffer.asLongBuffer().put(nulls, 0, words);
+         buffer.position(buffer.position() + 8 * words);
+         switch (kind) {
+         case INT:
+         case FLOAT:
+            buffer.asIntBuffer().put(ints, 0, rows);
+            buffer.position(buffer.position() + 4 * rows);
+            break;
+         case LONG:
+         case DOUBLE:
+            buffer.asLongBuffer().put(longs, 0, rows);
+            buffer.position(buffer.position() + 8 * rows);
+            break;
+         case STRING:
+            buffer.putInt(dictionary.size());
+            for (String value : dictionary) {
+               buffer.putInt(value.length());
+               for (int i = 0; i < value.length(); i++) {
+                  buffer.putChar(value.charAt(i));
+               }
+            }
+            buffer.asIntBuffer().put(ints, 0, rows);
+            buffer.position(buffer.position() + 4 * rows);
+            break;
+         }
+      }
+
+      void decode(ByteBuffer buffer, int rows) {
+         capacity = rows;
+         nulls = new long[(rows + 63) >> 6];
+         final byte kind = buffer.get();
+         buffer.asLongBuffer().get(nulls);
+         buffer.position(buffer.position() + 8 * nulls.length);
+         if (kind == NONE) {
+            return;
+         }
+         init(kind);
+         switch (kind) {
+         case INT:
+         case FLOAT:
+            buffer.asIntBuffer().get(ints, 0, rows);
+            buffer.position(buffer.position() + 4 * rows);
+            break;
+         case LONG:
+         case DOUBLE:
+            buffer.asLongBuffer().get(longs, 0, rows);
+            buffer.position(buffer.position() + 8 * rows);
+            break;
+         case STRING:
+            final int dictionarySize = buffer.getInt();
+            for (int d = 0; d < dictionarySize; d++) {
+               final char[] chars = new char[buffer.getInt()];
+               for (int i = 0; i < chars.length; i++) {
+                  chars[i] = buffer.getChar();
+               }
+               dictionary.add(new String(chars));
+            }
+            buffer.asIntBuffer().get(ints, 0, rows);
+            buffer.position(buffer.position() + 4 * rows);
+            break;
+         }
+      }
+   }
+}
+
+// End DrillThroughBuffer.java
@@ -0,0 +1,521 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.handler;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import mondrian.olap.Util;
+
+import org.apache.log4j.Logger;
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapStatement;
+import org.xml.sax.SAXException;
+
+import custom.mondrian.properties.ExternalProperties;
+import custom.mondrian.xmla.handler.CustomXmlaHandler.Column;
+import custom.mondrian.xmla.writer.SaxWriter;
+
+/**
+ * Drill through result, written to the response while the JDBC cursor is
+ * read, so that "Show Details" on a large cell does not hold all its rows
+ * on the heap.
+ *
+ * <p>
+ * The result owns its connection, statement and result set, and closes them
+ * in {@link #close()}. The row limit, the lower of the MaxRows property and
+ * the MAXROWS clause, is put in the DRILLTHROUGH statement so that the SQL
+ * statement fetches no more rows than are written. The TableFields property
+ * becomes a RETURN clause, if the statement has none, so that mondrian only
+ * selects those columns; the schema, made from the result set, follows.
+ *
+ * <p>
+ * The total count row, when mondrian.xmla.enableTotalCount is set, is
+ * counted by a second statement on its own connection, running alongside
+ * the drill through. If the first rows read are all there is, they are the
+ * count and the count statement is cancelled.
+ *
+ * <p>
+ * With custom.mondrian.xmla.drillThrough.fetchAll set, {@link #fetch()}
+ * reads all the rows into a {@link DrillThroughBuffer} before the response
+ * is written and releases the connection at once, instead of holding it
+ * while the response is sent.
+ */
+
+final class DrillThroughRowSet extends QueryResult {
+
+   private static final Logger LOGGER = Logger.getLogger(DrillThroughRowSet.class);
+
+   private static final Pattern DRILLTHROUGH = Pattern.compile("^(\\s*DRILLTHROUGH)(\\s+MAXROWS\\s+(\\d+))?(?=\\s)", Pattern.CASE_INSENSITIVE);
+
+   private static ExecutorService countExecutor;
+
+   private final OlapConnection connection;
+   private final OlapStatement statement;
+   private final ResultSet resultSet;
+   private final List<Column> columns = new ArrayList<Column>();
+   private final int maxRows;
+   private final TotalCount totalCount;
+   private final int fetchSize;
+   /** Rows, once fetched */
+   private DrillThroughBuffer buffer;
+
+   /**
+    * Creates a result reading a drill through result set.
+    *
+    * @param connection
+    *           Connection, closed with the result
+    * @param statement
+    *           Statement, closed with the result
+    * @param resultSet
+    *           Result set, closed with the result
+    * @param maxRows
+    *           Maximum number of rows to write, or -1 for all
+    * @param totalCount
+    *           Count of the rows, or null not to write the total count row
+    * @throws SQLException
+    *            on error
+    */
+   DrillThroughRowSet(OlapConnection connection, OlapStatement statement, ResultSet resultSet, int maxRows, TotalCount totalCount) throws SQLException {
+      this.connection = connection;
+      this.statement = statement;
+      this.resultSet = resultSet;
+      this.maxRows = maxRows;
+      this.totalCount = totalCount;
+      this.fetchSize = Math.max(1, ExternalProperties.getInstance().getDrillThroughFetchSize());
+
+      final ResultSetMetaData md = resultSet.getMetaData();
+      final int columnCount = md.getColumnCount();
+      for (int i = 0; i < columnCount; i++) {
+         columns.add(new Column(md.getColumnLabel(i + 1), md.getColumnType(i + 1), md.getScale(i + 1)));
+      }
+      try {
+         // mondrian makes the JDBC statement, so this is only a hint
+         resultSet.setFetchSize(fetchSize);
+      } catch (SQLException e) {
+         LOGGER.debug("Cannot set the fetch size of a drill through", e);
+      }
+   }
+
+   /**
+    * Returns the row limit of a DRILLTHROUGH statement.
+    *
+    * @return the MAXROWS clause, or -1 if the statement has none
+    */
+   static int getMaxRows(String mdx) {
+      final Matcher matcher = DRILLTHROUGH.matcher(mdx);
+      if (!matcher.find() || matcher.group(3) == null) {
+         return -1;
+      }
+      final long maxRows = Long.parseLong(matcher.group(3));
+      return maxRows > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) maxRows;
+   }
+
+   /**
+    * Puts a row limit in a DRILLTHROUGH statement, unless it has a lower
+    * one already.
+    *
+    * @param mdx
+    *           DRILLTHROUGH statement
+    * @param maxRows
+    *           Maximum number of rows, or -1 for all
+    * @return the statement with a MAXROWS clause of at most
+    *         <code>maxRows</code>
+    */
+   static String limit(String mdx, int maxRows) {
+      if (maxRows < 0) {
+         return mdx;
+      }
+      final Matcher matcher = DRILLTHROUGH.matcher(mdx);
+      if (!matcher.find()) {
+         LOGGER.debug("Cannot limit the rows of drill through: " + mdx);
+         return mdx;
+      }
+      final int current = getMaxRows(mdx);
+      if (current >= 0 && current <= maxRows) {
+         return mdx;
+      }
+      return matcher.group(1) + " MAXROWS " + maxRows + mdx.substring(matcher.end());
+   }
+
+   /**
+    * Restricts the columns of a DRILLTHROUGH statement to the fields of the
+    * TableFields property, with a RETURN clause, unless the statement has
+    * one. Fields are comma-separated MDX names of levels and measures;
+    * others are ignored.
+    *
+    * @param mdx
+    *           DRILLTHROUGH statement
+    * @param tableFields
+    *           TableFields property, or null
+    * @return the statement with a RETURN clause of the fields
+    */
+   static String project(String mdx, String tableFields) {
+      if (tableFields == null || findReturn(mdx) >= 0) {
+         return mdx;
+      }
+      final StringBuilder returnList = new StringBuilder();
+      int start = 0;
+      while (start < tableFields.length()) {
+         int end = start;
+         while (end < tableFields.length() && tableFields.charAt(end) != ',') {
+            end = tableFields.charAt(end) == '[' ? CellPropertyPlan.closingBracket(tableFields, end) : end + 1;
+         }
+         final String field = tableFields.substring(start, end).trim();
+         if (field.startsWith("[") && field.endsWith("]")) {
+            if (returnList.length() > 0) {
+               returnList.append(", ");
+            }
+            returnList.append(field);
+         } else if (field.length() > 0) {
+            LOGGER.debug("Ignoring drill through field '" + field + "', not an MDX name");
+         }
+         start = end + 1;
+      }
+      if (returnList.length() == 0) {
+         return mdx;
+      }
+      String body = mdx.trim();
+      final boolean semicolon = body.endsWith(";");
+      if (semicolon) {
+         body = body.substring(0, body.length() - 1);
+      }
+      // on a new line, in case the statement ends with a comment
+      return body + "\nRETURN " + returnList + (semicolon ? ";" : "");
+   }
+
+   /**
+    * Returns where the RETURN clause of a statement starts, or -1 if it has
+    * none. Bracketed identifiers, string literals, comments and what is
+    * between parentheses or braces are skipped.
+    */
+   static int findReturn(String mdx) {
+      final int n = mdx.length();
+      int depth = 0;
+      int i = 0;
+      while (i < n) {
+         final char c = mdx.charAt(i);
+         if (c == '[') {
+            i = CellPropertyPlan.closingBracket(mdx, i);
+         } else if (c == '"' || c == '\'') {
+            final int end = mdx.indexOf(c, i + 1);
+            i = end < 0 ? n : end + 1;
+         } else if (c == '/' && i + 1 < n && mdx.charAt(i + 1) == '*') {
+            final int end = mdx.indexOf("*/", i + 2);
+            i = end < 0 ? n : end + 2;
+         } else if ((c == '-' || c == '/') && i + 1 < n && mdx.charAt(i + 1) == c) {
+            final int end = mdx.indexOf('\n', i + 2);
+            i = end < 0 ? n : end + 1;
+         } else if (c == '(' || c == '{') {
+            depth++;
+            i++;
+         } else if (c == ')' || c == '}') {
+            depth--;
+            i++;
+         } else if (Character.isLetterOrDigit(c) || c == '_') {
+            int end = i + 1;
+            while (end < n && (Character.isLetterOrDigit(mdx.charAt(end)) || mdx.charAt(end) == '_')) {
+               end++;
+            }
+            if (depth == 0 && end - i == 6 && mdx.regionMatches(true, i, "RETURN", 0, 6)) {
+               return i;
+            }
+            i = end;
+         } else {
+            i++;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Starts counting the rows of a drill through.
+    *
+    * @param connection
+    *           Connection for the count, closed once counted
+    * @param mdx
+    *           DRILLTHROUGH statement
+    * @return the count
+    */
+   static TotalCount count(OlapConnection connection, String mdx, boolean advanced, String tabFields) {
+      final TotalCount totalCount = new TotalCount(connection, limit(mdx, 1), advanced, tabFields);
+      totalCount.future = getCountExecutor().submit(totalCount);
+      return totalCount;
+   }
+
+   private static synchronized ExecutorService getCountExecutor() {
+      if (countExecutor == null) {
+         countExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+               final Thread thread = new Thread(runnable, "custom.mondrian.xmla.drillThroughCount-" + count.incrementAndGet());
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+      return countExecutor;
+   }
+
+   /**
+    * Reads all the rows, up to the limit, and closes the result set, the
+    * statement and the connection.
+    *
+    * @throws SQLException
+    *            on error
+    */
+   void fetch() throws SQLException {
+      final DrillThroughBuffer buffer = new DrillThroughBuffer(columns.size(), ExternalProperties.getInstance().getDrillThroughMaxInMemory());
+      boolean success = false;
+      try {
+         while ((maxRows < 0 || buffer.size() < maxRows) && resultSet.next()) {
+            buffer.add(resultSet);
+         }
+         success = true;
+      } finally {
+         if (!success) {
+            buffer.close();
+         }
+      }
+      this.buffer = buffer;
+      if (totalCount != null && (maxRows < 0 || buffer.size() < maxRows)) {
+         // all the rows were read; they are the count
+         totalCount.cancel();
+      }
+      closeStatement();
+   }
+
+   public void close() throws SQLException {
+      if (totalCount != null) {
+         totalCount.cancel();
+      }
+      if (buffer != null) {
+         buffer.close();
+      }
+      closeStatement();
+   }
+
+   private void closeStatement() throws SQLException {
+      try {
+         resultSet.close();
+      } finally {
+         try {
+            statement.close();
+         } finally {
+            connection.close();
+         }
+      }
+   }
+
+   public void unparse(SaxWriter writer) throws SAXException {
+      writer.startSequence(null, "row");
+      writeRows(writer);
+      // on an error, the elements still open are closed by
+      // SaxWriter.completeBeforeElement
+      writer.endSequence(); // row
+   }
+
+   private void writeRows(SaxWriter writer) {
+      final int columnCount = columns.size();
+      try {
+         if (buffer != null) {
+            if (totalCount != null) {
+               final int count = maxRows < 0 || buffer.size() < maxRows ? buffer.size() : totalCount.get();
+               if (count >= 0) {
+                  writeCount(writer, count);
+               }
+            }
+            buffer.write(writer, columns);
+            return;
+         }
+
+         int rowCount = 0;
+         if (totalCount != null) {
+            // the count comes first; it is the first rows if they are all
+            final List<Object[]> first = new ArrayList<Object[]>();
+            boolean more = true;
+            while (first.size() < fetchSize && (maxRows < 0 || first.size() < maxRows) && (more = resultSet.next())) {
+               final Object[] row = new Object[columnCount];
+               for (int i = 0; i < columnCount; i++) {
+                  row[i] = value(resultSet.getObject(i + 1));
+               }
+               first.add(row);
+            }
+            final int count;
+            if (!more && (maxRows < 0 || first.size() < maxRows)) {
+               totalCount.cancel();
+               count = first.size();
+            } else {
+               count = totalCount.get();
+            }
+            if (count >= 0) {
+               writeCount(writer, count);
+            }
+            for (Object[] row : first) {
+               writer.startElement("row");
+               for (int i = 0; i < columnCount; i++) {
+                  writeValue(writer, columns.get(i), row[i]);
+               }
+               writer.endElement(); // row
+            }
+            rowCount = first.size();
+            if (!more) {
+               return;
+            }
+         }
+
+         for (; (maxRows < 0 || rowCount < maxRows) && resultSet.next(); rowCount++) {
+            writer.startElement("row");
+            for (int i = 0; i < columnCount; i++) {
+               writeValue(writer, columns.get(i), value(resultSet.getObject(i + 1)));
+            }
+            writer.endElement(); // row
+         }
+      } catch (SQLException e) {
+         throw Util.newError(e, "Error while reading drill through rows");
+      }
+   }
+
+   /**
+    * Escapes a null value. Excel couldn't handle null value.
+    */
+   private static Object value(Object value) {
+      return value == null ? 0 : value;
+   }
+
+   private void writeCount(SaxWriter writer, int count) {
+      final String countStr = Integer.toString(count);
+      writer.startElement("row");
+      for (Column column : columns) {
+         writer.startElement(column.encodedName);
+         writer.characters(countStr);
+         writer.endElement();
+      }
+      writer.endElement(); // row
+   }
+
+   private static void writeValue(SaxWriter writer, Column column, Object value) {
+      writer.startElement(column.encodedName, "xsi:type", column.xsdType);
+      writer.characters(value.toString());
+      writer.endElement();
+   }
+
+   public void metadata(SaxWriter writer) {
+      TabularRowSet.metadata(writer, columns);
+   }
+
+   /**
+    * Count of the rows of a drill through, worked out on the count
+    * executor. The count connection is closed once the count is done, or
+    * cancelled.
+    */
+   static final class TotalCount implements Callable<Integer> {
+      private final OlapConnection connection;
+      private final String mdx;
+      private final boolean advanced;
+      private final String tabFields;
+      private Future<Integer> future;
+
+      /** Guarded by this */
+      private OlapStatement statement;
+      private boolean cancelled;
+
+      private TotalCount(OlapConnection connection, String mdx, boolean advanced, String tabFields) {
+         this.connection = connection;
+         this.mdx = mdx;
+         this.advanced = advanced;
+         this.tabFields = tabFields;
+      }
+
+      public Integer call() throws SQLException {
+         ResultSet resultSet = null;
+         try {
+            synchronized (this) {
+               if (cancelled) {
+                  return -1;
+               }
+               statement = connection.createStatement();
+            }
+            final int[] rowCountSlot = { 0 };
+            resultSet = CustomXmlaHandler.getExtra(connection).executeDrillthrough(statement, mdx, advanced, tabFields, rowCountSlot);
+            return rowCountSlot[0];
+         } finally {
+            if (resultSet != null) {
+               try {
+                  resultSet.close();
+               } catch (SQLException e) {
+                  // ignore
+               }
+            }
+            synchronized (this) {
+               if (statement != null) {
+                  try {
+                     statement.close();
+                  } catch (SQLException e) {
+                     // ignore
+                  }
+                  statement = null;
+               }
+            }
+            try {
+               connection.close();
+            } catch (SQLException e) {
+               // ignore
+            }
+         }
+      }
+
+      /**
+       * Waits for the count.
+       *
+       * @return the count, or -1 if it could not be counted
+       */
+      int get() {
+         try {
+            return future.get();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+         } catch (ExecutionException e) {
+            LOGGER.warn("Cannot count the rows of drill through", e.getCause());
+            return -1;
+         }
+      }
+
+      /**
+       * Stops counting, if it is not done. The task is left to run, so that
+       * it closes its connection.
+       */
+      void cancel() {
+         final OlapStatement statement;
+         synchronized (this) {
+            cancelled = true;
+            statement = this.statement;
+         }
+         if (statement != null) {
+            try {
+               statement.cancel();
+            } catch (SQLException e) {
+               // ignore
+            }
+         }
+      }
+   }
+}
+
+// End DrillThroughRowSet.java
@@ -9,10 +9,14 @@ import static custom.mondrian.xmla.handler.XmlaConstants.NS_XSD;
 import static custom.mondrian.xmla.handler.XmlaConstants.NS_XSI;
 
 import java.sql.SQLException;
+import java.text.Format;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -27,7 +31,9 @@ import org.olap4j.Cell;
 import org.olap4j.CellSet;
 import org.olap4j.CellSetAxis;
 import org.olap4j.CellSetAxisMetaData;
+import org.olap4j.OlapConnection;
 import org.olap4j.OlapException;
+import org.olap4j.OlapStatement;
 import org.olap4j.Position;
 import org.olap4j.metadata.Cube;
 import org.olap4j.metadata.Datatype;
@@ -38,13 +44,20 @@ import org.olap4j.metadata.Member;
 import org.olap4j.metadata.Property;
 import org.olap4j.metadata.Property.StandardCellProperty;
 import org.olap4j.metadata.Property.StandardMemberProperty;
+import org.olap4j.metadata.Schema;
 import org.xml.sax.SAXException;
 
 import custom.mondrian.xmla.handler.CustomXmlaHandler.CellColumnHandler;
 import custom.mondrian.xmla.handler.CustomXmlaHandler.ColumnHandler;
 import custom.mondrian.xmla.handler.CustomXmlaHandler.MemberColumnHandler;
 import custom.mondrian.xmla.handler.CustomXmlaHandler.ValueInfo;
+import custom.mondrian.xmla.request.XmlaSession;
+import custom.mondrian.xmla.request.XmlaSessionRegistry;
+import custom.mondrian.xmla.writer.CompactSaxWriter;
+import custom.mondrian.xmla.writer.ParallelSaxEncoder;
+import custom.mondrian.xmla.writer.RecordingSaxWriter;
 import custom.mondrian.xmla.writer.SaxWriter;
+import custom.mondrian.xmla.writer.XmlFragment;
 
 /**
  * <class description goes here>
@@ -56,14 +69,8 @@ abstract class MDDataSet extends QueryResult {
    @SuppressWarnings("unused")
    private static final Logger LOGGER = Logger.getLogger(MDDataSet.class);
    protected final CellSet cellSet;
-
-   protected static  List<Property> cellProps = Arrays.asList(rename(StandardCellProperty.VALUE, "Value"), 
-            rename(StandardCellProperty.FORMAT_STRING, "FormatString"),
-            rename(StandardCellProperty.LANGUAGE, "Language"),
-            rename(StandardCellProperty.CELL_ORDINAL,"CellOrdinal"));
-
-   protected static  List<StandardCellProperty> cellPropLongs = Arrays
-            .asList(StandardCellProperty.VALUE, StandardCellProperty.FORMAT_STRING, StandardCellProperty.LANGUAGE, StandardCellProperty.CELL_ORDINAL);
+   /** Session the connection of the cell set goes back to, or null */
+   private final XmlaSession session;
 
    protected static final List<Property> defaultProps = Arrays.asList(rename(StandardMemberProperty.MEMBER_UNIQUE_NAME, "UName"),
             rename(StandardMemberProperty.MEMBER_CAPTION, "Caption"), rename(StandardMemberProperty.LEVEL_UNIQUE_NAME, "LName"),
@@ -79,12 +86,20 @@ abstract class MDDataSet extends QueryResult {
       longProps.put("DisplayInfo", StandardMemberProperty.DISPLAY_INFO);
    }
 
-   protected MDDataSet(CellSet cellSet) {
+   protected MDDataSet(CellSet cellSet, XmlaSession session) {
       this.cellSet = cellSet;
+      this.session = session;
    }
 
    public void close() throws SQLException {
-      cellSet.getStatement().getConnection().close();
+      final OlapStatement statement = cellSet.getStatement();
+      final OlapConnection connection = statement.getConnection();
+      try {
+         cellSet.close();
+         statement.close();
+      } finally {
+         XmlaSessionRegistry.getInstance().releaseConnection(session, connection);
+      }
    }
 
     static Property rename(final Property property, final String name) {
@@ -132,13 +147,29 @@ class MDDataSet_Multidimensional extends MDDataSet {
    private final boolean omitDefaultSlicerInfo ;
    private final boolean json;
    private XmlaUtil.ElementNameEncoder encoder = XmlaUtil.ElementNameEncoder.INSTANCE;
+   private final NumericCellEncoder valueEncoder = new NumericCellEncoder();
    private XmlaExtra extra;
-
-   protected MDDataSet_Multidimensional(CellSet cellSet, boolean omitDefaultSlicerInfo, boolean json) throws SQLException {
-      super(cellSet);
+   private final String roleName;
+   private final CellPropertyPlan cellPropertyPlan;
+   /** Resolved on first use */
+   private FormatStrings formatStrings;
+   /** Cached OlapInfo of this cell set, if any */
+   private OlapInfoCache.Entry olapInfoEntry;
+
+   /** Cell properties of CellInfo, in order */
+   private static final StandardCellProperty[] CELL_INFO_PROPERTIES = { StandardCellProperty.VALUE, StandardCellProperty.FORMAT_STRING,
+            StandardCellProperty.LANGUAGE, StandardCellProperty.CELL_ORDINAL, StandardCellProperty.BACK_COLOR, StandardCellProperty.FORE_COLOR,
+            StandardCellProperty.FONT_FLAGS };
+   private static final boolean[] CELL_INFO_EVEN_EMPTY = { true, true, false, false, false, false, false };
+   private static final String[] CELL_INFO_NAMES = { "Value", "FormatString", "Language", "CellOrdinal", "BackColor", "ForeColor", "FontFlags" };
+
+   protected MDDataSet_Multidimensional(CellSet cellSet, XmlaSession session, CellPropertyPlan cellPropertyPlan, boolean omitDefaultSlicerInfo, boolean json) throws SQLException {
+      super(cellSet, session);
+      this.cellPropertyPlan = cellPropertyPlan;
       this.omitDefaultSlicerInfo = omitDefaultSlicerInfo;
       this.json = json;
       this.extra = CustomXmlaHandler.getExtra(cellSet.getStatement().getConnection());
+      this.roleName = cellSet.getStatement().getConnection().getRoleName();
    
    }
 
@@ -154,23 +185,68 @@ class MDDataSet_Multidimensional extends MDDataSet {
 
    private void olapInfo(SaxWriter writer) throws OlapException {
       // What are all of the cube's hierachies
-      Cube cube = cellSet.getMetaData().getCube();
+      final Cube cube = cellSet.getMetaData().getCube();
+      final List<CellSetAxis> axes = cellSet.getAxes();
+      final List<List<Hierarchy>> axisHierarchies = new ArrayList<List<Hierarchy>>(axes.size());
+      for (CellSetAxis axis : axes) {
+         axisHierarchies.add(axisHierarchies(axis));
+      }
+      final CellSetAxis slicerAxis = cellSet.getFilterAxis();
+      final boolean[] cellPropertyReturned = new boolean[CELL_INFO_PROPERTIES.length];
+      for (int i = 0; i < CELL_INFO_PROPERTIES.length; i++) {
+         cellPropertyReturned[i] = extra.shouldReturnCellProperty(cellSet, CELL_INFO_PROPERTIES[i], CELL_INFO_EVEN_EMPTY[i]);
+      }
+
+      // the same query shapes come again and again; the slicer hierarchies
+      // and the whole OlapInfo are kept in the OlapInfoCache
+      final OlapInfoCache cache = OlapInfoCache.getInstance();
+      final String key = cache.isEnabled() ? olapInfoKey(cube, axisHierarchies, slicerAxis, cellPropertyReturned) : null;
+      olapInfoEntry = key == null ? null : cache.get(key);
+      List<Hierarchy> hierarchies = olapInfoEntry == null ? null : olapInfoEntry.getSlicerHierarchies(cube);
+      if (hierarchies == null) {
+         final long generation = cache.getGeneration();
+         hierarchies = omitDefaultSlicerInfo ? axisHierarchies(slicerAxis) : defaultSlicerHierarchies(cube, axisHierarchies);
+         olapInfoEntry = key == null ? null : cache.put(key, cube, hierarchies, generation);
+      }
+      slicerAxisHierarchies = hierarchies;
+
+      if (olapInfoEntry != null && writer instanceof CompactSaxWriter) {
+         XmlFragment fragment = olapInfoEntry.getOlapInfo();
+         if (fragment == null) {
+            final RecordingSaxWriter recorder = new RecordingSaxWriter();
+            writeOlapInfo(recorder, cube, axisHierarchies, slicerAxis, cellPropertyReturned);
+            fragment = XmlFragment.render(recorder);
+            olapInfoEntry.setOlapInfo(fragment);
+         }
+         writer.verbatim(fragment);
+      } else {
+         writeOlapInfo(writer, cube, axisHierarchies, slicerAxis, cellPropertyReturned);
+      }
+   }
 
+   private void writeOlapInfo(SaxWriter writer, Cube cube, List<List<Hierarchy>> axisHierarchies, CellSetAxis slicerAxis, boolean[] cellPropertyReturned) {
       writer.startElement("OlapInfo");
       writer.startElement("CubeInfo");
       writer.startElement("Cube");
       writer.textElement("CubeName", cube.getName());
-      writer.startElement("LastDataUpdate", "xmln", "http://schemas.microsoft.com/analysisservices/2003/engine");
-      // The Date is fake,because currently Mondrian doesn't support record
-      // LastDateUpdate
-      writer.characters("2009-05-30T19:26:25");
-      writer.endElement();// End LastDateUpdate
-      writer.startElement("LastSchemaUpdate", "xmln", "http://schemas.microsoft.com/analysisservices/2003/engine");
-
-      // The Date is fake,because currently Mondrian doesn't support record
-      // LastDateUpdate
-      writer.characters("2009-05-30T19:26:25");
-      writer.endElement();// End LastSchemaUpdate
+      // the data was last loaded when the watermark of the cube says, or
+      // else at the latest when the schema was
+      final Format formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+      final Date schemaUpdate = extra.getSchemaLoadDate(cube.getSchema());
+      final Date dataUpdate = DataFreshnessTracker.getInstance().getLastDataUpdate(cube.getName());
+      final String lastDataUpdate = formatter.format(dataUpdate == null ? schemaUpdate : dataUpdate);
+      final String lastSchemaUpdate = formatter.format(schemaUpdate);
+      if (json) {
+         writer.textElement("LastDataUpdate", lastDataUpdate);
+         writer.textElement("LastSchemaUpdate", lastSchemaUpdate);
+      } else {
+         writer.startElement("LastDataUpdate", "xmln", "http://schemas.microsoft.com/analysisservices/2003/engine");
+         writer.characters(lastDataUpdate);
+         writer.endElement();// End LastDateUpdate
+         writer.startElement("LastSchemaUpdate", "xmln", "http://schemas.microsoft.com/analysisservices/2003/engine");
+         writer.characters(lastSchemaUpdate);
+         writer.endElement();// End LastSchemaUpdate
+      }
       writer.endElement();
       writer.endElement(); // CubeInfo
 
@@ -178,45 +254,13 @@ class MDDataSet_Multidimensional extends MDDataSet {
       // -----------
       writer.startSequence("AxesInfo", "AxisInfo");
       final List<CellSetAxis> axes = cellSet.getAxes();
-      List<Hierarchy> axisHierarchyList = new ArrayList<Hierarchy>();
       for (int i = 0; i < axes.size(); i++) {
-         List<Hierarchy> hiers = axisInfo(writer, axes.get(i), "Axis" + i);
-         axisHierarchyList.addAll(hiers);
+         axisInfo(writer, axisHierarchies.get(i), getProps(axes.get(i).getAxisMetaData()), "Axis" + i);
       }
       // /////////////////////////////////////////////
       // create AxesInfo for slicer axes
       //
-      
-//      Object tmpAxis = axisList.get(0);
-//      Object tmp1 = ((CellSetAxis)tmpAxis).getAxisOrdinal();
-//      Object tmp2 = ((CellSetAxis)tmpAxis).getCellSet();
-//      Object tmp3 = ((CellSetAxis)tmpAxis).getAxisMetaData();
-//      List<Position> positions = ((CellSetAxis)tmpAxis).getPositions();
-//      int tmpCount = positions.size();
-//      Position tmpPosition = positions.get(0);
-//      List<Member> members = positions.get(0).getMembers();
-      List<Hierarchy> hierarchies;
-      CellSetAxis slicerAxis = cellSet.getFilterAxis();
-      if (omitDefaultSlicerInfo) {
-         hierarchies = axisInfo(writer, slicerAxis, "SlicerAxis");
-      } else {
-         // The slicer axes contains the default hierarchy
-         // of each dimension not seen on another axis.
-         List<Dimension> unseenDimensionList = new ArrayList<Dimension>(cube.getDimensions());
-         for (Hierarchy hier1 : axisHierarchyList) {
-            unseenDimensionList.remove(hier1.getDimension());
-         }
-         hierarchies = new ArrayList<Hierarchy>();
-         for (Dimension dimension : unseenDimensionList) {
-            for (Hierarchy hierarchy : dimension.getHierarchies()) {
-               hierarchies.add(hierarchy);
-            }
-         }
-         writer.startElement("AxisInfo", "name", "SlicerAxis");
-         writeHierarchyInfo(writer, hierarchies, getProps(slicerAxis.getAxisMetaData()));
-         writer.endElement(); // AxisInfo
-      }
-      slicerAxisHierarchies = hierarchies;
+      axisInfo(writer, slicerAxisHierarchies, getProps(slicerAxis.getAxisMetaData()), "SlicerAxis");
       //
       // /////////////////////////////////////////////
 
@@ -224,39 +268,108 @@ class MDDataSet_Multidimensional extends MDDataSet {
 
       // -----------
       writer.startElement("CellInfo");
-      cellProperty(writer, StandardCellProperty.VALUE, true, "Value");
-
-      cellProperty(writer, StandardCellProperty.FORMAT_STRING, true, "FormatString");
-
-      cellProperty(writer, StandardCellProperty.LANGUAGE, false, "Language");
-      cellProperty(writer, StandardCellProperty.CELL_ORDINAL, false, "CellOrdinal");
-
-      cellProperty(writer, StandardCellProperty.BACK_COLOR, false, "BackColor");
-      cellProperty(writer, StandardCellProperty.FORE_COLOR, false, "ForeColor");
-      cellProperty(writer, StandardCellProperty.FONT_FLAGS, false, "FontFlags");
+      for (int i = 0; i < CELL_INFO_PROPERTIES.length; i++) {
+         cellProperty(writer, CELL_INFO_PROPERTIES[i], cellPropertyReturned[i], CELL_INFO_NAMES[i]);
+      }
       writer.endElement(); // CellInfo
       // -----------
       writer.endElement(); // OlapInfo
    }
 
-   private void cellProperty(SaxWriter writer, StandardCellProperty cellProperty, boolean evenEmpty, String elementName) {
+   /**
+    * Returns the key of the OlapInfo of this cell set in the
+    * {@link OlapInfoCache}: everything the OlapInfo and the slicer
+    * hierarchies depend on.
+    */
+   private String olapInfoKey(Cube cube, List<List<Hierarchy>> axisHierarchies, CellSetAxis slicerAxis, boolean[] cellPropertyReturned) {
+      final StringBuilder buf = new StringBuilder(256);
+      buf.append(cubeScope(cube)).append('\u0000').append(omitDefaultSlicerInfo).append(json);
+      // the OlapInfo carries the LastDataUpdate of the cube
+      final Date dataUpdate = DataFreshnessTracker.getInstance().getLastDataUpdate(cube.getName());
+      buf.append('\u0000').append(dataUpdate == null ? 0 : dataUpdate.getTime());
+      final List<CellSetAxis> axes = cellSet.getAxes();
+      for (int i = 0; i < axes.size(); i++) {
+         appendAxisKey(buf, axisHierarchies.get(i), axes.get(i));
+      }
+      // the default slicer hierarchies follow from the other axes
+      appendAxisKey(buf, omitDefaultSlicerInfo ? axisHierarchies(slicerAxis) : Collections.<Hierarchy> emptyList(), slicerAxis);
+      buf.append('\u0000');
+      for (boolean returned : cellPropertyReturned) {
+         buf.append(returned ? '1' : '0');
+      }
+      return buf.toString();
+   }
+
+   private void appendAxisKey(StringBuilder buf, List<Hierarchy> hierarchies, CellSetAxis axis) {
+      buf.append('\u0000');
+      for (Hierarchy hierarchy : hierarchies) {
+         buf.append(hierarchy.getUniqueName()).append('\u0001');
+      }
+      appendPropsKey(buf, getProps(axis.getAxisMetaData()));
+   }
+
+   private static void appendPropsKey(StringBuilder buf, List<Property> props) {
+      for (Property prop : props) {
+         buf.append('\u0000').append(prop.getName()).append('\u0001').append(prop.getUniqueName()).append('\u0001').append(prop.getDatatype());
+      }
+   }
+
+   /**
+    * Returns the catalog, schema and its load date, cube and role, which
+    * output kept across requests depends on.
+    */
+   private String cubeScope(Cube cube) {
+      final Schema schema = cube.getSchema();
+      final StringBuilder buf = new StringBuilder(128);
+      buf.append(schema.getCatalog().getName()).append('\u0000');
+      buf.append(schema.getName()).append('\u0000');
+      buf.append(extra.getSchemaLoadDate(schema).getTime()).append('\u0000');
+      buf.append(cube.getName()).append('\u0000');
+      buf.append(roleName);
+      return buf.toString();
+   }
+
+   /**
+    * The slicer axis contains the hierarchies of each dimension not seen on
+    * another axis.
+    */
+   private List<Hierarchy> defaultSlicerHierarchies(Cube cube, List<List<Hierarchy>> axisHierarchies) {
+      final Set<String> seenDimensions = new HashSet<String>();
+      for (List<Hierarchy> hierarchies : axisHierarchies) {
+         for (Hierarchy hierarchy : hierarchies) {
+            seenDimensions.add(hierarchy.getDimension().getUniqueName());
+         }
+      }
+      final List<Hierarchy> hierarchies = new ArrayList<Hierarchy>();
+      for (Dimension dimension : cube.getDimensions()) {
+         if (!seenDimensions.contains(dimension.getUniqueName())) {
+            hierarchies.addAll(dimension.getHierarchies());
+         }
+      }
+      return hierarchies;
+   }
+
+   private void cellProperty(SaxWriter writer, StandardCellProperty cellProperty, boolean returned, String elementName) {
       Datatype type = null;
 
+      if (!returned) {
+         return;
+      }
       // by default MondrianOlap4j won't return the FORMAT_STRING, LANGUAGE
       // properties to XMLA clients.
       // to make Mondrian compatible with MSOLAP driver, we need have to add
       // them here
-      if (elementName.equalsIgnoreCase("formatstring") && extra.shouldReturnCellProperty(cellSet, cellProperty, evenEmpty)) {
+      if (elementName.equalsIgnoreCase("formatstring")) {
          type = Datatype.STRING;
          writer.element(elementName, "name", "FORMAT_STRING", "type", getXsdTypeByDatatype(type));
-      } else if (elementName.equalsIgnoreCase("language") && extra.shouldReturnCellProperty(cellSet, cellProperty, evenEmpty)) {
+      } else if (elementName.equalsIgnoreCase("language")) {
          type = Datatype.UNSIGNED_INTEGER;
          writer.element(elementName, "name", "LANGUAGE", "type", getXsdTypeByDatatype(type));
-      } else if (elementName.equalsIgnoreCase("cellordinal") && extra.shouldReturnCellProperty(cellSet, cellProperty, evenEmpty)){
+      } else if (elementName.equalsIgnoreCase("cellordinal")){
          type = Datatype.STRING;
          writer.element(elementName, "name", "CellOrdinal", "type", getXsdTypeByDatatype(type));
       }
-      else if (extra.shouldReturnCellProperty(cellSet, cellProperty, evenEmpty)) {
+      else {
          if (elementName.equals("Value")) {
             writer.element(elementName, "name", cellProperty.getName());
             return;
@@ -272,9 +385,11 @@ class MDDataSet_Multidimensional extends MDDataSet {
       }
    }
 
-   private List<Hierarchy> axisInfo(SaxWriter writer, CellSetAxis axis, String axisName) {
-      writer.startElement("AxisInfo", "name", axisName);
-
+   /**
+    * Returns the hierarchies of an axis: those of its first tuple, or if it
+    * has none, those of its metadata.
+    */
+   private List<Hierarchy> axisHierarchies(CellSetAxis axis) {
       List<Hierarchy> hierarchies;
       Iterator<org.olap4j.Position> it = axis.getPositions().iterator();
       if (it.hasNext()) {
@@ -286,12 +401,13 @@ class MDDataSet_Multidimensional extends MDDataSet {
       } else {
          hierarchies = axis.getAxisMetaData().getHierarchies();
       }
-      List<Property> props = getProps(axis.getAxisMetaData());
-      writeHierarchyInfo(writer, hierarchies, props);
+      return hierarchies;
+   }
 
+   private void axisInfo(SaxWriter writer, List<Hierarchy> hierarchies, List<Property> props, String axisName) {
+      writer.startElement("AxisInfo", "name", axisName);
+      writeHierarchyInfo(writer, hierarchies, props);
       writer.endElement(); // AxisInfo
-
-      return hierarchies;
    }
 
    private void writeHierarchyInfo(SaxWriter writer, List<Hierarchy> hierarchies, List<Property> props) {
@@ -373,60 +489,103 @@ class MDDataSet_Multidimensional extends MDDataSet {
          // need to be able to distinguish between the two.
          axis(writer, slicerAxis, getProps(slicerAxis.getAxisMetaData()), "SlicerAxis");
       } else {
-         List<Hierarchy> hierarchies = slicerAxisHierarchies;
-         writer.startElement("Axis", "name", "SlicerAxis");
-         writer.startSequence("Tuples", "Tuple");
-         writer.startSequence("Tuple", "Member");
-
-         Map<String, Integer> memberMap = new HashMap<String, Integer>();
-         Member positionMember;
-         CellSetAxis slicerAxis = cellSet.getFilterAxis();
-         final List<Position> slicerPositions = slicerAxis.getPositions();
-         if (slicerPositions != null && slicerPositions.size() > 0) {
-            final Position pos0 = slicerPositions.get(0);
-            int i = 0;
-            for (Member member : pos0.getMembers()) {
-               memberMap.put(member.getHierarchy().getName(), i++);
+         // the default slicer axis only depends on the slicer members, for
+         // a cached OlapInfo
+         final String slicerKey = olapInfoEntry != null && writer instanceof CompactSaxWriter ? slicerKey() : null;
+         if (slicerKey == null) {
+            defaultSlicerAxis(writer);
+         } else {
+            XmlFragment fragment = olapInfoEntry.getSlicerAxis(slicerKey);
+            if (fragment == null) {
+               final RecordingSaxWriter recorder = new RecordingSaxWriter();
+               defaultSlicerAxis(recorder);
+               fragment = XmlFragment.render(recorder);
+               olapInfoEntry.putSlicerAxis(slicerKey, fragment);
             }
+            writer.verbatim(fragment);
          }
+      }
 
-         final List<Member> slicerMembers = slicerPositions.isEmpty() ? Collections.<Member> emptyList() : slicerPositions.get(0).getMembers();
-         for (Hierarchy hierarchy : hierarchies) {
-            // Find which member is on the slicer.
-            // If it's not explicitly there, use the default member.
-            Member member = hierarchy.getDefaultMember();
-            final Integer indexPosition = memberMap.get(hierarchy.getName());
-            if (indexPosition != null) {
-               positionMember = slicerMembers.get(indexPosition);
-            } else {
-               positionMember = null;
-            }
-            for (Member slicerMember : slicerMembers) {
-               if (slicerMember.getHierarchy().equals(hierarchy)) {
-                  member = slicerMember;
-                  break;
-               }
+      //
+      // //////////////////////////////////////////
+
+      writer.endSequence(); // Axes
+   }
+
+   /**
+    * Writes a slicer axis with a member of each slicer hierarchy: the one
+    * in the slicer, or the default member.
+    */
+   private void defaultSlicerAxis(SaxWriter writer) throws OlapException {
+      List<Hierarchy> hierarchies = slicerAxisHierarchies;
+      writer.startElement("Axis", "name", "SlicerAxis");
+      writer.startSequence("Tuples", "Tuple");
+      writer.startSequence("Tuple", "Member");
+
+      Map<String, Integer> memberMap = new HashMap<String, Integer>();
+      Map<String, Member> hierarchyMembers = new HashMap<String, Member>();
+      Member positionMember;
+      CellSetAxis slicerAxis = cellSet.getFilterAxis();
+      final List<Property> props = getProps(slicerAxis.getAxisMetaData());
+      final List<Position> slicerPositions = slicerAxis.getPositions();
+      if (slicerPositions != null && slicerPositions.size() > 0) {
+         final Position pos0 = slicerPositions.get(0);
+         int i = 0;
+         for (Member member : pos0.getMembers()) {
+            memberMap.put(member.getHierarchy().getName(), i++);
+            if (!hierarchyMembers.containsKey(member.getHierarchy().getUniqueName())) {
+               hierarchyMembers.put(member.getHierarchy().getUniqueName(), member);
             }
+         }
+      }
 
-            if (member != null) {
-               if (positionMember != null) {
-                  writeMember(writer, positionMember, null, slicerPositions.get(0), indexPosition, getProps(slicerAxis.getAxisMetaData()));
-               } else {
-                  slicerAxis(writer, member, getProps(slicerAxis.getAxisMetaData()));
-               }
+      final List<Member> slicerMembers = slicerPositions.isEmpty() ? Collections.<Member> emptyList() : slicerPositions.get(0).getMembers();
+      for (Hierarchy hierarchy : hierarchies) {
+         // Find which member is on the slicer.
+         // If it's not explicitly there, use the default member.
+         Member member = hierarchyMembers.get(hierarchy.getUniqueName());
+         if (member == null) {
+            member = hierarchy.getDefaultMember();
+         }
+         final Integer indexPosition = memberMap.get(hierarchy.getName());
+         if (indexPosition != null) {
+            positionMember = slicerMembers.get(indexPosition);
+         } else {
+            positionMember = null;
+         }
+
+         if (member != null) {
+            if (positionMember != null) {
+               writeMember(writer, positionMember, null, slicerPositions.get(0), indexPosition, props);
             } else {
-               LOGGER.warn("Can not create SlicerAxis: " + "null default member for Hierarchy " + hierarchy.getUniqueName());
+               slicerAxis(writer, member, props);
             }
+         } else {
+            LOGGER.warn("Can not create SlicerAxis: " + "null default member for Hierarchy " + hierarchy.getUniqueName());
          }
-         writer.endSequence(); // Tuple
-         writer.endSequence(); // Tuples
-         writer.endElement(); // Axis
       }
+      writer.endSequence(); // Tuple
+      writer.endSequence(); // Tuples
+      writer.endElement(); // Axis
+   }
 
-      //
-      // //////////////////////////////////////////
-
-      writer.endSequence(); // Axes
+   /**
+    * Returns the key of the default slicer axis in the OlapInfo entry: the
+    * unique names of the slicer members, or null if one is calculated, as
+    * calculated members belong to the query.
+    */
+   private String slicerKey() {
+      final List<Position> slicerPositions = cellSet.getFilterAxis().getPositions();
+      final StringBuilder buf = new StringBuilder();
+      if (!slicerPositions.isEmpty()) {
+         for (Member member : slicerPositions.get(0).getMembers()) {
+            if (member.isCalculated()) {
+               return null;
+            }
+            buf.append(member.getUniqueName()).append('\u0000');
+         }
+      }
+      return buf.toString();
    }
 
    @SuppressWarnings("unchecked")
@@ -446,22 +605,82 @@ class MDDataSet_Multidimensional extends MDDataSet {
       Position prevPosition = null;
       Position position = pit.hasNext() ? pit.next() : null;
       Position nextPosition = pit.hasNext() ? pit.next() : null;
-      while (position != null) {
-         writer.startSequence("Tuple", "Member");
-         int k = 0;
+      final String memberScope = memberScope(writer, props);
+      // a long axis is encoded in parallel, by chunks of tuples
+      final ParallelSaxEncoder parallel = position == null ? null : ParallelSaxEncoder.create(writer,
+               (long) positions.size() * position.getMembers().size());
+      try {
+         SaxWriter tupleWriter = parallel == null ? writer : new RecordingSaxWriter();
+         int tupleCount = 0;
+         while (position != null) {
+            if (parallel != null && tupleCount++ == parallel.getChunkSize()) {
+               parallel.submit((RecordingSaxWriter) tupleWriter);
+               tupleWriter = new RecordingSaxWriter();
+               tupleCount = 1;
+            }
+            tupleWriter.startSequence("Tuple", "Member");
+            int k = 0;
 
-         for (Member member : position.getMembers()) {
-            writeMember(writer, member, prevPosition, nextPosition, k++, props);
+            for (Member member : position.getMembers()) {
+               if (memberScope == null || member.isCalculated()) {
+                  writeMember(tupleWriter, member, prevPosition, nextPosition, k++, props);
+               } else {
+                  tupleWriter.verbatim(cachedMember(memberScope, member, props));
+                  k++;
+               }
+            }
+            tupleWriter.endSequence(); // Tuple
+            prevPosition = position;
+            position = nextPosition;
+            nextPosition = pit.hasNext() ? pit.next() : null;
+         }
+         if (parallel != null) {
+            parallel.submit((RecordingSaxWriter) tupleWriter);
+            parallel.finish();
+         }
+      } finally {
+         if (parallel != null) {
+            parallel.cancel();
          }
-         writer.endSequence(); // Tuple
-         prevPosition = position;
-         position = nextPosition;
-         nextPosition = pit.hasNext() ? pit.next() : null;
       }
       writer.endSequence(); // Tuples
       writer.endElement(); // Axis
    }
 
+   /**
+    * Returns the scope of the members written with some properties in the
+    * {@link MemberFragmentCache}, or null if they must not come from the
+    * cache. Cached members are compact XML, so they are only used for
+    * compact responses.
+    */
+   private String memberScope(SaxWriter writer, List<Property> props) throws OlapException {
+      if (!(writer instanceof CompactSaxWriter) || !MemberFragmentCache.getInstance().isEnabled()) {
+         return null;
+      }
+      final StringBuilder buf = new StringBuilder(cubeScope(cellSet.getMetaData().getCube()));
+      appendPropsKey(buf, props);
+      return buf.toString();
+   }
+
+   /**
+    * Returns the rendered &lt;Member&gt; element of a member, from the cache
+    * or rendered now. Calculated members are not cached: they belong to a
+    * query, and another query may define one with the same name.
+    */
+   private XmlFragment cachedMember(String scope, Member member, List<Property> props) throws OlapException {
+      final MemberFragmentCache cache = MemberFragmentCache.getInstance();
+      final String uniqueName = member.getUniqueName();
+      XmlFragment fragment = cache.get(scope, uniqueName);
+      if (fragment == null) {
+         final long generation = cache.getGeneration();
+         final RecordingSaxWriter recorder = new RecordingSaxWriter();
+         writeMember(recorder, member, null, null, 0, props);
+         fragment = XmlFragment.render(recorder);
+         cache.put(scope, uniqueName, fragment, generation);
+      }
+      return fragment;
+   }
+
    private void writeMember(SaxWriter writer, Member member, Position prevPosition, Position nextPosition, int k, List<Property> props) throws OlapException {
       writer.startElement("Member", "Hierarchy", "[" + member.getHierarchy().getName() + "]");
       
@@ -534,117 +753,235 @@ class MDDataSet_Multidimensional extends MDDataSet {
       writer.endElement(); // Member
    }
 
+   /**
+    * Writes the cells in ordinal order, the order of the coordinates with the
+    * first axis varying fastest. Cells are fetched by ordinal, so no
+    * coordinate list is built, and null cells are dropped before anything
+    * else is read from them.
+    */
    private void cellData(SaxWriter writer) {
       writer.startSequence("CellData", "Cell");
-      final int axisCount = cellSet.getAxes().size();
-      List<Integer> pos = new ArrayList<Integer>();
-      for (int i = 0; i < axisCount; i++) {
-         pos.add(-1);
+      long cellCount = 1;
+      for (CellSetAxis axis : cellSet.getAxes()) {
+         cellCount *= axis.getPositionCount();
       }
-      int[] cellOrdinal = new int[] { 0 };
-
-      int axisOrdinal = axisCount - 1;
-      recurse(writer, pos, axisOrdinal, cellOrdinal);
-
-      writer.endSequence(); // CellData
-   }
-
-   private void recurse(SaxWriter writer, List<Integer> pos, int axisOrdinal, int[] cellOrdinal) {
-      if (axisOrdinal < 0) {
-         emitCell(writer, pos, cellOrdinal[0]++);
+      if (cellCount > Integer.MAX_VALUE) {
+         throw Util.newError("Cell set has too many cells (" + cellCount + ")");
+      }
+      final ParallelSaxEncoder parallel = ParallelSaxEncoder.create(writer, cellCount);
+      if (parallel == null) {
+         for (int ordinal = 0, n = (int) cellCount; ordinal < n; ordinal++) {
+            emitCell(writer, cellSet.getCell(ordinal), ordinal);
+         }
       } else {
-         CellSetAxis axis = cellSet.getAxes().get(axisOrdinal);
-         List<Position> positions = axis.getPositions();
-         for (int i = 0, n = positions.size(); i < n; i++) {
-            pos.set(axisOrdinal, i);
-            recurse(writer, pos, axisOrdinal - 1, cellOrdinal);
+         // cells are read here, in order; chunks are encoded in parallel
+         try {
+            for (long start = 0; start < cellCount; start += parallel.getChunkSize()) {
+               final RecordingSaxWriter chunk = new RecordingSaxWriter();
+               for (int ordinal = (int) start, n = (int) Math.min(cellCount, start + parallel.getChunkSize()); ordinal < n; ordinal++) {
+                  emitCell(chunk, cellSet.getCell(ordinal), ordinal);
+               }
+               parallel.submit(chunk);
+            }
+            parallel.finish();
+         } finally {
+            parallel.cancel();
          }
       }
+
+      writer.endSequence(); // CellData
    }
 
-   private void emitCell(SaxWriter writer, List<Integer> pos, int ordinal) {
-      Cell cell = cellSet.getCell(pos);
+   private void emitCell(SaxWriter writer, Cell cell, int ordinal) {
       if (cell.isNull() && ordinal != 0) {
          // Ignore null cell like MS AS, except for Oth ordinal
          return;
       }
 
       writer.startElement("Cell", "CellOrdinal", ordinal);
-      for (int i = 0; i < cellProps.size(); i++) {
-         Property cellPropLong = cellPropLongs.get(i);
-         Object value = cell.getPropertyValue(cellPropLong);
-         if (value == null) {
-
-            if (cellPropLong.getName().equals("LANGUAGE")) {
+      final CellPropertyPlan plan = cellPropertyPlan;
+      final String dataType = plan.needsValue || json ? (String) cell.getPropertyValue(StandardCellProperty.DATATYPE) : null;
+      for (int i = 0; i < plan.sources.length; i++) {
+         final StandardCellProperty source = plan.sources[i];
+         final String name = plan.names[i];
+         if (json) {
+            Object value = source == StandardCellProperty.FORMAT_STRING ? formatString(cell, ordinal) : cell.getPropertyValue(source);
+            if (value == null) {
+               if (source != StandardCellProperty.LANGUAGE) {
+                  continue;
+               }
                value = "1033";
-            } else {
-               continue;
             }
+            // keep the Java type, so numbers are written as JSON numbers
+            writer.textElement(name, new ValueInfo(dataType, value).value);
+            continue;
          }
 
-         final String dataType = (String) cell.getPropertyValue(StandardCellProperty.DATATYPE);
-         final ValueInfo vi = new ValueInfo(dataType, value);
-
-         // value type defined by Mondrian
-         String valueType = vi.valueType;
-
-         // return value
-         String valueStr = vi.value.toString();
-         
-         if (!json && cellPropLong == StandardCellProperty.CELL_ORDINAL) {
-           valueStr = "";
-         }
-         else if (!json && cellPropLong == StandardCellProperty.LANGUAGE) {
-            valueStr = "1033";
+         // CELL_ORDINAL and LANGUAGE are written without reading them
+         if (source == StandardCellProperty.CELL_ORDINAL) {
+            writer.textElement(name, "");
+         } else if (source == StandardCellProperty.LANGUAGE) {
+            writer.textElement(name, "1033");
          }
          // Get value for <Value/> element
-         else if (!json && cellPropLong == StandardCellProperty.VALUE) {
+         else if (source == StandardCellProperty.VALUE) {
             if (cell.isNull()) {
                // Return cell without value as in case of AS2005
                continue;
             }
+            final Object value = cell.getValue();
+            if (value == null) {
+               continue;
+            }
+            if (!valueEncoder.writeValue(writer, name, dataType, value)) {
+               emitValue(writer, name, new ValueInfo(dataType, value));
+            }
+         } else {
+            final Object value = source == StandardCellProperty.FORMAT_STRING ? formatString(cell, ordinal) : cell.getPropertyValue(source);
+            if (value == null) {
+               continue;
+            }
+            if (value instanceof String) {
+               // ValueInfo keeps strings as they are
+               writer.textElement(name, value);
+            } else {
+               writer.textElement(name, new ValueInfo(dataType, value).value);
+            }
+         }
+      }
+      writer.endElement();
+   }
 
-            if (vi.isDecimal) {
-               //handle exception mondrian.olap.fun.MondrianEvaluationException: Expected value of type STRING; got value '1.566345018E8' (NUMERIC)
-               //This exceptions doesn't happen often (hard to reproduce). It's due to Mondrian not able to cnovert String like '1.566345018E8' to Double because of 
-               //single quote. Here fetch fetch the numeric value within single quote, and assign the value to VALUE Cell.
-               
-               //input valueStr: mondrian.olap.fun.MondrianEvaluationException: Expected value of type STRING; got value '1.566345018E8' (NUMERIC)
-               //output valueStr: 1.566345018E8
-               if(valueStr.contains("mondrian.olap.fun.MondrianEvaluationException")){
-                  int index1 = valueStr.indexOf("\'") + 1;
-                  valueStr = valueStr.substring(index1);
-                  index1 = valueStr.indexOf("\'");
-                  valueStr = valueStr.substring(0, index1);
-                }
-                if (valueStr.contains("E")) {
-                  valueType = "xsd:double";
-               } else if (valueStr.endsWith(".0") || valueStr.endsWith(".00")) {
-                  valueType = "xsd:int";
-                  valueStr = XmlaUtil.normalizeNumericString(valueStr, false);
-               } else if (valueStr.contains(".")) {
-                  valueType = "xsd:double";
-                  valueStr = XmlaUtil.normalizeNumericString(valueStr, true, 3);
-               } else {
-                  valueType = "xsd:int";
-                  valueStr = XmlaUtil.normalizeNumericString(valueStr, false);
+   /**
+    * Returns the FORMAT_STRING of a cell, from the {@link FormatStrings}
+    * built on first use.
+    */
+   private Object formatString(Cell cell, int ordinal) {
+      if (formatStrings == null) {
+         formatStrings = new FormatStrings();
+      }
+      return formatStrings.get(cell, ordinal);
+   }
 
+   /**
+    * FORMAT_STRING of the cells, resolved once per measure. A stored measure
+    * has one format string, unless a calculated member of the cell brings
+    * its own; those cells are resolved one by one.
+    */
+   private final class FormatStrings {
+      /** Positions of each axis */
+      private final int[] sizes;
+      /** Unique name of the stored measure of each position, if any */
+      private final String[][] measures;
+      /** Whether a position has a calculated member */
+      private final boolean[][] calculated;
+      private final String slicerMeasure;
+      private final boolean slicerCalculated;
+      private final Map<String, Object> byMeasure = new HashMap<String, Object>();
+
+      FormatStrings() {
+         final List<CellSetAxis> axes = cellSet.getAxes();
+         sizes = new int[axes.size()];
+         measures = new String[axes.size()][];
+         calculated = new boolean[axes.size()][];
+         for (int i = 0; i < axes.size(); i++) {
+            final List<Position> positions = axes.get(i).getPositions();
+            sizes[i] = positions.size();
+            measures[i] = new String[sizes[i]];
+            calculated[i] = new boolean[sizes[i]];
+            for (int j = 0; j < sizes[i]; j++) {
+               for (Member member : positions.get(j).getMembers()) {
+                  if (member.isCalculated()) {
+                     calculated[i][j] = true;
+                  } else if (member.getDimension().getDimensionType() == Dimension.Type.MEASURE) {
+                     measures[i][j] = member.getUniqueName();
+                  }
+               }
+            }
+         }
+         // a compound slicer is aggregated like a calculated member
+         final List<Position> slicerPositions = cellSet.getFilterAxis().getPositions();
+         String measure = null;
+         boolean calculated = slicerPositions.size() > 1;
+         if (slicerPositions.size() == 1) {
+            for (Member member : slicerPositions.get(0).getMembers()) {
+               if (member.isCalculated()) {
+                  calculated = true;
+               } else if (member.getDimension().getDimensionType() == Dimension.Type.MEASURE) {
+                  measure = member.getUniqueName();
                }
+            }
+         }
+         slicerMeasure = measure;
+         slicerCalculated = calculated;
+      }
 
+      Object get(Cell cell, int ordinal) {
+         if (slicerCalculated) {
+            return cell.getPropertyValue(StandardCellProperty.FORMAT_STRING);
+         }
+         // coordinates of the cell, the first axis varying fastest
+         String measure = slicerMeasure;
+         int rest = ordinal;
+         for (int i = 0; i < sizes.length; i++) {
+            final int position = rest % sizes[i];
+            rest /= sizes[i];
+            if (calculated[i][position]) {
+               return cell.getPropertyValue(StandardCellProperty.FORMAT_STRING);
             }
-            // for values other than decimal type
-            else {
-               valueStr = vi.value.toString();
+            if (measures[i][position] != null) {
+               measure = measures[i][position];
             }
          }
-         if (!json && cellPropLong == StandardCellProperty.VALUE) {
-            writer.startElement(cellProps.get(i).getName(), "xsi:type", valueType);
-            writer.characters(valueStr);
-            writer.endElement();
+         // no measure anywhere: all cells are of the default measure
+         final String key = measure == null ? "" : measure;
+         Object formatString = byMeasure.get(key);
+         if (formatString == null && !byMeasure.containsKey(key)) {
+            formatString = cell.getPropertyValue(StandardCellProperty.FORMAT_STRING);
+            byMeasure.put(key, formatString);
+         }
+         return formatString;
+      }
+   }
+
+   /**
+    * Writes a Value that {@link NumericCellEncoder} does not handle.
+    */
+   private void emitValue(SaxWriter writer, String name, ValueInfo vi) {
+      // value type defined by Mondrian
+      String valueType = vi.valueType;
+
+      // return value
+      String valueStr = vi.value.toString();
+
+      if (vi.isDecimal) {
+         //handle exception mondrian.olap.fun.MondrianEvaluationException: Expected value of type STRING; got value '1.566345018E8' (NUMERIC)
+         //This exceptions doesn't happen often (hard to reproduce). It's due to Mondrian not able to cnovert String like '1.566345018E8' to Double because of 
+         //single quote. Here fetch fetch the numeric value within single quote, and assign the value to VALUE Cell.
+
+         //input valueStr: mondrian.olap.fun.MondrianEvaluationException: Expected value of type STRING; got value '1.566345018E8' (NUMERIC)
+         //output valueStr: 1.566345018E8
+         if (valueStr.contains("mondrian.olap.fun.MondrianEvaluationException")) {
+            int index1 = valueStr.indexOf("\'") + 1;
+            valueStr = valueStr.substring(index1);
+            index1 = valueStr.indexOf("\'");
+            valueStr = valueStr.substring(0, index1);
+         }
+         if (valueStr.contains("E")) {
+            valueType = "xsd:double";
+         } else if (valueStr.endsWith(".0") || valueStr.endsWith(".00")) {
+            valueType = "xsd:int";
+            valueStr = XmlaUtil.normalizeNumericString(valueStr, false);
+         } else if (valueStr.contains(".")) {
+            valueType = "xsd:double";
+            valueStr = XmlaUtil.normalizeNumericString(valueStr, true, 3);
          } else {
-            writer.textElement(cellProps.get(i).getName(), valueStr);
+            valueType = "xsd:int";
+            valueStr = XmlaUtil.normalizeNumericString(valueStr, false);
          }
       }
+      writer.startElement(name, "xsi:type", valueType);
+      writer.characters(valueStr);
       writer.endElement();
    }
 }
@@ -655,22 +992,23 @@ class MDDataSet_Multidimensional extends MDDataSet {
 
     
     private final boolean empty;
-    private final int[] pos;
-    private final List<Integer> posList;
     private final int axisCount;
-    private int cellOrdinal;
+    /** Set while a large result is encoded in parallel */
+    private ParallelSaxEncoder parallel;
+    private RecordingSaxWriter chunk;
+    private int chunkRows;
 
     private static final List<Property> MemberCaptionIdArray = Collections.<Property> singletonList(StandardMemberProperty.MEMBER_CAPTION);
 
     private final Member[] members;
     private final ColumnHandler[] columnHandlers;
+    /** Built on first use */
+    private RowEncoder rowEncoder;
 
-    public MDDataSet_Tabular(CellSet cellSet) {
-       super(cellSet);
+    public MDDataSet_Tabular(CellSet cellSet, XmlaSession session) {
+       super(cellSet, session);
        final List<CellSetAxis> axes = cellSet.getAxes();
        axisCount = axes.size();
-       pos = new int[axisCount];
-       posList = new CustomXmlaHandler.IntList(pos);
 
        // Count dimensions, and deduce list of levels which appear on
        // non-COLUMNS axes.
@@ -752,6 +1090,19 @@ class MDDataSet_Multidimensional extends MDDataSet {
     }
 
     public void metadata(SaxWriter writer) {
+       // the schema only depends on the kind and name of each column
+       StringBuilder layout = new StringBuilder("MDDataSet_Tabular");
+       for (ColumnHandler columnHandler : columnHandlers) {
+          layout.append(columnHandler instanceof CellColumnHandler ? '\u0000' : '\u0001').append(columnHandler.name);
+       }
+       writer.verbatim(XmlSchemaCache.get(layout.toString(), new XmlFragment.Source() {
+          public void write(SaxWriter writer) {
+             writeSchema(writer);
+          }
+       }));
+    }
+
+    private void writeSchema(SaxWriter writer) {
        writer.startElement("xs:schema", "xmlns:xs", NS_XSD, "targetNamespace", NS_XMLA_ROWSET, "xmlns", NS_XMLA_ROWSET, "xmlns:xsi", NS_XSI, "xmlns:sql",CustomXmlaHandler.NS_XML_SQL,
                 "elementFormDefault", "qualified");
 
@@ -791,12 +1142,52 @@ class MDDataSet_Multidimensional extends MDDataSet {
        if (empty) {
           return;
        }
+       writer.startSequence(null, "row");
        cellData(writer);
+       writer.endSequence(); // row
     }
 
     private void cellData(SaxWriter writer) throws SAXException, OlapException {
-       cellOrdinal = 0;
-       iterate(writer);
+       rowEncoder = new RowEncoder();
+       long cellCount = columnHandlers.length;
+       for (int i = 1; i < axisCount; i++) {
+          cellCount *= cellSet.getAxes().get(i).getPositionCount();
+       }
+       parallel = axisCount == 0 ? null : ParallelSaxEncoder.create(writer, cellCount);
+       if (parallel == null) {
+          iterate(writer);
+          return;
+       }
+       // rows are read here, in order; chunks of rows are encoded in
+       // parallel
+       chunk = new RecordingSaxWriter();
+       chunkRows = 0;
+       try {
+          iterate(writer);
+          parallel.submit(chunk);
+          parallel.finish();
+       } finally {
+          parallel.cancel();
+          parallel = null;
+          chunk = null;
+       }
+    }
+
+    /**
+     * Returns the writer the next row goes to: the response writer, or the
+     * current chunk when encoding in parallel.
+     */
+    private SaxWriter rowWriter(SaxWriter writer) {
+       if (parallel == null) {
+          return writer;
+       }
+       if (chunkRows == parallel.getChunkSize()) {
+          parallel.submit(chunk);
+          chunk = new RecordingSaxWriter();
+          chunkRows = 0;
+       }
+       chunkRows++;
+       return chunk;
     }
 
     /**
@@ -811,64 +1202,168 @@ class MDDataSet_Multidimensional extends MDDataSet {
        switch (axisCount) {
        case 0:
           // For MDX like: SELECT FROM Sales
-          emitCell(writer, cellSet.getCell(posList));
+          // Ignore empty cells.
+          if (cellSet.getCell(0).getValue() != null) {
+             rowEncoder.writeRow(writer, 0);
+          }
           return;
        default:
           // throw new SAXException("Too many axes: " + axisCount);
-          iterate(writer, axisCount - 1, 0);
+          iterate(writer, axisCount - 1, 0, 0);
           break;
        }
     }
 
-    private void iterate(SaxWriter writer, int axis, final int xxx) throws OlapException {
+    /**
+     * Iterates over the positions of an axis, the members of its positions
+     * going into {@link #members} from <code>memberOffset</code>.
+     *
+     * @param ordinal
+     *           ordinal of the first cell of the positions of the outer
+     *           axes
+     */
+    private void iterate(SaxWriter writer, int axis, final int memberOffset, int ordinal) throws OlapException {
        final List<Position> positions = cellSet.getAxes().get(axis).getPositions();
-       int axisLength = axis == 0 ? 1 : positions.size();
+       int axisLength = axis == 0 ? Math.min(1, positions.size()) : positions.size();
 
        for (int i = 0; i < axisLength; i++) {
           final Position position = positions.get(i);
-          int ho = xxx;
+          int ho = memberOffset;
           final List<Member> members = position.getMembers();
           for (int j = 0; j < members.size() && ho < this.members.length; j++, ho++) {
-             this.members[ho] = position.getMembers().get(j);
+             this.members[ho] = members.get(j);
           }
 
-          ++cellOrdinal;
-          Util.discard(cellOrdinal);
-
+          final int positionOrdinal = ordinal + i * rowEncoder.axisStrides[axis];
           if (axis >= 2) {
-             iterate(writer, axis - 1, ho);
+             iterate(writer, axis - 1, ho, positionOrdinal);
           } else {
-             writer.startElement("row");// abrimos la fila
-             pos[axis] = i; // coordenadas: fila i
-             pos[0] = 0; // coordenadas (0,i): columna 0
-             for (ColumnHandler columnHandler : columnHandlers) {
-                if (columnHandler instanceof MemberColumnHandler) {
-                   columnHandler.write(writer, null, this.members);
-                } else if (columnHandler instanceof CellColumnHandler) {
-                   columnHandler.write(writer, cellSet.getCell(posList), null);
-                   pos[0]++;// next col.
-                }
-             }
-             writer.endElement();// cerramos la fila
+             rowEncoder.writeRow(rowWriter(writer), positionOrdinal);
           }
        }
     }
 
-    private void emitCell(SaxWriter writer, Cell cell) throws OlapException {
-       ++cellOrdinal;
-       Util.discard(cellOrdinal);
+    /**
+     * Writes rows, compiled once per result from the column handlers. Member
+     * columns are resolved once per group of rows with the same member, and
+     * cells are read by ordinal: the cell of a row in the n-th cell column
+     * is the n-th after the first cell of the row.
+     */
+    private final class RowEncoder {
+       /** Encoded element name of each column */
+       private final String[] names;
+       /** Member of each member column; -1 for a cell column */
+       private final int[] memberOrdinals;
+       /** Depth of the level of each member column */
+       private final int[] depths;
+       private final Property[] properties;
+       /** Offset of each cell column from the first cell of a row */
+       private final int[] cellOffsets;
+       /** Number of cells between consecutive positions of each axis */
+       private final int[] axisStrides;
+
+       /** Value of each member column, and the member it is of */
+       private final String[] values;
+       private final Member[] valueMembers;
+       private final NumericCellEncoder encoder = new NumericCellEncoder();
+
+       RowEncoder() {
+          final int n = columnHandlers.length;
+          names = new String[n];
+          memberOrdinals = new int[n];
+          depths = new int[n];
+          properties = new Property[n];
+          cellOffsets = new int[n];
+          values = new String[n];
+          valueMembers = new Member[n];
+          int cellColumn = 0;
+          for (int c = 0; c < n; c++) {
+             final ColumnHandler columnHandler = columnHandlers[c];
+             names[c] = columnHandler.encodedName;
+             if (columnHandler instanceof MemberColumnHandler) {
+                final MemberColumnHandler memberColumn = (MemberColumnHandler) columnHandler;
+                memberOrdinals[c] = memberColumn.memberOrdinal;
+                depths[c] = memberColumn.level.getDepth();
+                properties[c] = memberColumn.property;
+             } else {
+                memberOrdinals[c] = -1;
+                cellOffsets[c] = cellColumn++;
+             }
+          }
 
-       // Ignore empty cells.
-       final Object cellValue = cell.getValue();
-       if (cellValue == null) {
-          return;
+          final List<CellSetAxis> axes = cellSet.getAxes();
+          axisStrides = new int[axes.size()];
+          long stride = 1;
+          for (int i = 0; i < axes.size(); i++) {
+             axisStrides[i] = (int) stride;
+             stride *= axes.get(i).getPositionCount();
+             if (stride > Integer.MAX_VALUE) {
+                throw Util.newError("Cell set has too many cells (" + stride + ")");
+             }
+          }
        }
 
-       writer.startElement("row");
-       for (ColumnHandler columnHandler : columnHandlers) {
-          columnHandler.write(writer, cell, members);
+       void writeRow(SaxWriter writer, int ordinal) throws OlapException {
+          writer.startElement("row");
+          for (int c = 0; c < names.length; c++) {
+             if (memberOrdinals[c] >= 0) {
+                final String value = memberValue(c);
+                if (value != null) {
+                   writer.startElement(names[c]);
+                   writer.characters(value);
+                   writer.endElement();
+                }
+             } else {
+                writeCell(writer, names[c], cellSet.getCell(ordinal + cellOffsets[c]));
+             }
+          }
+          writer.endElement();
+       }
+
+       /**
+        * Returns the value of a member column for the current members: the
+        * property of the member's ancestor at the column's level, if the
+        * member is that deep.
+        */
+       private String memberValue(int c) throws OlapException {
+          final Member member = members[memberOrdinals[c]];
+          final Member valueMember = valueMembers[c];
+          if (valueMember == member || (valueMember != null && valueMember.equals(member))) {
+             return values[c];
+          }
+          final int depth = depths[c];
+          String value = null;
+          if (member.getDepth() >= depth) {
+             Member ancestor = member;
+             while (ancestor.getDepth() > depth) {
+                ancestor = ancestor.getParentMember();
+             }
+             final Object propertyValue = ancestor.getPropertyValue(properties[c]);
+             if (propertyValue != null) {
+                value = propertyValue.toString();
+             }
+          }
+          values[c] = value;
+          valueMembers[c] = member;
+          return value;
+       }
+
+       private void writeCell(SaxWriter writer, String name, Cell cell) {
+          if (cell.isNull()) {
+             return;
+          }
+          Object value = cell.getValue();
+          final String dataType = (String) cell.getPropertyValue(StandardCellProperty.DATATYPE);
+
+          final ValueInfo vi = new ValueInfo(dataType, value);
+          writer.startElement(name, "xsi:type", vi.valueType);
+          if (vi.isDecimal) {
+             encoder.writeTruncated(writer, vi.value);
+          } else {
+             writer.characters(vi.value.toString());
+          }
+          writer.endElement();
        }
-       writer.endElement();
     }
  }
 
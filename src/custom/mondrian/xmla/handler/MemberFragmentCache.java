@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.handler;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.apache.log4j.Logger;
+
+import custom.mondrian.properties.ExternalProperties;
+import custom.mondrian.xmla.writer.XmlFragment;
+
+/**
+ * Cache of the &lt;Member&gt; elements of MDDataSet axes, rendered as compact
+ * XML. The same members (measures, years, ...) appear in tuple after tuple,
+ * and in query after query, so a member is rendered once and then copied.
+ *
+ * <p>
+ * An entry is keyed by the member unique name and a scope: the catalog,
+ * schema and its load date, cube, role and the names of the properties
+ * written. A schema reload gives new keys; the old entries age out, or are
+ * dropped when schemas are flushed. Entries are evicted least recently used
+ * first, once there are more than maxEntries or they take more than
+ * maxBytes. A member rendered while the cache was being invalidated is not
+ * stored.
+ */
+
+public final class MemberFragmentCache {
+
+   private static final Logger LOGGER = Logger.getLogger(MemberFragmentCache.class);
+
+   private static MemberFragmentCache instance;
+
+   private final int maxEntries;
+   private final long maxBytes;
+
+   private final LinkedHashMap<Key, XmlFragment> entries = new LinkedHashMap<Key, XmlFragment>(1024, 0.75f, true);
+   private long bytes;
+   private long generation;
+
+   private long hitCount;
+   private long missCount;
+
+   public MemberFragmentCache(int maxEntries, long maxBytes) {
+      this.maxEntries = maxEntries;
+      this.maxBytes = maxBytes;
+   }
+
+   /**
+    * @return cache configured by custom.mondrian.properties
+    */
+   public static synchronized MemberFragmentCache getInstance() {
+      if (instance == null) {
+         ExternalProperties props = ExternalProperties.getInstance();
+         instance = new MemberFragmentCache(props.getMemberCacheMaxEntries(), props.getMemberCacheMaxBytes());
+      }
+      return instance;
+   }
+
+   public boolean isEnabled() {
+      return maxEntries > 0 && maxBytes > 0;
+   }
+
+   /**
+    * @return cached member, or null
+    */
+   public synchronized XmlFragment get(String scope, String uniqueName) {
+      XmlFragment fragment = entries.get(new Key(scope, uniqueName));
+      if (fragment == null) {
+         missCount++;
+      } else {
+         hitCount++;
+      }
+      return fragment;
+   }
+
+   /**
+    * Current generation; it changes whenever the cache is invalidated. Take
+    * it before rendering a member and pass it to {@link #put}.
+    */
+   public synchronized long getGeneration() {
+      return generation;
+   }
+
+   /**
+    * Stores a member, unless the cache was invalidated since
+    * <code>generation</code> was taken.
+    */
+   public synchronized void put(String scope, String uniqueName, XmlFragment fragment, long generation) {
+      if (generation != this.generation) {
+         return;
+      }
+      XmlFragment old = entries.put(new Key(scope, uniqueName), fragment);
+      if (old != null) {
+         bytes -= old.size();
+      }
+      bytes += fragment.size();
+
+      Iterator<XmlFragment> it = entries.values().iterator();
+      while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+         bytes -= it.next().size();
+         it.remove();
+      }
+   }
+
+   /**
+    * Drops all members.
+    */
+   public synchronized void invalidateAll() {
+      generation++;
+      entries.clear();
+      bytes = 0;
+      if (LOGGER.isDebugEnabled()) {
+         LOGGER.debug("Member cache invalidated: " + this);
+      }
+   }
+
+   public synchronized long getHitCount() {
+      return hitCount;
+   }
+
+   public synchronized long getMissCount() {
+      return missCount;
+   }
+
+   public synchronized int size() {
+      return entries.size();
+   }
+
+   public synchronized String toString() {
+      return "MemberFragmentCache{entries=" + entries.size() + ", bytes=" + bytes + ", hits=" + hitCount + ", misses=" + missCount + "}";
+   }
+
+   private static final class Key {
+      private final String scope;
+      private final String uniqueName;
+      private final int hash;
+
+      Key(String scope, String uniqueName) {
+         this.scope = scope;
+         this.uniqueName = uniqueName;
+         this.hash = 31 * scope.hashCode() + uniqueName.hashCode();
+      }
+
+      public int hashCode() {
+         return hash;
+      }
+
+      public boolean equals(Object obj) {
+         if (!(obj instanceof Key)) {
+            return false;
+         }
+         Key key = (Key) obj;
+         return hash == key.hash && uniqueName.equals(key.uniqueName) && scope.equals(key.scope);
+      }
+   }
+}
+
+// End MemberFragmentCache.java
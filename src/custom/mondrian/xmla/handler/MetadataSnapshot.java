@@ -0,0 +1,480 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.handler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import mondrian.olap.Util;
+
+import org.apache.log4j.Logger;
+import org.olap4j.OlapException;
+import org.olap4j.metadata.Catalog;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Datatype;
+import org.olap4j.metadata.Dimension;
+import org.olap4j.metadata.Hierarchy;
+import org.olap4j.metadata.Level;
+import org.olap4j.metadata.Measure;
+import org.olap4j.metadata.NamedList;
+import org.olap4j.metadata.Property;
+import org.olap4j.metadata.Schema;
+
+/**
+ * Immutable index of the metadata of a catalog, as seen by one role, used by
+ * the MDSCHEMA_* and DBSCHEMA_COLUMNS rowsets instead of walking the whole
+ * schema for every request.
+ *
+ * <p>
+ * The snapshot is built on the first Discover after a schema is loaded, and
+ * kept until the schema load date changes or schemas are flushed. It holds
+ * the names, positions and ordinals of cubes, dimensions, hierarchies,
+ * levels, measures and level properties:
+ * <ul>
+ * <li>elements can be looked up by name and unique name in O(1), so a
+ * restricted Discover only touches the elements it returns;</li>
+ * <li>the flat lists are already in the sort order of the rowsets, so rows
+ * come out sorted;</li>
+ * <li>a {@link CubeResolver} maps entries back to the metadata elements of
+ * the request's connection, for the values that are not held here
+ * (captions, cardinalities and so on).</li>
+ * </ul>
+ */
+
+final class MetadataSnapshot {
+
+   private static final Logger LOGGER = Logger.getLogger(MetadataSnapshot.class);
+
+   private static final Map<String, MetadataSnapshot> SNAPSHOTS = new ConcurrentHashMap<String, MetadataSnapshot>();
+
+   /** Order of {@link RowsetDefinition#sortedCubes} */
+   private static final Comparator<Entry> NAME_ORDER = new Comparator<Entry>() {
+      public int compare(Entry e1, Entry e2) {
+         return e1.name.compareTo(e2.name);
+      }
+   };
+
+   /** Order in which rowsets sort names */
+   static final Comparator<Entry> ROWSET_NAME_ORDER = new Comparator<Entry>() {
+      public int compare(Entry e1, Entry e2) {
+         return e1.name.compareToIgnoreCase(e2.name);
+      }
+   };
+
+   private static final Comparator<HierarchyEntry> HIERARCHY_ORDER = new Comparator<HierarchyEntry>() {
+      public int compare(HierarchyEntry h1, HierarchyEntry h2) {
+         int c = h1.dimension.uniqueName.compareToIgnoreCase(h2.dimension.uniqueName);
+         return c != 0 ? c : h1.name.compareToIgnoreCase(h2.name);
+      }
+   };
+
+   private static final Comparator<LevelEntry> LEVEL_ORDER = new Comparator<LevelEntry>() {
+      public int compare(LevelEntry l1, LevelEntry l2) {
+         int c = l1.hierarchy.dimension.uniqueName.compareToIgnoreCase(l2.hierarchy.dimension.uniqueName);
+         if (c == 0) {
+            c = l1.hierarchy.uniqueName.compareToIgnoreCase(l2.hierarchy.uniqueName);
+         }
+         return c != 0 ? c : l1.depth - l2.depth;
+      }
+   };
+
+   static final Util.Functor1<String, Entry> NAME_GETTER = new Util.Functor1<String, Entry>() {
+      public String apply(Entry entry) {
+         return entry.name;
+      }
+   };
+
+   static final Util.Functor1<String, Entry> UNAME_GETTER = new Util.Functor1<String, Entry>() {
+      public String apply(Entry entry) {
+         return entry.uniqueName;
+      }
+   };
+
+   static final Util.Functor1<String, HierarchyEntry> HIERARCHY_DIMENSION_UNAME_GETTER = new Util.Functor1<String, HierarchyEntry>() {
+      public String apply(HierarchyEntry hierarchy) {
+         return hierarchy.dimension.uniqueName;
+      }
+   };
+
+   static final Util.Functor1<String, LevelEntry> LEVEL_DIMENSION_UNAME_GETTER = new Util.Functor1<String, LevelEntry>() {
+      public String apply(LevelEntry level) {
+         return level.hierarchy.dimension.uniqueName;
+      }
+   };
+
+   static final Util.Functor1<String, LevelEntry> LEVEL_HIERARCHY_UNAME_GETTER = new Util.Functor1<String, LevelEntry>() {
+      public String apply(LevelEntry level) {
+         return level.hierarchy.uniqueName;
+      }
+   };
+
+   final String catalogName;
+   final String schemaName;
+   final Date loadDate;
+   /** In the order of {@link RowsetDefinition#filteredCubes}: shared dimensions first, then by name */
+   final List<CubeEntry> cubes;
+   /** Sorted by name, ignoring case, as rowsets sort them */
+   final List<CubeEntry> rowsetCubes;
+   final Map<String, List<CubeEntry>> cubesByName;
+
+   private MetadataSnapshot(Catalog catalog, Schema schema, Date loadDate, CustomXmlaHandler.XmlaExtra extra) throws OlapException {
+      this.catalogName = catalog.getName();
+      this.schemaName = schema.getName();
+      this.loadDate = loadDate;
+
+      List<CubeEntry> cubes = new ArrayList<CubeEntry>();
+      NamedList<Cube> schemaCubes = schema.getCubes();
+      for (int i = 0; i < schemaCubes.size(); i++) {
+         cubes.add(new CubeEntry(schemaCubes.get(i), i, extra));
+      }
+      Collections.sort(cubes, NAME_ORDER);
+      cubes.add(0, new CubeEntry(new RowsetDefinition.SharedDimensionHolderCube(schema), CubeEntry.SHARED, extra));
+      this.cubes = Collections.unmodifiableList(cubes);
+      this.rowsetCubes = sorted(cubes, ROWSET_NAME_ORDER);
+      this.cubesByName = index(this.cubes, NAME_GETTER);
+   }
+
+   /**
+    * Returns the snapshot of a catalog for a role, building it if the schema
+    * was (re)loaded since the last one.
+    */
+   static MetadataSnapshot get(Catalog catalog, Schema schema, CustomXmlaHandler.XmlaExtra extra, String roleName) throws OlapException {
+      final String key = catalog.getName() + '\u0000' + schema.getName() + '\u0000' + roleName;
+      final Date loadDate = extra.getSchemaLoadDate(schema);
+      MetadataSnapshot snapshot = SNAPSHOTS.get(key);
+      if (snapshot == null || !snapshot.loadDate.equals(loadDate)) {
+         long start = System.currentTimeMillis();
+         snapshot = new MetadataSnapshot(catalog, schema, loadDate, extra);
+         SNAPSHOTS.put(key, snapshot);
+         if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Built metadata snapshot of catalog " + catalog.getName() + " for role " + roleName + " in " + (System.currentTimeMillis() - start) + " ms");
+         }
+      }
+      return snapshot;
+   }
+
+   /**
+    * Drops all snapshots; they are rebuilt on next use.
+    */
+   static void invalidateAll() {
+      SNAPSHOTS.clear();
+   }
+
+   /**
+    * Returns a resolver of the entries of a cube against the metadata of a
+    * connection.
+    */
+   CubeResolver resolve(Schema schema, CubeEntry entry) throws OlapException {
+      Cube cube = entry.index == CubeEntry.SHARED ? new RowsetDefinition.SharedDimensionHolderCube(schema) : schema.getCubes().get(entry.index);
+      return new CubeResolver(this, entry, cube);
+   }
+
+   private static <E> List<E> sorted(List<E> list, Comparator<? super E> comparator) {
+      List<E> copy = new ArrayList<E>(list);
+      // stable, so ties keep the schema order, as when sorting rows
+      Collections.sort(copy, comparator);
+      return Collections.unmodifiableList(copy);
+   }
+
+   /**
+    * Indexes entries by a key. Each list keeps the order of the entries.
+    */
+   private static <E> Map<String, List<E>> index(List<E> entries, Util.Functor1<String, ? super E> getter) {
+      Map<String, List<E>> index = new HashMap<String, List<E>>();
+      for (E entry : entries) {
+         String key = getter.apply(entry);
+         List<E> list = index.get(key);
+         if (list == null) {
+            index.put(key, Collections.singletonList(entry));
+         } else {
+            if (list.size() == 1) {
+               list = new ArrayList<E>(list);
+               index.put(key, list);
+            }
+            list.add(entry);
+         }
+      }
+      return Collections.unmodifiableMap(index);
+   }
+
+   /**
+    * Metadata element: its names and its position in the list it was read
+    * from.
+    */
+   abstract static class Entry {
+      final String name;
+      final String uniqueName;
+      final int index;
+
+      Entry(String name, String uniqueName, int index) {
+         this.name = name;
+         this.uniqueName = uniqueName;
+         this.index = index;
+      }
+
+      public String toString() {
+         return uniqueName;
+      }
+   }
+
+   static final class CubeEntry extends Entry {
+      /** Index of the cube that holds the shared dimensions */
+      static final int SHARED = -1;
+
+      /** In cube order */
+      final List<DimensionEntry> dimensions;
+      /** In cube order */
+      final List<HierarchyEntry> hierarchies;
+      /** Sorted by dimension unique name and name, as MDSCHEMA_HIERARCHIES */
+      final List<HierarchyEntry> rowsetHierarchies;
+      final Map<String, List<HierarchyEntry>> rowsetHierarchiesByUniqueName;
+      /** Sorted by dimension and hierarchy unique name and depth, as MDSCHEMA_LEVELS */
+      final List<LevelEntry> rowsetLevels;
+      final Map<String, List<LevelEntry>> rowsetLevelsByUniqueName;
+      /** In cube order */
+      final List<MeasureEntry> measures;
+      /** Sorted by name, stored measures before calculated ones, as MDSCHEMA_MEASURES */
+      final List<MeasureEntry> rowsetMeasures;
+      final Map<String, List<MeasureEntry>> rowsetMeasuresByUniqueName;
+      /** Unique names of the last level of each non-measure hierarchy */
+      final String levelList;
+
+      CubeEntry(Cube cube, int index, CustomXmlaHandler.XmlaExtra extra) throws OlapException {
+         super(cube.getName(), cube.getUniqueName(), index);
+
+         List<DimensionEntry> dimensions = new ArrayList<DimensionEntry>();
+         List<HierarchyEntry> hierarchies = new ArrayList<HierarchyEntry>();
+         List<LevelEntry> levels = new ArrayList<LevelEntry>();
+         StringBuilder levelList = new StringBuilder(100);
+
+         NamedList<Dimension> cubeDimensions = cube.getDimensions();
+         for (int i = 0; i < cubeDimensions.size(); i++) {
+            Dimension dimension = cubeDimensions.get(i);
+            DimensionEntry dimensionEntry = new DimensionEntry(dimension, i, hierarchies.size());
+            dimensions.add(dimensionEntry);
+
+            NamedList<Hierarchy> dimensionHierarchies = dimension.getHierarchies();
+            for (int j = 0; j < dimensionHierarchies.size(); j++) {
+               Hierarchy hierarchy = dimensionHierarchies.get(j);
+               HierarchyEntry hierarchyEntry = new HierarchyEntry(hierarchy, dimensionEntry, j, hierarchies.size());
+               hierarchies.add(hierarchyEntry);
+
+               NamedList<Level> hierarchyLevels = hierarchy.getLevels();
+               for (int k = 0; k < hierarchyLevels.size(); k++) {
+                  levels.add(new LevelEntry(hierarchyLevels.get(k), hierarchyEntry, k, extra));
+               }
+               if (dimension.getDimensionType() != Dimension.Type.MEASURE) {
+                  if (levelList.length() > 0) {
+                     levelList.append(',');
+                  }
+                  levelList.append(hierarchyLevels.get(hierarchyLevels.size() - 1).getUniqueName());
+               }
+            }
+         }
+
+         List<MeasureEntry> measures = new ArrayList<MeasureEntry>();
+         List<MeasureEntry> stored = new ArrayList<MeasureEntry>();
+         List<MeasureEntry> calculated = new ArrayList<MeasureEntry>();
+         List<Measure> cubeMeasures = cube.getMeasures();
+         for (int i = 0; i < cubeMeasures.size(); i++) {
+            MeasureEntry measureEntry = new MeasureEntry(cubeMeasures.get(i), i);
+            measures.add(measureEntry);
+            (measureEntry.calculated ? calculated : stored).add(measureEntry);
+         }
+         stored.addAll(calculated);
+
+         this.dimensions = Collections.unmodifiableList(dimensions);
+         this.hierarchies = Collections.unmodifiableList(hierarchies);
+         this.rowsetHierarchies = sorted(hierarchies, HIERARCHY_ORDER);
+         this.rowsetHierarchiesByUniqueName = index(this.rowsetHierarchies, UNAME_GETTER);
+         this.rowsetLevels = sorted(levels, LEVEL_ORDER);
+         this.rowsetLevelsByUniqueName = index(this.rowsetLevels, UNAME_GETTER);
+         this.measures = Collections.unmodifiableList(measures);
+         this.rowsetMeasures = sorted(stored, ROWSET_NAME_ORDER);
+         this.rowsetMeasuresByUniqueName = index(this.rowsetMeasures, UNAME_GETTER);
+         this.levelList = levelList.toString();
+      }
+
+      boolean isShared() {
+         return index == SHARED;
+      }
+
+      /**
+       * Returns a level by unique name, or null.
+       */
+      LevelEntry lookupLevel(String uniqueName) {
+         List<LevelEntry> list = rowsetLevelsByUniqueName.get(uniqueName);
+         return list == null ? null : list.get(0);
+      }
+   }
+
+   static final class DimensionEntry extends Entry {
+      /** Ordinal of the first hierarchy of the dimension in the cube */
+      final int hierarchyOrdinal;
+      final List<HierarchyEntry> hierarchies = new ArrayList<HierarchyEntry>();
+
+      DimensionEntry(Dimension dimension, int index, int hierarchyOrdinal) {
+         super(dimension.getName(), dimension.getUniqueName(), index);
+         this.hierarchyOrdinal = hierarchyOrdinal;
+      }
+   }
+
+   static final class HierarchyEntry extends Entry {
+      final DimensionEntry dimension;
+      /** Position among all hierarchies of the cube, which is also the XMLA ordinal */
+      final int ordinal;
+      final boolean hasAll;
+      final List<LevelEntry> levels = new ArrayList<LevelEntry>();
+
+      HierarchyEntry(Hierarchy hierarchy, DimensionEntry dimension, int index, int ordinal) {
+         super(hierarchy.getName(), hierarchy.getUniqueName(), index);
+         this.dimension = dimension;
+         this.ordinal = ordinal;
+         this.hasAll = hierarchy.hasAll();
+         dimension.hierarchies.add(this);
+      }
+   }
+
+   static final class LevelEntry extends Entry {
+      final HierarchyEntry hierarchy;
+      final int depth;
+      /** {@link Level#getProperties()} */
+      final List<PropertyEntry> properties;
+      /** {@link CustomXmlaHandler.XmlaExtra#getLevelProperties}, internal ones excepted */
+      final List<PropertyEntry> memberProperties;
+
+      LevelEntry(Level level, HierarchyEntry hierarchy, int index, CustomXmlaHandler.XmlaExtra extra) {
+         super(level.getName(), level.getUniqueName(), index);
+         this.hierarchy = hierarchy;
+         this.depth = level.getDepth();
+
+         List<PropertyEntry> properties = new ArrayList<PropertyEntry>();
+         NamedList<Property> levelProperties = level.getProperties();
+         for (int i = 0; i < levelProperties.size(); i++) {
+            properties.add(new PropertyEntry(levelProperties.get(i), i));
+         }
+         this.properties = Collections.unmodifiableList(properties);
+
+         List<PropertyEntry> memberProperties = new ArrayList<PropertyEntry>();
+         List<Property> extraProperties = extra.getLevelProperties(level);
+         for (int i = 0; i < extraProperties.size(); i++) {
+            Property property = extraProperties.get(i);
+            if (!extra.isPropertyInternal(property)) {
+               memberProperties.add(new PropertyEntry(property, i));
+            }
+         }
+         this.memberProperties = Collections.unmodifiableList(memberProperties);
+         hierarchy.levels.add(this);
+      }
+   }
+
+   static final class MeasureEntry extends Entry {
+      final boolean calculated;
+      /** Visibility; virtual cubes don't set it, which means visible */
+      final boolean visible;
+
+      MeasureEntry(Measure measure, int index) {
+         super(measure.getName(), measure.getUniqueName(), index);
+         this.calculated = measure.isCalculated();
+         Boolean visible = (Boolean) measure.getPropertyValue(Property.StandardMemberProperty.$visible);
+         this.visible = visible == null || visible;
+      }
+   }
+
+   static final class PropertyEntry extends Entry {
+      final String caption;
+      final Datatype datatype;
+
+      PropertyEntry(Property property, int index) {
+         super(property.getName(), property.getUniqueName(), index);
+         this.caption = property.getCaption();
+         this.datatype = property.getDatatype();
+      }
+   }
+
+   /**
+    * Maps the entries of a cube to the metadata elements of a connection.
+    * Lists of elements are read once per resolver, so resolving many entries
+    * of a cube costs no more than walking it.
+    */
+   static final class CubeResolver {
+      final MetadataSnapshot snapshot;
+      final CubeEntry entry;
+      final Cube cube;
+      private NamedList<Dimension> dimensions;
+      private final Hierarchy[] hierarchies;
+      private final NamedList<?>[] levels;
+      private List<Measure> measures;
+
+      CubeResolver(MetadataSnapshot snapshot, CubeEntry entry, Cube cube) {
+         this.snapshot = snapshot;
+         this.entry = entry;
+         this.cube = cube;
+         this.hierarchies = new Hierarchy[entry.hierarchies.size()];
+         this.levels = new NamedList<?>[entry.hierarchies.size()];
+         check(entry, cube.getName());
+      }
+
+      Dimension getDimension(DimensionEntry dimensionEntry) {
+         if (dimensions == null) {
+            dimensions = cube.getDimensions();
+         }
+         Dimension dimension = dimensions.get(dimensionEntry.index);
+         check(dimensionEntry, dimension.getUniqueName());
+         return dimension;
+      }
+
+      Hierarchy getHierarchy(HierarchyEntry hierarchyEntry) {
+         Hierarchy hierarchy = hierarchies[hierarchyEntry.ordinal];
+         if (hierarchy == null) {
+            hierarchy = getDimension(hierarchyEntry.dimension).getHierarchies().get(hierarchyEntry.index);
+            check(hierarchyEntry, hierarchy.getUniqueName());
+            hierarchies[hierarchyEntry.ordinal] = hierarchy;
+         }
+         return hierarchy;
+      }
+
+      Level getLevel(LevelEntry levelEntry) {
+         NamedList<?> hierarchyLevels = levels[levelEntry.hierarchy.ordinal];
+         if (hierarchyLevels == null) {
+            hierarchyLevels = getHierarchy(levelEntry.hierarchy).getLevels();
+            levels[levelEntry.hierarchy.ordinal] = hierarchyLevels;
+         }
+         Level level = (Level) hierarchyLevels.get(levelEntry.index);
+         check(levelEntry, level.getUniqueName());
+         return level;
+      }
+
+      Measure getMeasure(MeasureEntry measureEntry) {
+         if (measures == null) {
+            measures = cube.getMeasures();
+         }
+         Measure measure = measures.get(measureEntry.index);
+         check(measureEntry, measure.getUniqueName());
+         return measure;
+      }
+
+      /**
+       * Checks that the connection sees the element the snapshot was built
+       * from; if not, the schema changed without a new load date, and the
+       * snapshot must go.
+       */
+      private void check(Entry expected, String uniqueName) {
+         String expectedName = expected instanceof CubeEntry ? expected.name : expected.uniqueName;
+         if (!expectedName.equals(uniqueName)) {
+            invalidateAll();
+            throw Util.newInternal("Metadata of catalog " + snapshot.catalogName + " changed while being read; expected " + expectedName + ", found " + uniqueName);
+         }
+      }
+   }
+}
+
+// End MetadataSnapshot.java
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.handler;
+
+import java.text.FieldPosition;
+import java.text.NumberFormat;
+
+import custom.mondrian.xmla.handler.CustomXmlaHandler.ValueInfo;
+import custom.mondrian.xmla.writer.SaxWriter;
+
+/**
+ * Writes the &lt;Value&gt; of numeric cells of an MDDataSet. It produces the
+ * same type and text as going through {@link ValueInfo}, the value's
+ * <code>toString()</code> and {@link XmlaUtil#normalizeNumericString}, but
+ * formats the number into a reusable char buffer, so that a cell allocates
+ * nothing:
+ * <ul>
+ * <li>integral values are written as xsd:int (or xs:int / xs:long when
+ * they are not decimals);</li>
+ * <li>decimals from 0.001 up to 10,000,000 are written with 3 decimal
+ * places, rounded to 7 places first;</li>
+ * <li>other decimals are written as xsd:double in the scientific notation of
+ * {@link Double#toString(double)}, with the shortest digits that read back
+ * as the same double.</li>
+ * </ul>
+ * Values it does not know how to write (strings, BigDecimal, Float, NaN,
+ * ...) are left to the caller.
+ *
+ * <p>
+ * It also writes the decimal cells of MDDataSet_Tabular rows, as
+ * <code>normalizeNumericString(value, true, 3)</code> would, reusing its
+ * number format and buffers from cell to cell.
+ *
+ * <p>
+ * An encoder is not thread-safe; each data set has its own.
+ */
+
+final class NumericCellEncoder {
+
+   private static final Object[] XS_INT_TYPE = { "xsi:type", CustomXmlaHandler.XSD_INT };
+   private static final Object[] XS_LONG_TYPE = { "xsi:type", CustomXmlaHandler.XSD_LONG };
+   private static final Object[] XSD_INT_TYPE = { "xsi:type", "xsd:int" };
+   private static final Object[] XSD_DOUBLE_TYPE = { "xsi:type", "xsd:double" };
+
+   /** Powers of ten that are exact doubles */
+   private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19,
+            1e20, 1e21, 1e22 };
+
+   /** Integers below this are exact doubles */
+   private static final long MAX_EXACT = 1L << 53;
+
+   private final char[] buf = new char[32];
+
+   /** Result of {@link #shortest(double)} */
+   private long digits;
+   private int scale;
+
+   /** Used by {@link #writeTruncated}, made on first use */
+   private NumberFormat numberFormat;
+   private final StringBuffer formatted = new StringBuffer(32);
+   private final FieldPosition fieldPosition = new FieldPosition(0);
+   private char[] truncated = new char[32];
+
+   /**
+    * Writes the Value element of a cell, if the value is numeric.
+    *
+    * @param writer
+    *           Writer
+    * @param name
+    *           Element name
+    * @param dataType
+    *           DATATYPE property of the cell
+    * @param value
+    *           Value of the cell, not null
+    * @return false if the value is not written, and must be written from its
+    *         {@link ValueInfo}
+    */
+   boolean writeValue(SaxWriter writer, String name, String dataType, Object value) {
+      final String hint = ValueInfo.getValueTypeHint(dataType);
+      if (CustomXmlaHandler.XSD_STRING.equals(hint)) {
+         return false;
+      }
+      if (value instanceof Double) {
+         final double d = (Double) value;
+         if (CustomXmlaHandler.XSD_INT.equals(hint)) {
+            long l = (long) d;
+            if (Double.doubleToLongBits(d) == Double.doubleToLongBits(l)) {
+               writeLong(writer, name, l);
+               return true;
+            }
+         }
+         return writeDecimal(writer, name, d);
+      }
+      if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+         final long l = ((Number) value).longValue();
+         if (CustomXmlaHandler.XSD_DECIMAL.equals(hint)) {
+            return writeDecimal(writer, name, (double) l);
+         }
+         writeLong(writer, name, l);
+         return true;
+      }
+      return false;
+   }
+
+   /**
+    * Writes the text of a decimal value as
+    * {@link XmlaUtil#normalizeNumericString(String, boolean, int)} does with 3
+    * digits: formatted with 7 decimal places in the default locale, then cut
+    * after 3 places, dropping grouping separators if it was cut.
+    *
+    * @param writer
+    *           Writer
+    * @param value
+    *           Decimal value, not null
+    */
+   void writeTruncated(SaxWriter writer, Object value) {
+      final double d = value instanceof Double ? (Double) value : Double.parseDouble(value.toString());
+      if (numberFormat == null) {
+         numberFormat = NumberFormat.getNumberInstance();
+         numberFormat.setMinimumFractionDigits(7);
+      }
+      formatted.setLength(0);
+      numberFormat.format(d, formatted, fieldPosition);
+
+      final int end = formatted.indexOf(".") + 4;
+      if (formatted.length() <= end) {
+         final int length = formatted.length();
+         if (truncated.length < length) {
+            truncated = new char[length];
+         }
+         formatted.getChars(0, length, truncated, 0);
+         writer.characters(truncated, 0, length);
+         return;
+      }
+      if (truncated.length < end) {
+         truncated = new char[end];
+      }
+      int n = 0;
+      for (int i = 0; i < end; i++) {
+         final char c = formatted.charAt(i);
+         if (c != ',') {
+            truncated[n++] = c;
+         }
+      }
+      writer.characters(truncated, 0, n);
+   }
+
+   private void writeLong(SaxWriter writer, String name, long l) {
+      int start = putLong(l, buf.length);
+      write(writer, name, CustomXmlaHandler.isValidXsdInt(l) ? XS_INT_TYPE : XS_LONG_TYPE, start);
+   }
+
+   private boolean writeDecimal(SaxWriter writer, String name, double d) {
+      if (Double.isNaN(d) || Double.isInfinite(d)) {
+         return false;
+      }
+      final double a = Math.abs(d);
+      // -0.0 keeps its sign, as "-0.0" did
+      final boolean negative = Double.doubleToRawLongBits(d) < 0;
+      int start;
+      Object[] type;
+      if (a != 0 && (a < 1e-3 || a >= 1e7)) {
+         // Double.toString uses the scientific notation
+         if (!shortest(a)) {
+            return false;
+         }
+         start = putScientific(digits, scale, negative);
+         type = XSD_DOUBLE_TYPE;
+      } else if (a == Math.floor(a)) {
+         start = putSign(putLong((long) a, buf.length), negative);
+         type = XSD_INT_TYPE;
+      } else {
+         // 7 decimal places, then truncated to 3
+         long places = ((long) Math.rint(a * 1e7)) / 10000;
+         int p = buf.length;
+         for (int i = 0; i < 3; i++) {
+            buf[--p] = (char) ('0' + places % 10);
+            places /= 10;
+         }
+         buf[--p] = '.';
+         start = putSign(putLong(places, p), negative);
+         type = XSD_DOUBLE_TYPE;
+      }
+      write(writer, name, type, start);
+      return true;
+   }
+
+   private void write(SaxWriter writer, String name, Object[] type, int start) {
+      writer.startElement(name, type);
+      writer.characters(buf, start, buf.length - start);
+      writer.endElement();
+   }
+
+   /**
+    * Finds the shortest decimal <code>digits * 10^scale</code> that reads
+    * back as a positive double. Gives up (rare) if that needs 17 digits, or a
+    * power of ten that is not an exact double.
+    */
+   private boolean shortest(double a) {
+      final int e10 = (int) Math.floor(Math.log10(a));
+      for (int p = 1; p <= 16; p++) {
+         final int s = e10 - p + 1;
+         if (s > 22 || s < -22) {
+            continue;
+         }
+         final long m = Math.round(s >= 0 ? a / POW10[s] : a * POW10[-s]);
+         // x may be off by one ulp, so try the neighbours too
+         if (readsBack(m, s, a) || readsBack(m - 1, s, a) || readsBack(m + 1, s, a)) {
+            while (digits % 10 == 0) {
+               digits /= 10;
+               scale++;
+            }
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Returns whether <code>m * 10^s</code> reads as <code>a</code>. Both the
+    * product and the quotient of exact doubles are correctly rounded, as
+    * parsing the decimal would be.
+    */
+   private boolean readsBack(long m, int s, double a) {
+      if (m <= 0 || m >= MAX_EXACT) {
+         return false;
+      }
+      if ((s >= 0 ? m * POW10[s] : m / POW10[-s]) != a) {
+         return false;
+      }
+      digits = m;
+      scale = s;
+      return true;
+   }
+
+   /**
+    * Writes <code>m * 10^s</code> as Double.toString does: one digit before
+    * the point, at least one after it, and the exponent.
+    */
+   private int putScientific(long m, int s, boolean negative) {
+      int n = 1;
+      for (long t = m / 10; t != 0; t /= 10) {
+         n++;
+      }
+      int p = putLong(s + n - 1, buf.length);
+      buf[--p] = 'E';
+      if (n == 1) {
+         buf[--p] = '0';
+      } else {
+         for (int i = 1; i < n; i++) {
+            buf[--p] = (char) ('0' + m % 10);
+            m /= 10;
+         }
+      }
+      buf[--p] = '.';
+      buf[--p] = (char) ('0' + m);
+      return putSign(p, negative);
+   }
+
+   /**
+    * Writes a long so that it ends just before <code>end</code>, and returns
+    * where it starts.
+    */
+   private int putLong(long v, int end) {
+      int p = end;
+      // negative, so that Long.MIN_VALUE fits
+      long n = v < 0 ? v : -v;
+      do {
+         buf[--p] = (char) ('0' - n % 10);
+         n /= 10;
+      } while (n != 0);
+      return putSign(p, v < 0);
+   }
+
+   private int putSign(int p, boolean negative) {
+      if (negative) {
+         buf[--p] = '-';
+      }
+      return p;
+   }
+}
+
+// End NumericCellEncoder.java
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.handler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Hierarchy;
+
+import custom.mondrian.properties.ExternalProperties;
+import custom.mondrian.xmla.writer.XmlFragment;
+
+/**
+ * Cache of the OlapInfo prologue of MDDataSet responses. Clients send the
+ * same query shapes over and over (an Excel pivot table sends the same axes
+ * with other members), and for a cube with many dimensions working out the
+ * slicer hierarchies and writing their HierarchyInfo takes a while.
+ *
+ * <p>
+ * An entry is keyed by the catalog, schema and its load date, cube, role,
+ * the hierarchies and properties of each axis and the cell properties
+ * returned. It holds the hierarchies of the slicer axis, as positions in the
+ * cube's hierarchy list since olap4j objects belong to a connection, the
+ * OlapInfo element rendered as compact XML, and the rendered default slicer
+ * axis for the last few slicers.
+ *
+ * <p>
+ * Entries are evicted least recently used first, once there are more than
+ * maxEntries, and all are dropped when schemas are flushed. A schema reload
+ * gives new keys.
+ */
+
+final class OlapInfoCache {
+
+   private static final Logger LOGGER = Logger.getLogger(OlapInfoCache.class);
+
+   /** Slicer axes kept per entry */
+   private static final int MAX_SLICER_AXES = 16;
+
+   private static OlapInfoCache instance;
+
+   private final int maxEntries;
+
+   private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+   private long generation;
+
+   OlapInfoCache(int maxEntries) {
+      this.maxEntries = maxEntries;
+   }
+
+   /**
+    * @return cache configured by custom.mondrian.properties
+    */
+   static synchronized OlapInfoCache getInstance() {
+      if (instance == null) {
+         instance = new OlapInfoCache(ExternalProperties.getInstance().getOlapInfoCacheMaxEntries());
+      }
+      return instance;
+   }
+
+   boolean isEnabled() {
+      return maxEntries > 0;
+   }
+
+   /**
+    * @return cached entry, or null
+    */
+   synchronized Entry get(String key) {
+      return entries.get(key);
+   }
+
+   /**
+    * Current generation; it changes whenever the cache is invalidated. Take
+    * it before working out an entry and pass it to {@link #put}.
+    */
+   synchronized long getGeneration() {
+      return generation;
+   }
+
+   /**
+    * Makes an entry for the slicer hierarchies of a cube, and stores it
+    * unless the cache was invalidated since <code>generation</code> was
+    * taken.
+    *
+    * @return the entry, or null if a hierarchy is not one of the cube's
+    */
+   Entry put(String key, Cube cube, List<Hierarchy> slicerHierarchies, long generation) {
+      final List<Hierarchy> cubeHierarchies = cube.getHierarchies();
+      final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+      for (int i = 0; i < cubeHierarchies.size(); i++) {
+         ordinals.put(cubeHierarchies.get(i).getUniqueName(), i);
+      }
+      final int[] slicerOrdinals = new int[slicerHierarchies.size()];
+      final String[] slicerNames = new String[slicerHierarchies.size()];
+      for (int i = 0; i < slicerOrdinals.length; i++) {
+         slicerNames[i] = slicerHierarchies.get(i).getUniqueName();
+         final Integer ordinal = ordinals.get(slicerNames[i]);
+         if (ordinal == null) {
+            return null;
+         }
+         slicerOrdinals[i] = ordinal;
+      }
+      final Entry entry = new Entry(slicerOrdinals, slicerNames);
+      synchronized (this) {
+         if (generation == this.generation) {
+            entries.put(key, entry);
+            while (entries.size() > maxEntries) {
+               entries.remove(entries.keySet().iterator().next());
+            }
+         }
+      }
+      return entry;
+   }
+
+   /**
+    * Drops all entries.
+    */
+   synchronized void invalidateAll() {
+      generation++;
+      entries.clear();
+      if (LOGGER.isDebugEnabled()) {
+         LOGGER.debug("OlapInfo cache invalidated");
+      }
+   }
+
+   static final class Entry {
+      private final int[] slicerOrdinals;
+      private final String[] slicerNames;
+      private volatile XmlFragment olapInfo;
+      private final LinkedHashMap<String, XmlFragment> slicerAxes = new LinkedHashMap<String, XmlFragment>(MAX_SLICER_AXES, 0.75f, true);
+
+      private Entry(int[] slicerOrdinals, String[] slicerNames) {
+         this.slicerOrdinals = slicerOrdinals;
+         this.slicerNames = slicerNames;
+      }
+
+      /**
+       * Returns the slicer hierarchies, as seen by the cube of a connection.
+       *
+       * @return the hierarchies, or null if the cube no longer has them
+       */
+      List<Hierarchy> getSlicerHierarchies(Cube cube) {
+         final List<Hierarchy> cubeHierarchies = cube.getHierarchies();
+         final List<Hierarchy> hierarchies = new ArrayList<Hierarchy>(slicerOrdinals.length);
+         for (int i = 0; i < slicerOrdinals.length; i++) {
+            if (slicerOrdinals[i] >= cubeHierarchies.size()) {
+               return null;
+            }
+            final Hierarchy hierarchy = cubeHierarchies.get(slicerOrdinals[i]);
+            if (!hierarchy.getUniqueName().equals(slicerNames[i])) {
+               return null;
+            }
+            hierarchies.add(hierarchy);
+         }
+         return hierarchies;
+      }
+
+      /**
+       * @return rendered OlapInfo, or null if not rendered yet
+       */
+      XmlFragment getOlapInfo() {
+         return olapInfo;
+      }
+
+      void setOlapInfo(XmlFragment olapInfo) {
+         this.olapInfo = olapInfo;
+      }
+
+      /**
+       * @return rendered default slicer axis for some slicer members, or
+       *         null
+       */
+      synchronized XmlFragment getSlicerAxis(String slicerKey) {
+         return slicerAxes.get(slicerKey);
+      }
+
+      synchronized void putSlicerAxis(String slicerKey, XmlFragment slicerAxis) {
+         slicerAxes.put(slicerKey, slicerAxis);
+         if (slicerAxes.size() > MAX_SLICER_AXES) {
+            slicerAxes.remove(slicerAxes.keySet().iterator().next());
+         }
+      }
+   }
+}
+
+// End OlapInfoCache.java
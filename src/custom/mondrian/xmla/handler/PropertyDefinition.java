@@ -193,6 +193,15 @@ public enum PropertyDefinition {
    
    ShowHiddenCubes(RowsetDefinition.Type.Boolean, null, XmlaConstants.Access.ReadWrite, "false", XmlaConstants.Method.DISCOVER_AND_EXECUTE, ""),
 
+   // Mondrian-specific extension to XMLA.
+   BeginRow(RowsetDefinition.Type.Integer, null, XmlaConstants.Access.ReadWrite, "0", XmlaConstants.Method.DISCOVER,
+            "Zero-based index of the first row of a Discover result to return. Used together with the MaxRows property, a client can "
+                     + "fetch a large rowset, such as the members of a level, one window at a time."),
+
+   // Mondrian-specific extension to XMLA.
+   MaxRows(RowsetDefinition.Type.Integer, null, XmlaConstants.Access.ReadWrite, "-1", XmlaConstants.Method.DISCOVER_AND_EXECUTE,
+            "Maximum number of rows of a Discover result to return, starting at the row given by the BeginRow property, or of a drill through. The value -1 means all rows."),
+
    // mondrian-specific property for advanced drill-through
    AdvancedFlag(RowsetDefinition.Type.Boolean, null, XmlaConstants.Access.Read, "false", XmlaConstants.Method.DISCOVER_AND_EXECUTE, "");
 
@@ -202,7 +211,7 @@ public enum PropertyDefinition {
    final Set<? extends Enum> enumSet;
    final XmlaConstants.Access access;
    final XmlaConstants.Method usage;
-   String value;
+   final String value;
    final String description;
 
    PropertyDefinition(RowsetDefinition.Type type, @SuppressWarnings("rawtypes") Set<? extends Enum> enumSet, XmlaConstants.Access access, String value, XmlaConstants.Method usage,
@@ -230,14 +239,6 @@ public enum PropertyDefinition {
       return description;
    }
 
-   public static void setCatalogValue(Object obj) {
-      PropertyDefinition.Catalog.value = obj.toString();
-   }
-
-   public static String getCatalogValue() {
-      return PropertyDefinition.Catalog.value;
-   }
-
 }
 
 // End PropertyDefinition.java
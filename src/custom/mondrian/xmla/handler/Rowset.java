@@ -32,7 +32,6 @@ import org.olap4j.impl.LcidLocale;
 import org.olap4j.metadata.Catalog;
 
 import custom.mondrian.xmla.exception.XmlaException;
-import custom.mondrian.xmla.handler.RowsetDefinition.Column;
 import custom.mondrian.xmla.request.XmlaRequest;
 import custom.mondrian.xmla.response.XmlaResponse;
 import custom.mondrian.xmla.writer.SaxWriter;
@@ -58,7 +57,21 @@ public abstract class Rowset implements XmlaConstants {
     @SuppressWarnings("unused")
    private final RowsetDefinition.Column[] restrictedColumns;
     protected final boolean deep;
-    protected Map<String,OlapConnection> connections;
+    /**
+     * Set by {@link #populateImpl} when the rows are already in the order of
+     * the rowset definition's comparator, so that they need no sort.
+     */
+    protected boolean presorted;
+    /**
+     * Zero-based index of the first row to write, from the BeginRow
+     * property.
+     */
+    protected int beginRow;
+    /**
+     * Maximum number of rows to write, or -1 for all, from the MaxRows
+     * property.
+     */
+    protected int maxRows = -1;
 
     /**
      * Creates a Rowset.
@@ -180,6 +193,24 @@ public abstract class Rowset implements XmlaConstants {
            break;
         case DbpropMsmdFlattened2:
            break;
+        case BeginRow:
+            beginRow = parseRowProperty(propertyDef, value);
+            if (beginRow < 0) {
+                throw Util.newError(
+                    "Rowset '" + rowsetDefinition.name()
+                    + "' property 'BeginRow' must not be negative (value is '"
+                    + value + "')");
+            }
+            break;
+        case MaxRows:
+            maxRows = parseRowProperty(propertyDef, value);
+            if (maxRows < -1) {
+                throw Util.newError(
+                    "Rowset '" + rowsetDefinition.name()
+                    + "' property 'MaxRows' must be -1 or more (value is '"
+                    + value + "')");
+            }
+            break;
         case LocaleIdentifier:
             if (value != null) {
                 try {
@@ -218,47 +249,100 @@ public abstract class Rowset implements XmlaConstants {
         }
     }
 
+    private int parseRowProperty(PropertyDefinition propertyDef, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw Util.newError(
+                e,
+                "Rowset '" + rowsetDefinition.name()
+                + "' property '" + propertyDef.name()
+                + "' is not an integer (value is '" + value + "')");
+        }
+    }
+
     /**
      * Writes the contents of this rowset as a series of SAX events.
      */
     public final void unparse(XmlaResponse response)
         throws XmlaException, SQLException
     {
+        final SaxWriter writer = response.getWriter();
+        if (isStreaming()) {
+            writer.startSequence(null, "row");
+            populate(response, null, new RowEmitter(response));
+            writer.endSequence();
+            return;
+        }
         final List<Row> rows = new ArrayList<Row>();
         populate(response, null, rows);
         final Comparator<Row> comparator = rowsetDefinition.getComparator();
-        if (comparator != null) {
+        if (comparator != null && !presorted) {
             Collections.sort(rows, comparator);
         }
-        final SaxWriter writer = response.getWriter();
+        final int end = maxRows < 0
+            ? rows.size()
+            : (int) Math.min(rows.size(), (long) beginRow + maxRows);
         writer.startSequence(null, "row");
-        for (Row row : rows) {
-            emit(row, response);
+        for (int i = beginRow; i < end; i++) {
+            emit(rows.get(i), response);
         }
         writer.endSequence();
     }
 
+    /**
+     * Returns whether {@link #populateImpl} adds rows in their final order,
+     * so that {@link #unparse} can write each row as it is added rather than
+     * collect and sort them all first. A rowset that can be very large
+     * should return true whenever its restrictions allow it.
+     */
+    protected boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Returns whether the sink passed to {@link #populateImpl} will not take
+     * any more rows, because the MaxRows property has been reached. A
+     * rowset that streams its rows should stop populating then.
+     */
+    protected final boolean isComplete(RowSink rows) {
+        return rows.isComplete();
+    }
+
     /**
      * Gathers the set of rows which match a given set of the criteria.
      */
     public final void populate(
         XmlaResponse response,
         OlapConnection connection,
-        List<Row> rows)
+        final List<Row> rows)
+        throws XmlaException
+    {
+        populate(response, connection, new RowSink() {
+            public boolean add(Row row) {
+                return rows.add(row);
+            }
+
+            public boolean isComplete() {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Gathers the set of rows which match a given set of the criteria,
+     * passing them to a sink.
+     */
+    public final void populate(
+        XmlaResponse response,
+        OlapConnection connection,
+        RowSink rows)
         throws XmlaException
     {
         boolean ourConnection = false;
         try {
             if (needConnection() && connection == null) {
-                String sessionStr = request.getSessionId();
-                if(connections == null)
-                   connections=new HashMap<String, OlapConnection>();
-                if(!connections.containsKey(sessionStr)){
-                   connection = handler.getConnection(request, extraProperties);
-                   connections.put(sessionStr, connection);
-                }
-                
-                connection = (OlapConnection) connections.get(sessionStr);
+                connection = handler.getSessionConnection(request, extraProperties);
                 ourConnection = true;
             }
             populateImpl(response, connection, rows);
@@ -278,11 +362,7 @@ public abstract class Rowset implements XmlaConstants {
 
         } finally {
             if (connection != null && ourConnection) {
-                try {
-                    connection.close();
-                } catch (SQLException e) {
-                    // ignore
-                }
+                handler.releaseConnection(request, connection);
             }
         }
     }
@@ -297,7 +377,7 @@ public abstract class Rowset implements XmlaConstants {
     protected abstract void populateImpl(
         XmlaResponse response,
         OlapConnection connection,
-        List<Row> rows)
+        RowSink rows)
         throws XmlaException, SQLException;
 
     /**
@@ -305,16 +385,68 @@ public abstract class Rowset implements XmlaConstants {
      * criteria. Returns whether the row was added.
      *
      * @param row Row
-     * @param rows List of result rows
+     * @param rows Sink of result rows
      */
     protected final boolean addRow(
         Row row,
-        List<Row> rows)
+        RowSink rows)
         throws XmlaException
     {
         return rows.add(row);
     }
 
+    /**
+     * Takes the rows of a rowset as {@link #populateImpl} finds them.
+     */
+    protected interface RowSink {
+        /**
+         * Takes a row. Returns whether it was taken; it is not once the sink
+         * is complete.
+         */
+        boolean add(Row row);
+
+        /**
+         * Returns whether the sink will not take any more rows.
+         */
+        boolean isComplete();
+    }
+
+    /**
+     * Sink that writes rows as they are added, skipping those before
+     * BeginRow and refusing those after MaxRows. Used by {@link #unparse}
+     * for rowsets that stream their rows.
+     */
+    private final class RowEmitter implements RowSink {
+        private final XmlaResponse response;
+        private int count;
+
+        RowEmitter(XmlaResponse response) {
+            this.response = response;
+        }
+
+        public boolean add(Row row) {
+            if (isComplete()) {
+                return false;
+            }
+            if (count++ >= beginRow) {
+                try {
+                    emit(row, response);
+                } catch (SQLException e) {
+                    throw new XmlaException(
+                        UNKNOWN_ERROR_CODE,
+                        UNKNOWN_ERROR_FAULT_FS,
+                        "SqlException:",
+                        e);
+                }
+            }
+            return true;
+        }
+
+        public boolean isComplete() {
+            return maxRows >= 0 && count >= (long) beginRow + maxRows;
+        }
+    }
+
     /**
      * Emits a row for this rowset, reading fields from a
      * {@link mondrian.xmla.Rowset.Row} object.
@@ -327,31 +459,13 @@ public abstract class Rowset implements XmlaConstants {
         throws XmlaException, SQLException
     {
         SaxWriter writer = response.getWriter();
+        final RowsetDefinition.Column[] columns =
+            rowsetDefinition.columnDefinitions;
 
-        RowsetDefinition.Column[] newColumns = new RowsetDefinition.Column[rowsetDefinition.columnDefinitions.length];
-        int propertyNameIndex = 0;
-        int propertyTypeIndex = 0;
-        newColumns = rowsetDefinition.columnDefinitions;
-        for(int i=0;i<rowsetDefinition.columnDefinitions.length; i++){
-           if(newColumns[i].name.equals("PROPERTY_NAME")){
-              propertyNameIndex = i;
-           }
-           if(newColumns[i].name.equals("PROPERTY_TYPE")){
-              propertyTypeIndex = i;
-           }
-        }
-        
-        if(propertyNameIndex<propertyTypeIndex){
-           Column replaceCol = newColumns[propertyNameIndex];
-           newColumns[propertyNameIndex] = newColumns[propertyTypeIndex];
-           newColumns[propertyTypeIndex] =  replaceCol;
-        }
-        
         writer.startElement("row");
-        for (RowsetDefinition.Column column
-            : newColumns)
-        {
-            Object value = row.get(column.name);
+        for (int ordinal : rowsetDefinition.emitOrdinals) {
+            final RowsetDefinition.Column column = columns[ordinal];
+            Object value = row.get(ordinal);
             if (value == null) {
                continue;
             } else if (value instanceof XmlElement[]) {
@@ -361,13 +475,16 @@ public abstract class Rowset implements XmlaConstants {
                 }
             } else if (value instanceof Object[]) {
                 Object[] values = (Object[]) value;
+                writer.startSequence(null, column.name);
                 for (Object value1 : values) {
                     writer.startElement(column.name);
                     writer.characters(value1.toString());
                     writer.endElement();
                 }
+                writer.endSequence();
             } else if (value instanceof List) {
                 List values = (List) value;
+                writer.startSequence(null, column.name);
                 for (Object value1 : values) {
                     if (value1 instanceof XmlElement) {
                         XmlElement xmlElement = (XmlElement) value1;
@@ -378,6 +495,7 @@ public abstract class Rowset implements XmlaConstants {
                         writer.endElement();
                     }
                 }
+                writer.endSequence();
             } else if (value instanceof Rowset) {
                 Rowset rowset = (Rowset) value;
                 final List<Row> rows = new ArrayList<Row>();
@@ -483,7 +601,7 @@ public abstract class Rowset implements XmlaConstants {
     }
 
     protected <E> void populate(
-        Class<E> clazz, List<Row> rows,
+        Class<E> clazz, RowSink rows,
         final Comparator<E> comparator)
         throws XmlaException
     {
@@ -493,15 +611,13 @@ public abstract class Rowset implements XmlaConstants {
        // Arrays.sort(enumsSortedByName, comparator);
        String[] dataLabel = {"LiteralValue", "LiteralInvalidChars", "LiteralInvalidStartingChars" ,"LiteralMaxLength", "LiteralNameEnumValue"};
         for (Map.Entry entry : map.entrySet()) {
-            Row row = new Row();
-            row.names.add("LiteralName");
-            row.values.add(entry.getKey());
+            Row row = new Row(rowsetDefinition);
+            row.set("LiteralName", entry.getKey());
 
             int index = 0;
             for (String label: dataLabel)
             {
-                row.names.add(label);
-                row.values.add(((List)entry.getValue()).get(index));
+                row.set(label, ((List)entry.getValue()).get(index));
                 index ++;
      
             }
@@ -591,6 +707,50 @@ public abstract class Rowset implements XmlaConstants {
         }
     }
 
+    /**
+     * Selects the {@link MetadataSnapshot} entries that satisfy the
+     * restriction on a column. A single value is looked up in the index, if
+     * there is one; any other restriction is tested entry by entry, as by
+     * {@link #makeCondition(mondrian.olap.Util.Functor1, RowsetDefinition.Column)}.
+     *
+     * @param entries Entries, in the order to return them
+     * @param index Entries by the value of the column, each list in the
+     *     order of <code>entries</code> and covering exactly
+     *     <code>entries</code>; or null
+     * @param getter Value of the column for an entry
+     * @param column Metadata column
+     * @return Matching entries
+     */
+    @SuppressWarnings("rawtypes")
+    <E> List<E> select(
+        List<E> entries,
+        Map<String, List<E>> index,
+        Util.Functor1<String, ? super E> getter,
+        RowsetDefinition.Column column)
+    {
+        final Object restriction = restrictions.get(column.name);
+        if (restriction == null) {
+            return entries;
+        }
+        if (index != null
+            && restriction instanceof List
+            && ((List) restriction).size() == 1)
+        {
+            List<E> found =
+                index.get(String.valueOf(((List) restriction).get(0)));
+            return found == null ? Collections.<E>emptyList() : found;
+        }
+        final Util.Functor1<Boolean, E> condition =
+            makeCondition(getter, column);
+        final List<E> selected = new ArrayList<E>();
+        for (E entry : entries) {
+            if (condition.apply(entry)) {
+                selected.add(entry);
+            }
+        }
+        return selected;
+    }
+
     /**
      * Returns the restriction if it is a String, or null otherwise. Does not
      * attempt two determine if the restriction is an array of Strings
@@ -671,21 +831,28 @@ public abstract class Rowset implements XmlaConstants {
 
     /**
      * A set of name/value pairs, which can be output using
-     * {@link Rowset#addRow}. This uses less memory than simply
-     * using a HashMap and for very big data sets memory is
-     * a concern.
+     * {@link Rowset#addRow}. Values are kept in an array with one slot per
+     * column of the rowset definition, so that writing a row does not
+     * search for each column by name.
      */
     protected static class Row {
-        private final ArrayList<String> names;
-        private final ArrayList<Object> values;
-        Row() {
-            this.names = new ArrayList<String>();
-            this.values = new ArrayList<Object>();
+        private final RowsetDefinition definition;
+        private final Object[] values;
+
+        Row(RowsetDefinition definition) {
+            this.definition = definition;
+            this.values = new Object[definition.columnDefinitions.length];
         }
 
+        /**
+         * Sets the value of a field. A name that is not a column of the
+         * rowset is ignored; it would never be written.
+         */
         void set(String name, Object value) {
-            this.names.add(name);
-            this.values.add(value);
+            int i = definition.getColumnOrdinal(name);
+            if (i >= 0) {
+                this.values[i] = value;
+            }
         }
 
         /**
@@ -693,8 +860,16 @@ public abstract class Rowset implements XmlaConstants {
          * field's value is not defined.
          */
         public Object get(String name) {
-            int i = this.names.indexOf(name);
-            return (i < 0) ? null : this.values.get(i);
+            int i = definition.getColumnOrdinal(name);
+            return (i < 0) ? null : this.values[i];
+        }
+
+        /**
+         * Retrieves the value of the field in a given slot; see
+         * {@link RowsetDefinition#getColumnOrdinal(String)}.
+         */
+        Object get(int ordinal) {
+            return this.values[ordinal];
         }
     }
 
@@ -34,8 +34,10 @@ import org.olap4j.metadata.XmlaConstants;
 
 import custom.mondrian.xmla.exception.XmlaException;
 import custom.mondrian.xmla.request.XmlaRequest;
+import custom.mondrian.xmla.request.XmlaRequestContext;
 import custom.mondrian.xmla.response.XmlaResponse;
 import custom.mondrian.xmla.writer.SaxWriter;
+import custom.mondrian.xmla.writer.XmlFragment;
 
 import java.io.StringWriter;
 import java.io.Writer;
@@ -1101,6 +1103,18 @@ public enum RowsetDefinition {
 
    transient final Column[] columnDefinitions;
    transient final Column[] sortColumnDefinitions;
+   /** Slot of each column in a {@link Rowset.Row}, by column name */
+   private transient final Map<String, Integer> columnOrdinals;
+   /** Slots of {@link #sortColumnDefinitions} */
+   private transient final int[] sortOrdinals;
+   /**
+    * Slots of the columns in the order rows are written. That is the order of
+    * {@link #columnDefinitions}, except that PROPERTY_TYPE comes before
+    * PROPERTY_NAME, as in the XSD of MDSCHEMA_PROPERTIES.
+    */
+   transient final int[] emitOrdinals;
+   /** Schema section, rendered on first use */
+   private transient volatile XmlFragment xmlSchema;
 
    /**
     * Date the schema was last modified.
@@ -1131,17 +1145,47 @@ public enum RowsetDefinition {
       this.description = description;
       this.columnDefinitions = columnDefinitions;
       this.sortColumnDefinitions = sortColumnDefinitions;
+
+      this.columnOrdinals = new HashMap<String, Integer>(columnDefinitions.length * 2);
+      for (int i = 0; i < columnDefinitions.length; i++) {
+         if (!columnOrdinals.containsKey(columnDefinitions[i].name)) {
+            columnOrdinals.put(columnDefinitions[i].name, i);
+         }
+      }
+      if (sortColumnDefinitions == null) {
+         this.sortOrdinals = null;
+      } else {
+         this.sortOrdinals = new int[sortColumnDefinitions.length];
+         for (int i = 0; i < sortColumnDefinitions.length; i++) {
+            sortOrdinals[i] = getColumnOrdinal(sortColumnDefinitions[i].name);
+         }
+      }
+      this.emitOrdinals = new int[columnDefinitions.length];
+      for (int i = 0; i < columnDefinitions.length; i++) {
+         emitOrdinals[i] = i;
+      }
+      Integer propertyName = columnOrdinals.get("PROPERTY_NAME");
+      Integer propertyType = columnOrdinals.get("PROPERTY_TYPE");
+      if (propertyName != null && propertyType != null && propertyName < propertyType) {
+         emitOrdinals[propertyName] = propertyType;
+         emitOrdinals[propertyType] = propertyName;
+      }
    }
 
    public abstract Rowset getRowset(XmlaRequest request, CustomXmlaHandler handler);
 
    public Column lookupColumn(String name) {
-      for (Column columnDefinition : columnDefinitions) {
-         if (columnDefinition.name.equals(name)) {
-            return columnDefinition;
-         }
-      }
-      return null;
+      Integer ordinal = columnOrdinals.get(name);
+      return ordinal == null ? null : columnDefinitions[ordinal];
+   }
+
+   /**
+    * Returns the slot of a column in a {@link Rowset.Row}, or -1 if this
+    * rowset has no such column.
+    */
+   int getColumnOrdinal(String name) {
+      Integer ordinal = columnOrdinals.get(name);
+      return ordinal == null ? -1 : ordinal;
    }
 
    /**
@@ -1155,10 +1199,9 @@ public enum RowsetDefinition {
       }
       return new Comparator<Rowset.Row>() {
          public int compare(Rowset.Row row1, Rowset.Row row2) {
-            // A faster implementation is welcome.
-            for (Column sortColumn : sortColumnDefinitions) {
-               Comparable val1 = (Comparable) row1.get(sortColumn.name);
-               Comparable val2 = (Comparable) row2.get(sortColumn.name);
+            for (int sortOrdinal : sortOrdinals) {
+               Comparable val1 = (Comparable) row1.get(sortOrdinal);
+               Comparable val2 = (Comparable) row2.get(sortOrdinal);
                if ((val1 == null) && (val2 == null)) {
                   // columns can be optional, compare next column
                   continue;
@@ -1198,9 +1241,20 @@ public enum RowsetDefinition {
     *      mondrian.xmla.XmlaHandler.SetType)
     */
    void writeRowsetXmlSchema(SaxWriter writer) {
-      writeRowsetXmlSchemaTop(writer);
-      writeRowsetXmlSchemaRowDef(writer);
-      writeRowsetXmlSchemaBottom(writer);
+      XmlFragment schema = xmlSchema;
+      if (schema == null) {
+         // It only depends on the column definitions, so it's rendered once.
+         // A race renders it twice, which is harmless.
+         schema = XmlFragment.render(new XmlFragment.Source() {
+            public void write(SaxWriter writer) {
+               writeRowsetXmlSchemaTop(writer);
+               writeRowsetXmlSchemaRowDef(writer);
+               writeRowsetXmlSchemaBottom(writer);
+            }
+         });
+         xmlSchema = schema;
+      }
+      writer.verbatim(schema);
    }
 
    protected void writeRowsetXmlSchemaTop(SaxWriter writer) {
@@ -1305,8 +1359,8 @@ public enum RowsetDefinition {
       }
    }
 
-   private static XmlaConstants.DBType getDBTypeFromProperty(Property prop) {
-      switch (prop.getDatatype()) {
+   private static XmlaConstants.DBType getDBTypeFromDatatype(org.olap4j.metadata.Datatype datatype) {
+      switch (datatype) {
       case STRING:
          return XmlaConstants.DBType.WSTR;
       case INTEGER:
@@ -1494,7 +1548,7 @@ public enum RowsetDefinition {
          }
       }
 
-      public void populateImpl(XmlaResponse response, OlapConnection connection, List<Row> rows) throws XmlaException {
+      public void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException {
          RowsetDefinition[] rowsetDefinitions = RowsetDefinition.class.getEnumConstants().clone();
          // Arrays.sort(rowsetDefinitions, new Comparator<RowsetDefinition>() {
          // public int compare(RowsetDefinition o1, RowsetDefinition o2) {
@@ -1503,7 +1557,7 @@ public enum RowsetDefinition {
          // });
          for (RowsetDefinition rowsetDefinition : rowsetDefinitions) {
             if (restrictedSchemas == null || (restrictedSchemas != null && restrictedSchemas.contains(rowsetDefinition.name()))) {
-               Row row = new Row();
+               Row row = new Row(this.rowsetDefinition);
 
                row.set(SchemaName.name, rowsetDefinition.name());
                row.set(SchemaGuid.name, UUID.fromString(getSchemGuid(rowsetDefinition)));
@@ -1842,12 +1896,12 @@ public enum RowsetDefinition {
          return false;
       }
 
-      public void populateImpl(XmlaResponse response, OlapConnection connection, List<Row> rows) throws XmlaException {
+      public void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException {
          for (PropertyDefinition propertyDefinition : PropertyDefinition.class.getEnumConstants()) {
             if (!propNameCond.apply(propertyDefinition)) {
                continue;
             }
-            Row row = new Row();
+            Row row = new Row(rowsetDefinition);
             row.set(PropertyName.name, propertyDefinition.name());
             row.set(PropertyDescription.name, propertyDefinition.description);
             row.set(PropertyType.name, propertyDefinition.type.getName());
@@ -1877,7 +1931,7 @@ public enum RowsetDefinition {
                "The name of the literal described in the row.\n" + "Example: DBLITERAL_LIKE_PERCENT");
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
 
       }
    }
@@ -1893,7 +1947,7 @@ public enum RowsetDefinition {
       private static final Column Shrinkable = new Column("Shrinkable", Type.Boolean, null, Column.RESTRICTION, Column.OPTIONAL, "");
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
 
       }
    }
@@ -1906,7 +1960,7 @@ public enum RowsetDefinition {
       private static final Column SPID = new Column("SPID", Type.String, null, Column.RESTRICTION, Column.OPTIONAL, "");
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
 
       }
    }
@@ -1921,7 +1975,7 @@ public enum RowsetDefinition {
       private static final Column Data = new Column("Data", Type.String, null, Column.RESTRICTION, Column.OPTIONAL, "");
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
 
       }
    }
@@ -1935,7 +1989,7 @@ public enum RowsetDefinition {
       private static final Column Type = new Column("Type", RowsetDefinition.Type.String, null, Column.RESTRICTION, Column.OPTIONAL, "");
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
 
       }
    }
@@ -1948,7 +2002,7 @@ public enum RowsetDefinition {
       private static final Column Data = new Column("Data", Type.String, null, Column.RESTRICTION, Column.OPTIONAL, "");
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
 
       }
    }
@@ -1961,7 +2015,7 @@ public enum RowsetDefinition {
       private static final Column Data = new Column("Data", Type.String, null, Column.RESTRICTION, Column.OPTIONAL, "");
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
 
       }
    }
@@ -1974,7 +2028,7 @@ public enum RowsetDefinition {
       private static final Column Data = new Column("Data", Type.String, null, Column.RESTRICTION, Column.OPTIONAL, "");
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
 
       }
    }
@@ -2013,7 +2067,7 @@ public enum RowsetDefinition {
                "The maximum number of characters in the literal. If there is no " + "maximum or the maximum is unknown, the value is ?1.");
       private static final Column LiteralNameEnumValue = new Column("LiteralNameEnumValue", Type.Integer, null, Column.NOT_RESTRICTION, Column.OPTIONAL, "");
 
-      public void populateImpl(XmlaResponse response, OlapConnection connection, List<Row> rows) throws XmlaException {
+      public void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException {
          populate(XmlaConstants.Literal.class, rows, new Comparator<XmlaConstants.Literal>() {
             public int compare(XmlaConstants.Literal o1, XmlaConstants.Literal o2) {
                return o1.name().compareTo(o2.name());
@@ -2044,14 +2098,14 @@ public enum RowsetDefinition {
       private static final Column DateModified = new Column("DATE_MODIFIED", Type.DateTime, null, Column.NOT_RESTRICTION, Column.OPTIONAL,
                "The date that the catalog was last modified.");
 
-      public void populateImpl(XmlaResponse response, OlapConnection connection, List<Row> rows) throws XmlaException, SQLException {
+      public void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          Iterable<Catalog> catalogsItr = catIter(connection);
 
          for (Catalog catalog : catalogsItr) {
 
             for (@SuppressWarnings("unused")
             Schema m : catalog.getSchemas()) {
-               Row row = new Row();
+               Row row = new Row(rowsetDefinition);
                row.set(CatalogName.name, catalog.getName());
                row.set(Description.name, "No description available");
                addRow(row, rows);
@@ -2071,13 +2125,11 @@ public enum RowsetDefinition {
 
    static class DbschemaColumnsRowset extends Rowset {
       private final Util.Functor1<Boolean, Catalog> tableCatalogCond;
-      private final Util.Functor1<Boolean, Cube> tableNameCond;
       private final Util.Functor1<Boolean, String> columnNameCond;
 
       DbschemaColumnsRowset(XmlaRequest request, CustomXmlaHandler handler) {
          super(DBSCHEMA_COLUMNS, request, handler);
          tableCatalogCond = makeCondition(CATALOG_NAME_GETTER, TableCatalog);
-         tableNameCond = makeCondition(ELEMENT_NAME_GETTER, TableName);
          columnNameCond = makeCondition(ColumnName);
       }
 
@@ -2115,46 +2167,42 @@ public enum RowsetDefinition {
       private final static Long restrictionsMask = 31L;
       private final static String schemaCuid = "c8b52214-5cf3-11ce-ade5-00aa0044773d";
 
-      public void populateImpl(XmlaResponse response, OlapConnection connection, List<Row> rows) throws XmlaException, OlapException {
+      public void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, OlapException {
+         final CustomXmlaHandler.XmlaExtra extra = getExtra(connection);
+         final boolean emitInvisibleMembers = XmlaUtil.shouldEmitInvisibleMembers(request);
          for (Catalog catalog : catIter(connection, catNameCond(), tableCatalogCond)) {
             // By definition, mondrian catalogs have only one
             // schema. It is safe to use get(0)
             final Schema schema = catalog.getSchemas().get(0);
-            final boolean emitInvisibleMembers = XmlaUtil.shouldEmitInvisibleMembers(request);
+            final MetadataSnapshot snapshot = MetadataSnapshot.get(catalog, schema, extra, request.getRoleName());
             int ordinalPosition = 1;
             Row row;
 
-            for (Cube cube : filter(sortedCubes(schema), tableNameCond)) {
-               for (Dimension dimension : cube.getDimensions()) {
-                  for (Hierarchy hierarchy : dimension.getHierarchies()) {
-                     ordinalPosition = populateHierarchy(cube, hierarchy, ordinalPosition, rows);
-                  }
+            for (MetadataSnapshot.CubeEntry cube : select(snapshot.cubes, snapshot.cubesByName, MetadataSnapshot.NAME_GETTER, TableName)) {
+               if (cube.isShared()) {
+                  continue;
+               }
+               for (MetadataSnapshot.HierarchyEntry hierarchy : cube.hierarchies) {
+                  ordinalPosition = populateHierarchy(snapshot, cube, hierarchy, ordinalPosition, rows);
                }
 
-               List<Measure> rms = cube.getMeasures();
+               List<MetadataSnapshot.MeasureEntry> rms = cube.measures;
                for (int k = 1; k < rms.size(); k++) {
-                  Measure member = rms.get(k);
-
-                  // null == true for regular cubes
-                  // virtual cubes do not set the visible property
-                  // on its measures so it might be null.
-                  Boolean visible = (Boolean) member.getPropertyValue(Property.StandardMemberProperty.$visible);
-                  if (visible == null) {
-                     visible = true;
-                  }
-                  if (!emitInvisibleMembers && !visible) {
+                  MetadataSnapshot.MeasureEntry member = rms.get(k);
+
+                  if (!emitInvisibleMembers && !member.visible) {
                      continue;
                   }
 
-                  String memberName = member.getName();
+                  String memberName = member.name;
                   final String columnName = "Measures:" + memberName;
                   if (!columnNameCond.apply(columnName)) {
                      continue;
                   }
 
-                  row = new Row();
+                  row = new Row(rowsetDefinition);
                   row.set(TableCatalog.name, catalog.getName());
-                  row.set(TableName.name, cube.getName());
+                  row.set(TableName.name, cube.name);
                   row.set(ColumnName.name, columnName);
                   row.set(OrdinalPosition.name, ordinalPosition++);
                   row.set(ColumnHasDefault.name, false);
@@ -2175,13 +2223,13 @@ public enum RowsetDefinition {
          }
       }
 
-      private int populateHierarchy(Cube cube, Hierarchy hierarchy, int ordinalPosition, List<Row> rows) {
-         String schemaName = cube.getSchema().getName();
-         String cubeName = cube.getName();
-         String hierarchyName = hierarchy.getName();
+      private int populateHierarchy(MetadataSnapshot snapshot, MetadataSnapshot.CubeEntry cube, MetadataSnapshot.HierarchyEntry hierarchy, int ordinalPosition, RowSink rows) {
+         String schemaName = snapshot.schemaName;
+         String cubeName = cube.name;
+         String hierarchyName = hierarchy.name;
 
-         if (hierarchy.hasAll()) {
-            Row row = new Row();
+         if (hierarchy.hasAll) {
+            Row row = new Row(rowsetDefinition);
             row.set(TableCatalog.name, schemaName);
             row.set(TableName.name, cubeName);
             row.set(ColumnName.name, hierarchyName + ":(All)!NAME");
@@ -2195,7 +2243,7 @@ public enum RowsetDefinition {
             row.set(CharacterOctetLength.name, 0);
             addRow(row, rows);
 
-            row = new Row();
+            row = new Row(rowsetDefinition);
             row.set(TableCatalog.name, schemaName);
             row.set(TableName.name, cubeName);
             row.set(ColumnName.name, hierarchyName + ":(All)!UNIQUE_NAME");
@@ -2211,19 +2259,20 @@ public enum RowsetDefinition {
 
          }
 
-         for (Level level : hierarchy.getLevels()) {
-            ordinalPosition = populateLevel(cube, hierarchy, level, ordinalPosition, rows);
+         for (MetadataSnapshot.LevelEntry level : hierarchy.levels) {
+            ordinalPosition = populateLevel(snapshot, cube, hierarchy, level, ordinalPosition, rows);
          }
          return ordinalPosition;
       }
 
-      private int populateLevel(Cube cube, Hierarchy hierarchy, Level level, int ordinalPosition, List<Row> rows) {
-         String schemaName = cube.getSchema().getName();
-         String cubeName = cube.getName();
-         String hierarchyName = hierarchy.getName();
-         String levelName = level.getName();
+      private int populateLevel(MetadataSnapshot snapshot, MetadataSnapshot.CubeEntry cube, MetadataSnapshot.HierarchyEntry hierarchy, MetadataSnapshot.LevelEntry level,
+               int ordinalPosition, RowSink rows) {
+         String schemaName = snapshot.schemaName;
+         String cubeName = cube.name;
+         String hierarchyName = hierarchy.name;
+         String levelName = level.name;
 
-         Row row = new Row();
+         Row row = new Row(rowsetDefinition);
          row.set(TableCatalog.name, schemaName);
          row.set(TableName.name, cubeName);
          row.set(ColumnName.name, hierarchyName + ':' + levelName + "!NAME");
@@ -2237,7 +2286,7 @@ public enum RowsetDefinition {
          row.set(CharacterOctetLength.name, 0);
          addRow(row, rows);
 
-         row = new Row();
+         row = new Row(rowsetDefinition);
          row.set(TableCatalog.name, schemaName);
          row.set(TableName.name, cubeName);
          row.set(ColumnName.name, hierarchyName + ':' + levelName + "!UNIQUE_NAME");
@@ -2251,11 +2300,10 @@ public enum RowsetDefinition {
          row.set(CharacterOctetLength.name, 0);
          addRow(row, rows);
 
-         NamedList<Property> props = level.getProperties();
-         for (Property prop : props) {
-            String propName = prop.getName();
+         for (MetadataSnapshot.PropertyEntry prop : level.properties) {
+            String propName = prop.name;
 
-            row = new Row();
+            row = new Row(rowsetDefinition);
             row.set(TableCatalog.name, schemaName);
             row.set(TableName.name, cubeName);
             row.set(ColumnName.name, hierarchyName + ':' + levelName + '!' + propName);
@@ -2264,10 +2312,10 @@ public enum RowsetDefinition {
             row.set(ColumnFlags.name, 0);
             row.set(IsNullable.name, false);
 
-            XmlaConstants.DBType dbType = getDBTypeFromProperty(prop);
+            XmlaConstants.DBType dbType = getDBTypeFromDatatype(prop.datatype);
             row.set(DataType.name, dbType.xmlaOrdinal());
 
-            switch (prop.getDatatype()) {
+            switch (prop.datatype) {
             case STRING:
                row.set(CharacterMaximumLength.name, 0);
                row.set(CharacterOctetLength.name, 0);
@@ -2360,14 +2408,14 @@ public enum RowsetDefinition {
          return false;
       }
 
-      public void populateImpl(XmlaResponse response, OlapConnection connection, List<Row> rows) throws XmlaException {
+      public void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException {
          // Identifies the (base) data types supported by the data provider.
          Row row;
 
          // i4
          Integer dt = XmlaConstants.DBType.I4.xmlaOrdinal();
          if (dataTypeCond.apply(dt)) {
-            row = new Row();
+            row = new Row(rowsetDefinition);
             row.set(TypeName.name, XmlaConstants.DBType.I4.userName);
             row.set(DataType.name, dt);
             row.set(ColumnSize.name, 8);
@@ -2384,7 +2432,7 @@ public enum RowsetDefinition {
          // R8
          dt = XmlaConstants.DBType.R8.xmlaOrdinal();
          if (dataTypeCond.apply(dt)) {
-            row = new Row();
+            row = new Row(rowsetDefinition);
             row.set(TypeName.name, XmlaConstants.DBType.R8.userName);
             row.set(DataType.name, dt);
             row.set(ColumnSize.name, 16);
@@ -2401,7 +2449,7 @@ public enum RowsetDefinition {
          // CY
          dt = XmlaConstants.DBType.CY.xmlaOrdinal();
          if (dataTypeCond.apply(dt)) {
-            row = new Row();
+            row = new Row(rowsetDefinition);
             row.set(TypeName.name, XmlaConstants.DBType.CY.userName);
             row.set(DataType.name, dt);
             row.set(ColumnSize.name, 8);
@@ -2418,7 +2466,7 @@ public enum RowsetDefinition {
          // BOOL
          dt = XmlaConstants.DBType.BOOL.xmlaOrdinal();
          if (dataTypeCond.apply(dt)) {
-            row = new Row();
+            row = new Row(rowsetDefinition);
             row.set(TypeName.name, XmlaConstants.DBType.BOOL.userName);
             row.set(DataType.name, dt);
             row.set(ColumnSize.name, 1);
@@ -2435,7 +2483,7 @@ public enum RowsetDefinition {
          // I8
          dt = XmlaConstants.DBType.I8.xmlaOrdinal();
          if (dataTypeCond.apply(dt)) {
-            row = new Row();
+            row = new Row(rowsetDefinition);
             row.set(TypeName.name, XmlaConstants.DBType.I8.userName);
             row.set(DataType.name, dt);
             row.set(ColumnSize.name, 16);
@@ -2452,7 +2500,7 @@ public enum RowsetDefinition {
          // WSTR
          dt = XmlaConstants.DBType.WSTR.xmlaOrdinal();
          if (dataTypeCond.apply(dt)) {
-            row = new Row();
+            row = new Row(rowsetDefinition);
             row.set(TypeName.name, XmlaConstants.DBType.WSTR.userName);
             row.set(DataType.name, dt);
             // how big are the string columns in the db
@@ -2512,7 +2560,7 @@ public enum RowsetDefinition {
       private final static Long restrictionsMask = 31L;
       private final static String schemaCuid = "c8b52229-5cf3-11ce-ade5-00aa0044773d";
 
-      public void populateImpl(XmlaResponse response, OlapConnection connection, List<Row> rows) throws XmlaException, OlapException {
+      public void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, OlapException {
          for (Catalog catalog : catIter(connection, catNameCond(), tableCatalogCond)) {
             // By definition, mondrian catalogs have only one
             // schema. It is safe to use get(0)
@@ -2526,7 +2574,7 @@ public enum RowsetDefinition {
                }
 
                if (tableTypeCond.apply("TABLE")) {
-                  row = new Row();
+                  row = new Row(rowsetDefinition);
                   row.set(TableCatalog.name, catalog.getName());
                   row.set(TableName.name, cube.getName());
                   row.set(TableSchema.name, cube.getName());
@@ -2552,13 +2600,13 @@ public enum RowsetDefinition {
          }
       }
 
-      private void populateHierarchy(Cube cube, Hierarchy hierarchy, List<Row> rows) {
+      private void populateHierarchy(Cube cube, Hierarchy hierarchy, RowSink rows) {
          for (Level level : hierarchy.getLevels()) {
             populateLevel(cube, hierarchy, level, rows);
          }
       }
 
-      private void populateLevel(Cube cube, Hierarchy hierarchy, Level level, List<Row> rows) {
+      private void populateLevel(Cube cube, Hierarchy hierarchy, Level level, RowSink rows) {
          String schemaName = cube.getSchema().getName();
          String cubeName = cube.getName();
          String hierarchyName = getHierarchyName(hierarchy);
@@ -2571,7 +2619,7 @@ public enum RowsetDefinition {
             desc = schemaName + " - " + cubeName + " Cube - " + hierarchyName + " Hierarchy - " + levelName + " Level";
          }
 
-         Row row = new Row();
+         Row row = new Row(rowsetDefinition);
          row.set(TableCatalog.name, schemaName);
          row.set(TableSchema.name, cubeName);
          row.set(TableName.name, tableName);
@@ -2622,7 +2670,7 @@ public enum RowsetDefinition {
       private static final Column Coordinate = new Column("COORDINATE", Type.String, null, Column.RESTRICTION, Column.REQUIRED, null);
       private static final Column CoordinateType = new Column("COORDINATE_TYPE", Type.Integer, null, Column.RESTRICTION, Column.REQUIRED, null);
 
-      public void populateImpl(XmlaResponse response, OlapConnection connection, List<Row> rows) throws XmlaException {
+      public void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException {
          // mondrian doesn't support actions. It's not an error to ask for
          // them, there just aren't any
       }
@@ -2683,7 +2731,7 @@ public enum RowsetDefinition {
       private static final Column Sets = new Column("SETS", Type.Rowset, null, Column.NOT_RESTRICTION, Column.OPTIONAL, "Sets in this cube.");
       private static final Column Measures = new Column("MEASURES", Type.Rowset, null, Column.NOT_RESTRICTION, Column.OPTIONAL, "Measures in this cube.");
 
-      public void populateImpl(XmlaResponse response, OlapConnection connection, List<Row> rows) throws XmlaException, SQLException {
+      public void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          for (Catalog catalog : catIter(connection, catNameCond(), catalogNameCond)) {
             for (Schema schema : filter(catalog.getSchemas(), schemaNameCond)) {
                for (Cube cube : filter(sortedCubes(schema), cubeNameCond)) {
@@ -2692,7 +2740,7 @@ public enum RowsetDefinition {
                      desc = catalog.getName() + " Schema - " + cube.getName() + " Cube";
                   }
 
-                  Row row = new Row();
+                  Row row = new Row(rowsetDefinition);
                   row.set(CatalogName.name, catalog.getName());
                   row.set(CubeName.name, cube.getName());
                   final CustomXmlaHandler.XmlaExtra extra = getExtra(connection);
@@ -2795,13 +2843,13 @@ public enum RowsetDefinition {
       private static final Column CubeSource = new Column("CUBE_SOURCE", Type.UnsignedShort, null, Column.RESTRICTION, Column.OPTIONAL,
                "A bitmask with one of these valid values:0x01 - Cube 0x02 - Dimension");
 
-      public void populateImpl(XmlaResponse response, OlapConnection connection, List<Row> rows) throws XmlaException, SQLException {
+      public void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          for (Catalog catalog : catIter(connection, catNameCond(), catalogNameCond)) {
             populateCatalog(connection, catalog, rows);
          }
       }
 
-      protected void populateCatalog(OlapConnection connection, Catalog catalog, List<Row> rows) throws XmlaException, SQLException {
+      protected void populateCatalog(OlapConnection connection, Catalog catalog, RowSink rows) throws XmlaException, SQLException {
          for (Schema schema : filter(catalog.getSchemas(), schemaNameCond)) {
             for (Cube cube : filteredCubes(schema, cubeNameCond)) {
                populateCube(connection, catalog, cube, rows);
@@ -2809,19 +2857,19 @@ public enum RowsetDefinition {
          }
       }
 
-      protected void populateCube(OlapConnection connection, Catalog catalog, Cube cube, List<Row> rows) throws XmlaException, SQLException {
+      protected void populateCube(OlapConnection connection, Catalog catalog, Cube cube, RowSink rows) throws XmlaException, SQLException {
          for (Dimension dimension : filter(cube.getDimensions(), dimensionNameCond, dimensionUnameCond)) {
             populateDimension(connection, catalog, cube, dimension, rows);
          }
       }
 
-      protected void populateDimension(OlapConnection connection, Catalog catalog, Cube cube, Dimension dimension, List<Row> rows) throws XmlaException, SQLException {
+      protected void populateDimension(OlapConnection connection, Catalog catalog, Cube cube, Dimension dimension, RowSink rows) throws XmlaException, SQLException {
          String desc = dimension.getDescription();
          if (desc == null) {
             desc = cube.getName() + " Cube - " + dimension.getName() + " Dimension";
          }
 
-         Row row = new Row();
+         Row row = new Row(rowsetDefinition);
          row.set(CatalogName.name, catalog.getName());
          row.set(SchemaName.name, cube.getSchema().getName());
          row.set(CubeName.name, cube.getName());
@@ -2967,7 +3015,7 @@ public enum RowsetDefinition {
                "The name of the type library for user-defined functions. " + "NULL for MDX functions.");
       private static final Column Caption = new Column("CAPTION", Type.String, null, Column.NOT_RESTRICTION, Column.OPTIONAL, "The display caption for the function.");
 
-      public void populateImpl(XmlaResponse response, OlapConnection connection, List<Row> rows) throws XmlaException, SQLException {
+      public void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          final CustomXmlaHandler.XmlaExtra extra = getExtra(connection);
          for (Catalog catalog : catIter(connection, catNameCond())) {
             // By definition, mondrian catalogs have only one
@@ -2979,7 +3027,7 @@ public enum RowsetDefinition {
             // auxiliary method.
             extra.getSchemaFunctionList(funDefs, schema, functionNameCond);
             for (CustomXmlaHandler.XmlaExtra.FunctionDefinition funDef : funDefs) {
-               Row row = new Row();
+               Row row = new Row(rowsetDefinition);
                row.set(FunctionName.name, funDef.functionName);
                row.set(Description.name, funDef.description);
                row.set(ParameterList.name, funDef.parameterList);
@@ -3006,10 +3054,6 @@ public enum RowsetDefinition {
    static class MdschemaHierarchiesRowset extends Rowset {
       private final Util.Functor1<Boolean, Catalog> catalogCond;
       private final Util.Functor1<Boolean, Schema> schemaNameCond;
-      private final Util.Functor1<Boolean, Cube> cubeNameCond;
-      private final Util.Functor1<Boolean, Dimension> dimensionUnameCond;
-      private final Util.Functor1<Boolean, Hierarchy> hierarchyUnameCond;
-      private final Util.Functor1<Boolean, Hierarchy> hierarchyNameCond;
 
       MdschemaHierarchiesRowset(XmlaRequest request, CustomXmlaHandler handler) {
 
@@ -3023,10 +3067,6 @@ public enum RowsetDefinition {
 
          catalogCond = makeCondition(CATALOG_NAME_GETTER, CatalogName);
          schemaNameCond = makeCondition(SCHEMA_NAME_GETTER, SchemaName);
-         cubeNameCond = makeCondition(ELEMENT_NAME_GETTER, CubeName);
-         dimensionUnameCond = makeCondition(ELEMENT_UNAME_GETTER, DimensionUniqueName);
-         hierarchyUnameCond = makeCondition(ELEMENT_UNAME_GETTER, HierarchyUniqueName);
-         hierarchyNameCond = makeCondition(ELEMENT_NAME_GETTER, HierarchyName);
       }
 
       private static final Column CatalogName = new Column("CATALOG_NAME", Type.String, null, Column.RESTRICTION, Column.OPTIONAL,
@@ -3093,60 +3133,51 @@ public enum RowsetDefinition {
 
       private static final Column GroupingBehaviors = new Column("GROUPING_BEHAVIOR", Type.UnsignedShort, null, Column.NOT_RESTRICTION, Column.OPTIONAL, "");
 
-      public void populateImpl(XmlaResponse response, OlapConnection connection, List<Row> rows) throws XmlaException, SQLException {
+      public void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
 
          // if(visualModeEnable)
          // return;
 
-         for (Catalog catalog : catIter(connection, catNameCond(), catalogCond)) {
+         for (Catalog catalog : sortedCatIter(connection, catNameCond(), catalogCond)) {
             populateCatalog(connection, catalog, rows);
          }
+         // catalogs, cubes and hierarchies come in the order rows are sorted
+         presorted = true;
       }
 
-      protected void populateCatalog(OlapConnection connection, Catalog catalog, List<Row> rows) throws XmlaException, SQLException {
+      protected void populateCatalog(OlapConnection connection, Catalog catalog, RowSink rows) throws XmlaException, SQLException {
+         final CustomXmlaHandler.XmlaExtra extra = getExtra(connection);
          for (Schema schema : filter(catalog.getSchemas(), schemaNameCond)) {
-            for (Cube cube : filteredCubes(schema, cubeNameCond)) {
-               if (cube instanceof SharedDimensionHolderCube) {
+            final MetadataSnapshot snapshot = MetadataSnapshot.get(catalog, schema, extra, request.getRoleName());
+            for (MetadataSnapshot.CubeEntry cube : select(snapshot.rowsetCubes, snapshot.cubesByName, MetadataSnapshot.NAME_GETTER, CubeName)) {
+               if (cube.isShared()) {
                   continue;
                }
-               populateCube(connection, catalog, cube, rows);
-
+               populateCube(connection, catalog, snapshot.resolve(schema, cube), rows);
             }
          }
       }
 
-      protected void populateCube(OlapConnection connection, Catalog catalog, Cube cube, List<Row> rows) throws XmlaException, SQLException {
-         int ordinal = 0;
-         for (Dimension dimension : cube.getDimensions()) {
-            // Must increment ordinal for all dimensions but
-            // only output some of them.
-            boolean genOutput = dimensionUnameCond.apply(dimension);
-            if (genOutput) {
-               populateDimension(connection, catalog, cube, dimension, ordinal, rows);
-            }
-            ordinal += dimension.getHierarchies().size();
-         }
-      }
-
-      protected void populateDimension(OlapConnection connection, Catalog catalog, Cube cube, Dimension dimension, int ordinal, List<Row> rows) throws XmlaException, SQLException {
-         final NamedList<Hierarchy> hierarchies = dimension.getHierarchies();
-         for (Hierarchy hierarchy : filter(hierarchies, hierarchyNameCond, hierarchyUnameCond)) {
-
-            populateHierarchy(connection, catalog, cube, dimension, hierarchy, ordinal + hierarchies.indexOf(hierarchy), rows);
-
+      protected void populateCube(OlapConnection connection, Catalog catalog, MetadataSnapshot.CubeResolver cube, RowSink rows) throws XmlaException, SQLException {
+         List<MetadataSnapshot.HierarchyEntry> hierarchies = select(cube.entry.rowsetHierarchies, cube.entry.rowsetHierarchiesByUniqueName, MetadataSnapshot.UNAME_GETTER,
+                  HierarchyUniqueName);
+         hierarchies = select(hierarchies, null, MetadataSnapshot.HIERARCHY_DIMENSION_UNAME_GETTER, DimensionUniqueName);
+         hierarchies = select(hierarchies, null, MetadataSnapshot.NAME_GETTER, HierarchyName);
+         for (MetadataSnapshot.HierarchyEntry hierarchy : hierarchies) {
+            populateHierarchy(connection, catalog, cube.cube, cube.getDimension(hierarchy.dimension), cube.getHierarchy(hierarchy), hierarchy.ordinal, rows);
          }
       }
 
       protected void populateHierarchy(OlapConnection connection, Catalog catalog, Cube cube, Dimension dimension, Hierarchy hierarchy,
       // Level level,
-               int ordinal, List<Row> rows) throws XmlaException, SQLException {
+               int ordinal, RowSink rows) throws XmlaException, SQLException {
          final CustomXmlaHandler.XmlaExtra extra = getExtra(connection);
          String desc = hierarchy.getDescription();
          if (desc == null) {
             desc = cube.getName() + " Cube - " + getHierarchyName(hierarchy) + " Hierarchy";
          }
 
-         Row row = new Row();
+         Row row = new Row(rowsetDefinition);
          row.set(CatalogName.name, catalog.getName());
          // row.set(SchemaName.name, cube.getSchema().getName());
          row.set(CubeName.name, cube.getName());
@@ -3253,11 +3284,11 @@ public enum RowsetDefinition {
       private static final Column[] columns = { DataSourceName, DataSourceDescription, URL, DataSourceInfo, ProviderName, ProviderType, AuthenticationMode, };
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List<Row> rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          if (needConnection()) {
             final CustomXmlaHandler.XmlaExtra extra = getExtra(connection);
             for (Map<String, Object> ds : extra.getDataSources(connection)) {
-               Row row = new Row();
+               Row row = new Row(rowsetDefinition);
                for (Column column : columns) {
                   Object val = ds.get(column.name);
                   row.set(column.name, val);
@@ -3266,7 +3297,7 @@ public enum RowsetDefinition {
             }
          } else {
             // using pre-configured discover datasources response
-            Row row = new Row();
+            Row row = new Row(rowsetDefinition);
             Map<String, Object> map = this.handler.connectionFactory.getPreConfiguredDiscoverDatasourcesResponse();
             for (Column column : columns) {
                row.set(column.name, map.get(column.name));
@@ -3296,21 +3327,11 @@ public enum RowsetDefinition {
    static class MdschemaLevelsRowset extends Rowset {
       private final Util.Functor1<Boolean, Catalog> catalogCond;
       private final Util.Functor1<Boolean, Schema> schemaNameCond;
-      private final Util.Functor1<Boolean, Cube> cubeNameCond;
-      private final Util.Functor1<Boolean, Dimension> dimensionUnameCond;
-      private final Util.Functor1<Boolean, Hierarchy> hierarchyUnameCond;
-      private final Util.Functor1<Boolean, Level> levelUnameCond;
-      private final Util.Functor1<Boolean, Level> levelNameCond;
 
       MdschemaLevelsRowset(XmlaRequest request, CustomXmlaHandler handler) {
          super(MDSCHEMA_LEVELS, request, handler);
          catalogCond = makeCondition(CATALOG_NAME_GETTER, CatalogName);
          schemaNameCond = makeCondition(SCHEMA_NAME_GETTER, SchemaName);
-         cubeNameCond = makeCondition(ELEMENT_NAME_GETTER, CubeName);
-         dimensionUnameCond = makeCondition(ELEMENT_UNAME_GETTER, DimensionUniqueName);
-         hierarchyUnameCond = makeCondition(ELEMENT_UNAME_GETTER, HierarchyUniqueName);
-         levelUnameCond = makeCondition(ELEMENT_UNAME_GETTER, LevelUniqueName);
-         levelNameCond = makeCondition(ELEMENT_NAME_GETTER, LevelName);
       }
 
       public static final int MDLEVEL_TYPE_UNKNOWN = 0x0000;
@@ -3372,35 +3393,31 @@ public enum RowsetDefinition {
       private static final Column CubeSource = new Column("CUBE_SOURCE", Type.UnsignedShort, null, Column.RESTRICTION, Column.OPTIONAL,
                "A bitmask with one of the following valid values: Cube, Dimension");
       
-      public void populateImpl(XmlaResponse response, OlapConnection connection, List<Row> rows) throws XmlaException, SQLException {
-         for (Catalog catalog : catIter(connection, catNameCond(), catalogCond)) {
+      public void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
+         for (Catalog catalog : sortedCatIter(connection, catNameCond(), catalogCond)) {
             populateCatalog(connection, catalog, rows);
          }
+         // catalogs, cubes and levels come in the order rows are sorted
+         presorted = true;
       }
 
-      protected void populateCatalog(OlapConnection connection, Catalog catalog, List<Row> rows) throws XmlaException, SQLException {
+      protected void populateCatalog(OlapConnection connection, Catalog catalog, RowSink rows) throws XmlaException, SQLException {
+         final CustomXmlaHandler.XmlaExtra extra = getExtra(connection);
          for (Schema schema : filter(catalog.getSchemas(), schemaNameCond)) {
-            for (Cube cube : filteredCubes(schema, cubeNameCond)) {
-               populateCube(connection, catalog, cube, rows);
+            final MetadataSnapshot snapshot = MetadataSnapshot.get(catalog, schema, extra, request.getRoleName());
+            for (MetadataSnapshot.CubeEntry cube : select(snapshot.rowsetCubes, snapshot.cubesByName, MetadataSnapshot.NAME_GETTER, CubeName)) {
+               populateCube(connection, catalog, snapshot.resolve(schema, cube), rows);
             }
          }
       }
 
-      protected void populateCube(OlapConnection connection, Catalog catalog, Cube cube, List<Row> rows) throws XmlaException, SQLException {
-         for (Dimension dimension : filter(cube.getDimensions(), dimensionUnameCond)) {
-            populateDimension(connection, catalog, cube, dimension, rows);
-         }
-      }
-
-      protected void populateDimension(OlapConnection connection, Catalog catalog, Cube cube, Dimension dimension, List<Row> rows) throws XmlaException, SQLException {
-         for (Hierarchy hierarchy : filter(dimension.getHierarchies(), hierarchyUnameCond)) {
-            populateHierarchy(connection, catalog, cube, hierarchy, rows);
-         }
-      }
-
-      protected void populateHierarchy(OlapConnection connection, Catalog catalog, Cube cube, Hierarchy hierarchy, List<Row> rows) throws XmlaException, SQLException {
-         for (Level level : filter(hierarchy.getLevels(), levelUnameCond, levelNameCond)) {
-            outputLevel(connection, catalog, cube, hierarchy, level, rows);
+      protected void populateCube(OlapConnection connection, Catalog catalog, MetadataSnapshot.CubeResolver cube, RowSink rows) throws XmlaException, SQLException {
+         List<MetadataSnapshot.LevelEntry> levels = select(cube.entry.rowsetLevels, cube.entry.rowsetLevelsByUniqueName, MetadataSnapshot.UNAME_GETTER, LevelUniqueName);
+         levels = select(levels, null, MetadataSnapshot.LEVEL_DIMENSION_UNAME_GETTER, DimensionUniqueName);
+         levels = select(levels, null, MetadataSnapshot.LEVEL_HIERARCHY_UNAME_GETTER, HierarchyUniqueName);
+         levels = select(levels, null, MetadataSnapshot.NAME_GETTER, LevelName);
+         for (MetadataSnapshot.LevelEntry level : levels) {
+            outputLevel(connection, catalog, cube.cube, cube.getHierarchy(level.hierarchy), cube.getLevel(level), rows);
          }
       }
 
@@ -3421,14 +3438,14 @@ public enum RowsetDefinition {
        * @throws XmlaException
        *            If error occurs
        */
-      protected boolean outputLevel(OlapConnection connection, Catalog catalog, Cube cube, Hierarchy hierarchy, Level level, List<Row> rows) throws XmlaException, SQLException {
+      protected boolean outputLevel(OlapConnection connection, Catalog catalog, Cube cube, Hierarchy hierarchy, Level level, RowSink rows) throws XmlaException, SQLException {
          final CustomXmlaHandler.XmlaExtra extra = getExtra(connection);
          String desc = level.getDescription();
          if (desc == null) {
             desc = cube.getName() + " Cube - " + getHierarchyName(hierarchy) + " Hierarchy - " + level.getName() + " Level";
          }
 
-         Row row = new Row();
+         Row row = new Row(rowsetDefinition);
          row.set(CatalogName.name, catalog.getName());
          row.set(SchemaName.name, cube.getSchema().getName());
          row.set(CubeName.name, cube.getName());
@@ -3549,17 +3566,11 @@ public enum RowsetDefinition {
 
       private final Util.Functor1<Boolean, Catalog> catalogCond;
       private final Util.Functor1<Boolean, Schema> schemaNameCond;
-      private final Util.Functor1<Boolean, Cube> cubeNameCond;
-      private final Util.Functor1<Boolean, Measure> measureUnameCond;
-      private final Util.Functor1<Boolean, Measure> measureNameCond;
 
       MdschemaMeasuresRowset(XmlaRequest request, CustomXmlaHandler handler) {
          super(MDSCHEMA_MEASURES, request, handler);
          catalogCond = makeCondition(CATALOG_NAME_GETTER, CatalogName);
          schemaNameCond = makeCondition(SCHEMA_NAME_GETTER, SchemaName);
-         cubeNameCond = makeCondition(ELEMENT_NAME_GETTER, CubeName);
-         measureNameCond = makeCondition(ELEMENT_NAME_GETTER, MeasureName);
-         measureUnameCond = makeCondition(ELEMENT_UNAME_GETTER, MeasureUniqueName);
       }
 
       private static final Column CatalogName = new Column("CATALOG_NAME", Type.String, null, Column.RESTRICTION, Column.OPTIONAL,
@@ -3605,55 +3616,32 @@ public enum RowsetDefinition {
       private static final Column MeasureGroupName = new Column("MEASUREGROUP_NAME", Type.String, null, Column.RESTRICTION, Column.OPTIONAL, "");
       private static final Column MeasureDisplayFolder = new Column("MEASURE_DISPLAY_FOLDER", Type.String, null, Column.NOT_RESTRICTION, Column.OPTIONAL, "");
 
-      public void populateImpl(XmlaResponse response, OlapConnection connection, List<Row> rows) throws XmlaException, SQLException {
-         for (Catalog catalog : catIter(connection, catNameCond(), catalogCond)) {
+      public void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
+         for (Catalog catalog : sortedCatIter(connection, catNameCond(), catalogCond)) {
             populateCatalog(connection, catalog, rows);
          }
+         // catalogs, cubes and measures come in the order rows are sorted
+         presorted = true;
       }
 
-      protected void populateCatalog(OlapConnection connection, Catalog catalog, List<Row> rows) throws XmlaException, SQLException {
-         // SQL Server actually includes the LEVELS_LIST row
-         StringBuilder buf = new StringBuilder(100);
-
+      protected void populateCatalog(OlapConnection connection, Catalog catalog, RowSink rows) throws XmlaException, SQLException {
+         final CustomXmlaHandler.XmlaExtra extra = getExtra(connection);
          for (Schema schema : filter(catalog.getSchemas(), schemaNameCond)) {
-            for (Cube cube : filteredCubes(schema, cubeNameCond)) {
-               buf.setLength(0);
-
-               int j = 0;
-               for (Dimension dimension : cube.getDimensions()) {
-                  if (dimension.getDimensionType() == Dimension.Type.MEASURE) {
-                     continue;
-                  }
-                  for (Hierarchy hierarchy : dimension.getHierarchies()) {
-                     NamedList<Level> levels = hierarchy.getLevels();
-                     Level lastLevel = levels.get(levels.size() - 1);
-                     if (j++ > 0) {
-                        buf.append(',');
-                     }
-                     buf.append(lastLevel.getUniqueName());
-                  }
-               }
-               String levelListStr = buf.toString();
-
-               List<Member> calcMembers = new ArrayList<Member>();
-               for (Measure measure : filter(cube.getMeasures(), measureNameCond, measureUnameCond)) {
-                  if (measure.isCalculated()) {
-                     // Output calculated measures after stored
-                     // measures.
-                     calcMembers.add(measure);
-                  } else {
-                     populateMember(connection, catalog, measure, cube, levelListStr, rows);
-                  }
-               }
-
-               for (Member member : calcMembers) {
-                  populateMember(connection, catalog, member, cube, null, rows);
+            final MetadataSnapshot snapshot = MetadataSnapshot.get(catalog, schema, extra, request.getRoleName());
+            for (MetadataSnapshot.CubeEntry cube : select(snapshot.rowsetCubes, snapshot.cubesByName, MetadataSnapshot.NAME_GETTER, CubeName)) {
+               final MetadataSnapshot.CubeResolver resolver = snapshot.resolve(schema, cube);
+               List<MetadataSnapshot.MeasureEntry> measures = select(cube.rowsetMeasures, cube.rowsetMeasuresByUniqueName, MetadataSnapshot.UNAME_GETTER,
+                        MeasureUniqueName);
+               measures = select(measures, null, MetadataSnapshot.NAME_GETTER, MeasureName);
+               for (MetadataSnapshot.MeasureEntry measure : measures) {
+                  // SQL Server actually includes the LEVELS_LIST row
+                  populateMember(connection, catalog, resolver.getMeasure(measure), resolver.cube, measure.calculated ? null : cube.levelList, rows);
                }
             }
          }
       }
 
-      private void populateMember(OlapConnection connection, Catalog catalog, Member member, Cube cube, String levelListStr, List<Row> rows) throws SQLException {
+      private void populateMember(OlapConnection connection, Catalog catalog, Member member, Cube cube, String levelListStr, RowSink rows) throws SQLException {
          Boolean visible = (Boolean) member.getPropertyValue(Property.StandardMemberProperty.$visible);
          if (visible == null) {
             visible = true;
@@ -3670,7 +3658,7 @@ public enum RowsetDefinition {
          if (formatString == null)
             formatString = "#.#";
 
-         Row row = new Row();
+         Row row = new Row(rowsetDefinition);
          row.set(CatalogName.name, catalog.getName());
          row.set(CubeName.name, cube.getName());
          row.set(MeasureName.name, member.getName());
@@ -3787,15 +3775,33 @@ public enum RowsetDefinition {
       private static final Column IsPlaceHolderMember = new Column("IS_PLACEHOLDERMEMBER", Type.Boolean, null, Column.NOT_RESTRICTION, Column.OPTIONAL, "");
       private static final Column IsDatamember = new Column("IS_DATAMEMBER", Type.Boolean, null, Column.NOT_RESTRICTION, Column.OPTIONAL, "");
 
-      public void populateImpl(XmlaResponse response, OlapConnection connection, List<Row> rows) throws XmlaException, SQLException {
-         for (Catalog catalog : catIter(connection, catNameCond(), catalogCond)) {
+      /**
+       * Members of a single level (given by LEVEL_UNIQUE_NAME, or by
+       * HIERARCHY_UNIQUE_NAME and LEVEL_NUMBER) of a single cube come out in
+       * the order of their ordinals, which is the order of the rowset, so
+       * they are written as they are read instead of being held and sorted.
+       * A level can have millions of members.
+       */
+      protected boolean isStreaming() {
+         if (isRestricted(MemberUniqueName) || getRestrictionValueAsString(CubeName) == null) {
+            return false;
+         }
+         return getRestrictionValueAsString(LevelUniqueName) != null
+                  || (getRestrictionValueAsString(HierarchyUniqueName) != null && isRestricted(LevelNumber));
+      }
+
+      public void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
+         for (Catalog catalog : sortedCatIter(connection, catNameCond(), catalogCond)) {
             populateCatalog(connection, catalog, rows);
          }
       }
 
-      protected void populateCatalog(OlapConnection connection, Catalog catalog, List<Row> rows) throws XmlaException, SQLException {
+      protected void populateCatalog(OlapConnection connection, Catalog catalog, RowSink rows) throws XmlaException, SQLException {
          for (Schema schema : filter(catalog.getSchemas(), schemaNameCond)) {
             for (Cube cube : filteredCubes(schema, cubeNameCond)) {
+               if (isComplete(rows)) {
+                  return;
+               }
                if (isRestricted(MemberUniqueName)) {
 
                   outputUniqueMemberName(connection, catalog, cube, rows);
@@ -3806,7 +3812,7 @@ public enum RowsetDefinition {
          }
       }
 
-      protected void populateCube(OlapConnection connection, Catalog catalog, Cube cube, List<Row> rows) throws XmlaException, SQLException {
+      protected void populateCube(OlapConnection connection, Catalog catalog, Cube cube, RowSink rows) throws XmlaException, SQLException {
          if (isRestricted(LevelUniqueName)) {
             // Note: If the LEVEL_UNIQUE_NAME has been specified, then
             // the dimension and hierarchy are specified implicitly.
@@ -3827,17 +3833,23 @@ public enum RowsetDefinition {
          } else {
             for (Dimension dimension : filter(cube.getDimensions(), dimensionUnameCond)) {
                populateDimension(connection, catalog, cube, dimension, rows);
+               if (isComplete(rows)) {
+                  return;
+               }
             }
          }
       }
 
-      protected void populateDimension(OlapConnection connection, Catalog catalog, Cube cube, Dimension dimension, List<Row> rows) throws XmlaException, SQLException {
+      protected void populateDimension(OlapConnection connection, Catalog catalog, Cube cube, Dimension dimension, RowSink rows) throws XmlaException, SQLException {
          for (Hierarchy hierarchy : filter(dimension.getHierarchies(), hierarchyUnameCond)) {
             populateHierarchy(connection, catalog, cube, hierarchy, rows);
+            if (isComplete(rows)) {
+               return;
+            }
          }
       }
 
-      protected void populateHierarchy(OlapConnection connection, Catalog catalog, Cube cube, Hierarchy hierarchy, List<Row> rows) throws XmlaException, SQLException {
+      protected void populateHierarchy(OlapConnection connection, Catalog catalog, Cube cube, Hierarchy hierarchy, RowSink rows) throws XmlaException, SQLException {
          if (isRestricted(LevelNumber)) {
             int levelNumber = getRestrictionValueAsInt(LevelNumber);
             if (levelNumber == -1) {
@@ -3860,6 +3872,9 @@ public enum RowsetDefinition {
             // The value returned is not used at this point but they are
             // now cached in the SchemaReader.
             for (Level level : hierarchy.getLevels()) {
+               if (isComplete(rows)) {
+                  return;
+               }
                outputMembers(connection, level.getMembers(), catalog, cube, rows);
             }
          }
@@ -3878,7 +3893,7 @@ public enum RowsetDefinition {
        * method recursively invokes itself to walk up, down, or across the
        * hierarchy.
        */
-      private void populateMember(OlapConnection connection, Catalog catalog, Cube cube, Member member, int treeOp, List<Row> rows) throws SQLException {
+      private void populateMember(OlapConnection connection, Catalog catalog, Cube cube, Member member, int treeOp, RowSink rows) throws SQLException {
          // Visit node itself.
          if (mask(treeOp, TreeOp.SELF.xmlaOrdinal())) {
             outputMember(connection, member, catalog, cube, rows);
@@ -3935,13 +3950,16 @@ public enum RowsetDefinition {
          return list;
       }
 
-      private void outputMembers(OlapConnection connection, List<Member> members, final Catalog catalog, Cube cube, List<Row> rows) throws SQLException {
+      private void outputMembers(OlapConnection connection, List<Member> members, final Catalog catalog, Cube cube, RowSink rows) throws SQLException {
          for (Member member : members) {
+            if (isComplete(rows)) {
+               return;
+            }
             outputMember(connection, member, catalog, cube, rows);
          }
       }
 
-      private void outputUniqueMemberName(final OlapConnection connection, final Catalog catalog, Cube cube, List<Row> rows) throws SQLException {
+      private void outputUniqueMemberName(final OlapConnection connection, final Catalog catalog, Cube cube, RowSink rows) throws SQLException {
          final Object unameRestrictions = restrictions.get(MemberUniqueName.name);
          List<String> list;
          if (unameRestrictions instanceof String) {
@@ -3967,7 +3985,7 @@ public enum RowsetDefinition {
          }
       }
 
-      private void outputMember(OlapConnection connection, Member member, final Catalog catalog, Cube cube, List<Row> rows) throws SQLException {
+      private void outputMember(OlapConnection connection, Member member, final Catalog catalog, Cube cube, RowSink rows) throws SQLException {
          if (!memberNameCond.apply(member)) {
             return;
          }
@@ -3992,7 +4010,7 @@ public enum RowsetDefinition {
 
          int adjustedLevelDepth = level.getDepth();
 
-         Row row = new Row();
+         Row row = new Row(rowsetDefinition);
          row.set(CatalogName.name, catalog.getName());
          row.set(SchemaName.name, cube.getSchema().getName());
          row.set(CubeName.name, cube.getName());
@@ -4007,7 +4025,6 @@ public enum RowsetDefinition {
          //row.set(MemberGuid.name, "");
          row.set(MemberCaption.name, member.getCaption());
          row.set(ChildrenCardinality.name, member.getPropertyValue(Property.StandardMemberProperty.CHILDREN_CARDINALITY));
-         row.set(ChildrenCardinality.name, 100);
 
          if (adjustedLevelDepth == 0) {
             row.set(ParentLevel.name, 0);
@@ -4071,13 +4088,13 @@ public enum RowsetDefinition {
       private static final Column HierarchyUniqueName = new Column("HIERARCHY_UNIQUE_NAME", Type.String, null, true, true, "");
 
 
-      public void populateImpl(XmlaResponse response, OlapConnection connection, List<Row> rows) throws XmlaException, OlapException {
+      public void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, OlapException {
          for (Catalog catalog : catIter(connection, catNameCond(), catalogCond)) {
             processCatalog(connection, catalog, rows);
          }
       }
 
-      private void processCatalog(OlapConnection connection, Catalog catalog, List<Row> rows) throws OlapException {
+      private void processCatalog(OlapConnection connection, Catalog catalog, RowSink rows) throws OlapException {
          for (Schema schema : filter(catalog.getSchemas(), schemaNameCond)) {
             for (Cube cube : filter(sortedCubes(schema), cubeNameCond)) {
                populateNamedSets(cube, catalog, rows);
@@ -4085,9 +4102,9 @@ public enum RowsetDefinition {
          }
       }
 
-      private void populateNamedSets(Cube cube, Catalog catalog, List<Row> rows) {
+      private void populateNamedSets(Cube cube, Catalog catalog, RowSink rows) {
          for (NamedSet namedSet : filter(cube.getSets(), setUnameCond)) {
-            Row row = new Row();
+            Row row = new Row(rowsetDefinition);
 
             Writer writer = new StringWriter();
             ParseTreeWriter parseTreeWriter = new ParseTreeWriter(writer);
@@ -4128,7 +4145,7 @@ public enum RowsetDefinition {
       private static final Column Scope = new Column("SCOPE", Type.Integer, null, Column.RESTRICTION, Column.OPTIONAL, "");
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
 
       }
    }
@@ -4150,7 +4167,7 @@ public enum RowsetDefinition {
       private static final Column CubeSource = new Column("CUBE_SOURCE", Type.UnsignedShort, null, Column.NOT_RESTRICTION, Column.OPTIONAL, "");
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
 
       }
    }
@@ -4177,7 +4194,7 @@ public enum RowsetDefinition {
       private static final Column DimensionGranularity = new Column("DIMENSION_GRANULARITY", Type.String, null, Column.NOT_RESTRICTION, Column.OPTIONAL, "Always TRUE.");
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4193,7 +4210,7 @@ public enum RowsetDefinition {
       private static final Column TransactionSessionId = new Column("TRANSACTION_SESSION_ID", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4211,7 +4228,7 @@ public enum RowsetDefinition {
       private static final Column ConnectionCatalogName = new Column("CONNECTION_CATALOG_NAME", Type.String, null, true, true, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4226,7 +4243,7 @@ public enum RowsetDefinition {
       private static final Column Key = new Column("Key", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4241,7 +4258,7 @@ public enum RowsetDefinition {
       private static final Column PrefCounterName = new Column("PERF_COUNTER_NAME", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4259,7 +4276,7 @@ public enum RowsetDefinition {
       private static final Column PartitionName = new Column("PARTITION_NAME", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4277,7 +4294,7 @@ public enum RowsetDefinition {
       private static final Column PartitionName = new Column("PARTITION_NAME", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4296,7 +4313,7 @@ public enum RowsetDefinition {
       private static final Column ConnectionSpId = new Column("CONNECTION_SPID", Type.Integer, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4315,7 +4332,7 @@ public enum RowsetDefinition {
       private static final Column JobMinTotalTimeMs = new Column("JOB_MIN_TOTAL_TIME_MS", Type.Long, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4338,7 +4355,7 @@ public enum RowsetDefinition {
       private static final Column SessionStatus = new Column("SESSION_STATUS", Type.Integer, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4359,7 +4376,7 @@ public enum RowsetDefinition {
       private static final Column ConnectionIdleTimeMs = new Column("CONNECTION_IDLE_TIME_MS", Type.Long, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4374,7 +4391,7 @@ public enum RowsetDefinition {
       private static final Column Keyword = new Column("Keyword", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4389,7 +4406,7 @@ public enum RowsetDefinition {
       private static final Column EnumName = new Column("EnumName", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4407,7 +4424,7 @@ public enum RowsetDefinition {
       private static final Column DataSourceType = new Column("DATASOURCE_TYPE", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4423,7 +4440,7 @@ public enum RowsetDefinition {
       private static final Column ServiceTypeId = new Column("SERVICE_TYPE_ID", Type.UnsignedInteger, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4439,7 +4456,7 @@ public enum RowsetDefinition {
       private static final Column ParameterName = new Column("PARAMETER_NAME", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4455,7 +4472,7 @@ public enum RowsetDefinition {
       private static final Column FunctionName = new Column("FUNCTION_NAME", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4474,7 +4491,7 @@ public enum RowsetDefinition {
       private static final Column ModelType = new Column("MODEL_TYPE", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4493,7 +4510,7 @@ public enum RowsetDefinition {
       private static final Column ColumnName = new Column("COLUMN_NAME", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4512,7 +4529,7 @@ public enum RowsetDefinition {
       private static final Column StructureName = new Column("STRUCTURE_NAME", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4532,7 +4549,7 @@ public enum RowsetDefinition {
       private static final Column ColumnName = new Column("COLUMN_NAME", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4552,7 +4569,7 @@ public enum RowsetDefinition {
       private static final Column ModelType = new Column("MODEL_TYPE", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4575,7 +4592,7 @@ public enum RowsetDefinition {
       private static final Column MiningStructure = new Column("MINING_STRUCTURE", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4603,7 +4620,7 @@ public enum RowsetDefinition {
       private static final Column TreeOperation = new Column("TREE_OPERATION", Type.UnsignedInteger, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4640,7 +4657,7 @@ public enum RowsetDefinition {
       private static final Column ObjectExpansion = new Column("ObjectExpansion", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4660,7 +4677,7 @@ public enum RowsetDefinition {
       private static final Column LockMinTotalMs = new Column("LOCK_MIN_TOTAL_MS", Type.Long, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4676,7 +4693,7 @@ public enum RowsetDefinition {
       private static final Column LocationPassWord = new Column("LOCATION_PASSWORD", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4692,7 +4709,7 @@ public enum RowsetDefinition {
       private static final Column DimensionName = new Column("DIMENSION_NAME", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4707,7 +4724,7 @@ public enum RowsetDefinition {
       private static final Column SessionSpId = new Column("SESSION_SPID", Type.Integer, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4724,7 +4741,7 @@ public enum RowsetDefinition {
       private static final Column MeasureGroupName = new Column("MEASURE_GROUP_NAME", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4741,7 +4758,7 @@ public enum RowsetDefinition {
       private static final Column MeasureGroupName = new Column("MEASURE_GROUP_NAME", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4759,7 +4776,7 @@ public enum RowsetDefinition {
       private static final Column PartitionName = new Column("PARTITION_NAME", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4777,7 +4794,7 @@ public enum RowsetDefinition {
       private static final Column ObjectId = new Column("OBJECT_ID", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4794,7 +4811,7 @@ public enum RowsetDefinition {
       private static final Column Query = new Column("Query", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4811,7 +4828,7 @@ public enum RowsetDefinition {
       private static final Column Version = new Column("VERSION", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4827,7 +4844,7 @@ public enum RowsetDefinition {
       private static final Column ObjectId = new Column("OBJECT_ID", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4843,7 +4860,7 @@ public enum RowsetDefinition {
       private static final Column ObjectId = new Column("OBJECT_ID", Type.String, null, true, false, null);
 
       @Override
-      protected void populateImpl(XmlaResponse response, OlapConnection connection, List rows) throws XmlaException, SQLException {
+      protected void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // TODO Auto-generated method stub
 
       }
@@ -4853,21 +4870,11 @@ public enum RowsetDefinition {
    static class MdschemaPropertiesRowset extends Rowset {
       private Util.Functor1<Boolean, Catalog> catalogCond;
       private Util.Functor1<Boolean, Schema> schemaNameCond;
-      private Util.Functor1<Boolean, Cube> cubeNameCond;
-      private Util.Functor1<Boolean, Dimension> dimensionUnameCond;
-      private Util.Functor1<Boolean, Hierarchy> hierarchyUnameCond;
-      private Util.Functor1<Boolean, Property> propertyNameCond;
-      private Util.Functor1<Boolean, Level> levelNameCond;
 
       MdschemaPropertiesRowset(XmlaRequest request, CustomXmlaHandler handler) {
          super(MDSCHEMA_PROPERTIES, request, handler);
          catalogCond = makeCondition(CATALOG_NAME_GETTER, CatalogName);
          schemaNameCond = makeCondition(SCHEMA_NAME_GETTER, SchemaName);
-         cubeNameCond = makeCondition(ELEMENT_NAME_GETTER, CubeName);
-         dimensionUnameCond = makeCondition(ELEMENT_UNAME_GETTER, DimensionUniqueName);
-         hierarchyUnameCond = makeCondition(ELEMENT_UNAME_GETTER, HierarchyUniqueName);
-         levelNameCond = makeCondition(ELEMENT_NAME_GETTER, LevelUniqueName);
-         propertyNameCond = makeCondition(ELEMENT_NAME_GETTER, PropertyName);
       }
 
       private static final Column CatalogName = new Column("CATALOG_NAME", Type.String, null, Column.RESTRICTION, Column.OPTIONAL, "The name of the database.");
@@ -4924,7 +4931,7 @@ public enum RowsetDefinition {
          return false;
       }
 
-      public void populateImpl(XmlaResponse response, OlapConnection connection, List<Row> rows) throws XmlaException, SQLException {
+      public void populateImpl(XmlaResponse response, OlapConnection connection, RowSink rows) throws XmlaException, SQLException {
          // Default PROPERTY_TYPE is MDPROP_MEMBER.
          final List<String> list = (List<String>) restrictions.get(PropertyType.name);
          Set<Property.TypeFlag> typeFlags;
@@ -4950,10 +4957,10 @@ public enum RowsetDefinition {
          }
       }
 
-      private void populateCell(List<Row> rows) {
+      private void populateCell(RowSink rows) {
          List<Row> tmpRow = new ArrayList<Row>(12);
          for (int i = 0; i < 12; i++) {
-            tmpRow.add(new Row());
+            tmpRow.add(new Row(rowsetDefinition));
          }
          for (Property.StandardCellProperty property : Property.StandardCellProperty.values()) {
             if (property.name().equals("VALUE") || property.name().equals("FORMAT_STRING") || property.name().equals("BACK_COLOR") || property.name().equals("FORE_COLOR")
@@ -4961,7 +4968,7 @@ public enum RowsetDefinition {
                      || property.name().equals("CELL_ORDINAL") || property.name().equals("FORMATTED_VALUE") || property.name().equals("ACTION_TYPE")
                      || property.name().equals("UPDATEABLE")) {
 
-               Row row = new Row();
+               Row row = new Row(rowsetDefinition);
                row.set(PropertyType.name, Property.TypeFlag.getDictionary().toMask(property.getType()));
                row.set(PropertyName.name, property.name());
 
@@ -5021,23 +5028,29 @@ public enum RowsetDefinition {
          }
       }
 
-      private void populateMember(List<Row> rows) throws SQLException {
+      private void populateMember(RowSink rows) throws SQLException {
          OlapConnection connection = handler.getConnection(request, Collections.<String, String> emptyMap());
-         for (Catalog catalog : catIter(connection, catNameCond(), catalogCond)) {
-            populateCatalog(catalog, rows);
+         try {
+            final CustomXmlaHandler.XmlaExtra extra = getExtra(connection);
+            for (Catalog catalog : catIter(connection, catNameCond(), catalogCond)) {
+               populateCatalog(catalog, extra, rows);
+            }
+         } finally {
+            connection.close();
          }
       }
 
-      protected void populateCatalog(Catalog catalog, List<Row> rows) throws XmlaException, SQLException {
+      protected void populateCatalog(Catalog catalog, CustomXmlaHandler.XmlaExtra extra, RowSink rows) throws XmlaException, SQLException {
          for (Schema schema : filter(catalog.getSchemas(), schemaNameCond)) {
-            for (Cube cube : filteredCubes(schema, cubeNameCond)) {
+            final MetadataSnapshot snapshot = MetadataSnapshot.get(catalog, schema, extra, request.getRoleName());
+            for (MetadataSnapshot.CubeEntry cube : select(snapshot.cubes, snapshot.cubesByName, MetadataSnapshot.NAME_GETTER, CubeName)) {
                populateCube(catalog, cube, rows);
             }
          }
       }
 
-      protected void populateCube(Catalog catalog, Cube cube, List<Row> rows) throws XmlaException, SQLException {
-         if (cube instanceof SharedDimensionHolderCube) {
+      protected void populateCube(Catalog catalog, MetadataSnapshot.CubeEntry cube, RowSink rows) throws XmlaException, SQLException {
+         if (cube.isShared()) {
             return;
          }
          if (isRestricted(LevelUniqueName)) {
@@ -5049,73 +5062,62 @@ public enum RowsetDefinition {
                // which means that nothing will match.
                return;
             }
-            Level level = lookupLevel(cube, levelUniqueName);
             if (!levelUniqueName.contains("].[") && levelUniqueName.startsWith("[") && levelUniqueName.endsWith("]")) {
-               hierarchyUnameCond = makeCondition(ELEMENT_UNAME_GETTER, HierarchyUniqueName);
-
-               for (Dimension dimension : filter(cube.getDimensions(), dimensionUnameCond)) {
+               for (MetadataSnapshot.DimensionEntry dimension : select(cube.dimensions, null, MetadataSnapshot.UNAME_GETTER, DimensionUniqueName)) {
                   populateDimension(catalog, cube, dimension, rows);
                }
                return;
-
-            } else if (level == null) {
+            }
+            MetadataSnapshot.LevelEntry level = cube.lookupLevel(levelUniqueName);
+            if (level == null) {
                return;
             }
             populateLevel(catalog, cube, level, rows);
          } else {
-            for (Dimension dimension : filter(cube.getDimensions(), dimensionUnameCond)) {
+            for (MetadataSnapshot.DimensionEntry dimension : select(cube.dimensions, null, MetadataSnapshot.UNAME_GETTER, DimensionUniqueName)) {
                populateDimension(catalog, cube, dimension, rows);
             }
          }
       }
 
-      private void populateDimension(Catalog catalog, Cube cube, Dimension dimension, List<Row> rows) throws SQLException {
-         for (Hierarchy hierarchy : filter(dimension.getHierarchies(), hierarchyUnameCond)) {
-            populateHierarchy(catalog, cube, hierarchy, rows);
-         }
-      }
-
-      private void populateHierarchy(Catalog catalog, Cube cube, Hierarchy hierarchy, List<Row> rows) throws SQLException {
-         for (Level level : hierarchy.getLevels()) {
-            populateLevel(catalog, cube, level, rows);
+      private void populateDimension(Catalog catalog, MetadataSnapshot.CubeEntry cube, MetadataSnapshot.DimensionEntry dimension, RowSink rows) {
+         for (MetadataSnapshot.HierarchyEntry hierarchy : select(dimension.hierarchies, null, MetadataSnapshot.UNAME_GETTER, HierarchyUniqueName)) {
+            for (MetadataSnapshot.LevelEntry level : hierarchy.levels) {
+               populateLevel(catalog, cube, level, rows);
+            }
          }
       }
 
-      private void populateLevel(Catalog catalog, Cube cube, Level level, List<Row> rows) throws SQLException {
-         final CustomXmlaHandler.XmlaExtra extra = getExtra(catalog.getMetaData().getConnection());
-         for (Property property : filter(extra.getLevelProperties(level), propertyNameCond)) {
-            if (extra.isPropertyInternal(property)) {
-               continue;
-            }
+      private void populateLevel(Catalog catalog, MetadataSnapshot.CubeEntry cube, MetadataSnapshot.LevelEntry level, RowSink rows) {
+         for (MetadataSnapshot.PropertyEntry property : select(level.memberProperties, null, MetadataSnapshot.NAME_GETTER, PropertyName)) {
             outputProperty(property, catalog, cube, level, rows);
          }
       }
 
-      private void outputProperty(Property property, Catalog catalog, Cube cube, Level level, List<Row> rows) {
-         Hierarchy hierarchy = level.getHierarchy();
-         Dimension dimension = hierarchy.getDimension();
+      private void outputProperty(MetadataSnapshot.PropertyEntry property, Catalog catalog, MetadataSnapshot.CubeEntry cube, MetadataSnapshot.LevelEntry level, RowSink rows) {
+         MetadataSnapshot.HierarchyEntry hierarchy = level.hierarchy;
+         MetadataSnapshot.DimensionEntry dimension = hierarchy.dimension;
 
-         String propertyName = property.getName();
+         String propertyName = property.name;
 
-         Row row = new Row();
+         Row row = new Row(rowsetDefinition);
          row.set(CatalogName.name, catalog.getName());
-         row.set(CubeName.name, cube.getName());
-         row.set(DimensionUniqueName.name, dimension.getUniqueName());
-         row.set(HierarchyUniqueName.name, hierarchy.getUniqueName());
-         row.set(LevelUniqueName.name, level.getUniqueName());
+         row.set(CubeName.name, cube.name);
+         row.set(DimensionUniqueName.name, dimension.uniqueName);
+         row.set(HierarchyUniqueName.name, hierarchy.uniqueName);
+         row.set(LevelUniqueName.name, level.uniqueName);
 
          row.set(PropertyName.name, propertyName);
-         row.set(PropertyCaption.name, property.getCaption());
+         row.set(PropertyCaption.name, property.caption);
 
          // Only member properties now
          row.set(PropertyType.name, 1);
          row.set(PropertyContentType.name, Property.ContentType.REGULAR.xmlaOrdinal());
-         XmlaConstants.DBType dbType = getDBTypeFromProperty(property);
          row.set(DataType.name, 0);
 
          row.set(PropertyOrigin.name, 1);
 
-         String desc = cube.getName() + " Cube - " + getHierarchyName(hierarchy) + " Hierarchy - " + level.getName() + " Level - " + property.getName() + " Property";
+         String desc = cube.name + " Cube - " + getHierarchyName(dimension.name, hierarchy.name) + " Hierarchy - " + level.name + " Level - " + property.name + " Property";
          row.set(Description.name, desc);
          row.set(PropertyCardinality.name, "MANY");
          row.set(PropertyAttributeHierarchyName.name, propertyName);
@@ -5211,9 +5213,12 @@ public enum RowsetDefinition {
    }
 
    private static String getHierarchyName(Hierarchy hierarchy) {
-      String hierarchyName = hierarchy.getName();
-      if (MondrianProperties.instance().SsasCompatibleNaming.get() && !hierarchyName.equals(hierarchy.getDimension().getName())) {
-         hierarchyName = hierarchy.getDimension().getName() + "." + hierarchyName;
+      return getHierarchyName(hierarchy.getDimension().getName(), hierarchy.getName());
+   }
+
+   private static String getHierarchyName(String dimensionName, String hierarchyName) {
+      if (MondrianProperties.instance().SsasCompatibleNaming.get() && !hierarchyName.equals(dimensionName)) {
+         hierarchyName = dimensionName + "." + hierarchyName;
       }
       return hierarchyName;
    }
@@ -5306,6 +5311,50 @@ public enum RowsetDefinition {
       };
    }
 
+   /**
+    * Returns an iterator over the catalogs in a connection, like
+    * {@link #catIter(OlapConnection, Util.Functor1...)}, but sorted by name
+    * the way rowsets sort rows.
+    */
+   public static Iterable<Catalog> sortedCatIter(final OlapConnection connection, final Util.Functor1<Boolean, Catalog>... conds) {
+      final List<Catalog> catalogs;
+      try {
+         catalogs = new ArrayList<Catalog>(Util.filter(connection.getOlapCatalogs(), conds));
+      } catch (OlapException e) {
+         throw new RuntimeException("Failed to obtain a list of catalogs form the connection object.", e);
+      }
+      Collections.sort(catalogs, new Comparator<Catalog>() {
+         public int compare(Catalog c1, Catalog c2) {
+            return c1.getName().compareToIgnoreCase(c2.getName());
+         }
+      });
+      return new Iterable<Catalog>() {
+         public Iterator<Catalog> iterator() {
+            return new Iterator<Catalog>() {
+               final Iterator<Catalog> catalogIter = catalogs.iterator();
+
+               public boolean hasNext() {
+                  return catalogIter.hasNext();
+               }
+
+               public Catalog next() {
+                  Catalog catalog = catalogIter.next();
+                  try {
+                     connection.setCatalog(catalog.getName());
+                  } catch (SQLException e) {
+                     throw new RuntimeException(e);
+                  }
+                  return catalog;
+               }
+
+               public void remove() {
+                  throw new UnsupportedOperationException();
+               }
+            };
+         }
+      };
+   }
+
    private static class DelegatingXmlaRequest implements XmlaRequest {
       protected final XmlaRequest request;
 
@@ -5352,6 +5401,10 @@ public enum RowsetDefinition {
       public String getSessionId() {
          return request.getSessionId();
       }
+
+      public XmlaRequestContext getContext() {
+         return request.getContext();
+      }
    }
 
    /**
@@ -5359,7 +5412,7 @@ public enum RowsetDefinition {
     * given schema. Less error-prone than requiring all generator code to cope
     * with a null Cube.
     */
-   private static class SharedDimensionHolderCube implements Cube {
+   static class SharedDimensionHolderCube implements Cube {
       private final Schema schema;
 
       public SharedDimensionHolderCube(Schema schema) {
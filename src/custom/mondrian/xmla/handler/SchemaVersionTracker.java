@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.handler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+
+import custom.mondrian.properties.ExternalProperties;
+import custom.mondrian.xmla.dataSource.OlapConfig;
+import custom.mondrian.xmla.dataSource.OlapConfigWatcher;
+
+/**
+ * Tells which catalogs have a schema that changed since it was last checked,
+ * so that only those are flushed, instead of every schema before every
+ * query.
+ *
+ * <p>
+ * A catalog changes when its schema file does: the modification time and
+ * size are compared first, and the checksum of the content when they differ,
+ * so touching a file without editing it flushes nothing. If olap.xml has a
+ * version query, all catalogs change when its result does; schemas that are
+ * generated from the database can be followed that way.
+ *
+ * <p>
+ * Checks are made at most once per interval, by the request that comes due
+ * or, in the background, by a thread that request wakes up. The first check
+ * only records the versions. A changed catalog stays stale until a request
+ * on it takes the news and flushes its schema.
+ */
+
+final class SchemaVersionTracker {
+
+   private static final Logger LOGGER = Logger.getLogger(SchemaVersionTracker.class);
+
+   private static SchemaVersionTracker instance;
+
+   private final long interval;
+   private final ExecutorService executor;
+
+   private final AtomicLong nextCheck = new AtomicLong();
+   /** Versions of the schema files, by file name; written by one check at a time */
+   private final ConcurrentMap<String, FileVersion> fileVersions = new ConcurrentHashMap<String, FileVersion>();
+   private volatile String databaseVersion;
+   private final Set<String> staleCatalogs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+   private final Object checkLock = new Object();
+
+   /**
+    * @param interval
+    *           Milliseconds between two checks
+    * @param background
+    *           Whether checks run on their own thread
+    */
+   SchemaVersionTracker(long interval, boolean background) {
+      this.interval = interval;
+      if (background) {
+         // one check at a time; one more waits, others are dropped
+         this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(1), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+               final Thread thread = new Thread(runnable, "custom.mondrian.xmla.schemaVersion");
+               thread.setDaemon(true);
+               return thread;
+            }
+         }, new ThreadPoolExecutor.DiscardPolicy());
+      } else {
+         this.executor = null;
+      }
+   }
+
+   /**
+    * @return tracker configured by custom.mondrian.properties
+    */
+   static synchronized SchemaVersionTracker getInstance() {
+      if (instance == null) {
+         ExternalProperties props = ExternalProperties.getInstance();
+         instance = new SchemaVersionTracker(props.getSchemaVersionCheckInterval() * 1000L, props.isSchemaVersionCheckInBackground());
+         // a reload flushes all schemas; versions are taken afresh
+         OlapConfigWatcher.addListener(new OlapConfigWatcher.Listener() {
+            public void reloaded(OlapConfig config) {
+               instance.reset();
+            }
+         });
+      }
+      return instance;
+   }
+
+   /**
+    * Returns whether the schema of a catalog changed, checking the versions
+    * first if the interval has passed. A catalog is reported once; the
+    * caller must flush its schema.
+    *
+    * @param catalog
+    *           Catalog of the request
+    * @param dataSource
+    *           Data source of the request, to run the version query on
+    */
+   boolean takeChange(String catalog, final DataSource dataSource) {
+      final long now = System.currentTimeMillis();
+      final long next = nextCheck.get();
+      if (now >= next && nextCheck.compareAndSet(next, now + interval)) {
+         if (executor != null) {
+            executor.execute(new Runnable() {
+               public void run() {
+                  check(dataSource);
+               }
+            });
+         } else {
+            check(dataSource);
+         }
+      }
+      return catalog != null && staleCatalogs.remove(catalog);
+   }
+
+   /**
+    * Forgets the versions, so that the next check records them again.
+    */
+   void reset() {
+      synchronized (checkLock) {
+         fileVersions.clear();
+         databaseVersion = null;
+         staleCatalogs.clear();
+      }
+   }
+
+   /**
+    * Compares the schema files and the database version with those of the
+    * last check.
+    */
+   private void check(DataSource dataSource) {
+      synchronized (checkLock) {
+         try {
+            final OlapConfig config = OlapConfigWatcher.get();
+            for (String fileName : config.getCatalogFiles()) {
+               final File file = new File(config.getCatalogRoot(), fileName);
+               final FileVersion last = fileVersions.get(fileName);
+               if (last != null && last.lastModified == file.lastModified() && last.length == file.length()) {
+                  continue;
+               }
+               final FileVersion version = new FileVersion(file);
+               fileVersions.put(fileName, version);
+               if (last != null && last.checksum != version.checksum) {
+                  LOGGER.info("Schema file " + file + " changed");
+                  staleCatalogs.add(catalogName(fileName));
+               }
+            }
+
+            if (config.getVersionQuery() != null && dataSource != null) {
+               final String version = queryVersion(dataSource, config.getVersionQuery());
+               final String last = databaseVersion;
+               databaseVersion = version;
+               if (last != null && !last.equals(version)) {
+                  LOGGER.info("Schema version changed from " + last + " to " + version);
+                  for (String fileName : config.getCatalogFiles()) {
+                     staleCatalogs.add(catalogName(fileName));
+                  }
+               }
+            }
+         } catch (IOException | SQLException | RuntimeException e) {
+            LOGGER.warn("Failed to check the schema versions", e);
+         }
+      }
+   }
+
+   /**
+    * @return name of the catalog of a schema file, as in datasources.xml
+    */
+   private static String catalogName(String fileName) {
+      return fileName.endsWith(".xml") ? fileName.substring(0, fileName.length() - 4) : fileName;
+   }
+
+   private static String queryVersion(DataSource dataSource, String query) throws SQLException {
+      try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery(query)) {
+         return resultSet.next() ? String.valueOf(resultSet.getObject(1)) : "";
+      }
+   }
+
+   /**
+    * Modification time, size and checksum of a schema file.
+    */
+   private static final class FileVersion {
+      final long lastModified;
+      final long length;
+      final long checksum;
+
+      FileVersion(File file) throws IOException {
+         // taken before reading, so that a change while reading is seen next time
+         this.lastModified = file.lastModified();
+         this.length = file.length();
+         final CRC32 crc = new CRC32();
+         try (InputStream input = new FileInputStream(file)) {
+            final byte[] buffer = new byte[8192];
+            int n;
+            while ((n = input.read(buffer)) > 0) {
+               crc.update(buffer, 0, n);
+            }
+         }
+         this.checksum = crc.getValue();
+      }
+   }
+}
+
+// End SchemaVersionTracker.java
@@ -8,9 +8,6 @@ import static custom.mondrian.xmla.handler.XmlaConstants.NS_XMLA_ROWSET;
 import static custom.mondrian.xmla.handler.XmlaConstants.NS_XSD;
 import static custom.mondrian.xmla.handler.XmlaConstants.NS_XSI;
 
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
-import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.List;
@@ -20,6 +17,7 @@ import org.xml.sax.SAXException;
 
 import custom.mondrian.xmla.handler.CustomXmlaHandler.Column;
 import custom.mondrian.xmla.writer.SaxWriter;
+import custom.mondrian.xmla.writer.XmlFragment;
 
 /**
  * <class description goes here>
@@ -29,54 +27,10 @@ import custom.mondrian.xmla.writer.SaxWriter;
 class TabularRowSet extends QueryResult {
    private final List<Column> columns = new ArrayList<Column>();
    private final List<Object[]> rows;
-   private int totalCount;
 
    /**
-    * Creates a TabularRowSet based upon a SQL statement result.
-    * 
-    * <p>
-    * Does not close the ResultSet, on success or failure. Client must do it.
-    * 
-    * @param rs
-    *           Result set
-    * @param totalCount
-    *           Total number of rows. If >= 0, writes the "totalCount"
-    *           attribute into the XMLA response.
-    * 
-    * @throws SQLException
-    *            on error
-    */
-   public TabularRowSet(ResultSet rs, int totalCount) throws SQLException {
-      this.totalCount = totalCount;
-      ResultSetMetaData md = rs.getMetaData();
-      int columnCount = md.getColumnCount();
-
-      // populate column defs
-      for (int i = 0; i < columnCount; i++) {
-         columns.add(new Column(md.getColumnLabel(i + 1), md.getColumnType(i + 1), md.getScale(i + 1)));
-      }
-
-      // Populate data; assume that SqlStatement is already positioned
-      // on first row (or isDone() is true), and assume that the
-      // number of rows returned is limited.
-      rows = new ArrayList<Object[]>();
-      while (rs.next()) {
-         Object[] row = new Object[columnCount];
-         for (int i = 0; i < columnCount; i++) {
-            Object obj = rs.getObject(i + 1);
-            // escape the null value. Excel couldn't handle null value.
-            if (obj != null)
-               row[i] = rs.getObject(i + 1);
-            else if (!(obj instanceof String)) {
-               row[i] = 0;
-            }
-         }
-         rows.add(row);
-      }
-   }
-
-   /**
-    * Alternate constructor for advanced drill-through.
+    * Creates the result of an advanced drill-through. Drill through rows are
+    * written by {@link DrillThroughRowSet}.
     * 
     * @param tableFieldMap
     *           Map from table name to a list of the names of the fields in
@@ -105,18 +59,7 @@ class TabularRowSet extends QueryResult {
    }
 
    public void unparse(SaxWriter writer) throws SAXException {
-      // write total count row if enabled
-      if (totalCount >= 0) {
-         String countStr = Integer.toString(totalCount);
-         writer.startElement("row");
-         for (Column column : columns) {
-            writer.startElement(column.encodedName);
-            writer.characters(countStr);
-            writer.endElement();
-         }
-         writer.endElement(); // row
-      }
-
+      writer.startSequence(null, "row");
       for (Object[] row : rows) {
          writer.startElement("row");
          for (int i = 0; i < row.length; i++) {
@@ -136,6 +79,7 @@ class TabularRowSet extends QueryResult {
          }
          writer.endElement(); // row
       }
+      writer.endSequence(); // row
    }
 
    /**
@@ -145,6 +89,31 @@ class TabularRowSet extends QueryResult {
     *           Writer
     */
    public void metadata(SaxWriter writer) {
+      metadata(writer, columns);
+   }
+
+   /**
+    * Writes the schema of tabular rows
+    * 
+    * @param writer
+    *           Writer
+    * @param columns
+    *           Columns of the rows
+    */
+   static void metadata(SaxWriter writer, final List<Column> columns) {
+      // the schema only depends on column names and types
+      StringBuilder layout = new StringBuilder("TabularRowSet");
+      for (Column column : columns) {
+         layout.append('\u0000').append(column.name).append('\u0001').append(column.xsdType);
+      }
+      writer.verbatim(XmlSchemaCache.get(layout.toString(), new XmlFragment.Source() {
+         public void write(SaxWriter writer) {
+            writeSchema(writer, columns);
+         }
+      }));
+   }
+
+   private static void writeSchema(SaxWriter writer, List<Column> columns) {
       writer.startElement("xs:schema", "xmlns:xs", NS_XSD, "targetNamespace", NS_XMLA_ROWSET, "xmlns", NS_XMLA_ROWSET, "xmlns:xsi", NS_XSI, "xmlns:sql", CustomXmlaHandler.NS_XML_SQL,
                "elementFormDefault", "qualified");
 
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.handler;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import custom.mondrian.xmla.writer.XmlFragment;
+
+/**
+ * Rendered XSD schema sections of tabular results, by column layout. The
+ * schema of a tabular cell set or drillthrough only depends on its columns,
+ * and the same few layouts come back over and over from the same reports.
+ */
+
+final class XmlSchemaCache {
+
+   /** Upper bound on cached layouts; past it schemas are rendered each time */
+   private static final int MAX_ENTRIES = 512;
+
+   private static final ConcurrentHashMap<String, XmlFragment> SCHEMAS = new ConcurrentHashMap<String, XmlFragment>();
+
+   private XmlSchemaCache() {
+   }
+
+   /**
+    * Returns the schema for a layout, rendering it with the source the first
+    * time.
+    * 
+    * @param layout
+    *           key that identifies everything the source writes
+    * @param source
+    *           writes the schema
+    */
+   static XmlFragment get(String layout, XmlFragment.Source source) {
+      XmlFragment schema = SCHEMAS.get(layout);
+      if (schema == null) {
+         schema = XmlFragment.render(source);
+         if (SCHEMAS.size() < MAX_ENTRIES) {
+            SCHEMAS.putIfAbsent(layout, schema);
+         }
+      }
+      return schema;
+   }
+}
+
+// End XmlSchemaCache.java
@@ -109,6 +109,13 @@ public interface XmlaConstants {
     public static final String CONTEXT_XMLA_SESSION_STATE_END =
         "SessionStateEnd";
 
+    // context key set when the response body went straight to the client
+    public static final String CONTEXT_RESPONSE_STREAMED = "ResponseStreamed";
+    // context key for the pooled buffer holding the response body
+    public static final String CONTEXT_RESPONSE_BUFFER = "ResponseBuffer";
+    // context key for the XmlaRequestContext of the request
+    public static final String CONTEXT_XMLA_REQUEST_CONTEXT = "XmlaRequestContext";
+
     /*************************************************************************
     *
     * The following are XMLA exception fault codes used as faultcode entries
@@ -14,6 +14,7 @@ import mondrian.olap.MondrianException;
 import mondrian.olap.Util;
 import custom.mondrian.xmla.exception.XmlaException;
 import custom.mondrian.xmla.request.XmlaRequest;
+import custom.mondrian.xmla.request.XmlaRequestContext;
 import custom.mondrian.xmla.response.impl.DefaultXmlaResponse;
 
 import org.olap4j.OlapConnection;
@@ -394,6 +395,10 @@ public class XmlaUtil implements XmlaConstants {
             public String getSessionId() {
                 return null;
             }
+
+            public XmlaRequestContext getContext() {
+                return null;
+            }
         };
         final Rowset rowset =
             rowsetDefinition.getRowset(
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.request;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parsed form of an incoming SOAP request. It's filled in a single pass over
+ * the request stream by
+ * {@link custom.mondrian.xmla.request.impl.StaxSoapMessageReader} and holds
+ * only what the servlet and {@link custom.mondrian.xmla.request.impl.DefaultXmlaRequest}
+ * need: the header entries and the content of the Discover/Execute element.
+ *
+ * <p>
+ * Element counts are kept rather than validated during the parse, so that
+ * a malformed body still faults in the PROCESS_BODY phase with the same codes
+ * as before.
+ */
+
+public class SoapMessage {
+
+   /** Whether the Envelope had a Header element at all */
+   private boolean hasHeader;
+   private final List<HeaderEntry> headerEntries = new ArrayList<HeaderEntry>();
+
+   /* Body content */
+   private int discoverCount;
+   private int executeCount;
+   private final Body body = new Body();
+
+   public boolean hasHeader() {
+      return hasHeader;
+   }
+
+   public void setHasHeader(boolean hasHeader) {
+      this.hasHeader = hasHeader;
+   }
+
+   public List<HeaderEntry> getHeaderEntries() {
+      return headerEntries;
+   }
+
+   public void addHeaderEntry(HeaderEntry entry) {
+      headerEntries.add(entry);
+   }
+
+   public int getDiscoverCount() {
+      return discoverCount;
+   }
+
+   public int getExecuteCount() {
+      return executeCount;
+   }
+
+   public void incDiscoverCount() {
+      discoverCount++;
+   }
+
+   public void incExecuteCount() {
+      executeCount++;
+   }
+
+   public Body getBody() {
+      return body;
+   }
+
+   /**
+    * Child element of the SOAP Header. Only attributes and, for the WS
+    * Security header, the user name token are kept.
+    */
+   public static class HeaderEntry {
+      private final String namespaceURI;
+      private final String localName;
+      private final Map<String, String> attributes;
+      private String username;
+      private String password;
+
+      public HeaderEntry(String namespaceURI, String localName, Map<String, String> attributes) {
+         this.namespaceURI = namespaceURI;
+         this.localName = localName;
+         this.attributes = attributes == null ? Collections.<String, String> emptyMap() : attributes;
+      }
+
+      public String getNamespaceURI() {
+         return namespaceURI;
+      }
+
+      public String getLocalName() {
+         return localName;
+      }
+
+      /** @return attribute value by local name, or null if absent */
+      public String getAttribute(String name) {
+         return attributes.get(name);
+      }
+
+      public String getUsername() {
+         return username;
+      }
+
+      public void setUsername(String username) {
+         this.username = username;
+      }
+
+      public String getPassword() {
+         return password;
+      }
+
+      public void setPassword(String password) {
+         this.password = password;
+      }
+   }
+
+   /**
+    * Content of the single Discover or Execute element of the SOAP Body.
+    */
+   public static class Body {
+      private String namespaceURI;
+      private String localName;
+
+      private int requestTypeCount;
+      private String requestType;
+
+      private int commandCount;
+      private int statementCount;
+      private String statement;
+
+      private int propertiesCount;
+      private int propertyListCount;
+      private final Map<String, String> properties = new LinkedHashMap<String, String>();
+
+      private int restrictionsCount;
+      private int restrictionListCount;
+      private final Map<String, List<String>> restrictions = new HashMap<String, List<String>>();
+
+      public String getNamespaceURI() {
+         return namespaceURI;
+      }
+
+      public String getLocalName() {
+         return localName;
+      }
+
+      public void setMethod(String namespaceURI, String localName) {
+         this.namespaceURI = namespaceURI;
+         this.localName = localName;
+      }
+
+      public int getRequestTypeCount() {
+         return requestTypeCount;
+      }
+
+      public String getRequestType() {
+         return requestType;
+      }
+
+      public void addRequestType(String requestType) {
+         this.requestTypeCount++;
+         this.requestType = requestType;
+      }
+
+      public int getCommandCount() {
+         return commandCount;
+      }
+
+      public void incCommandCount() {
+         commandCount++;
+      }
+
+      public int getStatementCount() {
+         return statementCount;
+      }
+
+      public String getStatement() {
+         return statement;
+      }
+
+      public void addStatement(String statement) {
+         this.statementCount++;
+         this.statement = statement;
+      }
+
+      public int getPropertiesCount() {
+         return propertiesCount;
+      }
+
+      public void incPropertiesCount() {
+         propertiesCount++;
+      }
+
+      public int getPropertyListCount() {
+         return propertyListCount;
+      }
+
+      public void incPropertyListCount() {
+         propertyListCount++;
+      }
+
+      /** @return properties in document order */
+      public Map<String, String> getProperties() {
+         return properties;
+      }
+
+      public void addProperty(String key, String value) {
+         properties.put(key, value);
+      }
+
+      public int getRestrictionsCount() {
+         return restrictionsCount;
+      }
+
+      public void incRestrictionsCount() {
+         restrictionsCount++;
+      }
+
+      public int getRestrictionListCount() {
+         return restrictionListCount;
+      }
+
+      public void incRestrictionListCount() {
+         restrictionListCount++;
+      }
+
+      public Map<String, List<String>> getRestrictions() {
+         return restrictions;
+      }
+
+      public void addRestriction(String key, String value) {
+         List<String> values = restrictions.get(key);
+         if (values == null) {
+            values = new ArrayList<String>();
+            restrictions.put(key, values);
+         }
+         values.add(value);
+      }
+   }
+}
+
+// End SoapMessage.java
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.request;
+
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Callback that can take part in streamed responses.
+ *
+ * <p>
+ * When the servlet streams, the response body goes to the client while it is
+ * produced, so there is no <code>byte[][]</code> to hand to
+ * {@link XmlaRequestCallback#postAction}. The servlet only streams when every
+ * registered callback implements this interface, and then calls
+ * {@link #postStreamAction} instead.
+ */
+
+public interface StreamingXmlaRequestCallback extends XmlaRequestCallback {
+
+   /**
+    * Called after the response body has been written to the client. The
+    * response is committed at this point, so only the context and the
+    * request can be used.
+    */
+   void postStreamAction(HttpServletRequest request, HttpServletResponse response, Map<String, Object> context) throws Exception;
+}
+
+// End StreamingXmlaRequestCallback.java
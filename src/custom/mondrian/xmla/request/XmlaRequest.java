@@ -84,6 +84,12 @@ public interface XmlaRequest {
      * @return Id of the session
      */
     String getSessionId();
+
+    /**
+     * Returns what this request runs with: credentials, session and default
+     * catalog. Can be null for requests made by the server itself.
+     */
+    XmlaRequestContext getContext();
 }
 
 // End XmlaRequest.java
@@ -9,8 +9,6 @@
 */
 package custom.mondrian.xmla.request;
 
-import org.w3c.dom.Element;
-
 import custom.mondrian.xmla.exception.XmlaException;
 import custom.mondrian.xmla.handler.XmlaConstants;
 import custom.mondrian.xmla.servlet.XmlaServlet;
@@ -95,7 +93,7 @@ public interface XmlaRequestCallback {
      */
     void preAction(
         HttpServletRequest request,
-        Element[] requestSoapParts,
+        SoapMessage requestSoapMessage,
         Map<String, Object> context) throws Exception;
 
     /**
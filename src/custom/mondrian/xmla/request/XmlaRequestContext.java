@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.request;
+
+import java.security.Principal;
+
+/**
+ * What an XML/A request runs with: the URI and principal of the HTTP
+ * request, the initial catalog of the user's data source, the credentials
+ * and the session. It is made by the servlet for each request and passed to
+ * the handler with the {@link XmlaRequest}, instead of being kept in fields
+ * that concurrent requests would overwrite.
+ *
+ * <p>
+ * A context is immutable; the servlet derives a new one once it knows the
+ * session and credentials.
+ */
+
+public final class XmlaRequestContext {
+
+   private final String uri;
+   private final Principal principal;
+   private final String initialCatalog;
+   private final String username;
+   private final String password;
+   private final XmlaSession session;
+
+   /**
+    * @param uri
+    *           Request URI
+    * @param principal
+    *           User principal of the HTTP request, or null
+    * @param initialCatalog
+    *           Catalog of requests that name none, or null
+    */
+   public XmlaRequestContext(String uri, Principal principal, String initialCatalog) {
+      this(uri, principal, initialCatalog, null, null, null);
+   }
+
+   private XmlaRequestContext(String uri, Principal principal, String initialCatalog, String username, String password, XmlaSession session) {
+      this.uri = uri;
+      this.principal = principal;
+      this.initialCatalog = initialCatalog;
+      this.username = username;
+      this.password = password;
+      this.session = session;
+   }
+
+   /**
+    * @return a context with these credentials
+    */
+   public XmlaRequestContext withCredentials(String username, String password) {
+      return new XmlaRequestContext(uri, principal, initialCatalog, username, password, session);
+   }
+
+   /**
+    * @return a context in a session, with the session's credentials
+    */
+   public XmlaRequestContext withSession(XmlaSession session) {
+      return new XmlaRequestContext(uri, principal, initialCatalog, session.getUsername(), session.getPassword(), session);
+   }
+
+   public String getUri() {
+      return uri;
+   }
+
+   public Principal getPrincipal() {
+      return principal;
+   }
+
+   /**
+    * @return catalog of a request that names none: the session's last
+    *         catalog, or the initial catalog
+    */
+   public String getDefaultCatalog() {
+      if (session != null && session.getCatalog() != null) {
+         return session.getCatalog();
+      }
+      return initialCatalog;
+   }
+
+   /**
+    * @return user to open connections with, or null
+    */
+   public String getUsername() {
+      return username;
+   }
+
+   public String getPassword() {
+      return password;
+   }
+
+   /**
+    * @return session, or null if the request is not in one
+    */
+   public XmlaSession getSession() {
+      return session;
+   }
+}
+
+// End XmlaRequestContext.java
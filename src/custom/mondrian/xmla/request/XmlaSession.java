@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.request;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.olap4j.OlapConnection;
+
+/**
+ * An XML/A session: the credentials it was begun with, and what its
+ * requests carry over from one to the next (the catalog, the last MDX
+ * statement for REFRESH, the cube queried). Requests of a session may run at
+ * the same time, so that state is kept in volatile fields.
+ *
+ * <p>
+ * A session may also keep a connection pinned, which its next request opened
+ * with the same key takes instead of opening one; see
+ * {@link XmlaSessionRegistry}. The pinned connection and the connections
+ * lent to running requests are guarded by the session's lock.
+ */
+
+public final class XmlaSession {
+
+   private final String id;
+   private final String username;
+   private final String password;
+   private final long created;
+
+   private volatile long lastAccess;
+   private volatile String catalog;
+   private volatile String lastMdx;
+   private volatile String currentCube;
+
+   private SessionConnection pinned;
+   private final Map<OlapConnection, SessionConnection> lent = new IdentityHashMap<OlapConnection, SessionConnection>();
+   private boolean ended;
+
+   /**
+    * @param id
+    *           Session id
+    * @param username
+    *           User, or null for an anonymous session
+    * @param password
+    *           Password, or null
+    * @param created
+    *           Time it began, in milliseconds
+    */
+   XmlaSession(String id, String username, String password, long created) {
+      this.id = id;
+      this.username = username;
+      this.password = password;
+      this.created = created;
+      this.lastAccess = created;
+   }
+
+   public String getId() {
+      return id;
+   }
+
+   public String getUsername() {
+      return username;
+   }
+
+   public String getPassword() {
+      return password;
+   }
+
+   /**
+    * @return time the session began, in milliseconds
+    */
+   public long getCreated() {
+      return created;
+   }
+
+   /**
+    * @return time of the last request of the session, in milliseconds
+    */
+   public long getLastAccess() {
+      return lastAccess;
+   }
+
+   void touch(long now) {
+      lastAccess = now;
+   }
+
+   /**
+    * @return catalog of the last request that named one, or null
+    */
+   public String getCatalog() {
+      return catalog;
+   }
+
+   public void setCatalog(String catalog) {
+      this.catalog = catalog;
+   }
+
+   /**
+    * @return last MDX statement executed, or null
+    */
+   public String getLastMdx() {
+      return lastMdx;
+   }
+
+   public void setLastMdx(String lastMdx) {
+      this.lastMdx = lastMdx;
+   }
+
+   /**
+    * @return cube of the last MDX statement, or null
+    */
+   public String getCurrentCube() {
+      return currentCube;
+   }
+
+   public void setCurrentCube(String currentCube) {
+      this.currentCube = currentCube;
+   }
+
+   /**
+    * Takes the pinned connection if it was opened with this key in this
+    * generation, and lends it to the caller.
+    *
+    * @return connection, or null if there is none to take
+    */
+   synchronized OlapConnection takeConnection(String key, long generation) {
+      if (pinned == null || !pinned.key.equals(key) || pinned.generation != generation) {
+         return null;
+      }
+      SessionConnection taken = pinned;
+      pinned = null;
+      lent.put(taken.connection, taken);
+      return taken.connection;
+   }
+
+   /**
+    * Lends a connection that was just opened for a request of the session.
+    */
+   synchronized void lendConnection(OlapConnection connection, String key, long generation) {
+      lent.put(connection, new SessionConnection(connection, key, generation));
+   }
+
+   /**
+    * Gives back a connection. One lent in the current generation, while the
+    * session goes on, is pinned in place of the pinned one.
+    *
+    * @return connection the caller must close, or null
+    */
+   synchronized OlapConnection releaseConnection(OlapConnection connection, long generation) {
+      SessionConnection released = lent.remove(connection);
+      if (released == null || ended || released.generation != generation) {
+         return connection;
+      }
+      OlapConnection displaced = pinned == null ? null : pinned.connection;
+      pinned = released;
+      return displaced;
+   }
+
+   /**
+    * @return pinned connection, which the caller must close, or null
+    */
+   synchronized OlapConnection unpinConnection() {
+      OlapConnection connection = pinned == null ? null : pinned.connection;
+      pinned = null;
+      return connection;
+   }
+
+   synchronized boolean hasPinnedConnection() {
+      return pinned != null;
+   }
+
+   /**
+    * Ends the session; connections lent to its requests are closed when they
+    * are given back.
+    *
+    * @return pinned connection, which the caller must close, or null
+    */
+   synchronized OlapConnection end() {
+      ended = true;
+      return unpinConnection();
+   }
+
+   /**
+    * Connection of a session, with the key and schema generation it was
+    * opened with.
+    */
+   private static final class SessionConnection {
+      final OlapConnection connection;
+      final String key;
+      final long generation;
+
+      SessionConnection(OlapConnection connection, String key, long generation) {
+         this.connection = connection;
+         this.key = key;
+         this.generation = generation;
+      }
+   }
+}
+
+// End XmlaSession.java
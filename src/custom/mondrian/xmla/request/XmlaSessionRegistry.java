@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.request;
+
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.olap4j.OlapConnection;
+
+import custom.mondrian.properties.ExternalProperties;
+
+/**
+ * The XML/A sessions of the server, keyed by session ID. Lookups take no
+ * lock, so requests of different sessions don't wait for each other.
+ *
+ * <p>
+ * A session expires once it has been idle for idleTimeout, or has lived for
+ * maxAge. Expired sessions are swept out by the request that comes after the
+ * sweep interval, and a session found expired on lookup is begun afresh;
+ * EndSession removes a session at once.
+ *
+ * <p>
+ * With pinConnections, a session keeps the connection of its last request
+ * open, and its next request opened with the same key reuses it. So the
+ * Discovers and Executes an Excel workbook sends one after the other skip
+ * opening a connection each. A flush of the schemas starts a new
+ * generation: pinned connections are closed, and those in use are closed
+ * when they are given back, since they hold the old schema.
+ */
+
+public final class XmlaSessionRegistry {
+
+   private static final Logger LOGGER = Logger.getLogger(XmlaSessionRegistry.class);
+
+   private static final long SWEEP_INTERVAL = 60 * 1000L;
+
+   private static XmlaSessionRegistry instance;
+
+   private final long idleTimeout;
+   private final long maxAge;
+   private final boolean pinConnections;
+
+   private final ConcurrentMap<String, XmlaSession> sessions = new ConcurrentHashMap<String, XmlaSession>();
+   private final AtomicLong nextSweep = new AtomicLong();
+   private final AtomicLong generation = new AtomicLong();
+
+   private final AtomicLong begunCount = new AtomicLong();
+   private final AtomicLong endedCount = new AtomicLong();
+   private final AtomicLong expiredCount = new AtomicLong();
+
+   /**
+    * @param idleTimeout
+    *           Milliseconds after its last request a session expires; 0 for
+    *           no limit
+    * @param maxAge
+    *           Milliseconds after it began a session expires; 0 for no limit
+    * @param pinConnections
+    *           Whether sessions keep a connection open
+    */
+   public XmlaSessionRegistry(long idleTimeout, long maxAge, boolean pinConnections) {
+      this.idleTimeout = idleTimeout;
+      this.maxAge = maxAge;
+      this.pinConnections = pinConnections;
+   }
+
+   /**
+    * @return registry configured by custom.mondrian.properties
+    */
+   public static synchronized XmlaSessionRegistry getInstance() {
+      if (instance == null) {
+         ExternalProperties props = ExternalProperties.getInstance();
+         instance = new XmlaSessionRegistry(props.getSessionIdleTimeout() * 1000L, props.getSessionMaxAge() * 1000L, props.isSessionPinConnections());
+      }
+      return instance;
+   }
+
+   /**
+    * Returns the session of this ID, begun with the given credentials if it
+    * is not known or has expired.
+    *
+    * @param username
+    *           User, or null for an anonymous session
+    */
+   public XmlaSession getSession(String sessionId, String username, String password) {
+      final long now = System.currentTimeMillis();
+      sweep(now);
+      XmlaSession session = sessions.get(sessionId);
+      if (session != null && isExpired(session, now)) {
+         expire(session);
+         session = null;
+      }
+      if (session == null) {
+         XmlaSession begun = new XmlaSession(sessionId, username, password, now);
+         session = sessions.putIfAbsent(sessionId, begun);
+         if (session == null) {
+            session = begun;
+            begunCount.incrementAndGet();
+            if (LOGGER.isDebugEnabled())
+               LOGGER.debug("New session id [" + sessionId + "], username=[" + username + "]");
+         }
+      }
+      session.touch(now);
+      return session;
+   }
+
+   /**
+    * Ends a session, on EndSession.
+    */
+   public void endSession(String sessionId) {
+      XmlaSession session = sessions.remove(sessionId);
+      if (session != null) {
+         endedCount.incrementAndGet();
+         close(session.end());
+         if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Ended session id [" + sessionId + "]");
+      }
+   }
+
+   /**
+    * Ends all sessions, when the servlet is destroyed.
+    */
+   public void endAll() {
+      for (String sessionId : sessions.keySet()) {
+         endSession(sessionId);
+      }
+   }
+
+   private boolean isExpired(XmlaSession session, long now) {
+      return (idleTimeout > 0 && now - session.getLastAccess() > idleTimeout) || (maxAge > 0 && now - session.getCreated() > maxAge);
+   }
+
+   private void expire(XmlaSession session) {
+      if (sessions.remove(session.getId(), session)) {
+         expiredCount.incrementAndGet();
+         close(session.end());
+      }
+   }
+
+   /**
+    * Removes the expired sessions, at most once per sweep interval; only the
+    * request that moves the next sweep time on does it.
+    */
+   private void sweep(long now) {
+      final long next = nextSweep.get();
+      if (now < next || !nextSweep.compareAndSet(next, now + SWEEP_INTERVAL)) {
+         return;
+      }
+      int expired = 0;
+      for (XmlaSession session : sessions.values()) {
+         if (isExpired(session, now)) {
+            expire(session);
+            expired++;
+         }
+      }
+      if (expired > 0 && LOGGER.isDebugEnabled()) {
+         LOGGER.debug("Expired " + expired + " sessions; " + getSessionCount() + " live, " + getPinnedConnectionCount() + " pinned connections");
+      }
+   }
+
+   public boolean isPinConnections() {
+      return pinConnections;
+   }
+
+   /**
+    * @return current schema generation, to pass to
+    *         {@link #lendConnection} for a connection about to be opened
+    */
+   public long getGeneration() {
+      return generation.get();
+   }
+
+   /**
+    * Takes the connection pinned to a session, if it was opened with this
+    * key and still holds the current schemas. It must be given back with
+    * {@link #releaseConnection}.
+    *
+    * @return connection, or null if the request has to open one
+    */
+   public OlapConnection takeConnection(XmlaSession session, String key) {
+      if (!pinConnections || session == null) {
+         return null;
+      }
+      OlapConnection connection = session.takeConnection(key, generation.get());
+      if (connection != null && !isOpen(connection)) {
+         // a generation that matches no connection makes the session let go
+         close(session.releaseConnection(connection, -1));
+         return null;
+      }
+      return connection;
+   }
+
+   private static boolean isOpen(OlapConnection connection) {
+      try {
+         return !connection.isClosed();
+      } catch (SQLException e) {
+         return false;
+      }
+   }
+
+   /**
+    * Lends a session a connection just opened for one of its requests, so
+    * that it is pinned when it is given back.
+    *
+    * @param generation
+    *           Generation before the connection was opened
+    */
+   public void lendConnection(XmlaSession session, String key, long generation, OlapConnection connection) {
+      if (pinConnections && session != null) {
+         session.lendConnection(connection, key, generation);
+      }
+   }
+
+   /**
+    * Gives back a connection of a request: it is pinned to the session if it
+    * was lent to it, otherwise closed.
+    *
+    * @param session
+    *           Session of the request, or null
+    */
+   public void releaseConnection(XmlaSession session, OlapConnection connection) {
+      if (connection == null) {
+         return;
+      }
+      close(session == null ? connection : session.releaseConnection(connection, generation.get()));
+   }
+
+   /**
+    * Closes pinned connections, when schemas are flushed. Connections in use
+    * are closed when they are given back.
+    */
+   public void invalidateConnections() {
+      generation.incrementAndGet();
+      for (XmlaSession session : sessions.values()) {
+         close(session.unpinConnection());
+      }
+   }
+
+   private static void close(OlapConnection connection) {
+      if (connection != null) {
+         try {
+            connection.close();
+         } catch (SQLException e) {
+            LOGGER.warn("Failed to close session connection", e);
+         }
+      }
+   }
+
+   /**
+    * @return number of live sessions
+    */
+   public int getSessionCount() {
+      return sessions.size();
+   }
+
+   /**
+    * @return number of sessions holding a pinned connection
+    */
+   public int getPinnedConnectionCount() {
+      int count = 0;
+      for (XmlaSession session : sessions.values()) {
+         if (session.hasPinnedConnection()) {
+            count++;
+         }
+      }
+      return count;
+   }
+
+   public long getBegunCount() {
+      return begunCount.get();
+   }
+
+   public long getEndedCount() {
+      return endedCount.get();
+   }
+
+   public long getExpiredCount() {
+      return expiredCount.get();
+   }
+}
+
+// End XmlaSessionRegistry.java
@@ -11,10 +11,10 @@ package custom.mondrian.xmla.request.impl;
 
 import custom.mondrian.xmla.exception.XmlaException;
 import custom.mondrian.xmla.handler.XmlaConstants;
+import custom.mondrian.xmla.request.SoapMessage;
+import custom.mondrian.xmla.request.StreamingXmlaRequestCallback;
 import custom.mondrian.xmla.request.XmlaRequestCallback;
 
-import org.w3c.dom.Element;
-
 import java.util.Map;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -32,7 +32,7 @@ import javax.servlet.http.HttpServletResponse;
  * @author LBoudreau
  */
 public abstract class AuthenticatingXmlaRequestCallback
-    implements XmlaRequestCallback
+    implements StreamingXmlaRequestCallback
 {
     public String generateSessionId(Map<String, Object> context) {
         // We don't want to override the session ID generation algorithm.
@@ -54,9 +54,18 @@ public abstract class AuthenticatingXmlaRequestCallback
         return;
     }
 
+    public void postStreamAction(
+        HttpServletRequest request,
+        HttpServletResponse response,
+        Map<String, Object> context)
+        throws Exception
+    {
+        return;
+    }
+
     public void preAction(
         HttpServletRequest request,
-        Element[] requestSoapParts,
+        SoapMessage requestSoapMessage,
         Map<String, Object> context)
         throws Exception
     {
@@ -10,21 +10,21 @@ package custom.mondrian.xmla.request.impl;
 
 import mondrian.olap.Util;
 import custom.mondrian.xmla.exception.XmlaException;
-import custom.mondrian.xmla.handler.PropertyDefinition;
 import custom.mondrian.xmla.handler.XmlaConstants;
-import custom.mondrian.xmla.handler.XmlaUtil;
+import custom.mondrian.xmla.request.SoapMessage;
 import custom.mondrian.xmla.request.XmlaRequest;
+import custom.mondrian.xmla.request.XmlaRequestContext;
+import custom.mondrian.xmla.request.XmlaSession;
 
 import org.apache.log4j.Logger;
 
-import org.w3c.dom.*;
-
 import java.util.*;
 
 import static org.olap4j.metadata.XmlaConstants.Method;
 
 /**
- * Default implementation of {@link mondrian.xmla.XmlaRequest} by DOM API.
+ * Default implementation of {@link mondrian.xmla.XmlaRequest}, built from
+ * the Discover/Execute content read by {@link StaxSoapMessageReader}.
  *
  * @author Gang Chen
  */
@@ -49,38 +49,37 @@ public class DefaultXmlaRequest
     private String requestType;
     private Map<String, Object> restrictions;
 
-    private final String username;
-    private final String password;
-    private final String sessionId;
+    private final XmlaRequestContext context;
    
     private String requestItemName;
     private String currentCube;
     
     public DefaultXmlaRequest(
-        final Element xmlaRoot,
+        final SoapMessage.Body body,
         final String roleName,
-        final String username,
-        final String password,
-        final String sessionId)
+        final XmlaRequestContext context)
         throws XmlaException
     {
-        init(xmlaRoot);
         this.roleName = roleName;
-        this.username = username;
-        this.password = password;
-        this.sessionId = sessionId;
+        this.context = context;
+        init(body);
     }
 
     public String getSessionId() {
-        return sessionId;
+        final XmlaSession session = context.getSession();
+        return session == null ? null : session.getId();
     }
 
     public String getUsername() {
-        return username;
+        return context.getUsername();
     }
 
     public String getPassword() {
-        return password;
+        return context.getPassword();
+    }
+
+    public XmlaRequestContext getContext() {
+        return context;
     }
 
     public Method getMethod() {
@@ -128,15 +127,15 @@ public class DefaultXmlaRequest
     }
 
 
-    protected final void init(Element xmlaRoot) throws XmlaException {
-        if (NS_XMLA.equals(xmlaRoot.getNamespaceURI())) {
-            String lname = xmlaRoot.getLocalName();
+    protected final void init(SoapMessage.Body body) throws XmlaException {
+        if (NS_XMLA.equals(body.getNamespaceURI())) {
+            String lname = body.getLocalName();
             if ("Discover".equals(lname)) {
                 method = Method.DISCOVER;
-                initDiscover(xmlaRoot);
+                initDiscover(body);
             } else if ("Execute".equals(lname)) {
                 method = Method.EXECUTE;
-                initExecute(xmlaRoot);
+                initExecute(body);
             } else {
                 // Note that is code will never be reached because
                 // the error will be caught in
@@ -159,7 +158,7 @@ public class DefaultXmlaRequest
             StringBuilder buf = new StringBuilder(100);
             buf.append(MSG_INVALID_XMLA);
             buf.append(": Bad namespace url \"");
-            buf.append(xmlaRoot.getNamespaceURI());
+            buf.append(body.getNamespaceURI());
             buf.append("\"");
             throw new XmlaException(
                 CLIENT_FAULT_FC,
@@ -169,154 +168,104 @@ public class DefaultXmlaRequest
         }
     }
 
-    private void initDiscover(Element discoverRoot) throws XmlaException {
-        Element[] childElems =
-            XmlaUtil.filterChildElements(
-                discoverRoot,
-                NS_XMLA,
-                "RequestType");
-        if (childElems.length != 1) {
+    private void initDiscover(SoapMessage.Body body) throws XmlaException {
+        if (body.getRequestTypeCount() != 1) {
             StringBuilder buf = new StringBuilder(100);
             buf.append(MSG_INVALID_XMLA);
             buf.append(": Wrong number of RequestType elements: ");
-            buf.append(childElems.length);
+            buf.append(body.getRequestTypeCount());
             throw new XmlaException(
                 CLIENT_FAULT_FC,
                 HSB_BAD_REQUEST_TYPE_CODE,
                 HSB_BAD_REQUEST_TYPE_FAULT_FS,
                 Util.newError(buf.toString()));
         }
-        requestType = XmlaUtil.textInElement(childElems[0]); // <RequestType>
-
-        childElems =
-            XmlaUtil.filterChildElements(
-                discoverRoot,
-                NS_XMLA,
-                "Properties");
-        if (childElems.length != 1) {
+        requestType = body.getRequestType(); // <RequestType>
+
+        if (body.getPropertiesCount() != 1) {
             StringBuilder buf = new StringBuilder(100);
             buf.append(MSG_INVALID_XMLA);
             buf.append(": Wrong number of Properties elements: ");
-            buf.append(childElems.length);
+            buf.append(body.getPropertiesCount());
             throw new XmlaException(
                 CLIENT_FAULT_FC,
                 HSB_BAD_PROPERTIES_CODE,
                 HSB_BAD_PROPERTIES_FAULT_FS,
                 Util.newError(buf.toString()));
         }
-        initProperties(childElems[0]); // <Properties><PropertyList>
-
-        childElems =
-            XmlaUtil.filterChildElements(
-                discoverRoot,
-                NS_XMLA,
-                "Restrictions");
-        if (childElems.length != 1) {
+        initProperties(body); // <Properties><PropertyList>
+
+        if (body.getRestrictionsCount() != 1) {
             StringBuilder buf = new StringBuilder(100);
             buf.append(MSG_INVALID_XMLA);
             buf.append(": Wrong number of Restrictions elements: ");
-            buf.append(childElems.length);
+            buf.append(body.getRestrictionsCount());
             throw new XmlaException(
                 CLIENT_FAULT_FC,
                 HSB_BAD_RESTRICTIONS_CODE,
                 HSB_BAD_RESTRICTIONS_FAULT_FS,
                 Util.newError(buf.toString()));
         }
-        initRestrictions(childElems[0]); // <Restriciotns><RestrictionList>
+        initRestrictions(body); // <Restriciotns><RestrictionList>
     }
 
-    private void initExecute(Element executeRoot) throws XmlaException {
-        Element[] childElems =
-            XmlaUtil.filterChildElements(
-                executeRoot,
-                NS_XMLA,
-                "Command");
-        if (childElems.length != 1) {
+    private void initExecute(SoapMessage.Body body) throws XmlaException {
+        if (body.getCommandCount() != 1) {
             StringBuilder buf = new StringBuilder(100);
             buf.append(MSG_INVALID_XMLA);
             buf.append(": Wrong number of Command elements: ");
-            buf.append(childElems.length);
+            buf.append(body.getCommandCount());
             throw new XmlaException(
                 CLIENT_FAULT_FC,
                 HSB_BAD_COMMAND_CODE,
                 HSB_BAD_COMMAND_FAULT_FS,
                 Util.newError(buf.toString()));
         }
-        initCommand(childElems[0]); // <Command><Statement>
-
-        childElems =
-            XmlaUtil.filterChildElements(
-                executeRoot,
-                NS_XMLA,
-                "Properties");
-        if (childElems.length != 1) {
+        initCommand(body); // <Command><Statement>
+
+        if (body.getPropertiesCount() != 1) {
             StringBuilder buf = new StringBuilder(100);
             buf.append(MSG_INVALID_XMLA);
             buf.append(": Wrong number of Properties elements: ");
-            buf.append(childElems.length);
+            buf.append(body.getPropertiesCount());
             throw new XmlaException(
                 CLIENT_FAULT_FC,
                 HSB_BAD_PROPERTIES_CODE,
                 HSB_BAD_PROPERTIES_FAULT_FS,
                 Util.newError(buf.toString()));
         }
-        initProperties(childElems[0]); // <Properties><PropertyList>
+        initProperties(body); // <Properties><PropertyList>
     }
 
     @SuppressWarnings({ "unchecked", "rawtypes" })
-   private void initRestrictions(Element restrictionsRoot)
+   private void initRestrictions(SoapMessage.Body body)
         throws XmlaException
     {
-        Map<String, List<String>> restrictions =
-            new HashMap<String, List<String>>();
-        Element[] childElems =
-            XmlaUtil.filterChildElements(
-                restrictionsRoot,
-                NS_XMLA,
-                "RestrictionList");
-        if (childElems.length == 1) {
-            NodeList nlst = childElems[0].getChildNodes();
-            for (int i = 0, nlen = nlst.getLength(); i < nlen; i++) {
-                Node n = nlst.item(i);
-                if (n instanceof Element) {
-                    Element e = (Element) n;
-                    if (NS_XMLA.equals(e.getNamespaceURI())) {
-                        String key = e.getLocalName();
-                        String value = XmlaUtil.textInElement(e);
-
-                        List<String> values;
-                        if (restrictions.containsKey(key)) {
-                            values = restrictions.get(key);
-                        } else {
-                            values = new ArrayList<String>();
-                            restrictions.put(key, values);
-                        }
-
-                        if (LOGGER.isDebugEnabled()) {
-                            LOGGER.debug(
-                                "DefaultXmlaRequest.initRestrictions: "
-                                + " key=\""
-                                + key
-                                + "\", value=\""
-                                + value
-                                + "\"");
-                        }
-
-                        values.add(value);
-                    }
-                }
-            }
-        } else if (childElems.length > 1) {
+        if (body.getRestrictionListCount() > 1) {
             StringBuilder buf = new StringBuilder(100);
             buf.append(MSG_INVALID_XMLA);
             buf.append(": Wrong number of RestrictionList elements: ");
-            buf.append(childElems.length);
+            buf.append(body.getRestrictionListCount());
             throw new XmlaException(
                 CLIENT_FAULT_FC,
                 HSB_BAD_RESTRICTION_LIST_CODE,
                 HSB_BAD_RESTRICTION_LIST_FAULT_FS,
                 Util.newError(buf.toString()));
         }
+        Map<String, List<String>> restrictions = body.getRestrictions();
+        if (LOGGER.isDebugEnabled()) {
+            for (Map.Entry<String, List<String>> entry
+                : restrictions.entrySet())
+            {
+                LOGGER.debug(
+                    "DefaultXmlaRequest.initRestrictions: "
+                    + " key=\""
+                    + entry.getKey()
+                    + "\", value=\""
+                    + entry.getValue()
+                    + "\"");
+            }
+        }
 
         // If there is a Catalog property,
         // we have to consider it a constraint as well.
@@ -348,71 +297,61 @@ public class DefaultXmlaRequest
         this.restrictions = (Map)restrictions;
     }
 
-    private void initProperties(Element propertiesRoot) throws XmlaException {
+    private void initProperties(SoapMessage.Body body) throws XmlaException {
         Map<String, String> properties = new HashMap<String, String>();
-        Element[] childElems =
-            XmlaUtil.filterChildElements(
-                propertiesRoot,
-                NS_XMLA,
-                "PropertyList");
-        if (childElems.length == 1) {
-            NodeList nlst = childElems[0].getChildNodes();
-            for (int i = 0, nlen = nlst.getLength(); i < nlen; i++) {
-                Node n = nlst.item(i);
-                if (n instanceof Element) {
-                    Element e = (Element) n;
-                    if (NS_XMLA.equals(e.getNamespaceURI())) {
-                        String key = e.getLocalName();
-                        String value = XmlaUtil.textInElement(e);
-
-                        if (LOGGER.isDebugEnabled()) {
-                            LOGGER.debug(
-                                "DefaultXmlaRequest.initProperties: "
-                                + " key=\""
-                                + key
-                                + "\", value=\""
-                                + value
-                                + "\"");
-                        }
-                        
-                        //change Native Format to Multidimensional Format here
-                        //Mondrian can not handle OLAP message with Native format.
-                        if(key.equalsIgnoreCase("Format") && value.equalsIgnoreCase("Native")){
-                           value = "Multidimensional";
-                           properties.put("AxisFormat", "TupleFormat");
-                        }
-                        
-
-                        properties.put(key, value);
-                        
-                        if(!properties.containsKey("Catalog") && PropertyDefinition.getCatalogValue() != null && !PropertyDefinition.getCatalogValue().equals("")){
-                        	properties.put("Catalog", PropertyDefinition.getCatalogValue());
-                        	
-
-                            if (LOGGER.isDebugEnabled()) {
-                                LOGGER.debug(
-                                    "DefaultXmlaRequest.initProperties: "
-                                    + " key=\""
-                                    + "Catalog"
-                                    + "\", value=\""
-                                    + PropertyDefinition.getCatalogValue()
-                                    + "\"");
-                            }
-                            
-                        }
-                        
-                        else if(properties.containsKey("Catalog")){
-                        	PropertyDefinition.setCatalogValue(properties.get("Catalog"));
-                        }
-
-                  }
+        if (body.getPropertyListCount() == 1) {
+            for (Map.Entry<String, String> entry
+                : body.getProperties().entrySet())
+            {
+                String key = entry.getKey();
+                String value = entry.getValue();
+
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug(
+                        "DefaultXmlaRequest.initProperties: "
+                        + " key=\""
+                        + key
+                        + "\", value=\""
+                        + value
+                        + "\"");
+                }
+
+                //change Native Format to Multidimensional Format here
+                //Mondrian can not handle OLAP message with Native format.
+                if(key.equalsIgnoreCase("Format") && value.equalsIgnoreCase("Native")){
+                   value = "Multidimensional";
+                   properties.put("AxisFormat", "TupleFormat");
+                }
+
+
+                properties.put(key, value);
+
+                final String defaultCatalog = context.getDefaultCatalog();
+                if(!properties.containsKey("Catalog") && defaultCatalog != null && !defaultCatalog.equals("")){
+                	properties.put("Catalog", defaultCatalog);
+
+
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug(
+                            "DefaultXmlaRequest.initProperties: "
+                            + " key=\""
+                            + "Catalog"
+                            + "\", value=\""
+                            + defaultCatalog
+                            + "\"");
+                    }
+
+                }
+
+                else if(properties.containsKey("Catalog") && context.getSession() != null){
+                	context.getSession().setCatalog(properties.get("Catalog"));
                 }
             }
-        } else if (childElems.length > 1) {
+        } else if (body.getPropertyListCount() > 1) {
             StringBuilder buf = new StringBuilder(100);
             buf.append(MSG_INVALID_XMLA);
             buf.append(": Wrong number of PropertyList elements: ");
-            buf.append(childElems.length);
+            buf.append(body.getPropertyListCount());
             throw new XmlaException(
                 CLIENT_FAULT_FC,
                 HSB_BAD_PROPERTIES_LIST_CODE,
@@ -424,24 +363,19 @@ public class DefaultXmlaRequest
     }
 
 
-    private void initCommand(Element commandRoot) throws XmlaException {
-        Element[] childElems =
-            XmlaUtil.filterChildElements(
-                commandRoot,
-                NS_XMLA,
-                "Statement");
-        if (childElems.length != 1) {
+    private void initCommand(SoapMessage.Body body) throws XmlaException {
+        if (body.getStatementCount() != 1) {
             StringBuilder buf = new StringBuilder(100);
             buf.append(MSG_INVALID_XMLA);
             buf.append(": Wrong number of Statement elements: ");
-            buf.append(childElems.length);
+            buf.append(body.getStatementCount());
             throw new XmlaException(
                 CLIENT_FAULT_FC,
                 HSB_BAD_STATEMENT_CODE,
                 HSB_BAD_STATEMENT_FAULT_FS,
                 Util.newError(buf.toString()));
         }
-        statement = XmlaUtil.textInElement(childElems[0]).replaceAll("\\r", "");
+        statement = body.getStatement().replace("\r", "");
         drillthrough = statement.toUpperCase().indexOf("DRILLTHROUGH") != -1;
     }
     
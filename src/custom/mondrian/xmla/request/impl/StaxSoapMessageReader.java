@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.request.impl;
+
+import static custom.mondrian.xmla.handler.XmlaConstants.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xml.sax.SAXException;
+
+import custom.mondrian.xmla.exception.XmlaException;
+import custom.mondrian.xmla.request.SoapMessage;
+
+/**
+ * Reads a SOAP request with a StAX pull parser, in one pass over the servlet
+ * input stream and without building a DOM.
+ *
+ * <p>
+ * Only the parts the bridge uses are kept (see {@link SoapMessage}); anything
+ * else in the Envelope is skipped as it streams by. Junk some clients send in
+ * front of the first element is dropped on the fly.
+ */
+
+public final class StaxSoapMessageReader {
+
+   private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+   private StaxSoapMessageReader() {
+   }
+
+   private static XMLInputFactory createInputFactory() {
+      XMLInputFactory factory = XMLInputFactory.newInstance();
+      factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+      factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+      // SOAP messages must not contain a DTD
+      factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+      factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+      return factory;
+   }
+
+   /**
+    * Parses a SOAP 1.1 request.
+    *
+    * @param inputStream
+    *           request body, read once and not closed
+    * @return parsed message
+    */
+   public static SoapMessage read(InputStream inputStream) throws XmlaException {
+      XMLStreamReader reader = null;
+      try {
+         reader = INPUT_FACTORY.createXMLStreamReader(skipLeadingJunk(inputStream));
+         SoapMessage message = new SoapMessage();
+
+         reader.nextTag();
+         if (!"Envelope".equals(reader.getLocalName())) {
+            throw new XmlaException(CLIENT_FAULT_FC, USM_DOM_PARSE_CODE, USM_DOM_PARSE_FAULT_FS, new SAXException("Invalid SOAP message: " + "Top element not Envelope"));
+         }
+         if (!NS_SOAP_ENV_1_1.equals(reader.getNamespaceURI())) {
+            throw new XmlaException(CLIENT_FAULT_FC, USM_DOM_PARSE_CODE, USM_DOM_PARSE_FAULT_FS, new SAXException("Invalid SOAP message: "
+                     + "Envelope element not in SOAP namespace"));
+         }
+
+         int bodyCount = 0;
+         while (nextChild(reader)) {
+            if (!NS_SOAP_ENV_1_1.equals(reader.getNamespaceURI())) {
+               skipElement(reader);
+            } else if ("Header".equals(reader.getLocalName())) {
+               if (message.hasHeader()) {
+                  throw new XmlaException(CLIENT_FAULT_FC, USM_DOM_PARSE_CODE, USM_DOM_PARSE_FAULT_FS, new SAXException("Invalid SOAP message: " + "More than one Header elements"));
+               }
+               message.setHasHeader(true);
+               readHeader(reader, message);
+            } else if ("Body".equals(reader.getLocalName())) {
+               if (++bodyCount > 1) {
+                  break;
+               }
+               readBody(reader, message);
+            } else {
+               skipElement(reader);
+            }
+         }
+         if (bodyCount != 1) {
+            throw new XmlaException(CLIENT_FAULT_FC, USM_DOM_PARSE_CODE, USM_DOM_PARSE_FAULT_FS, new SAXException("Invalid SOAP message: " + "Does not have one Body element"));
+         }
+         return message;
+      } catch (IOException ex) {
+         // This is either Client or Server
+         throw new XmlaException(SERVER_FAULT_FC, USM_DOM_PARSE_IO_CODE, USM_DOM_PARSE_IO_FAULT_FS, ex);
+      } catch (XMLStreamException ex) {
+         if (ex.getNestedException() instanceof IOException) {
+            throw new XmlaException(SERVER_FAULT_FC, USM_DOM_PARSE_IO_CODE, USM_DOM_PARSE_IO_FAULT_FS, ex);
+         }
+         throw new XmlaException(CLIENT_FAULT_FC, USM_DOM_PARSE_CODE, USM_DOM_PARSE_FAULT_FS, ex);
+      } finally {
+         if (reader != null) {
+            try {
+               reader.close();
+            } catch (XMLStreamException e) {
+               // nothing more to read
+            }
+         }
+      }
+   }
+
+   /**
+    * Some clients send bytes in front of "&lt;Envelope" on the first line.
+    * Skips up to the first '&lt;' unless the stream starts with markup or a
+    * byte order mark, in which case it's left as it is.
+    */
+   private static InputStream skipLeadingJunk(InputStream inputStream) throws IOException {
+      PushbackInputStream in = new PushbackInputStream(inputStream, 1);
+      int b = in.read();
+      if (b == -1) {
+         return in;
+      }
+      if (b == '<' || b == 0xEF || b == 0xFE || b == 0xFF || b == 0) {
+         in.unread(b);
+         return in;
+      }
+      while (b != -1 && b != '<') {
+         b = in.read();
+      }
+      if (b != -1) {
+         in.unread(b);
+      }
+      return in;
+   }
+
+   private static void readHeader(XMLStreamReader reader, SoapMessage message) throws XMLStreamException {
+      while (nextChild(reader)) {
+         Map<String, String> attributes = null;
+         int attrCount = reader.getAttributeCount();
+         if (attrCount > 0) {
+            attributes = new HashMap<String, String>(attrCount * 2);
+            for (int i = 0; i < attrCount; i++) {
+               attributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            }
+         }
+         SoapMessage.HeaderEntry entry = new SoapMessage.HeaderEntry(reader.getNamespaceURI(), reader.getLocalName(), attributes);
+         if (XMLA_SECURITY.equals(entry.getLocalName()) && NS_SOAP_SECEXT.equals(entry.getNamespaceURI())) {
+            // <Security><UsernameToken><Username/><Password/></UsernameToken></Security>
+            readSecurity(reader, entry);
+         } else {
+            skipElement(reader);
+         }
+         message.addHeaderEntry(entry);
+      }
+   }
+
+   private static void readSecurity(XMLStreamReader reader, SoapMessage.HeaderEntry entry) throws XMLStreamException {
+      int depth = 1;
+      while (depth > 0) {
+         switch (reader.next()) {
+         case XMLStreamConstants.START_ELEMENT:
+            if ("Username".equals(reader.getLocalName())) {
+               entry.setUsername(readText(reader));
+            } else if ("Password".equals(reader.getLocalName())) {
+               entry.setPassword(readText(reader));
+            } else {
+               depth++;
+            }
+            break;
+         case XMLStreamConstants.END_ELEMENT:
+            depth--;
+            break;
+         }
+      }
+   }
+
+   private static void readBody(XMLStreamReader reader, SoapMessage message) throws XMLStreamException {
+      while (nextChild(reader)) {
+         if (!NS_XMLA.equals(reader.getNamespaceURI())) {
+            skipElement(reader);
+            continue;
+         }
+         String localName = reader.getLocalName();
+         if ("Discover".equals(localName)) {
+            message.incDiscoverCount();
+         } else if ("Execute".equals(localName)) {
+            message.incExecuteCount();
+         } else {
+            skipElement(reader);
+            continue;
+         }
+         // Only the first request is read; more than one is a fault anyway
+         if (message.getDiscoverCount() + message.getExecuteCount() == 1) {
+            readMethod(reader, message.getBody());
+         } else {
+            skipElement(reader);
+         }
+      }
+   }
+
+   private static void readMethod(XMLStreamReader reader, SoapMessage.Body body) throws XMLStreamException {
+      body.setMethod(reader.getNamespaceURI(), reader.getLocalName());
+      while (nextChild(reader)) {
+         if (!NS_XMLA.equals(reader.getNamespaceURI())) {
+            skipElement(reader);
+            continue;
+         }
+         String localName = reader.getLocalName();
+         if ("RequestType".equals(localName)) {
+            body.addRequestType(readText(reader));
+         } else if ("Command".equals(localName)) {
+            body.incCommandCount();
+            readCommand(reader, body);
+         } else if ("Properties".equals(localName)) {
+            body.incPropertiesCount();
+            readList(reader, body, true);
+         } else if ("Restrictions".equals(localName)) {
+            body.incRestrictionsCount();
+            readList(reader, body, false);
+         } else {
+            skipElement(reader);
+         }
+      }
+   }
+
+   private static void readCommand(XMLStreamReader reader, SoapMessage.Body body) throws XMLStreamException {
+      while (nextChild(reader)) {
+         if (NS_XMLA.equals(reader.getNamespaceURI()) && "Statement".equals(reader.getLocalName())) {
+            body.addStatement(readText(reader));
+         } else {
+            skipElement(reader);
+         }
+      }
+   }
+
+   /**
+    * Reads &lt;Properties&gt;&lt;PropertyList&gt; or
+    * &lt;Restrictions&gt;&lt;RestrictionList&gt;.
+    */
+   private static void readList(XMLStreamReader reader, SoapMessage.Body body, boolean properties) throws XMLStreamException {
+      String listName = properties ? "PropertyList" : "RestrictionList";
+      while (nextChild(reader)) {
+         if (!NS_XMLA.equals(reader.getNamespaceURI()) || !listName.equals(reader.getLocalName())) {
+            skipElement(reader);
+            continue;
+         }
+         if (properties) {
+            body.incPropertyListCount();
+         } else {
+            body.incRestrictionListCount();
+         }
+         while (nextChild(reader)) {
+            if (!NS_XMLA.equals(reader.getNamespaceURI())) {
+               skipElement(reader);
+               continue;
+            }
+            String key = reader.getLocalName();
+            String value = readText(reader);
+            if (properties) {
+               body.addProperty(key, value);
+            } else {
+               body.addRestriction(key, value);
+            }
+         }
+      }
+   }
+
+   /**
+    * Moves to the next child element of the current element.
+    *
+    * @return false once the end tag of the current element is reached
+    */
+   private static boolean nextChild(XMLStreamReader reader) throws XMLStreamException {
+      while (reader.hasNext()) {
+         switch (reader.next()) {
+         case XMLStreamConstants.START_ELEMENT:
+            return true;
+         case XMLStreamConstants.END_ELEMENT:
+            return false;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Returns the text directly under the current element, ignoring text of
+    * nested elements, and leaves the reader on its end tag.
+    */
+   private static String readText(XMLStreamReader reader) throws XMLStreamException {
+      String first = null;
+      StringBuilder buf = null;
+      int depth = 1;
+      while (depth > 0) {
+         switch (reader.next()) {
+         case XMLStreamConstants.START_ELEMENT:
+            depth++;
+            break;
+         case XMLStreamConstants.END_ELEMENT:
+            depth--;
+            break;
+         case XMLStreamConstants.CHARACTERS:
+         case XMLStreamConstants.CDATA:
+         case XMLStreamConstants.SPACE:
+            if (depth == 1) {
+               if (first == null) {
+                  first = reader.getText();
+               } else {
+                  if (buf == null) {
+                     buf = new StringBuilder(first);
+                  }
+                  buf.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+               }
+            }
+            break;
+         }
+      }
+      if (buf != null) {
+         return buf.toString();
+      }
+      return first == null ? "" : first;
+   }
+
+   /**
+    * Skips the current element and all its content.
+    */
+   private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+      int depth = 1;
+      while (depth > 0) {
+         switch (reader.next()) {
+         case XMLStreamConstants.START_ELEMENT:
+            depth++;
+            break;
+         case XMLStreamConstants.END_ELEMENT:
+            depth--;
+            break;
+         }
+      }
+   }
+}
+
+// End StaxSoapMessageReader.java
@@ -9,19 +9,19 @@
 */
 package custom.mondrian.xmla.response.impl;
 
-import mondrian.olap.MondrianException;
 import mondrian.olap.Util;
+import custom.mondrian.properties.ExternalProperties;
 import custom.mondrian.xmla.handler.Enumeration;
 import custom.mondrian.xmla.handler.XmlaUtil;
 import custom.mondrian.xmla.response.XmlaResponse;
+import custom.mondrian.xmla.writer.CompactSaxWriter;
 import custom.mondrian.xmla.writer.DefaultSaxWriter;
+import custom.mondrian.xmla.writer.JsonSaxWriter;
 import custom.mondrian.xmla.writer.SaxWriter;
 
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 
-import org.apache.log4j.Logger;
-
 /**
  * Default implementation of {@link mondrian.xmla.XmlaResponse}.
  *
@@ -29,9 +29,6 @@ import org.apache.log4j.Logger;
  */
 public class DefaultXmlaResponse implements XmlaResponse  {
 
-   private static final Logger LOGGER =
-            Logger.getLogger(DefaultXmlaResponse.class);
-   
     // TODO: add a msg to MondrianResource for this.
     private static final String MSG_ENCODING_ERROR = "Encoding unsupported: ";
 
@@ -45,17 +42,28 @@ public class DefaultXmlaResponse implements XmlaResponse  {
     {
        initWriter(encoding, responseMimeType, outputStream);
     }
-    
+
+    /**
+     * Creates a response that writes to an existing writer, e.g. one
+     * capturing a response to be cached.
+     */
+    public DefaultXmlaResponse(SaxWriter writer) {
+        this.writer = writer;
+    }
+
     private void initWriter( String encoding, Enumeration.ResponseMimeType responseMimeType, OutputStream outputStream) {
        try {
           switch (responseMimeType) {
           case JSON:
-             writer = null;
-             LOGGER.error("Can not support JSON message, please use SOAP instead");
-             throw new MondrianException("Can not support JSON message, please use SOAP instead");
+             writer = new JsonSaxWriter(outputStream);
+             break;
           case SOAP:
           default:
-              writer = new DefaultSaxWriter(outputStream, encoding);
+              if (isCompact(encoding)) {
+                  writer = new CompactSaxWriter(outputStream);
+              } else {
+                  writer = new DefaultSaxWriter(outputStream, encoding);
+              }
               break;
           }
       } catch (UnsupportedEncodingException uee) {
@@ -63,6 +71,11 @@ public class DefaultXmlaResponse implements XmlaResponse  {
       }
     }
 
+    private static boolean isCompact(String encoding) {
+        return (encoding == null || "UTF-8".equalsIgnoreCase(encoding) || "UTF8".equalsIgnoreCase(encoding))
+            && ExternalProperties.getInstance().isCompactResponse();
+    }
+
     public SaxWriter getWriter() {
         return writer;
     }
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.response.impl;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Flushes the underlying stream every time <code>flushInterval</code> bytes
+ * have gone through it. Wrapped around the servlet output stream, this sends
+ * a streamed response to the client in chunks as it is produced instead of
+ * when the container buffer happens to fill up.
+ *
+ * <p>
+ * {@link #close()} flushes but does not close the servlet stream, which
+ * belongs to the container.
+ */
+
+public class PeriodicFlushOutputStream extends FilterOutputStream {
+
+   private final int flushInterval;
+   private int unflushed;
+
+   public PeriodicFlushOutputStream(OutputStream out, int flushInterval) {
+      super(out);
+      this.flushInterval = flushInterval;
+   }
+
+   @Override
+   public void write(int b) throws IOException {
+      out.write(b);
+      if (++unflushed >= flushInterval) {
+         flush();
+      }
+   }
+
+   @Override
+   public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      unflushed += len;
+      if (unflushed >= flushInterval) {
+         flush();
+      }
+   }
+
+   @Override
+   public void flush() throws IOException {
+      unflushed = 0;
+      out.flush();
+   }
+
+   @Override
+   public void close() throws IOException {
+      flush();
+   }
+}
+
+// End PeriodicFlushOutputStream.java
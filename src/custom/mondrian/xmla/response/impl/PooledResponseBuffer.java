@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.response.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Response body written to a chain of pooled direct buffer segments.
+ *
+ * <p>
+ * Once a response grows beyond the per-request cap, what was written so far
+ * is moved to a temp file, the segments go back to the pool and the rest of
+ * the response is appended to the file. The content stays available until
+ * {@link #release()} is called; {@link #close()} does not discard it.
+ *
+ * <p>
+ * The servlet output stream takes byte arrays, so the content is copied to
+ * it through one small heap array; there is no zero-copy path to the
+ * client.
+ */
+
+public class PooledResponseBuffer extends OutputStream {
+
+   private static final Logger LOGGER = Logger.getLogger(PooledResponseBuffer.class);
+
+   /** Bytes copied to the output stream at a time */
+   private static final int COPY_SIZE = 8192;
+
+   private final ResponseBufferPool pool;
+   private final long maxInMemory;
+   private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+   /** Segment being written; once spilled, the write buffer of the file */
+   private ByteBuffer current;
+   private long size;
+
+   private File spillFile;
+   private FileChannel spillChannel;
+
+   PooledResponseBuffer(ResponseBufferPool pool, long maxInMemory) {
+      this.pool = pool;
+      this.maxInMemory = maxInMemory;
+   }
+
+   @Override
+   public void write(int b) throws IOException {
+      ensureCurrent();
+      current.put((byte) b);
+      size++;
+   }
+
+   @Override
+   public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+         ensureCurrent();
+         int n = Math.min(len, current.remaining());
+         current.put(b, off, n);
+         off += n;
+         len -= n;
+         size += n;
+      }
+   }
+
+   private void ensureCurrent() throws IOException {
+      if (current != null && current.hasRemaining()) {
+         return;
+      }
+      if (spillChannel != null) {
+         drainToFile();
+      } else if ((long) (segments.size() + 1) * pool.getSegmentSize() > maxInMemory) {
+         spill();
+      } else {
+         current = pool.acquire();
+         segments.add(current);
+      }
+   }
+
+   /**
+    * Moves the segments to a temp file and gives them back to the pool.
+    */
+   private void spill() throws IOException {
+      spillFile = File.createTempFile("xmla-response", ".tmp");
+      spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+      if (LOGGER.isDebugEnabled()) {
+         LOGGER.debug("Response exceeds " + maxInMemory + " bytes, spilling to " + spillFile);
+      }
+      for (ByteBuffer segment : segments) {
+         segment.flip();
+         while (segment.hasRemaining()) {
+            spillChannel.write(segment);
+         }
+         pool.release(segment);
+      }
+      segments.clear();
+      current = pool.acquire();
+   }
+
+   private void drainToFile() throws IOException {
+      current.flip();
+      while (current.hasRemaining()) {
+         spillChannel.write(current);
+      }
+      current.clear();
+   }
+
+   /**
+    * @return number of bytes written
+    */
+   public long size() {
+      return size;
+   }
+
+   public boolean isSpilled() {
+      return spillChannel != null;
+   }
+
+   /**
+    * Returns read-only views of the content, or null if it was spilled to a
+    * file. The views are only valid until {@link #release()}.
+    */
+   public ByteBuffer[] getBuffers() {
+      if (spillChannel != null) {
+         return null;
+      }
+      ByteBuffer[] buffers = new ByteBuffer[segments.size()];
+      for (int i = 0; i < buffers.length; i++) {
+         ByteBuffer view = segments.get(i).asReadOnlyBuffer();
+         view.flip();
+         buffers[i] = view;
+      }
+      return buffers;
+   }
+
+   /**
+    * Writes the whole content to a stream, through a heap array of at most
+    * {@link #COPY_SIZE} bytes.
+    */
+   public void writeTo(OutputStream out) throws IOException {
+      final byte[] copy = new byte[(int) Math.min(COPY_SIZE, Math.max(size, 1))];
+      if (spillChannel == null) {
+         for (ByteBuffer buffer : getBuffers()) {
+            while (buffer.hasRemaining()) {
+               int n = Math.min(copy.length, buffer.remaining());
+               buffer.get(copy, 0, n);
+               out.write(copy, 0, n);
+            }
+         }
+         return;
+      }
+      drainToFile();
+      final ByteBuffer target = ByteBuffer.wrap(copy);
+      long position = 0;
+      while (position < size) {
+         target.clear();
+         int n = spillChannel.read(target, position);
+         if (n < 0) {
+            break;
+         }
+         out.write(copy, 0, n);
+         position += n;
+      }
+   }
+
+   /**
+    * Copies the content to a heap array, for callbacks that need the
+    * response as bytes.
+    */
+   public byte[] toByteArray() throws IOException {
+      if (size > Integer.MAX_VALUE) {
+         throw new IOException("Response too large for a byte array: " + size + " bytes");
+      }
+      byte[] bytes = new byte[(int) size];
+      if (spillChannel == null) {
+         int off = 0;
+         for (ByteBuffer buffer : getBuffers()) {
+            int n = buffer.remaining();
+            buffer.get(bytes, off, n);
+            off += n;
+         }
+      } else {
+         drainToFile();
+         ByteBuffer target = ByteBuffer.wrap(bytes);
+         long position = 0;
+         while (target.hasRemaining()) {
+            int n = spillChannel.read(target, position);
+            if (n < 0) {
+               break;
+            }
+            position += n;
+         }
+      }
+      return bytes;
+   }
+
+   /**
+    * Gives the segments back to the pool and deletes the spill file.
+    */
+   public void release() {
+      for (ByteBuffer segment : segments) {
+         pool.release(segment);
+      }
+      if (spillChannel != null) {
+         pool.release(current);
+         try {
+            spillChannel.close();
+         } catch (IOException e) {
+            LOGGER.warn("Failed to close " + spillFile, e);
+         }
+         if (!spillFile.delete()) {
+            LOGGER.warn("Failed to delete " + spillFile);
+         }
+         spillChannel = null;
+      }
+      segments.clear();
+      current = null;
+      size = 0;
+   }
+}
+
+// End PooledResponseBuffer.java
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.response.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import custom.mondrian.properties.ExternalProperties;
+
+/**
+ * Pool of fixed-size direct {@link ByteBuffer} segments that response bodies
+ * are written to. Segments are recycled across requests, so large responses
+ * no longer allocate (and copy) huge heap arrays.
+ *
+ * <p>
+ * At most <code>maxPooled</code> free segments are kept; extra segments are
+ * left to the garbage collector.
+ */
+
+public class ResponseBufferPool {
+
+   private static ResponseBufferPool instance;
+
+   private final int segmentSize;
+   private final int maxPooled;
+   private final int maxInMemory;
+   private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+   private final AtomicInteger freeCount = new AtomicInteger();
+
+   public ResponseBufferPool(int segmentSize, int maxPooled, int maxInMemory) {
+      this.segmentSize = segmentSize;
+      this.maxPooled = maxPooled;
+      this.maxInMemory = maxInMemory;
+   }
+
+   /**
+    * @return pool configured by custom.mondrian.properties
+    */
+   public static synchronized ResponseBufferPool getInstance() {
+      if (instance == null) {
+         ExternalProperties props = ExternalProperties.getInstance();
+         instance = new ResponseBufferPool(props.getResponseSegmentSize(), props.getResponsePooledSegments(), props.getResponseMaxInMemory());
+      }
+      return instance;
+   }
+
+   /**
+    * Creates an empty buffer for one response.
+    */
+   public PooledResponseBuffer newBuffer() {
+      return new PooledResponseBuffer(this, maxInMemory);
+   }
+
+   int getSegmentSize() {
+      return segmentSize;
+   }
+
+   ByteBuffer acquire() {
+      ByteBuffer segment = free.poll();
+      if (segment == null) {
+         return ByteBuffer.allocateDirect(segmentSize);
+      }
+      freeCount.decrementAndGet();
+      segment.clear();
+      return segment;
+   }
+
+   void release(ByteBuffer segment) {
+      if (segment.capacity() != segmentSize) {
+         return;
+      }
+      if (freeCount.incrementAndGet() <= maxPooled) {
+         free.offer(segment);
+      } else {
+         freeCount.decrementAndGet();
+      }
+   }
+}
+
+// End ResponseBufferPool.java
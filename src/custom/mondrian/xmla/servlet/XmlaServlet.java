@@ -12,13 +12,12 @@ package custom.mondrian.xmla.servlet;
 
 import org.apache.log4j.Logger;
 
-import org.w3c.dom.Element;
-
 import custom.mondrian.properties.ExternalProperties;
 import custom.mondrian.xmla.exception.XmlaException;
 import custom.mondrian.xmla.handler.Enumeration;
 import custom.mondrian.xmla.handler.XmlaConstants;
 import custom.mondrian.xmla.handler.CustomXmlaHandler;
+import custom.mondrian.xmla.request.SoapMessage;
 import custom.mondrian.xmla.request.XmlaRequestCallback;
 import java.util.*;
 import javax.servlet.ServletConfig;
@@ -149,10 +148,11 @@ public abstract class XmlaServlet
 
     /**
      * Implement to provide application specified SOAP unmarshalling algorithm.
+     *
+     * @return the parsed request, read from the request stream in one pass
      */
-    protected abstract void unmarshallSoapMessage(
-        HttpServletRequest request,
-        Element[] requestSoapParts)
+    protected abstract SoapMessage unmarshallSoapMessage(
+        HttpServletRequest request)
         throws XmlaException;
 
     /**
@@ -160,7 +160,7 @@ public abstract class XmlaServlet
      */
     protected abstract void handleSoapHeader(
         HttpServletResponse response,
-        Element[] requestSoapParts,
+        SoapMessage requestSoapMessage,
         byte[][] responseSoapParts,
         Map<String, Object> context)
         throws XmlaException;
@@ -170,7 +170,7 @@ public abstract class XmlaServlet
      */
     protected abstract void handleSoapBody(
         HttpServletResponse response,
-        Element[] requestSoapParts,
+        SoapMessage requestSoapMessage,
         byte[][] responseSoapParts,
         Map<String, Object> context)
         throws XmlaException;
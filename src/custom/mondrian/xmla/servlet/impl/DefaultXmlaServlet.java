@@ -13,32 +13,34 @@ import custom.mondrian.xmla.exception.AuthenticateException;
 import custom.mondrian.xmla.exception.XmlaException;
 import custom.mondrian.xmla.handler.Enumeration;
 import custom.mondrian.xmla.handler.XmlaConstants;
-import custom.mondrian.xmla.handler.XmlaUtil;
 import custom.mondrian.xmla.handler.Enumeration.ResponseMimeType;
+import custom.mondrian.xmla.request.SoapMessage;
+import custom.mondrian.xmla.request.StreamingXmlaRequestCallback;
 import custom.mondrian.xmla.request.XmlaRequest;
 import custom.mondrian.xmla.request.XmlaRequestCallback;
+import custom.mondrian.xmla.request.XmlaRequestContext;
+import custom.mondrian.xmla.request.XmlaSession;
+import custom.mondrian.xmla.request.XmlaSessionRegistry;
 import custom.mondrian.xmla.request.impl.DefaultXmlaRequest;
+import custom.mondrian.xmla.request.impl.StaxSoapMessageReader;
 import custom.mondrian.xmla.response.XmlaResponse;
 import custom.mondrian.xmla.response.impl.DefaultXmlaResponse;
+import custom.mondrian.xmla.response.impl.PeriodicFlushOutputStream;
+import custom.mondrian.xmla.response.impl.PooledResponseBuffer;
+import custom.mondrian.xmla.response.impl.ResponseBufferPool;
 import custom.mondrian.xmla.servlet.XmlaServlet;
 import custom.mondrian.xmla.writer.DefaultSaxWriter;
+import custom.mondrian.xmla.writer.JsonSaxWriter;
 import custom.mondrian.xmla.writer.SaxWriter;
 
-import mondrian.olap.MondrianException;
-import org.w3c.dom.*;
 import org.xml.sax.SAXException;
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
-import java.security.Principal;
-import java.util.HashMap;
 import java.util.Map;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.parsers.*;
 
 /**
  * Default implementation of XML/A servlet.
@@ -55,53 +57,64 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
     * authenticated sessions.
     */
    private static final String REQUIRE_AUTHENTICATED_SESSIONS = "requireAuthenticatedSessions";
-
-   protected DocumentBuilderFactory domFactory = null;
+   /**
+    * Servlet config parameter that turns on streaming of the response body
+    * straight to the client.
+    */
+   private static final String STREAM_RESPONSE = "StreamResponse";
+   /**
+    * Servlet config parameter for the number of bytes after which a streamed
+    * response is flushed to the client.
+    */
+   private static final String STREAM_FLUSH_SIZE = "StreamFlushSize";
+   private static final int DEFAULT_STREAM_FLUSH_SIZE = 64 * 1024;
 
    private boolean requireAuthenticatedSessions = false;
-   protected String currentUri;
-   protected Principal userPrincipal;
-   protected String username;
-   protected String password;
+   private boolean streamResponse = false;
+   private int streamFlushSize = DEFAULT_STREAM_FLUSH_SIZE;
    protected String roleName = "user";
 
-   /**
-    * Session properties, keyed by session ID. Currently just username and
-    * password.
-    */
-   private final Map<String, SessionInfo> sessionInfos = new HashMap<String, SessionInfo>();
-
    public void init(ServletConfig servletConfig) throws ServletException {
-      this.domFactory = getDocumentBuilderFactory();
       super.init(servletConfig);
       this.requireAuthenticatedSessions = Boolean.parseBoolean(servletConfig.getInitParameter(REQUIRE_AUTHENTICATED_SESSIONS));
+      this.streamResponse = getBooleanInitParameter(servletConfig, STREAM_RESPONSE);
+      this.streamFlushSize = getStreamFlushSize(servletConfig.getInitParameter(STREAM_FLUSH_SIZE));
 
    }
 
-   protected static DocumentBuilderFactory getDocumentBuilderFactory() {
-      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-      factory.setIgnoringComments(true);
-      factory.setIgnoringElementContentWhitespace(true);
-      factory.setNamespaceAware(true);
-      return factory;
+   /**
+    * Parses the StreamFlushSize parameter. A missing, non-numeric or not
+    * positive value falls back to {@link #DEFAULT_STREAM_FLUSH_SIZE}, with a
+    * warning when responses are streamed.
+    */
+   private int getStreamFlushSize(String flushSize) {
+      int size = 0;
+      if (flushSize != null) {
+         try {
+            size = Integer.parseInt(flushSize.trim());
+         } catch (NumberFormatException e) {
+            size = 0;
+         }
+      }
+      if (size <= 0) {
+         if (flushSize != null || streamResponse) {
+            LOGGER.warn("Invalid or missing " + STREAM_FLUSH_SIZE + " '" + flushSize + "', using " + DEFAULT_STREAM_FLUSH_SIZE);
+         }
+         size = DEFAULT_STREAM_FLUSH_SIZE;
+      }
+      return size;
    }
 
    /**
-    * Populate requestSoapParts with request 
+    * Reads the request stream once with a pull parser; no DOM is built.
     */
-   protected void unmarshallSoapMessage(HttpServletRequest request, Element[] requestSoapParts) throws XmlaException {
+   protected SoapMessage unmarshallSoapMessage(HttpServletRequest request) throws XmlaException {
       try {
          InputStream inputStream;
-         InputStream tmpStream;
-         
-         DocumentBuilder domBuilder;
-         Document soapDoc = null;
 
-         
          //init inputStream
          try {
             inputStream = request.getInputStream();
-            tmpStream = request.getInputStream();
          } catch (IllegalStateException ex) {
             throw new XmlaException(SERVER_FAULT_FC, USM_REQUEST_STATE_CODE, USM_REQUEST_STATE_FAULT_FS, ex);
          } catch (IOException ex) {
@@ -109,86 +122,12 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
             throw new XmlaException(SERVER_FAULT_FC, USM_REQUEST_INPUT_CODE, USM_REQUEST_INPUT_FAULT_FS, ex);
          }
 
-         //init domBuilder
-         try { 
-            domBuilder = domFactory.newDocumentBuilder();
-         } catch (ParserConfigurationException ex) {
-            throw new XmlaException(SERVER_FAULT_FC, USM_DOM_FACTORY_CODE, USM_DOM_FACTORY_FAULT_FS, ex);
-         }
-
-         // init soapDoc
-         try {
-            
-            //clone inputstream to byteArrayOutputStream 
-            ByteArrayOutputStream stream = new ByteArrayOutputStream();
-            byte[] buffer = new byte[1024];
-            int len;
-            while ((len = inputStream.read(buffer)) > -1) {
-               stream.write(buffer, 0, len);
-            }
-            stream.flush();
-            
-            InputStream modified = new ByteArrayInputStream(stream.toByteArray());
-            InputStream original = new ByteArrayInputStream(stream.toByteArray());
-          
-            BufferedReader reader = new BufferedReader(new InputStreamReader(modified, "UTF8"));
-            String tmp1Str = reader.readLine();
-            StringBuilder modifiedReqStr = new StringBuilder();
-
-            if (tmp1Str != null && !tmp1Str.startsWith("<Envelope") && !tmp1Str.startsWith("<")) {
-               tmp1Str = tmp1Str.split("<Envelope")[1];
-               modifiedReqStr.append("<Envelope ");
-            
-
-            while (tmp1Str != null) {
-               modifiedReqStr.append(tmp1Str);
-               tmp1Str = reader.readLine();
-               modifiedReqStr.append("\n");
-            }
-            InputStream outputStream = new ByteArrayInputStream(modifiedReqStr.toString().getBytes(StandardCharsets.UTF_8));
-
-            soapDoc = domBuilder.parse(outputStream);
-            }
-            else
-               soapDoc = domBuilder.parse(original);
-         } catch (IOException ex) {
-            // This is either Client or Server
-            throw new XmlaException(SERVER_FAULT_FC, USM_DOM_PARSE_IO_CODE, USM_DOM_PARSE_IO_FAULT_FS, ex);
-         } catch (SAXException ex) {
-             throw new XmlaException(CLIENT_FAULT_FC, USM_DOM_PARSE_CODE,
-             USM_DOM_PARSE_FAULT_FS, ex);
-         }
-
-         /* Validate incoming XMLA request */
-         Element envElem = soapDoc.getDocumentElement();
-
          if (LOGGER.isDebugEnabled()) {
-            logXmlaRequest(envElem);
-         }
-
-         if ("Envelope".equals(envElem.getLocalName())) {
-            if (!(NS_SOAP_ENV_1_1.equals(envElem.getNamespaceURI()))) {
-               throw new XmlaException(CLIENT_FAULT_FC, USM_DOM_PARSE_CODE, USM_DOM_PARSE_FAULT_FS, new SAXException("Invalid SOAP message: "
-                        + "Envelope element not in SOAP namespace"));
-            }
-         } else {
-            throw new XmlaException(CLIENT_FAULT_FC, USM_DOM_PARSE_CODE, USM_DOM_PARSE_FAULT_FS, new SAXException("Invalid SOAP message: " + "Top element not Envelope"));
-         }
-
-         /* Get request Header */
-         Element[] childs = XmlaUtil.filterChildElements(envElem, NS_SOAP_ENV_1_1, "Header");
-         if (childs.length > 1) {
-            throw new XmlaException(CLIENT_FAULT_FC, USM_DOM_PARSE_CODE, USM_DOM_PARSE_FAULT_FS, new SAXException("Invalid SOAP message: " + "More than one Header elements"));
+            // only buffer the request when it is going to be logged
+            inputStream = logXmlaRequest(inputStream);
          }
-         requestSoapParts[0] = childs.length == 1 ? childs[0] : null;
 
-         /* Get request Body */
-         childs = XmlaUtil.filterChildElements(envElem, NS_SOAP_ENV_1_1, "Body");
-         if (childs.length != 1) {
-            throw new XmlaException(CLIENT_FAULT_FC, USM_DOM_PARSE_CODE, USM_DOM_PARSE_FAULT_FS, new SAXException("Invalid SOAP message: " + "Does not have one Body element"));
-         }
-         requestSoapParts[1] = childs[0];
-         
+         return StaxSoapMessageReader.read(inputStream);
       } catch (XmlaException xex) {
          throw xex;
       } catch (Exception ex) {
@@ -198,15 +137,24 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
 
    /**
     * Log incoming XMLA request
-    * @param envElem
+    * @param inputStream request stream
+    * @return stream over the logged bytes
     */
-   protected void logXmlaRequest(Element envElem) {
-      final StringWriter writer = new StringWriter();
-      writer.write("XML/A request content");
-      writer.write(nl);
-      XmlaUtil.element2Text(envElem, writer);
+   protected InputStream logXmlaRequest(InputStream inputStream) throws XmlaException {
+      ByteArrayOutputStream stream = new ByteArrayOutputStream();
+      try {
+         byte[] buffer = new byte[4096];
+         int len;
+         while ((len = inputStream.read(buffer)) > -1) {
+            stream.write(buffer, 0, len);
+         }
+      } catch (IOException ex) {
+         throw new XmlaException(SERVER_FAULT_FC, USM_DOM_PARSE_IO_CODE, USM_DOM_PARSE_IO_FAULT_FS, ex);
+      }
+      byte[] bytes = stream.toByteArray();
       if(LOGGER.isDebugEnabled())
-         LOGGER.debug(writer.toString());
+         LOGGER.debug("XML/A request content" + nl + new String(bytes, StandardCharsets.UTF_8));
+      return new ByteArrayInputStream(bytes);
    }
 
    /**
@@ -217,10 +165,9 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
     * Authentication
     * Security
     */
-   protected void handleSoapHeader(HttpServletResponse response, Element[] requestSoapParts, byte[][] responseSoapParts, Map<String, Object> context) throws XmlaException {
+   protected void handleSoapHeader(HttpServletResponse response, SoapMessage requestSoapMessage, byte[][] responseSoapParts, Map<String, Object> context) throws XmlaException {
       try {
-         Element hdrElem = requestSoapParts[0];
-         if ((hdrElem == null) || (!hdrElem.hasChildNodes())) {
+         if (!requestSoapMessage.hasHeader() || requestSoapMessage.getHeaderEntries().isEmpty()) {
             return;
          }
 
@@ -228,16 +175,13 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
 
          byte[] bytes = null;
 
-         NodeList nlst = hdrElem.getChildNodes();
-         int nlen = nlst.getLength();
-         boolean authenticatedSession = (this.userPrincipal != null);
+         XmlaRequestContext requestContext = getRequestContext(context);
+         boolean authenticatedSession = (requestContext.getPrincipal() != null);
+         // credentials a new session is begun with
+         String sessionUser = requestContext.getUsername();
+         String sessionPassword = requestContext.getPassword();
          boolean beginSession = false;
-         for (int i = 0; i < nlen; i++) {
-            Node n = nlst.item(i);
-            if (!(n instanceof Element)) {
-               continue;
-            }
-            Element e = (Element) n;
+         for (SoapMessage.HeaderEntry e : requestSoapMessage.getHeaderEntries()) {
             String localName = e.getLocalName();
 
             
@@ -256,17 +200,12 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
                // <BeginSession mustUnderstand="1"
                // xmlns="urn:schemas-microsoft-com:xml-analysis" />
                
-               NodeList childNodes = e.getChildNodes();
-               Element userNameToken = (Element) childNodes.item(1);
-               NodeList userNamePassword = userNameToken.getChildNodes();
-               Element username = (Element) userNamePassword.item(1);
-               Element password = (Element) userNamePassword.item(3);
-               String userNameStr = username.getChildNodes().item(0).getNodeValue();
+               String userNameStr = e.getUsername();
                context.put(CONTEXT_XMLA_USERNAME, userNameStr);
                String passwordStr = "";
 
-               if (password.getChildNodes().item(0) != null) {
-                  passwordStr = password.getChildNodes().item(0).getNodeValue();
+               if (e.getPassword() != null) {
+                  passwordStr = e.getPassword();
                }
 
                context.put(CONTEXT_XMLA_PASSWORD, passwordStr);
@@ -274,6 +213,10 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
                if ("".equals(passwordStr) || null == passwordStr) {
                   LOGGER.warn("Security header for user [" + userNameStr + "] provided without password");
                }
+               if (requestContext.getPrincipal() == null) {
+                  sessionUser = userNameStr;
+                  sessionPassword = passwordStr;
+               }
                authenticatedSession = true;
                continue;
             }
@@ -297,20 +240,23 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
             if (localName.equals(XMLA_BEGIN_SESSION)) {
                sessionIdStr = generateSessionId(context);
 
+               XmlaSession session = XmlaSessionRegistry.getInstance().getSession(sessionIdStr, authenticatedSession ? sessionUser : null, authenticatedSession ? sessionPassword : null);
+               requestContext = requestContext.withSession(session);
+               context.put(CONTEXT_XMLA_REQUEST_CONTEXT, requestContext);
                context.put(CONTEXT_XMLA_SESSION_ID, sessionIdStr);
                context.put(CONTEXT_XMLA_SESSION_STATE, CONTEXT_XMLA_SESSION_STATE_BEGIN);
 
             } else if (localName.equals(XMLA_SESSION)) {
                sessionIdStr = getSessionIdFromRequest(e, context);
 
-               SessionInfo sessionInfo = getSessionInfo(sessionIdStr);
-               
-               if (sessionInfo != null) {
-                  context.put(CONTEXT_XMLA_USERNAME, sessionInfo.user);
-                  context.put(CONTEXT_XMLA_PASSWORD, sessionInfo.password);
-               }
+               XmlaSession session = XmlaSessionRegistry.getInstance().getSession(sessionIdStr, authenticatedSession ? sessionUser : null, authenticatedSession ? sessionPassword : null);
+               requestContext = requestContext.withSession(session);
+               context.put(CONTEXT_XMLA_REQUEST_CONTEXT, requestContext);
 
-               else {
+               if (session.getUsername() != null) {
+                  context.put(CONTEXT_XMLA_USERNAME, session.getUsername());
+                  context.put(CONTEXT_XMLA_PASSWORD, session.getPassword() == null ? "" : session.getPassword());
+               } else {
                   context.put(CONTEXT_XMLA_USERNAME, ANONYMOUS_USER_NAME);
                   context.put(CONTEXT_XMLA_PASSWORD, "");
                }
@@ -320,6 +266,7 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
 
             } else if (localName.equals(XMLA_END_SESSION)) {
                sessionIdStr = getSessionIdFromRequest(e, context);
+               XmlaSessionRegistry.getInstance().endSession(sessionIdStr);
                context.put(CONTEXT_XMLA_SESSION_STATE, CONTEXT_XMLA_SESSION_STATE_END);
 
             } else {
@@ -341,13 +288,7 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
 
             
             /* Authentication */
-            if (authenticatedSession) {
-            
-               saveSessionInfo(this.userPrincipal.getName(), sessionIdStr);
-               if(LOGGER.isDebugEnabled())
-                   LOGGER.debug("New authenticated session; storing credentials [" + this.username + "/********] for session id [" + sessionIdStr + "]");
-
-            } else {
+            if (!authenticatedSession) {
                if (beginSession && requireAuthenticatedSessions) {
                   throw new XmlaException(XmlaConstants.CLIENT_FAULT_FC, XmlaConstants.CHH_AUTHORIZATION_CODE, XmlaConstants.CHH_AUTHORIZATION_FAULT_FS, new Exception(
                            "Session Credentials NOT PROVIDED"));
@@ -374,40 +315,28 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
       return Long.toString(17L * System.nanoTime() + 3L * System.currentTimeMillis(), 35);
    }
 
-   private static String getSessionIdFromRequest(Element e, Map<String, Object> context) throws Exception {
+   private static String getSessionIdFromRequest(SoapMessage.HeaderEntry e, Map<String, Object> context) throws Exception {
       // extract the SessionId attrs value and put into context
-      Attr attr = e.getAttributeNode(XMLA_SESSION_ID);
-      if (attr == null) {
-         throw new SAXException("Invalid XML/A message: " + XMLA_SESSION + " Header element with no " + XMLA_SESSION_ID + " attribute");
-      }
-
-      String sessionId = attr.getValue();
+      String sessionId = e.getAttribute(XMLA_SESSION_ID);
       if (sessionId == null) {
-         throw new SAXException("Invalid XML/A message: " + XMLA_SESSION + " Header element with " + XMLA_SESSION_ID + " attribute but no attribute value");
+         throw new SAXException("Invalid XML/A message: " + XMLA_SESSION + " Header element with no " + XMLA_SESSION_ID + " attribute");
       }
       return sessionId;
    }
 
-   protected void handleSoapBody(HttpServletResponse response, Element[] requestSoapParts, byte[][] responseSoapParts, Map<String, Object> context) throws XmlaException {
+   protected void handleSoapBody(HttpServletResponse response, SoapMessage requestSoapMessage, byte[][] responseSoapParts, Map<String, Object> context) throws XmlaException {
       try {
          String encoding = response.getCharacterEncoding();
-         Element bodyElem = requestSoapParts[1];
          
          //It's either a "Discover" reqeust or "Execute" request
-         Element[] dreqs = XmlaUtil.filterChildElements(bodyElem, NS_XMLA, "Discover");
-         Element[] ereqs = XmlaUtil.filterChildElements(bodyElem, NS_XMLA, "Execute");
-         if (dreqs.length + ereqs.length != 1) {
-            throw new XmlaException(CLIENT_FAULT_FC, HSB_BAD_SOAP_BODY_CODE, HSB_BAD_SOAP_BODY_FAULT_FS, new RuntimeException("Invalid XML/A message: Body has " + dreqs.length
-                     + " Discover Requests and " + ereqs.length + " Execute Requests"));
+         int dreqs = requestSoapMessage.getDiscoverCount();
+         int ereqs = requestSoapMessage.getExecuteCount();
+         if (dreqs + ereqs != 1) {
+            throw new XmlaException(CLIENT_FAULT_FC, HSB_BAD_SOAP_BODY_CODE, HSB_BAD_SOAP_BODY_FAULT_FS, new RuntimeException("Invalid XML/A message: Body has " + dreqs
+                     + " Discover Requests and " + ereqs + " Execute Requests"));
          }
 
-         Element xmlaReqElem = (dreqs.length == 0 ? ereqs[0] : dreqs[0]);
-
-         ByteArrayOutputStream osBuf = new ByteArrayOutputStream();
-
-
-         String sessionId = (String) context.get(CONTEXT_XMLA_SESSION_ID);
-         XmlaRequest xmlaReq = (XmlaRequest) new DefaultXmlaRequest(xmlaReqElem, roleName, username, password, sessionId);
+         XmlaRequest xmlaReq = (XmlaRequest) new DefaultXmlaRequest(requestSoapMessage.getBody(), roleName, getRequestContext(context));
 
          Enumeration.ResponseMimeType responseMimeType = Enumeration.ResponseMimeType.SOAP;
          final String responseMimeTypeName = (String) xmlaReq.getProperties().get("ResponseMimeType");
@@ -418,6 +347,13 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
             }
          }
 
+         if (canStream()) {
+            streamSoapBody(response, xmlaReq, responseSoapParts, context, responseMimeType);
+            return;
+         }
+
+         PooledResponseBuffer osBuf = ResponseBufferPool.getInstance().newBuffer();
+         context.put(CONTEXT_RESPONSE_BUFFER, osBuf);
          XmlaResponse xmlaRes = new DefaultXmlaResponse(osBuf, encoding, responseMimeType);
 
          /* Use XmlaHandler to process XMLA request  */
@@ -429,7 +365,8 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
             throw new XmlaException(SERVER_FAULT_FC, HSB_PROCESS_CODE, HSB_PROCESS_FAULT_FS, ex);
          }
 
-         responseSoapParts[1] = osBuf.toByteArray();
+         // the body stays in the pooled buffer unless a callback needs bytes
+         responseSoapParts[1] = allCallbacksStreaming() ? null : osBuf.toByteArray();
        
       } catch (XmlaException xex) {
          throw xex;
@@ -438,22 +375,138 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
       }
    }
 
-   protected void marshallSoapMessage(HttpServletResponse response, byte[][] responseSoapParts, Enumeration.ResponseMimeType responseMimeType) throws XmlaException {
-      try {
-         // If CharacterEncoding was set in web.xml, use this value
-         String encoding = (charEncoding != null) ? charEncoding : response.getCharacterEncoding();
+   /**
+    * Whether the body of this response can go straight to the client, that
+    * is if every callback can do without the response bytes.
+    */
+   protected boolean canStream() {
+      if (!streamResponse) {
+         return false;
+      }
+      return allCallbacksStreaming();
+   }
+
+   /**
+    * Whether every callback can do without the response body as bytes.
+    */
+   protected boolean allCallbacksStreaming() {
+      for (XmlaRequestCallback callback : getCallbacks()) {
+         if (!(callback instanceof StreamingXmlaRequestCallback)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Gives the pooled body buffer of a request back, if it has one.
+    */
+   protected static void releaseResponseBuffer(Map<String, Object> context) {
+      PooledResponseBuffer buffer = (PooledResponseBuffer) context.remove(CONTEXT_RESPONSE_BUFFER);
+      if (buffer != null) {
+         buffer.release();
+      }
+   }
 
-         if (charEncoding != null) {
-            response.setCharacterEncoding(charEncoding);
+   /**
+    * Writes the envelope and SOAP header, then lets the handler write the
+    * body directly to the servlet output stream, flushing every
+    * {@link #STREAM_FLUSH_SIZE} bytes. A JSON body is written on its own,
+    * without envelope.
+    * 
+    * <p>
+    * If processing fails before anything reached the client, the exception
+    * is thrown and a regular SOAP fault is sent. Once the response is
+    * committed that is no longer possible: the error is then reported as an
+    * XML/A error inside the result and the open elements and the envelope
+    * are closed, so the client still gets a well-formed document.
+    */
+   protected void streamSoapBody(HttpServletResponse response, XmlaRequest xmlaReq, byte[][] responseSoapParts, Map<String, Object> context,
+            Enumeration.ResponseMimeType responseMimeType) throws Exception {
+      final boolean soap = responseMimeType != Enumeration.ResponseMimeType.JSON;
+      String encoding = prepareResponse(response, responseMimeType);
+      response.setStatus(HttpServletResponse.SC_OK);
+
+      OutputStream outputStream = new PeriodicFlushOutputStream(response.getOutputStream(), streamFlushSize);
+      if (soap) {
+         outputStream.write(soapEnvelopeStart(encoding).getBytes(encoding));
+         if (responseSoapParts[0] != null) {
+            outputStream.write(responseSoapParts[0]);
          }
-         switch (responseMimeType) {
-         case JSON:
-            throw new MondrianException("Doesn't support Jason message type");
-         case SOAP:
-         default:
-            response.setContentType("text/xml");
-            break;
+         outputStream.write(SOAP_BODY_START.getBytes(encoding));
+      }
+
+      context.put(CONTEXT_RESPONSE_STREAMED, Boolean.TRUE);
+      XmlaResponse xmlaRes = new DefaultXmlaResponse(outputStream, encoding, responseMimeType);
+      try {
+         getXmlaHandler().process(xmlaReq, xmlaRes);
+      } catch (Exception ex) {
+         if (!response.isCommitted()) {
+            context.remove(CONTEXT_RESPONSE_STREAMED);
+            if (ex instanceof XmlaException) {
+               throw ex;
+            }
+            throw new XmlaException(SERVER_FAULT_FC, HSB_PROCESS_CODE, HSB_PROCESS_FAULT_FS, ex);
          }
+         LOGGER.error("Error while streaming XML/A response, part of it was already sent", ex);
+         xmlaRes.error(ex);
+         xmlaRes.getWriter().completeDocument();
+      }
+      xmlaRes.getWriter().flush();
+      if (soap) {
+         outputStream.write(SOAP_ENVELOPE_END.getBytes(encoding));
+      }
+      outputStream.flush();
+      responseSoapParts[1] = null;
+   }
+
+   /**
+    * Sets content type and character encoding. It must be called before the
+    * output stream is obtained.
+    * 
+    * @return encoding of the response
+    */
+   private String prepareResponse(HttpServletResponse response, Enumeration.ResponseMimeType responseMimeType) {
+      // If CharacterEncoding was set in web.xml, use this value
+      String encoding = (charEncoding != null) ? charEncoding : response.getCharacterEncoding();
+
+      if (charEncoding != null) {
+         response.setCharacterEncoding(charEncoding);
+      }
+      switch (responseMimeType) {
+      case JSON:
+         // JsonSaxWriter always writes UTF-8
+         encoding = "UTF-8";
+         response.setCharacterEncoding(encoding);
+         response.setContentType(responseMimeType.getMimeType());
+         break;
+      case SOAP:
+      default:
+         response.setContentType("text/xml");
+         break;
+      }
+      return encoding;
+   }
+
+   private static String soapEnvelopeStart(String encoding) {
+      return "<?xml version=\"1.0\" encoding=\"" + encoding + "\"?>\n<" + SOAP_PREFIX + ":Envelope xmlns:" + SOAP_PREFIX + "=\"" + NS_SOAP_ENV_1_1 + "\"" + ">"
+               + "\n<" + SOAP_PREFIX + ":Header>\n";
+   }
+
+   private static final String SOAP_BODY_START = "</" + SOAP_PREFIX + ":Header>\n" + "<" + SOAP_PREFIX + ":Body>\n";
+   private static final String SOAP_ENVELOPE_END = "\n</" + SOAP_PREFIX + ":Body>\n</" + SOAP_PREFIX + ":Envelope>\n";
+
+   protected void marshallSoapMessage(HttpServletResponse response, byte[][] responseSoapParts, Enumeration.ResponseMimeType responseMimeType) throws XmlaException {
+      marshallSoapMessage(response, responseSoapParts, null, responseMimeType);
+   }
+
+   /**
+    * Sends the response. The body is responseSoapParts[1] if set (a fault, or
+    * bytes a callback replaced), otherwise the content of bodyBuffer.
+    */
+   protected void marshallSoapMessage(HttpServletResponse response, byte[][] responseSoapParts, PooledResponseBuffer bodyBuffer, Enumeration.ResponseMimeType responseMimeType) throws XmlaException {
+      try {
+         String encoding = prepareResponse(response, responseMimeType);
 
          /*
           * The setCharacterEncoding, setContentType, or setLocale method must
@@ -466,20 +519,29 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
 
          byte[] soapHeader = responseSoapParts[0];
          byte[] soapBody = responseSoapParts[1];
+         if (soapBody != null) {
+            bodyBuffer = null;
+         }
 
-         Object[] byteChunks = null;
+         byte[][] head = null;
+         byte[] tail = null;
 
          try {
             switch (responseMimeType) {
- 
+            case JSON:
+               // no envelope, and the SOAP header has no JSON form
+               head = new byte[][] { soapBody };
+               tail = new byte[0];
+               break;
+
             case SOAP:
             default:
-               String s0 = "<?xml version=\"1.0\" encoding=\"" + encoding + "\"?>\n<" + SOAP_PREFIX + ":Envelope xmlns:" + SOAP_PREFIX + "=\"" + NS_SOAP_ENV_1_1 + "\"" + ">"
-                        + "\n<" + SOAP_PREFIX + ":Header>\n";
-               String s2 = "</" + SOAP_PREFIX + ":Header>\n" + "<" + SOAP_PREFIX + ":Body>\n";
-               String s4 = "\n</" + SOAP_PREFIX + ":Body>\n</" + SOAP_PREFIX + ":Envelope>\n";
+               String s0 = soapEnvelopeStart(encoding);
+               String s2 = SOAP_BODY_START;
+               String s4 = SOAP_ENVELOPE_END;
 
-               byteChunks = new Object[] { s0.getBytes(encoding), soapHeader, s2.getBytes(encoding), soapBody, s4.getBytes(encoding), };
+               head = new byte[][] { s0.getBytes(encoding), soapHeader, s2.getBytes(encoding), soapBody };
+               tail = s4.getBytes(encoding);
                break;
             }
          } catch (UnsupportedEncodingException uee) {
@@ -490,12 +552,15 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
             StringBuilder buf = new StringBuilder(100);
             buf.append("XML/A response content").append(nl);
             try {
-               for (Object byteChunk : byteChunks) {
-                  byte[] chunk = (byte[]) byteChunk;
+               for (byte[] chunk : head) {
                   if (chunk != null && chunk.length > 0) {
                      buf.append(new String(chunk, encoding));
                   }
                }
+               if (bodyBuffer != null) {
+                  buf.append(new String(bodyBuffer.toByteArray(), encoding));
+               }
+               buf.append(new String(tail, encoding));
             } catch (UnsupportedEncodingException uee) {
                LOGGER.warn("This should be handled at begin of processing request", uee);
             }
@@ -503,33 +568,17 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
                LOGGER.debug(buf.toString());
          }
 
-         if (LOGGER.isDebugEnabled()) {
-            StringBuilder buf = new StringBuilder();
-            buf.append("XML/A response content").append(nl);
-         }
          try {
-            int bufferSize = 4096;
-            ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
-            WritableByteChannel wch = Channels.newChannel(outputStream);
-            ReadableByteChannel rch;
-            for (Object byteChunk : byteChunks) {
-               if (byteChunk == null || ((byte[]) byteChunk).length == 0) {
-                  continue;
+            for (byte[] chunk : head) {
+               if (chunk != null && chunk.length > 0) {
+                  outputStream.write(chunk);
                }
-               rch = Channels.newChannel(new ByteArrayInputStream((byte[]) byteChunk));
-
-               int readSize;
-               do {
-                  buffer.clear();
-                  readSize = rch.read(buffer);
-                  buffer.flip();
-
-                  int writeSize = 0;
-                  while ((writeSize += wch.write(buffer)) < readSize) {
-                  }
-               } while (readSize == bufferSize);
-               rch.close();
             }
+            // the pooled body goes straight to the servlet stream
+            if (bodyBuffer != null) {
+               bodyBuffer.writeTo(outputStream);
+            }
+            outputStream.write(tail);
             outputStream.flush();
          } catch (IOException ioe) {
             LOGGER.error("Damn exception when transferring bytes over sockets", ioe);
@@ -547,6 +596,14 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
     */
    
    protected void handleFault(HttpServletResponse response, byte[][] responseSoapParts, Phase phase, Throwable t) {
+      handleFault(response, responseSoapParts, phase, t, Enumeration.ResponseMimeType.SOAP);
+   }
+
+   /**
+    * Produces the fault in the response format of the request: a SOAP 1.1
+    * Fault element, or the same structure as a JSON "Fault" object.
+    */
+   protected void handleFault(HttpServletResponse response, byte[][] responseSoapParts, Phase phase, Throwable t, Enumeration.ResponseMimeType responseMimeType) {
       // Regardless of whats been put into the response so far, clear
       // it out.
       response.reset();
@@ -592,9 +649,10 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
 
       ByteArrayOutputStream osBuf = new ByteArrayOutputStream();
       try {
-         SaxWriter writer = new DefaultSaxWriter(osBuf, encoding);
+         final boolean json = responseMimeType == Enumeration.ResponseMimeType.JSON;
+         SaxWriter writer = json ? new JsonSaxWriter(osBuf) : new DefaultSaxWriter(osBuf, encoding);
          writer.startDocument();
-         writer.startElement(SOAP_PREFIX + ":Fault");
+         writer.startElement(json ? "Fault" : SOAP_PREFIX + ":Fault");
 
          // The faultcode element is intended for use by software to provide
          // an algorithmic mechanism for identifying the fault. The faultcode
@@ -649,88 +707,53 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
       responseSoapParts[1] = osBuf.toByteArray();
    }
 
-   private SessionInfo getSessionInfo(String sessionId) throws AuthenticateException {
-      if (sessionId == null) {
-         return null;
-      }
-
-      SessionInfo sessionInfo = null;
-
-      synchronized (sessionInfos) {
-         sessionInfo = sessionInfos.get(sessionId);
-      }
-
-      if (sessionInfo == null) {
-         //pass user principal to session
-         if(this.userPrincipal == null){
-             if(LOGGER.isDebugEnabled())
-                 LOGGER.debug("Use the anonymous credentials for session id [" + sessionId + "], user " + ANONYMOUS_USER_NAME);
-        	 return saveSessionInfo(ANONYMOUS_USER_NAME, sessionId);
+   /**
+    * Makes the context of an HTTP request. A principal that is the serialized
+    * form of a user name and password gives the credentials connections are
+    * opened with.
+    * 
+    * @param initialCatalog
+    *           Catalog of requests that name none
+    */
+   protected XmlaRequestContext newRequestContext(HttpServletRequest request, String initialCatalog) {
+      XmlaRequestContext requestContext = new XmlaRequestContext(request.getRequestURI(), request.getUserPrincipal(), initialCatalog);
+      if (requestContext.getPrincipal() != null) {
+         try {
+            String[] credentials = parsePrincipals(requestContext.getPrincipal().getName());
+            requestContext = requestContext.withCredentials(credentials[0], credentials[1]);
+         } catch (AuthenticateException e) {
+            LOGGER.warn("User principal of request " + request.getRequestURI() + " carries no credentials", e);
          }
-         return saveSessionInfo(this.userPrincipal.getName(), sessionId);
-      } else {
-         if(LOGGER.isDebugEnabled())
-            LOGGER.debug("Found credentials for session id [" + sessionId + "], username=[" + sessionInfo.user + "] in servlet cache");
       }
-      return sessionInfo;
+      return requestContext;
    }
 
-   private SessionInfo saveSessionInfo(String principals, String sessionId) throws AuthenticateException {
-      synchronized (sessionInfos) {
-         //principals is in the format username: [name]; password: [password]
-         SessionInfo sessionInfo = sessionInfos.get(sessionId);
-
-         if(sessionInfo == null && principals.equals(ANONYMOUS_USER_NAME)){
-        	 sessionInfo = new SessionInfo(principals, "");
-         }
-         else {
-            if(username == null)
-               parsePrincipals(principals);
-            // A credentials object was stored against the provided session
-            // ID but the username didn't match, so create a new holder.
-            sessionInfo = new SessionInfo(username, password);
-            sessionInfos.put(sessionId, sessionInfo);
-         }
-         return sessionInfo;
-      }
+   protected static XmlaRequestContext getRequestContext(Map<String, Object> context) {
+      return (XmlaRequestContext) context.get(CONTEXT_XMLA_REQUEST_CONTEXT);
    }
-   
+
    /**
     * Input principal is serizlized form of username and password
     * It's in the format of "username:[name];password:[password]"
     * @param principal
-    * @return
+    * @return user name and password, null if there is none
     */
-   private void parsePrincipals(String principal) throws AuthenticateException {
+   private static String[] parsePrincipals(String principal) throws AuthenticateException {
      try{
       if(!principal.startsWith("user"))
          throw new XmlaException("0", "0", "The user principal is in invalid format", null);
       
       String userName = principal.split("&#38;password")[0];
       userName = userName.split("user=")[1];
+      String password = null;
          if (!principal.endsWith("&#38;password=")) {
-            String password = principal.split("&#38;password=")[1];
-            this.password = password;
-
+            password = principal.split("&#38;password=")[1];
          }
-      this.username = userName;
+      return new String[] { userName, password };
      }
      catch (Exception e) {
         throw new AuthenticateException("Failt to process user principle", e);
      }
    }
-
-   /**
-    * Holds authentication credentials of a XMLA session.
-    */
-   private static class SessionInfo {
-      final String user;
-      final String password;
-
-      public SessionInfo(String user, String password) {
-         this.user = user;
-         this.password = password;
-      }
-   }
 }
 // End DefaultXmlaServlet.java
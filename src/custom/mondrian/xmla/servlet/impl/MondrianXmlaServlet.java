@@ -16,10 +16,16 @@ import mondrian.spi.CatalogLocator;
 import mondrian.spi.impl.ServletContextCatalogLocator;
 import custom.mondrian.xmla.exception.XmlaException;
 import custom.mondrian.xmla.dataSource.CustomUrlRepositoryContentFinder;
+import custom.mondrian.xmla.dataSource.OlapConfig;
+import custom.mondrian.xmla.dataSource.OlapConfigWatcher;
 import custom.mondrian.xmla.handler.Enumeration;
-import custom.mondrian.xmla.handler.PropertyDefinition;
 import custom.mondrian.xmla.handler.CustomXmlaHandler;
+import custom.mondrian.xmla.request.SoapMessage;
+import custom.mondrian.xmla.request.StreamingXmlaRequestCallback;
 import custom.mondrian.xmla.request.XmlaRequestCallback;
+import custom.mondrian.xmla.request.XmlaRequestContext;
+import custom.mondrian.xmla.request.XmlaSessionRegistry;
+import custom.mondrian.xmla.response.impl.PooledResponseBuffer;
 
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -32,8 +38,6 @@ import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.w3c.dom.Element;
-
 
 
 /**
@@ -49,9 +53,23 @@ public class MondrianXmlaServlet extends DefaultXmlaServlet {
    protected CatalogLocator catalogLocator;
    protected CustomUrlRepositoryContentFinder contentFinder;
    protected ServletConfig servletConfig;
-   public static String initialCatalog = "";
+   /** Flushes the schemas of the handler when the olap configuration is reloaded */
+   private OlapConfigWatcher.Listener configListener;
    
 
+   @Override
+   public void init(ServletConfig servletConfig) throws ServletException {
+      super.init(servletConfig);
+      // one listener for the servlet's handler, removed in destroy()
+      final CustomXmlaHandler handler = getXmlaHandler();
+      configListener = new OlapConfigWatcher.Listener() {
+         public void reloaded(OlapConfig config) {
+            handler.flushSchemas();
+         }
+      };
+      OlapConfigWatcher.addListener(configListener);
+   }
+
    @Override
    protected CustomXmlaHandler.ConnectionFactory createConnectionFactory(ServletConfig servletConfig) throws ServletException {
       this.servletConfig = servletConfig;
@@ -64,8 +82,6 @@ public class MondrianXmlaServlet extends DefaultXmlaServlet {
          if (contentFinder == null) {
             contentFinder = makeContentFinder();
          }
-         // setInitialCatalog(dataSources);
-         PropertyDefinition.setCatalogValue(contentFinder.getInitialCatalog());
 
          server = MondrianServer.createWithRepository(contentFinder, catalogLocator);
 
@@ -89,21 +105,17 @@ public class MondrianXmlaServlet extends DefaultXmlaServlet {
        * cashflow
        * 
        * 
-       * Servelt stores currently running data source name in dataSource field.
-       * Servelt updates the value of currentDataSource, if the data source of
-       * new request changed
+       * The data source of the request, and the rest of what it runs with,
+       * is kept in its own XmlaRequestContext. The credentials of its
+       * principal are given to the connections it opens; the data sources
+       * shared by all requests carry none.
        */
-      // validate if the datasource of request changed
-      currentUri = request.getRequestURI();
-      this.userPrincipal = request.getUserPrincipal();
-      contentFinder = makeContentFinder();
-      PropertyDefinition.setCatalogValue(contentFinder.getInitialCatalog());
+      XmlaRequestContext requestContext = newRequestContext(request, OlapConfigWatcher.get().getInitialCatalog());
 
      /**
-      * rquestSoapParts[0]: header
-      * rquestSoapParts[0]: body
+      * Header entries and Discover/Execute content of the request
       */
-      Element[] requestSoapParts = new Element[2];
+      SoapMessage requestSoapMessage = null;
 
       /**
        * responseSoapParts[0]: header
@@ -114,9 +126,13 @@ public class MondrianXmlaServlet extends DefaultXmlaServlet {
       Phase phase = Phase.VALIDATE_HTTP_HEAD;
      
       /**
-       * This bridge supports only SOAP message
+       * Requests are always SOAP. The response is SOAP too until the body
+       * asks for another ResponseMimeType.
        */
-      final Enumeration.ResponseMimeType mimeType = Enumeration.ResponseMimeType.SOAP;
+      Enumeration.ResponseMimeType mimeType = Enumeration.ResponseMimeType.SOAP;
+
+      Map<String, Object> context = new HashMap<String, Object>();
+      context.put(CONTEXT_XMLA_REQUEST_CONTEXT, requestContext);
 
       try {
             try {
@@ -129,8 +145,6 @@ public class MondrianXmlaServlet extends DefaultXmlaServlet {
 
          response.setContentType(mimeType.getMimeType());
 
-         Map<String, Object> context = new HashMap<String, Object>();
-
          try {
             if (LOGGER.isDebugEnabled()) {
                LOGGER.debug("Invoking validate http header callbacks");
@@ -169,7 +183,7 @@ public class MondrianXmlaServlet extends DefaultXmlaServlet {
 
 
             context.put(CONTEXT_MIME_TYPE, mimeType);
-            unmarshallSoapMessage(request, requestSoapParts);
+            requestSoapMessage = unmarshallSoapMessage(request);
          } catch (XmlaException xex) {
             LOGGER.error("Unable to unmarshall SOAP message", xex);
             handleFault(response, responseSoapParts, phase, xex);
@@ -187,7 +201,7 @@ public class MondrianXmlaServlet extends DefaultXmlaServlet {
             }
 
             // process application specified SOAP header here
-            handleSoapHeader(response, requestSoapParts, responseSoapParts, context);
+            handleSoapHeader(response, requestSoapMessage, responseSoapParts, context);
          } catch (XmlaException xex) {
             LOGGER.error("Errors when handling XML/A message", xex);
             handleFault(response, responseSoapParts, phase, xex);
@@ -205,7 +219,7 @@ public class MondrianXmlaServlet extends DefaultXmlaServlet {
             }
 
             for (XmlaRequestCallback callback : getCallbacks()) {
-               callback.preAction(request, requestSoapParts, context);
+               callback.preAction(request, requestSoapMessage, context);
             }
          } catch (XmlaException xex) {
             LOGGER.error("Errors when invoking callbacks preaction", xex);
@@ -230,10 +244,16 @@ public class MondrianXmlaServlet extends DefaultXmlaServlet {
                LOGGER.debug("Handling XML/A message body");
             }
 
-            handleSoapBody(response, requestSoapParts, responseSoapParts, context);
+            handleSoapBody(response, requestSoapMessage, responseSoapParts, context);
+            mimeType = (Enumeration.ResponseMimeType) context.get(CONTEXT_MIME_TYPE);
          } catch (XmlaException xex) {
             LOGGER.error("Errors when handling XML/A message", xex);
-            handleFault(response, responseSoapParts, phase, xex);
+            if (response.isCommitted()) {
+               // part of a streamed response has reached the client
+               return;
+            }
+            mimeType = (Enumeration.ResponseMimeType) context.get(CONTEXT_MIME_TYPE);
+            handleFault(response, responseSoapParts, phase, xex, mimeType);
             phase = Phase.SEND_ERROR;
             marshallSoapMessage(response, responseSoapParts, mimeType);
             return;
@@ -242,23 +262,36 @@ public class MondrianXmlaServlet extends DefaultXmlaServlet {
 
          phase = Phase.CALLBACK_POST_ACTION;
 
+         // the body was already written to the client by handleSoapBody
+         final boolean streamed = Boolean.TRUE.equals(context.get(CONTEXT_RESPONSE_STREAMED));
+
          try {
             if (LOGGER.isDebugEnabled()) {
                LOGGER.debug("Invoking callbacks postAction");
             }
 
             for (XmlaRequestCallback callback : getCallbacks()) {
-               callback.postAction(request, response, responseSoapParts, context);
+               if (streamed) {
+                  ((StreamingXmlaRequestCallback) callback).postStreamAction(request, response, context);
+               } else {
+                  callback.postAction(request, response, responseSoapParts, context);
+               }
             }
          } catch (XmlaException xex) {
             LOGGER.error("Errors when invoking callbacks postaction", xex);
-            handleFault(response, responseSoapParts, phase, xex);
+            if (streamed) {
+               return;
+            }
+            handleFault(response, responseSoapParts, phase, xex, mimeType);
             phase = Phase.SEND_ERROR;
             marshallSoapMessage(response, responseSoapParts, mimeType);
             return;
          } catch (Exception ex) {
             LOGGER.error("Errors when invoking callbacks postaction", ex);
-            handleFault(response, responseSoapParts, phase, new XmlaException(SERVER_FAULT_FC, CPOSTA_CODE, CPOSTA_FAULT_FS, ex));
+            if (streamed) {
+               return;
+            }
+            handleFault(response, responseSoapParts, phase, new XmlaException(SERVER_FAULT_FC, CPOSTA_CODE, CPOSTA_FAULT_FS, ex), mimeType);
             phase = Phase.SEND_ERROR;
             marshallSoapMessage(response, responseSoapParts, mimeType);
             return;
@@ -266,25 +299,37 @@ public class MondrianXmlaServlet extends DefaultXmlaServlet {
 
          phase = Phase.SEND_RESPONSE;
 
+         if (streamed) {
+            return;
+         }
+
          try {
             response.setStatus(HttpServletResponse.SC_OK);
-            marshallSoapMessage(response, responseSoapParts, mimeType);
+            marshallSoapMessage(response, responseSoapParts, (PooledResponseBuffer) context.get(CONTEXT_RESPONSE_BUFFER), mimeType);
          } catch (XmlaException xex) {
             LOGGER.error("Errors when handling XML/A message", xex);
-            handleFault(response, responseSoapParts, phase, xex);
+            handleFault(response, responseSoapParts, phase, xex, mimeType);
             phase = Phase.SEND_ERROR;
             marshallSoapMessage(response, responseSoapParts, mimeType);
          }
       } catch (Throwable t) {
          LOGGER.error("Unknown Error when handling XML/A message", t);
-         handleFault(response, responseSoapParts, phase, t);
+         handleFault(response, responseSoapParts, phase, t, mimeType);
          marshallSoapMessage(response, responseSoapParts, mimeType);
+      } finally {
+         releaseResponseBuffer(context);
       }
    }
 
    @Override
    public void destroy() {
       super.destroy();
+      if (configListener != null) {
+         OlapConfigWatcher.removeListener(configListener);
+         configListener = null;
+      }
+      XmlaSessionRegistry.getInstance().endAll();
+      OlapConfigWatcher.stop();
       if (server != null) {
          server.shutdown();
          server = null;
@@ -295,8 +340,6 @@ public class MondrianXmlaServlet extends DefaultXmlaServlet {
     * @return RepositoryContentFinder used to load data source configuration file
     */
    protected CustomUrlRepositoryContentFinder makeContentFinder() {
-      if(this.userPrincipal != null)
-         return new CustomUrlRepositoryContentFinder(userPrincipal.getName());
       return new CustomUrlRepositoryContentFinder();
    }
 
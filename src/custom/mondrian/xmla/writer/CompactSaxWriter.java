@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.writer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+import mondrian.olap.Util;
+import mondrian.util.ArrayStack;
+
+/**
+ * {@link SaxWriter} for production responses. Unlike {@link DefaultSaxWriter}
+ * it writes compact XML (no indentation, no line breaks) and encodes straight
+ * to UTF-8 into a reusable byte buffer, without a {@link java.io.Writer} in
+ * between.
+ *
+ * <p>
+ * Text and attribute values are escaped in one pass using a lookup table,
+ * and line endings in {@link #textElement} are replaced without a regex. The
+ * encoded start and end tags of element names, and the encoded attribute
+ * names, are cached across writers since responses keep repeating the same
+ * few (Cell, Value, Member, UName, row, ...).
+ *
+ * <p>
+ * The output is always UTF-8. The writer is not thread-safe.
+ */
+
+public class CompactSaxWriter implements SaxWriter {
+
+   private static final int BUFFER_SIZE = 8192;
+
+   /** Upper bound on cached names, in case names are ever built from data */
+   private static final int MAX_CACHED_NAMES = 2048;
+
+   private static final ConcurrentHashMap<String, Tag> TAGS = new ConcurrentHashMap<String, Tag>();
+   private static final ConcurrentHashMap<String, byte[]> ATTRIBUTE_NAMES = new ConcurrentHashMap<String, byte[]>();
+
+   /** Escaped form of ASCII characters, or null when written as is */
+   private static final byte[][] ESCAPES = new byte[128][];
+
+   static {
+      ESCAPES['&'] = ascii("&amp;");
+      ESCAPES['<'] = ascii("&lt;");
+      ESCAPES['>'] = ascii("&gt;");
+      ESCAPES['"'] = ascii("&quot;");
+      ESCAPES['\''] = ascii("&apos;");
+   }
+
+   private static final byte[] TAG_END = ascii(">");
+   private static final byte[] EMPTY_TAG_END = ascii("/>");
+   private static final byte[] QUOTE = ascii("\"");
+
+   private final OutputStream out;
+   private final byte[] buf;
+   private int pos;
+
+   private final ArrayStack<Tag> stack = new ArrayStack<Tag>();
+   /** Whether the start tag of the current element is not closed yet */
+   private boolean inTag;
+
+   public CompactSaxWriter(OutputStream out) {
+      this(out, BUFFER_SIZE);
+   }
+
+   public CompactSaxWriter(OutputStream out, int bufferSize) {
+      this.out = out;
+      this.buf = new byte[bufferSize];
+   }
+
+   public void startDocument() {
+      if (stack.size() != 0) {
+         throw new IllegalStateException("Document already started");
+      }
+   }
+
+   public void endDocument() {
+      if (stack.size() != 0) {
+         throw new IllegalStateException("Document may have unbalanced elements");
+      }
+      flush();
+   }
+
+   public void startElement(String name) {
+      Tag tag = tag(name);
+      checkTag();
+      write(tag.start);
+      inTag = true;
+      stack.push(tag);
+   }
+
+   public void startElement(String name, Object... attrs) {
+      assert name != null;
+      Tag tag = tag(name);
+      checkTag();
+      write(tag.start);
+      for (int i = 0; i < attrs.length; i += 2) {
+         Object value = attrs[i + 1];
+         if (value == null) {
+            continue;
+         }
+         write(attributeName((String) attrs[i]));
+         writeEscaped(value.toString(), false);
+         write(QUOTE);
+      }
+      inTag = true;
+      stack.push(tag);
+   }
+
+   public void endElement() {
+      Tag tag = stack.pop();
+      if (inTag) {
+         write(EMPTY_TAG_END);
+         inTag = false;
+      } else {
+         write(tag.end);
+      }
+   }
+
+   public void element(String name, Object... attrs) {
+      startElement(name, attrs);
+      endElement();
+   }
+
+   public void characters(String data) {
+      if (data != null && data.length() > 0) {
+         checkTag();
+         writeEscaped(data, false);
+      }
+   }
+
+   public void characters(char[] chars, int offset, int length) {
+      if (length == 0) {
+         return;
+      }
+      checkTag();
+      final byte[] buf = this.buf;
+      for (int i = offset, end = offset + length; i < end; i++) {
+         char c = chars[i];
+         if (c >= 0x80 || ESCAPES[c] != null) {
+            // not plain ASCII; rare for the callers
+            writeEscaped(new String(chars, i, end - i), false);
+            return;
+         }
+         if (pos == buf.length) {
+            flushBuffer();
+         }
+         buf[pos++] = (byte) c;
+      }
+   }
+
+   public void startSequence(String name, String subName) {
+      if (name != null) {
+         startElement(name);
+      } else {
+         stack.push(null);
+      }
+   }
+
+   public void endSequence() {
+      if (stack.peek() == null) {
+         stack.pop();
+      } else {
+         endElement();
+      }
+   }
+
+   public void textElement(String name, Object data) {
+      startElement(name);
+      // Line endings are replaced with spaces, as DefaultSaxWriter does.
+      String s = data.toString();
+      if (s.length() > 0) {
+         checkTag();
+         writeEscaped(s, true);
+      }
+      endElement();
+   }
+
+   public void completeBeforeElement(String tagName) {
+      boolean found = false;
+      for (int i = 0; i < stack.size(); i++) {
+         Tag tag = stack.get(i);
+         if (tag != null && tag.name.equals(tagName)) {
+            found = true;
+            break;
+         }
+      }
+      if (!found) {
+         return;
+      }
+      while (stack.peek() == null || !tagName.equals(stack.peek().name)) {
+         endSequence();
+      }
+   }
+
+   public void completeDocument() {
+      while (stack.size() > 0) {
+         endSequence();
+      }
+      flush();
+   }
+
+   public void verbatim(String text) {
+      checkTag();
+      write(text.getBytes(StandardCharsets.UTF_8));
+   }
+
+   public void verbatim(XmlFragment fragment) {
+      // already UTF-8, no need to encode again
+      checkTag();
+      write(fragment.getUtf8());
+   }
+
+   public void flush() {
+      try {
+         flushBuffer();
+         out.flush();
+      } catch (IOException e) {
+         throw Util.newError(e, "Failed to write XML/A response");
+      }
+   }
+
+   private void checkTag() {
+      if (inTag) {
+         write(TAG_END);
+         inTag = false;
+      }
+   }
+
+   /**
+    * Escapes and UTF-8 encodes a string in one pass.
+    *
+    * @param replaceNewlines
+    *           whether to write "\r\n", "\r" and "\n" as a single space
+    */
+   private void writeEscaped(String s, boolean replaceNewlines) {
+      final byte[] buf = this.buf;
+      for (int i = 0, n = s.length(); i < n; i++) {
+         char c = s.charAt(i);
+         if (pos + 4 > buf.length) {
+            flushBuffer();
+         }
+         if (c < 0x80) {
+            if (replaceNewlines && (c == '\r' || c == '\n')) {
+               if (c == '\r' && i + 1 < n && s.charAt(i + 1) == '\n') {
+                  i++;
+               }
+               buf[pos++] = ' ';
+               continue;
+            }
+            byte[] escape = ESCAPES[c];
+            if (escape == null) {
+               buf[pos++] = (byte) c;
+            } else {
+               write(escape);
+            }
+         } else if (c < 0x800) {
+            buf[pos++] = (byte) (0xC0 | (c >> 6));
+            buf[pos++] = (byte) (0x80 | (c & 0x3F));
+         } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, s.charAt(++i));
+            buf[pos++] = (byte) (0xF0 | (cp >> 18));
+            buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+         } else if (Character.isSurrogate(c)) {
+            // unpaired surrogate, as OutputStreamWriter does
+            buf[pos++] = '?';
+         } else {
+            buf[pos++] = (byte) (0xE0 | (c >> 12));
+            buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buf[pos++] = (byte) (0x80 | (c & 0x3F));
+         }
+      }
+   }
+
+   private void write(byte[] bytes) {
+      if (pos + bytes.length > buf.length) {
+         flushBuffer();
+         if (bytes.length > buf.length) {
+            try {
+               out.write(bytes);
+            } catch (IOException e) {
+               throw Util.newError(e, "Failed to write XML/A response");
+            }
+            return;
+         }
+      }
+      System.arraycopy(bytes, 0, buf, pos, bytes.length);
+      pos += bytes.length;
+   }
+
+   private void flushBuffer() {
+      if (pos > 0) {
+         try {
+            out.write(buf, 0, pos);
+         } catch (IOException e) {
+            throw Util.newError(e, "Failed to write XML/A response");
+         }
+         pos = 0;
+      }
+   }
+
+   private static Tag tag(String name) {
+      Tag tag = TAGS.get(name);
+      if (tag == null) {
+         tag = new Tag(name);
+         if (TAGS.size() < MAX_CACHED_NAMES) {
+            TAGS.putIfAbsent(name, tag);
+         }
+      }
+      return tag;
+   }
+
+   private static byte[] attributeName(String name) {
+      byte[] bytes = ATTRIBUTE_NAMES.get(name);
+      if (bytes == null) {
+         bytes = (" " + name + "=\"").getBytes(StandardCharsets.UTF_8);
+         if (ATTRIBUTE_NAMES.size() < MAX_CACHED_NAMES) {
+            ATTRIBUTE_NAMES.putIfAbsent(name, bytes);
+         }
+      }
+      return bytes;
+   }
+
+   private static byte[] ascii(String s) {
+      return s.getBytes(StandardCharsets.US_ASCII);
+   }
+
+   /**
+    * Element name with its encoded start ("&lt;name") and end
+    * ("&lt;/name&gt;") tags.
+    */
+   private static final class Tag {
+      final String name;
+      final byte[] start;
+      final byte[] end;
+
+      Tag(String name) {
+         this.name = name;
+         this.start = ("<" + name).getBytes(StandardCharsets.UTF_8);
+         this.end = ("</" + name + ">").getBytes(StandardCharsets.UTF_8);
+      }
+   }
+}
+
+// End CompactSaxWriter.java
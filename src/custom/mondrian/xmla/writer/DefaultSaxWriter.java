@@ -163,6 +163,12 @@ public class DefaultSaxWriter implements SaxWriter {
         }
     }
 
+    public void characters(char[] chars, int offset, int length) {
+        if (length > 0) {
+            _characters(chars, offset, length);
+        }
+    }
+
     public void startSequence(String name, String subName) {
         if (name != null) {
             startElement(name);
@@ -236,17 +242,32 @@ public class DefaultSaxWriter implements SaxWriter {
 
         String currentTagName  = stack.peek();
         while (!tagName.equals(currentTagName)) {
-            _endElement(null, null, currentTagName);
+            // a sequence without an element of its own leaves a null
+            // marker, which has no closing tag
+            if (currentTagName != null) {
+                _endElement(null, null, currentTagName);
+            }
             stack.pop();
             currentTagName = stack.peek();
         }
     }
 
+    public void completeDocument() {
+        while (stack.size() > 0) {
+            endSequence();
+        }
+        writer.flush();
+    }
+
     public void verbatim(String text) {
         _checkTag();
         writer.print(text);
     }
 
+    public void verbatim(XmlFragment fragment) {
+        verbatim(fragment.getText());
+    }
+
     public void flush() {
         writer.flush();
     }
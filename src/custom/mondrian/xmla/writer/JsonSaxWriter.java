@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.writer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import mondrian.olap.Util;
+import mondrian.util.ArrayStack;
+
+/**
+ * {@link SaxWriter} that writes compact JSON (UTF-8) instead of XML, for
+ * requests with ResponseMimeType "application/json".
+ *
+ * <p>
+ * The mapping follows the element structure:
+ * <ul>
+ * <li>an element becomes a field whose value is an object, holding its
+ * attributes and child elements as fields;</li>
+ * <li>an element with text and no attributes, or a
+ * {@link #textElement text element}, becomes a scalar field;</li>
+ * <li>a {@link #startSequence sequence} becomes an array, named after the
+ * sequence, or after its children if the sequence has no element of its
+ * own;</li>
+ * <li>namespace declarations are dropped, and an "xsi:type" attribute is
+ * used to type the element text rather than written out.</li>
+ * </ul>
+ * Numbers and booleans are written unquoted, either because the value is a
+ * {@link Number} or {@link Boolean}, or because the text is numeric and its
+ * xsi:type says so. Text of an element that also has attributes goes into a
+ * "#text" field.
+ *
+ * <p>
+ * Since the value of an element is only known once its first child or its
+ * end is seen, an element is held back until then. Nothing else is
+ * buffered, so cell sets and rowsets stream out as they are produced.
+ *
+ * <p>
+ * The writer is not thread-safe.
+ */
+
+public class JsonSaxWriter implements SaxWriter {
+
+   private static final int BUFFER_SIZE = 8192;
+
+   private static final String TEXT_FIELD = "#text";
+
+   /** Local names of the XSD types written as JSON numbers */
+   private static final Set<String> NUMERIC_TYPES = new HashSet<String>(Arrays.asList("int", "integer", "long", "short", "byte", "unsignedInt", "unsignedLong",
+            "unsignedShort", "unsignedByte", "double", "float", "decimal"));
+
+   private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+   private final Writer out;
+   private final ArrayStack<Frame> stack = new ArrayStack<Frame>();
+
+   public JsonSaxWriter(OutputStream outputStream) {
+      this.out = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), BUFFER_SIZE);
+   }
+
+   public void startDocument() {
+      if (stack.size() != 0) {
+         throw new IllegalStateException("Document already started");
+      }
+      write('{');
+      Frame document = new Frame(null, false);
+      document.open = true;
+      stack.push(document);
+   }
+
+   public void endDocument() {
+      if (stack.size() != 1) {
+         throw new IllegalStateException("Document may have unbalanced elements");
+      }
+      stack.pop();
+      write('}');
+      flush();
+   }
+
+   public void startElement(String name) {
+      openParent();
+      stack.push(new Frame(name, false));
+   }
+
+   public void startElement(String name, Object... attrs) {
+      assert name != null;
+      openParent();
+      Frame frame = new Frame(name, false);
+      for (int i = 0; i < attrs.length; i += 2) {
+         String attrName = (String) attrs[i];
+         Object value = attrs[i + 1];
+         if (value == null || attrName.equals("xmlns") || attrName.startsWith("xmlns:")) {
+            continue;
+         }
+         if (attrName.equals("xsi:type")) {
+            frame.type = value.toString();
+            continue;
+         }
+         if (frame.attrs == null) {
+            frame.attrs = new ArrayList<Object>(attrs.length);
+         }
+         frame.attrs.add(attrName);
+         frame.attrs.add(value);
+      }
+      stack.push(frame);
+   }
+
+   public void endElement() {
+      Frame frame = stack.pop();
+      if (frame.array) {
+         write(']');
+         return;
+      }
+      if (!frame.open) {
+         Frame parent = stack.size() > 0 ? stack.peek() : null;
+         if (frame.attrs == null && frame.text != null) {
+            writeName(parent, frame.name);
+            writeText(frame.text.toString(), frame.type);
+            return;
+         }
+         open(frame, parent);
+      }
+      if (frame.text != null) {
+         writeName(frame, TEXT_FIELD);
+         writeText(frame.text.toString(), frame.type);
+      }
+      write('}');
+   }
+
+   public void element(String name, Object... attrs) {
+      startElement(name, attrs);
+      endElement();
+   }
+
+   public void characters(String data) {
+      if (data == null) {
+         return;
+      }
+      Frame frame = stack.peek();
+      if (frame.array) {
+         // bare text inside a sequence becomes an array item
+         writeName(frame, null);
+         writeString(data);
+         return;
+      }
+      if (frame.text == null) {
+         frame.text = new StringBuilder(data);
+      } else {
+         frame.text.append(data);
+      }
+   }
+
+   public void characters(char[] chars, int offset, int length) {
+      characters(new String(chars, offset, length));
+   }
+
+   public void startSequence(String name, String subName) {
+      openParent();
+      Frame frame = new Frame(name != null ? name : subName, true);
+      writeName(stack.size() > 0 ? stack.peek() : null, frame.name);
+      write('[');
+      frame.open = true;
+      stack.push(frame);
+   }
+
+   public void endSequence() {
+      // same as for an element; a sequence is closed by ']'
+      endElement();
+   }
+
+   public void textElement(String name, Object data) {
+      openParent();
+      writeName(stack.size() > 0 ? stack.peek() : null, name);
+      writeValue(data);
+   }
+
+   public void completeBeforeElement(String tagName) {
+      boolean found = false;
+      for (int i = 0; i < stack.size(); i++) {
+         Frame frame = stack.get(i);
+         if (!frame.array && tagName.equals(frame.name)) {
+            found = true;
+            break;
+         }
+      }
+      if (!found) {
+         return;
+      }
+      while (stack.peek().array || !tagName.equals(stack.peek().name)) {
+         endElement();
+      }
+   }
+
+   public void completeDocument() {
+      while (stack.size() > 1) {
+         endElement();
+      }
+      if (stack.size() == 1) {
+         endDocument();
+      } else {
+         flush();
+      }
+   }
+
+   /**
+    * Pieces of XML (pre-rendered XSD schemas) have no JSON form, so the text
+    * is dropped.
+    */
+   public void verbatim(String text) {
+      // nothing to write
+   }
+
+   public void verbatim(XmlFragment fragment) {
+      // nothing to write
+   }
+
+   public void flush() {
+      try {
+         out.flush();
+      } catch (IOException e) {
+         throw Util.newError(e, "Failed to write XML/A response");
+      }
+   }
+
+   /**
+    * Makes sure the element a new child goes into is written out as an
+    * object.
+    */
+   private void openParent() {
+      int n = stack.size();
+      if (n > 0 && !stack.get(n - 1).open) {
+         open(stack.get(n - 1), n > 1 ? stack.get(n - 2) : null);
+      }
+   }
+
+   /**
+    * Writes the name and the start of the object of an element held back so
+    * far, with its attributes.
+    */
+   private void open(Frame frame, Frame parent) {
+      writeName(parent, frame.name);
+      write('{');
+      frame.open = true;
+      if (frame.attrs != null) {
+         for (int i = 0; i < frame.attrs.size(); i += 2) {
+            writeName(frame, (String) frame.attrs.get(i));
+            writeValue(frame.attrs.get(i + 1));
+         }
+      }
+   }
+
+   /**
+    * Writes the separator and, unless the parent is an array, the quoted
+    * name of the next member of the parent.
+    */
+   private void writeName(Frame parent, String name) {
+      if (parent == null) {
+         return;
+      }
+      if (parent.count++ > 0) {
+         write(',');
+      }
+      if (!parent.array) {
+         writeString(name);
+         write(':');
+      }
+   }
+
+   private void writeValue(Object value) {
+      if (value == null) {
+         write("null");
+      } else if (value instanceof Boolean) {
+         write(value.toString());
+      } else if (value instanceof Number) {
+         if ((value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite()))
+                  || (value instanceof Float && (((Float) value).isNaN() || ((Float) value).isInfinite()))) {
+            writeString(value.toString());
+         } else {
+            String s = value.toString();
+            if (isNumber(s)) {
+               write(s);
+            } else {
+               writeString(s);
+            }
+         }
+      } else {
+         writeString(value.toString());
+      }
+   }
+
+   /**
+    * Writes element text, unquoted if its xsi:type is numeric or boolean and
+    * the text is a valid JSON literal of that type.
+    */
+   private void writeText(String text, String type) {
+      if (type != null) {
+         String localType = type.substring(type.indexOf(':') + 1);
+         if (NUMERIC_TYPES.contains(localType)) {
+            if (isNumber(text)) {
+               write(text);
+               return;
+            }
+            if (text.equals("null")) {
+               write("null");
+               return;
+            }
+         } else if (localType.equals("boolean") && (text.equals("true") || text.equals("false"))) {
+            write(text);
+            return;
+         }
+      }
+      writeString(text);
+   }
+
+   /**
+    * Whether a string is a number in JSON syntax,
+    * -?(0|[1-9][0-9]*)(\.[0-9]+)?([eE][+-]?[0-9]+)?
+    */
+   static boolean isNumber(String s) {
+      int n = s.length();
+      int i = 0;
+      if (i < n && s.charAt(i) == '-') {
+         i++;
+      }
+      if (i >= n) {
+         return false;
+      }
+      if (s.charAt(i) == '0') {
+         i++;
+      } else {
+         int start = i;
+         while (i < n && isDigit(s.charAt(i))) {
+            i++;
+         }
+         if (i == start) {
+            return false;
+         }
+      }
+      if (i < n && s.charAt(i) == '.') {
+         int start = ++i;
+         while (i < n && isDigit(s.charAt(i))) {
+            i++;
+         }
+         if (i == start) {
+            return false;
+         }
+      }
+      if (i < n && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+         i++;
+         if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+            i++;
+         }
+         int start = i;
+         while (i < n && isDigit(s.charAt(i))) {
+            i++;
+         }
+         if (i == start) {
+            return false;
+         }
+      }
+      return i == n;
+   }
+
+   private static boolean isDigit(char c) {
+      return c >= '0' && c <= '9';
+   }
+
+   /**
+    * Writes a quoted string. Besides what JSON requires, U+2028 and U+2029
+    * are escaped so the output is also valid JavaScript.
+    */
+   private void writeString(String s) {
+      try {
+         out.write('"');
+         int start = 0;
+         for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+               continue;
+            }
+            if (i > start) {
+               out.write(s, start, i - start);
+            }
+            start = i + 1;
+            switch (c) {
+            case '"':
+               out.write("\\\"");
+               break;
+            case '\\':
+               out.write("\\\\");
+               break;
+            case '\n':
+               out.write("\\n");
+               break;
+            case '\r':
+               out.write("\\r");
+               break;
+            case '\t':
+               out.write("\\t");
+               break;
+            default:
+               out.write("\\u");
+               out.write(HEX[(c >> 12) & 0xF]);
+               out.write(HEX[(c >> 8) & 0xF]);
+               out.write(HEX[(c >> 4) & 0xF]);
+               out.write(HEX[c & 0xF]);
+               break;
+            }
+         }
+         if (start < s.length()) {
+            out.write(s, start, s.length() - start);
+         }
+         out.write('"');
+      } catch (IOException e) {
+         throw Util.newError(e, "Failed to write XML/A response");
+      }
+   }
+
+   private void write(char c) {
+      try {
+         out.write(c);
+      } catch (IOException e) {
+         throw Util.newError(e, "Failed to write XML/A response");
+      }
+   }
+
+   private void write(String s) {
+      try {
+         out.write(s);
+      } catch (IOException e) {
+         throw Util.newError(e, "Failed to write XML/A response");
+      }
+   }
+
+   /**
+    * Open element or sequence.
+    */
+   private static final class Frame {
+      final String name;
+      final boolean array;
+      /** Whether '{' or '[' has been written */
+      boolean open;
+      /** Number of members written so far */
+      int count;
+      /** Attributes other than namespaces and xsi:type, as name/value pairs */
+      List<Object> attrs;
+      /** Value of the xsi:type attribute */
+      String type;
+      StringBuilder text;
+
+      Frame(String name, boolean array) {
+         this.name = name;
+         this.array = array;
+      }
+   }
+}
+
+// End JsonSaxWriter.java
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.writer;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import mondrian.olap.Util;
+import custom.mondrian.properties.ExternalProperties;
+
+/**
+ * Encodes a large piece of a response on several cores. The caller records
+ * consecutive chunks of it with {@link RecordingSaxWriter}s and submits them
+ * in order; each chunk is rendered to compact XML on a fork-join pool and
+ * the rendered chunks are copied to the response in the order they were
+ * submitted.
+ *
+ * <p>
+ * A chunk is rendered by a {@link CompactSaxWriter}, from the same events,
+ * so the response is byte for byte what the response writer would have
+ * written itself. That is why this is only used when the response writer is
+ * a {@link CompactSaxWriter}.
+ *
+ * <p>
+ * At most twice as many chunks as there are threads are pending, so a
+ * large result is not held in memory as a whole.
+ */
+
+public final class ParallelSaxEncoder {
+
+   private static ForkJoinPool pool;
+
+   private final SaxWriter writer;
+   private final int chunkSize;
+   private final ForkJoinPool executor;
+   private final int maxPending;
+   private final ArrayDeque<ForkJoinTask<XmlFragment>> pending = new ArrayDeque<ForkJoinTask<XmlFragment>>();
+
+   private ParallelSaxEncoder(SaxWriter writer, int chunkSize) {
+      this.writer = writer;
+      this.chunkSize = chunkSize;
+      this.executor = getPool();
+      this.maxPending = 2 * executor.getParallelism();
+   }
+
+   /**
+    * Creates an encoder for a piece of a response, if it is worth it.
+    *
+    * @param writer
+    *           Response writer
+    * @param cells
+    *           Size of the piece, in cells (or any unit of similar cost)
+    * @return an encoder, or null if the piece should be written directly
+    */
+   public static ParallelSaxEncoder create(SaxWriter writer, long cells) {
+      if (!(writer instanceof CompactSaxWriter)) {
+         return null;
+      }
+      final ExternalProperties props = ExternalProperties.getInstance();
+      final int threshold = props.getParallelSerializationThreshold();
+      if (threshold <= 0 || cells < threshold) {
+         return null;
+      }
+      return new ParallelSaxEncoder(writer, Math.max(1, props.getParallelSerializationChunkSize()));
+   }
+
+   private static synchronized ForkJoinPool getPool() {
+      if (pool == null) {
+         int parallelism = ExternalProperties.getInstance().getParallelSerializationParallelism();
+         if (parallelism <= 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+         }
+         pool = new ForkJoinPool(parallelism);
+      }
+      return pool;
+   }
+
+   /**
+    * @return number of cells, rows or tuples a chunk should hold
+    */
+   public int getChunkSize() {
+      return chunkSize;
+   }
+
+   /**
+    * Starts encoding the next chunk. Waits for earlier chunks first if too
+    * many are pending.
+    */
+   public void submit(final RecordingSaxWriter chunk) {
+      if (chunk.isEmpty()) {
+         return;
+      }
+      pending.add(executor.submit(new Callable<XmlFragment>() {
+         public XmlFragment call() {
+            return XmlFragment.render(chunk);
+         }
+      }));
+      while (pending.size() > maxPending) {
+         writeNext();
+      }
+   }
+
+   /**
+    * Writes the chunks that are still pending.
+    */
+   public void finish() {
+      while (!pending.isEmpty()) {
+         writeNext();
+      }
+   }
+
+   /**
+    * Drops the chunks that are still pending, when the response fails. Does
+    * nothing after {@link #finish()}.
+    */
+   public void cancel() {
+      for (ForkJoinTask<XmlFragment> task : pending) {
+         task.cancel(false);
+      }
+      pending.clear();
+   }
+
+   private void writeNext() {
+      final XmlFragment fragment;
+      try {
+         fragment = pending.poll().get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw Util.newError(e, "Interrupted while encoding XML/A response");
+      } catch (ExecutionException e) {
+         throw Util.newError(e.getCause(), "Failed to encode XML/A response");
+      }
+      // an empty fragment would close a start tag the next event may not
+      if (fragment.size() > 0) {
+         writer.verbatim(fragment);
+      }
+   }
+}
+
+// End ParallelSaxEncoder.java
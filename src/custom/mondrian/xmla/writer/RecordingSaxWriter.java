@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.writer;
+
+import java.util.Arrays;
+
+/**
+ * Writer that records the events it is sent, to be replayed later onto
+ * another writer, possibly on another thread. It lets the request thread
+ * read a result (which Mondrian does not allow from several threads) while
+ * the escaping and encoding of the output is done elsewhere, see
+ * {@link ParallelSaxEncoder}.
+ *
+ * <p>
+ * Names, attribute arrays and text are kept by reference, so callers must
+ * not change an attribute array after passing it. Chars passed as an array
+ * are copied, since they usually come from a reusable buffer.
+ *
+ * <p>
+ * Only element and text events are recorded; a recording is a piece of a
+ * document, not a document.
+ */
+
+public final class RecordingSaxWriter implements SaxWriter, XmlFragment.Source {
+
+   private static final byte START = 0;
+   private static final byte START_ATTRS = 1;
+   private static final byte END = 2;
+   private static final byte CHARACTERS = 3;
+   private static final byte CHARS = 4;
+   private static final byte START_SEQUENCE = 5;
+   private static final byte END_SEQUENCE = 6;
+   private static final byte TEXT_ELEMENT = 7;
+   private static final byte VERBATIM = 8;
+   private static final byte VERBATIM_FRAGMENT = 9;
+
+   private byte[] ops = new byte[256];
+   private int opCount;
+   private Object[] args = new Object[256];
+   private int argCount;
+   /** Offset and length of each CHARS event in {@link #chars} */
+   private int[] ints = new int[64];
+   private int intCount;
+   private char[] chars = new char[1024];
+   private int charCount;
+
+   /**
+    * @return whether nothing has been recorded
+    */
+   public boolean isEmpty() {
+      return opCount == 0;
+   }
+
+   /**
+    * Sends the recorded events to a writer, in order.
+    */
+   public void write(SaxWriter writer) {
+      int arg = 0;
+      int in = 0;
+      for (int i = 0; i < opCount; i++) {
+         switch (ops[i]) {
+         case START:
+            writer.startElement((String) args[arg++]);
+            break;
+         case START_ATTRS:
+            writer.startElement((String) args[arg++], (Object[]) args[arg++]);
+            break;
+         case END:
+            writer.endElement();
+            break;
+         case CHARACTERS:
+            writer.characters((String) args[arg++]);
+            break;
+         case CHARS:
+            writer.characters(chars, ints[in++], ints[in++]);
+            break;
+         case START_SEQUENCE:
+            writer.startSequence((String) args[arg++], (String) args[arg++]);
+            break;
+         case END_SEQUENCE:
+            writer.endSequence();
+            break;
+         case TEXT_ELEMENT:
+            writer.textElement((String) args[arg++], args[arg++]);
+            break;
+         case VERBATIM:
+            writer.verbatim((String) args[arg++]);
+            break;
+         case VERBATIM_FRAGMENT:
+            writer.verbatim((XmlFragment) args[arg++]);
+            break;
+         default:
+            throw new IllegalStateException("Unknown event " + ops[i]);
+         }
+      }
+   }
+
+   public void startDocument() {
+      throw new UnsupportedOperationException();
+   }
+
+   public void endDocument() {
+      throw new UnsupportedOperationException();
+   }
+
+   public void startElement(String name) {
+      op(START);
+      arg(name);
+   }
+
+   public void startElement(String name, Object... attrs) {
+      op(START_ATTRS);
+      arg(name);
+      arg(attrs);
+   }
+
+   public void endElement() {
+      op(END);
+   }
+
+   public void element(String name, Object... attrs) {
+      startElement(name, attrs);
+      endElement();
+   }
+
+   public void characters(String data) {
+      op(CHARACTERS);
+      arg(data);
+   }
+
+   public void characters(char[] chars, int offset, int length) {
+      if (charCount + length > this.chars.length) {
+         this.chars = Arrays.copyOf(this.chars, Math.max(this.chars.length * 2, charCount + length));
+      }
+      System.arraycopy(chars, offset, this.chars, charCount, length);
+      if (intCount + 2 > ints.length) {
+         ints = Arrays.copyOf(ints, ints.length * 2);
+      }
+      ints[intCount++] = charCount;
+      ints[intCount++] = length;
+      charCount += length;
+      op(CHARS);
+   }
+
+   public void startSequence(String name, String subName) {
+      op(START_SEQUENCE);
+      arg(name);
+      arg(subName);
+   }
+
+   public void endSequence() {
+      op(END_SEQUENCE);
+   }
+
+   public void textElement(String name, Object data) {
+      op(TEXT_ELEMENT);
+      arg(name);
+      arg(data);
+   }
+
+   public void completeBeforeElement(String tagName) {
+      throw new UnsupportedOperationException();
+   }
+
+   public void completeDocument() {
+      throw new UnsupportedOperationException();
+   }
+
+   public void verbatim(String text) {
+      op(VERBATIM);
+      arg(text);
+   }
+
+   public void verbatim(XmlFragment fragment) {
+      op(VERBATIM_FRAGMENT);
+      arg(fragment);
+   }
+
+   public void flush() {
+      // nothing to flush until replayed
+   }
+
+   private void op(byte op) {
+      if (opCount == ops.length) {
+         ops = Arrays.copyOf(ops, opCount * 2);
+      }
+      ops[opCount++] = op;
+   }
+
+   private void arg(Object arg) {
+      if (argCount == args.length) {
+         args = Arrays.copyOf(args, argCount * 2);
+      }
+      args[argCount++] = arg;
+   }
+}
+
+// End RecordingSaxWriter.java
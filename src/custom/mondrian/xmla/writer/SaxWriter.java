@@ -34,6 +34,12 @@ public interface SaxWriter {
 
     public void characters(String data);
 
+    /**
+     * Writes text held in a char array, such as a number formatted into a
+     * reusable buffer, without making a String of it.
+     */
+    public void characters(char[] chars, int offset, int length);
+
     /**
      * Informs the writer that a sequence of elements of the same name is
      * starting.
@@ -76,12 +82,23 @@ public interface SaxWriter {
 
     public void completeBeforeElement(String tagName);
 
+    /**
+     * Closes every element that is still open. Used to keep a streamed
+     * response well-formed when it is cut short by an error.
+     */
+    public void completeDocument();
+
     /**
      * Sends a piece of text verbatim through the writer. It must be a piece
      * of well-formed XML.
      */
     public void verbatim(String text);
 
+    /**
+     * Sends a pre-rendered piece of XML verbatim through the writer.
+     */
+    public void verbatim(XmlFragment fragment);
+
     /**
      * Flushes any unwritten output.
      */
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.writer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Immutable piece of well-formed XML, kept as UTF-8 bytes, for output that
+ * does not change between responses (XSD schema sections, cached Discover
+ * responses). It is rendered once and then written with {@link SaxWriter#verbatim(XmlFragment)},
+ * which for {@link CompactSaxWriter} is a plain copy of the bytes.
+ */
+
+public final class XmlFragment {
+
+   private final byte[] utf8;
+   /** Decoded on first use; compact UTF-8 responses never need it */
+   private volatile String text;
+
+   private XmlFragment(byte[] utf8) {
+      this.utf8 = utf8;
+   }
+
+   /**
+    * Renders the events written by a source into a fragment, as compact
+    * XML.
+    */
+   public static XmlFragment render(Source source) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+      SaxWriter writer = new CompactSaxWriter(out);
+      source.write(writer);
+      writer.flush();
+      return new XmlFragment(out.toByteArray());
+   }
+
+   public String getText() {
+      String s = text;
+      if (s == null) {
+         s = new String(utf8, StandardCharsets.UTF_8);
+         text = s;
+      }
+      return s;
+   }
+
+   /**
+    * UTF-8 encoding of the text. The array is shared and must not be
+    * modified.
+    */
+   byte[] getUtf8() {
+      return utf8;
+   }
+
+   /**
+    * @return size in bytes of the UTF-8 encoding
+    */
+   public int size() {
+      return utf8.length;
+   }
+
+   /**
+    * Writes the content of a fragment.
+    */
+   public interface Source {
+      void write(SaxWriter writer);
+   }
+}
+
+// End XmlFragment.java
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2008-2014 Open Link Financial, Inc. All Rights Reserved.
+ */
+
+package custom.mondrian.xmla.writer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * A streamed response that fails in the middle of its rows must still be a
+ * well-formed document: the error is written inside root, and the elements
+ * that are still open are closed, skipping the markers of sequences that
+ * have no element of their own.
+ */
+
+public class StreamingErrorTest {
+
+   @Test
+   public void testDefaultSaxWriterErrorInRow() throws Exception {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      writeFailingResponse(new DefaultSaxWriter(out, "UTF-8"));
+      assertWellFormed(out);
+   }
+
+   @Test
+   public void testCompactSaxWriterErrorInRow() throws Exception {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      writeFailingResponse(new CompactSaxWriter(out));
+      assertWellFormed(out);
+   }
+
+   /**
+    * Writes what the handler and the servlet write when the rows of an
+    * Execute fail once part of the response was sent.
+    */
+   private static void writeFailingResponse(SaxWriter writer) {
+      writer.startElement("ExecuteResponse");
+      writer.startElement("return");
+      writer.startElement("root");
+      writer.startSequence(null, "row");
+      writer.startElement("row");
+      writer.textElement("Col0", "1");
+      writer.startElement("Col1");
+      writer.characters("2");
+
+      // DefaultXmlaResponse.error, then DefaultXmlaServlet.streamSoapBody
+      writer.completeBeforeElement("root");
+      writer.startElement("Messages");
+      writer.element("Error", "ErrorCode", "java.sql.SQLException", "Description", "Connection reset", "Source", "Mondrian", "Help", "");
+      writer.endElement(); // Messages
+      writer.completeDocument();
+   }
+
+   private static void assertWellFormed(ByteArrayOutputStream out) throws Exception {
+      final String xml = new String(out.toByteArray(), StandardCharsets.UTF_8);
+      assertFalse(xml, xml.contains("null>"));
+      final Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(out.toByteArray()));
+      assertTrue(xml, document.getElementsByTagName("Messages").getLength() == 1);
+      assertTrue(xml, document.getElementsByTagName("row").getLength() == 1);
+   }
+}
+
+// End StreamingErrorTest.java